@@ -0,0 +1,43 @@
+package org.pelizzari.ai;
+
+import ec.EvolutionState;
+import ec.Problem;
+import ec.Subpopulation;
+import ec.simple.SimpleEvaluator;
+import ec.simple.SimpleProblemForm;
+import ec.util.Parameter;
+
+/**
+ * SimpleEvaluator of DisplacementSequenceProblem that evaluates the slice of the population of each
+ * evaluation thread at once, on the problem clone of the thread: the genomes of the slice are packed in
+ * the TrackBatch buffers of the thread (structure of arrays) instead of calling evaluate() per individual.
+ * Threads, slices and problem clones are the ones of SimpleEvaluator (evalthreads). Same fitness as
+ * SimpleEvaluator, the FitnessCache of the problem is used as well.
+ * Individuals are evaluated one by one if the problem cannot be batched (see isBatchEvaluable()).
+ * Usage: eval = org.pelizzari.ai.BatchEvaluator
+ * @author andrea@pelizzari.org
+ *
+ */
+public class BatchEvaluator extends SimpleEvaluator {
+
+	public void setup(final EvolutionState state, final Parameter base) {
+		super.setup(state, base);
+		if (!(p_problem instanceof DisplacementSequenceProblem)) {
+			state.output.fatal("BatchEvaluator: expecting DisplacementSequenceProblem, found: " + p_problem);
+		}
+	}
+
+	/**
+	 * As SimpleEvaluator.evalPopChunk(), with one evaluateBatch() per subpopulation instead of one evaluate()
+	 * per individual; p is the problem clone of the thread
+	 */
+	protected void evalPopChunk(EvolutionState state, int[] numinds, int[] from, int threadnum, SimpleProblemForm p) {
+		((Problem) p).prepareToEvaluate(state, threadnum);
+		DisplacementSequenceProblem problem = (DisplacementSequenceProblem) p;
+		Subpopulation[] subpops = state.population.subpops;
+		for (int pop = 0; pop < subpops.length; pop++) {
+			problem.evaluateBatch(state, subpops[pop].individuals, from[pop], from[pop] + numinds[pop], pop, threadnum);
+		}
+		((Problem) p).finishEvaluating(state, threadnum);
+	}
+}
@@ -125,7 +125,8 @@ public class BestStatistics extends Statistics {
 		//map.setVisible(true);
 		
 		// on KML too
-		for(ShipPosition pos: prob.getTrainingShipPositionList().getPosList()) {
+		ShipPositionList trainingPositions = prob.getTrainingShipPositionList();
+		for(ShipPosition pos: trainingPositions.getPosList()) {
 			kmlGenerator.addPoint("trainingPositionStyle", "", pos.getPoint().lat, pos.getPoint().lon);
 		}
 		String kmlFile = FILE_DIR+KML_OUTFILE+"_trainingset.kml";
@@ -274,6 +275,10 @@ public class BestStatistics extends Statistics {
 			// and starting from the first position of the Target track
 			if (state.evaluator.p_problem instanceof DisplacementSequenceProblem) {
 				DisplacementSequenceProblem prob = (DisplacementSequenceProblem)state.evaluator.p_problem;
+				if (prob.getFitnessCache() != null) {
+					state.output.println(prob.getFitnessCache().toString(), popLog);
+					state.output.message(prob.getFitnessCache().toString());
+				}
 				ShipTrack bestTrack = prob.makeTrack(state, (GeneVectorIndividual)simplyTheBest);
 				state.output.println(bestTrack.toString(), popLog);
 				
@@ -284,15 +289,24 @@ public class BestStatistics extends Statistics {
 							new Timestamp(MineVoyages.REFERENCE_START_DT), 
 							MineVoyages.REFERENCE_VOYAGE_DURATION_IN_SEC);
 					trackError = bestTrack.computeTrackError(
-							prob.getTrainingShipPositionList(),
+							prob.getFitnessPositionList(),
 							prob.getDestinationPoint(),
-							prob.DISTANCE_TO_DESTINATION_ERROR_FACTOR,
-							prob.DISTANCE_ERROR_FACTOR,
-							prob.HEADING_ERROR_FACTOR);
+							prob.distanceToDestinationErrorFactor,
+							prob.distanceErrorFactor,
+							prob.headingErrorFactor,
+							prob.targetSelection);
 				} catch (Exception e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
 				}
+				if (prob.getDistanceRaster() != null) {
+					// the fitness is the raster approximation: log it, then the exact error for reference
+					float rasterError = prob.computeRasterError(state, (GeneVectorIndividual)simplyTheBest);
+					state.output.println("Error (RASTER backend, the fitness): " + rasterError, popLog);
+					state.output.message("Error (RASTER backend, the fitness): " + rasterError + 
+							", from the training positions (SEGMENTS): " + trackError.getError());
+					state.output.println("Error from the training positions (SEGMENTS, not the fitness):", popLog);
+				}
 				state.output.println(""+trackError, popLog);
 				trackError.recordFitnessInDB(prob.DEPARTURE_AREA, 
 											 prob.ARRIVAL_AREA, 
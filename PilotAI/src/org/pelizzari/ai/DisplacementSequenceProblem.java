@@ -1,13 +1,17 @@
 package org.pelizzari.ai;
 
 import java.awt.Color;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
 
 import org.pelizzari.db.Miner;
 import org.pelizzari.gis.Box;
@@ -17,11 +21,18 @@ import org.pelizzari.gis.Map;
 import org.pelizzari.gis.Point;
 import org.pelizzari.mine.Areas;
 import org.pelizzari.mine.MineVoyages;
+import org.pelizzari.ship.DistanceFieldRaster;
 import org.pelizzari.ship.Ship;
 import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.PositionGridIndex;
 import org.pelizzari.ship.ShipPositionList;
 import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.ship.TrackBatch;
 import org.pelizzari.ship.TrackError;
+import org.pelizzari.ship.TrackWorkspace;
+import org.pelizzari.ship.WeightedShipPositionList;
+import org.pelizzari.store.PositionStore;
+import org.pelizzari.store.StoreMiner;
 import org.pelizzari.time.Timestamp;
 
 import ec.*;
@@ -32,11 +43,14 @@ import ec.vector.*;
 public class DisplacementSequenceProblem extends Problem implements
 		SimpleProblemForm {
 
+	// shared by the evaluation threads: set in the static initializer, never changed afterwards
 	static ShipPositionList trainingShipPositionList;
 
 	static ShipPosition startPosition, endPosition;
 	
-	static final String DATA_STORAGE = "DB";
+	// "DB" or "STORE" (local PositionStore in STORE_DIR), can be set with -Dpelizzari.data.storage=...
+	static final String DATA_STORAGE = System.getProperty("pelizzari.data.storage", "DB");
+	static final String STORE_DIR = System.getProperty("pelizzari.store.dir", "store");
 
 //	static final String FILE_DIR = "c:/master_data/";
 //	static final String FILE_PREFIX = "pos_";
@@ -70,10 +84,40 @@ public class DisplacementSequenceProblem extends Problem implements
 //	static final float[] TRACK_LAT = { 31f, 32f, 31f, 30f, 31f };
 //	static final float[] TRACK_LON = { -12f, -11f, -10f, -11f, -12f };
 	
-	static float DISTANCE_TO_DESTINATION_ERROR_FACTOR;
-	static float DISTANCE_ERROR_FACTOR;
-	static float HEADING_ERROR_FACTOR; 
+	// set in setup(), copied to the clone of each evaluation thread
+	float distanceToDestinationErrorFactor;
+	float distanceErrorFactor;
+	float headingErrorFactor; 
+	String targetSelection = TrackError.TARGET_IN_INTERVAL; // target positions of each segment
+	// errors of the evaluated genomes, shared by the clones; null if disabled
+	FitnessCache fitnessCache = null;
+	final static int DEFAULT_FITNESS_CACHE_SIZE = 100000;
+	// distance error from the training positions (SEGMENTS) or from a DistanceFieldRaster of them (RASTER)
+	final static String FITNESS_BACKEND_SEGMENTS = "SEGMENTS";
+	final static String FITNESS_BACKEND_RASTER = "RASTER";
+	// built once in setup() if the backend is RASTER, shared by the clones; null otherwise
+	DistanceFieldRaster distanceRaster = null;
+	// training positions the error is computed from: trainingShipPositionList or its compression,
+	// set once in setup(), shared by the clones
+	ShipPositionList fitnessPositionList = null;
+	// compression of the training positions (0 = none) and its time bin
+	final static float DEFAULT_TRAINING_COMPRESSION_CELL_SIZE = 0f;
+	final static int DEFAULT_TRAINING_COMPRESSION_TIME_BIN_IN_SEC = 3600;
 	static final long EXECUTION_START_TS = (new java.util.Date()).getTime()/1000;
+	static long REFERENCE_START_TS_IN_MILLISEC;
+	
+	// buffers to evaluate the individuals without creating the tracks, one per evaluation thread
+	static final ThreadLocal<TrackWorkspace> WORKSPACE = new ThreadLocal<TrackWorkspace>() {
+		protected TrackWorkspace initialValue() {
+			return new TrackWorkspace();
+		}
+	};
+	// buffers to evaluate a slice of the population at once (see BatchEvaluator), one per evaluation thread
+	static final ThreadLocal<TrackBatch> BATCH = new ThreadLocal<TrackBatch>() {
+		protected TrackBatch initialValue() {
+			return new TrackBatch();
+		}
+	};
 
 	// init target track, map, etc.
 	static {
@@ -125,6 +169,9 @@ public class DisplacementSequenceProblem extends Problem implements
 //				tracks.add(track);
 //			}			
 			trainingShipPositionList = miner.getMergedShipTracksInPeriodAndBetweenBoxes(YEAR_PERIOD, DEPARTURE_AREA, ARRIVAL_AREA);			
+		} else if (DATA_STORAGE.equals("STORE")) {
+			Miner miner = new StoreMiner(new PositionStore(new File(STORE_DIR)));
+			trainingShipPositionList = miner.getMergedShipTracksInPeriodAndBetweenBoxes(YEAR_PERIOD, DEPARTURE_AREA, ARRIVAL_AREA);
 		}
 		
 //		List<ShipPosition> allPos = new ArrayList<ShipPosition>();
@@ -142,16 +189,19 @@ public class DisplacementSequenceProblem extends Problem implements
 //				displSeq, SPEED);
 //		targetTrack = track;
 		
-		if(trainingShipPositionList.getPosList().size() == 0) {
+		if(trainingShipPositionList.size() == 0) {
 			System.err.println("No positions matching the criteria");
 			System.exit(-1);
 		}
+		// verify the time order now, not concurrently in the evaluation threads
+		trainingShipPositionList.isTimeOrdered();
 		
 		try {
 			// set START position using the Point Of Interest of the Departure box
 			Point startPoint = DEPARTURE_AREA.getPoi();
 			if(startPoint == null) throw new Exception("Departure POI not set");
 			Timestamp startTs = new Timestamp(REFERENCE_START_DT);
+			REFERENCE_START_TS_IN_MILLISEC = startTs.getTsMillisec();
 			startPosition = new ShipPosition(startPoint, startTs);
 			// set END position using the Point Of Interest of the Arrival box
 			Point endPoint = ARRIVAL_AREA.getPoi();
@@ -176,12 +226,51 @@ public class DisplacementSequenceProblem extends Problem implements
 	public void setup(EvolutionState state, Parameter base) {
 		super.setup(state, base);
 		// get error factors
-		DISTANCE_TO_DESTINATION_ERROR_FACTOR = state.parameters.getFloat(
+		distanceToDestinationErrorFactor = state.parameters.getFloat(
 				new Parameter("pelizzari.fitness.factor.distance-to-destination-error"), null);		
-		DISTANCE_ERROR_FACTOR = state.parameters.getFloat(
+		distanceErrorFactor = state.parameters.getFloat(
 				new Parameter("pelizzari.fitness.factor.distance-error"), null);		
-		HEADING_ERROR_FACTOR = state.parameters.getFloat(
+		headingErrorFactor = state.parameters.getFloat(
 				new Parameter("pelizzari.fitness.factor.heading-error"), null);		
+		// target positions of each segment
+		targetSelection = state.parameters.getStringWithDefault(
+				new Parameter("pelizzari.fitness.target-selection"), null, TrackError.TARGET_IN_INTERVAL);
+		if(!TrackError.isTargetSelection(targetSelection)) {
+			state.output.fatal("Unknown pelizzari.fitness.target-selection: " + targetSelection, null);
+		}
+		int cacheSize = state.parameters.getIntWithDefault(
+				new Parameter("pelizzari.fitness.cache-size"), null, DEFAULT_FITNESS_CACHE_SIZE);
+		fitnessCache = cacheSize > 0 ? new FitnessCache(cacheSize) : null;
+		// replace the near-duplicate training positions by weighted ones, once (before the index and the raster)
+		float compressionCellSize = state.parameters.getFloatWithDefault(
+				new Parameter("pelizzari.training.compression.cell-size"), null, DEFAULT_TRAINING_COMPRESSION_CELL_SIZE);
+		int compressionTimeBin = state.parameters.getIntWithDefault(
+				new Parameter("pelizzari.training.compression.time-bin"), null, DEFAULT_TRAINING_COMPRESSION_TIME_BIN_IN_SEC);
+		fitnessPositionList = trainingShipPositionList;
+		if(compressionCellSize > 0 && !trainingShipPositionList.isWeighted()) {
+			fitnessPositionList = WeightedShipPositionList.compress(trainingShipPositionList, 
+					compressionCellSize, compressionTimeBin);
+			fitnessPositionList.isTimeOrdered();
+			System.out.println("Training positions compressed from " + trainingShipPositionList.size() + 
+					" to " + fitnessPositionList.size() +
+					" (cells of " + compressionCellSize + " deg, time bins of " + compressionTimeBin + " s)");
+		}
+		String backend = state.parameters.getStringWithDefault(
+				new Parameter("pelizzari.fitness.backend"), null, FITNESS_BACKEND_SEGMENTS);
+		if(backend.equals(FITNESS_BACKEND_RASTER)) {
+			float cellSize = state.parameters.getFloatWithDefault(
+					new Parameter("pelizzari.fitness.raster.cell-size"), null, DistanceFieldRaster.DEFAULT_CELL_SIZE_IN_DEGREES);
+			distanceRaster = DistanceFieldRaster.ofPositions(fitnessPositionList, cellSize);
+			distanceRaster.compute();
+			System.out.println(distanceRaster);
+		} else if(!backend.equals(FITNESS_BACKEND_SEGMENTS)) {
+			state.output.fatal("Unknown pelizzari.fitness.backend: " + backend, null);
+		}
+		if(!targetSelection.equals(TrackError.TARGET_IN_INTERVAL) && fitnessPositionList.getSpatialIndex() == null) {
+			PositionGridIndex index = fitnessPositionList.buildSpatialIndex();
+			System.out.println("Spatial index of the training positions: " + index.getCellCount() + 
+					" cells of " + index.getCellSize() + " deg");
+		}
 	}
 
 	// ind is the individual to be evaluated.
@@ -196,24 +285,45 @@ public class DisplacementSequenceProblem extends Problem implements
 		if (!(ind instanceof GeneVectorIndividual))
 			state.output.fatal("evaluate: not a GeneVectorIndividual", null);
 		GeneVectorIndividual displSeqInd = (GeneVectorIndividual) ind;
-		ShipTrack trackInd = makeTrack(state, displSeqInd);
-		// compute fitness
-		TrackError trackError = null;
-		try {	
-			// normalize position timestamps and make the corresponding segments
-			trackInd.normalizeTimestampsAndComputeTrackSegments(
-					new Timestamp(REFERENCE_START_DT), 
-					REFERENCE_VOYAGE_DURATION_IN_DAYS);
-			// compute error
-			trackError = trackInd.computeTrackError(
-					trainingShipPositionList,
-					getDestinationPoint(),
-					DISTANCE_TO_DESTINATION_ERROR_FACTOR,
-					DISTANCE_ERROR_FACTOR,
-					HEADING_ERROR_FACTOR);
-		} catch (Exception e) {
-			state.output.fatal("computeTrackError: "+e, null);
-			e.printStackTrace();
+		FitnessCache.GenomeKey key = null;
+		Float cachedError = null;
+		if(fitnessCache != null) {
+			key = FitnessCache.keyOf(displSeqInd, startPosition.getPoint(), getDestinationPoint());
+			cachedError = fitnessCache.get(key);
+		}
+		long startNanos = System.nanoTime();
+		float error;
+		if(cachedError != null) {
+			error = cachedError;
+		} else if(distanceRaster != null || targetSelection.equals(TrackError.TARGET_IN_INTERVAL)) {
+			// same error as the track below (or its approximation with the raster), computed in the buffers of the thread
+			error = computeError(state, displSeqInd, WORKSPACE.get(), fitnessPositionList, distanceRaster,
+					distanceToDestinationErrorFactor, distanceErrorFactor, headingErrorFactor);
+		} else {
+			ShipTrack trackInd = makeTrack(state, displSeqInd);
+			// compute fitness
+			TrackError trackError = null;
+			try {	
+				// normalize position timestamps and make the corresponding segments
+				trackInd.normalizeTimestampsAndComputeTrackSegments(
+						new Timestamp(REFERENCE_START_DT), 
+						REFERENCE_VOYAGE_DURATION_IN_DAYS);
+				// compute error
+				trackError = trackInd.computeTrackError(
+						fitnessPositionList,
+						getDestinationPoint(),
+						distanceToDestinationErrorFactor,
+						distanceErrorFactor,
+						headingErrorFactor,
+						targetSelection);
+			} catch (Exception e) {
+				state.output.fatal("computeTrackError: "+e, null);
+				e.printStackTrace();
+			}
+			error = trackError.getError();
+		}
+		if(key != null && cachedError == null) {
+			fitnessCache.put(key, error, System.nanoTime() - startNanos);
 		}
 
 		//float totalSegmentError = trackError.totalSegmentError();
@@ -224,8 +334,13 @@ public class DisplacementSequenceProblem extends Problem implements
 //		float noCoverageError = trackError.getNoCoverageError();
 		// int numberOfSegments = trackError.getTrackSize();
 
-		float error = trackError.getError();
+		setError(state, displSeqInd, error);
+	}
 
+	/**
+	 * Set the fitness of the individual from its error, also used by evaluateBatch()
+	 */
+	static void setError(EvolutionState state, GeneVectorIndividual displSeqInd, float error) {
 		if (!(displSeqInd.fitness instanceof SimpleFitness))
 			state.output.fatal("evaluate: not a SimpleFitness", null);
 
@@ -266,14 +381,183 @@ public class DisplacementSequenceProblem extends Problem implements
 					.getAllele();
 			displSeq.add(displ);
 		}
-		track = ShipTrack.reconstructShipTrack(startPosition, endPosition.getTs(), displSeq);
+		// a copy of the start position: normalizeTimestamps() sets its timestamp, in any thread
+		ShipPosition trackStartPosition = new ShipPosition(startPosition.getPoint(), startPosition.getTs());
+		track = ShipTrack.reconstructShipTrack(trackStartPosition, endPosition.getTs(), displSeq);
 		return track;
 	}
 
+	/**
+	 * Error of the track of the individual, as computeTrackError(...).getError() on the track
+	 * of makeTrack() with normalized timestamps, without creating objects (TARGET_IN_INTERVAL only).
+	 * With a raster, the distance error is sampled in it instead of computed from the training positions.
+	 */
+	static float computeError(EvolutionState state, GeneVectorIndividual displSeqInd, TrackWorkspace workspace,
+			ShipPositionList trainingPosList, DistanceFieldRaster raster,
+			float distanceToDestinationErrorFactor, float distanceErrorFactor, float headingErrorFactor) {
+		workspace.setDisplacementCount(displSeqInd.genome.length);
+		for (int i = 0; i < displSeqInd.genome.length; i++) {
+			if (!(displSeqInd.genome[i] instanceof DisplacementGene))
+				state.output.fatal("evaluate: not a DisplacementGene", null);
+			Displacement displ = ((DisplacementGene) displSeqInd.genome[i]).getAllele();
+			workspace.setDisplacement(i, displ.deltaLat, displ.deltaLon);
+		}
+		Point startPoint = startPosition.getPoint();
+		workspace.reconstruct(startPoint.lat, startPoint.lon);
+		workspace.normalizeTimestamps(REFERENCE_START_TS_IN_MILLISEC, REFERENCE_VOYAGE_DURATION_IN_DAYS);
+		if(raster != null) {
+			workspace.computeSegmentStats(raster);
+		} else {
+			workspace.computeSegmentStats(trainingPosList);
+		}
+		return workspace.getError(getDestinationPoint(),
+				distanceToDestinationErrorFactor,
+				distanceErrorFactor,
+				headingErrorFactor);
+	}
+
+	/**
+	 * If evaluateBatch() computes the errors in a TrackBatch: the same cases as computeError()
+	 */
+	boolean isBatchEvaluable() {
+		return distanceRaster != null || targetSelection.equals(TrackError.TARGET_IN_INTERVAL);
+	}
+
+	/**
+	 * Evaluate the individuals from ... to-1 of a subpopulation, with the same errors as evaluate() one by one.
+	 * The individuals not in the fitness cache are packed in the TrackBatch of the thread, one batch
+	 * per genome length, and evaluated at once; the copies of a genome in the slice are evaluated once.
+	 * Called by BatchEvaluator on the problem clone of each evaluation thread.
+	 */
+	void evaluateBatch(EvolutionState state, Individual[] inds, int from, int to, int subpopulation, int threadnum) {
+		if(!isBatchEvaluable()) {
+			for (int x = from; x < to; x++) {
+				evaluate(state, inds[x], subpopulation, threadnum);
+			}
+			return;
+		}
+		// individuals to evaluate, by genome length: not evaluated, not in the cache, first copy of the genome
+		List<GeneVectorIndividual> pending = new ArrayList<GeneVectorIndividual>();
+		List<FitnessCache.GenomeKey> pendingKeys = new ArrayList<FitnessCache.GenomeKey>();
+		TreeMap<Integer, List<Integer>> pendingByLength = new TreeMap<Integer, List<Integer>>();
+		HashMap<FitnessCache.GenomeKey, Integer> firstCopies = new HashMap<FitnessCache.GenomeKey, Integer>();
+		List<GeneVectorIndividual> copies = new ArrayList<GeneVectorIndividual>();
+		List<Integer> copiesOf = new ArrayList<Integer>();
+		for (int x = from; x < to; x++) {
+			if (inds[x].evaluated)
+				continue;
+			if (!(inds[x] instanceof GeneVectorIndividual))
+				state.output.fatal("evaluate: not a GeneVectorIndividual", null);
+			GeneVectorIndividual displSeqInd = (GeneVectorIndividual) inds[x];
+			if(displSeqInd.genome.length == 0) {
+				evaluate(state, displSeqInd, subpopulation, threadnum);
+				continue;
+			}
+			FitnessCache.GenomeKey key = null;
+			if(fitnessCache != null) {
+				key = FitnessCache.keyOf(displSeqInd, startPosition.getPoint(), getDestinationPoint());
+				Integer first = firstCopies.get(key);
+				if(first != null) {
+					copies.add(displSeqInd);
+					copiesOf.add(first);
+					continue;
+				}
+				Float cachedError = fitnessCache.get(key);
+				if(cachedError != null) {
+					setError(state, displSeqInd, cachedError);
+					continue;
+				}
+				firstCopies.put(key, pending.size());
+			}
+			List<Integer> sameLength = pendingByLength.get(displSeqInd.genome.length);
+			if(sameLength == null) {
+				sameLength = new ArrayList<Integer>();
+				pendingByLength.put(displSeqInd.genome.length, sameLength);
+			}
+			sameLength.add(pending.size());
+			pending.add(displSeqInd);
+			pendingKeys.add(key);
+		}
+
+		TrackBatch batch = BATCH.get();
+		Point startPoint = startPosition.getPoint();
+		float[] errors = new float[pending.size()];
+		float[] batchErrors = new float[pending.size()];
+		for (Entry<Integer, List<Integer>> sameLength : pendingByLength.entrySet()) {
+			int displacements = sameLength.getKey();
+			List<Integer> indexes = sameLength.getValue();
+			long startNanos = System.nanoTime();
+			batch.setSize(indexes.size(), displacements);
+			for (int k = 0; k < indexes.size(); k++) {
+				GeneVectorIndividual displSeqInd = pending.get(indexes.get(k));
+				for (int i = 0; i < displacements; i++) {
+					if (!(displSeqInd.genome[i] instanceof DisplacementGene))
+						state.output.fatal("evaluate: not a DisplacementGene", null);
+					Displacement displ = ((DisplacementGene) displSeqInd.genome[i]).getAllele();
+					batch.setDisplacement(k, i, displ.deltaLat, displ.deltaLon);
+				}
+			}
+			batch.reconstruct(startPoint.lat, startPoint.lon);
+			batch.normalizeTimestamps(REFERENCE_START_TS_IN_MILLISEC, REFERENCE_VOYAGE_DURATION_IN_DAYS);
+			if(distanceRaster != null) {
+				batch.computeSegmentStats(distanceRaster);
+			} else {
+				batch.computeSegmentStats(fitnessPositionList);
+			}
+			batch.computeErrors(getDestinationPoint(),
+					distanceToDestinationErrorFactor,
+					distanceErrorFactor,
+					headingErrorFactor,
+					batchErrors, 0);
+			long nanosPerIndividual = (System.nanoTime() - startNanos) / indexes.size();
+			for (int k = 0; k < indexes.size(); k++) {
+				int index = indexes.get(k);
+				errors[index] = batchErrors[k];
+				setError(state, pending.get(index), errors[index]);
+				if(fitnessCache != null) {
+					fitnessCache.put(pendingKeys.get(index), errors[index], nanosPerIndividual);
+				}
+			}
+		}
+		for (int c = 0; c < copies.size(); c++) {
+			fitnessCache.get(pendingKeys.get(copiesOf.get(c))); // a hit, as with evaluate() one by one
+			setError(state, copies.get(c), errors[copiesOf.get(c)]);
+		}
+	}
+
+	/**
+	 * Null if the backend is not RASTER
+	 */
+	public DistanceFieldRaster getDistanceRaster() {
+		return distanceRaster;
+	}
+
+	/**
+	 * Error of the individual with the RASTER backend, as computed by evaluate() (the raster must be built)
+	 */
+	public float computeRasterError(EvolutionState state, GeneVectorIndividual displSeqInd) {
+		return computeError(state, displSeqInd, WORKSPACE.get(), fitnessPositionList, distanceRaster,
+				distanceToDestinationErrorFactor, distanceErrorFactor, headingErrorFactor);
+	}
+
+	/**
+	 * Null if the cache is disabled
+	 */
+	public FitnessCache getFitnessCache() {
+		return fitnessCache;
+	}
+
 	public static ShipPositionList getTrainingShipPositionList() {
 		return trainingShipPositionList;
 	}
 
+	/**
+	 * The training positions the error is computed from (compressed if so configured), after setup()
+	 */
+	public ShipPositionList getFitnessPositionList() {
+		return fitnessPositionList;
+	}
+
 	public static Point getDestinationPoint() {
 		return ARRIVAL_AREA.getPoi();
 	}
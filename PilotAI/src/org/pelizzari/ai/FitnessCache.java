@@ -0,0 +1,177 @@
+package org.pelizzari.ai;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pelizzari.gis.Displacement;
+import org.pelizzari.gis.Point;
+
+import ec.vector.GeneVectorIndividual;
+
+/**
+ * Errors of the evaluated genomes, so that the copies made by selection and crossover are not evaluated again.
+ * The key is the exact genome (the bits of each allele) with the start and destination points of the track:
+ * only identical copies share an error, so the fitness is the same with or without the cache.
+ * Bounded and thread safe: the entries are split in segments, each an LRU map with its own lock.
+ * Hits, misses and the evaluation time saved are counted, see toString().
+ * @author andrea@pelizzari.org
+ *
+ */
+public class FitnessCache {
+
+	final static int SEGMENTS = 16;
+
+	final Segment[] segments = new Segment[SEGMENTS];
+	final int maxSize;
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong evictions = new AtomicLong();
+	final AtomicLong missNanos = new AtomicLong(); // time spent evaluating the misses
+
+	public FitnessCache(int maxSize) {
+		if(maxSize <= 0) {
+			throw new IllegalArgumentException("Fitness cache size must be > 0: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(Math.max(maxSize / SEGMENTS, 1));
+		}
+	}
+
+	/**
+	 * Key of the genome of a GeneVectorIndividual of DisplacementGenes, for a track from startPoint to destinationPoint
+	 */
+	public static GenomeKey keyOf(GeneVectorIndividual ind, Point startPoint, Point destinationPoint) {
+		int[] bits = new int[ind.genome.length * 2 + 4];
+		for (int i = 0; i < ind.genome.length; i++) {
+			Displacement displ = ((DisplacementGene) ind.genome[i]).getAllele();
+			bits[2*i] = Float.floatToIntBits(displ.deltaLat);
+			bits[2*i + 1] = Float.floatToIntBits(displ.deltaLon);
+		}
+		int end = ind.genome.length * 2;
+		bits[end] = Float.floatToIntBits(startPoint.lat);
+		bits[end + 1] = Float.floatToIntBits(startPoint.lon);
+		bits[end + 2] = Float.floatToIntBits(destinationPoint.lat);
+		bits[end + 3] = Float.floatToIntBits(destinationPoint.lon);
+		return new GenomeKey(bits);
+	}
+
+	/**
+	 * The error of the genome, null if not in the cache
+	 */
+	public Float get(GenomeKey key) {
+		Float error = segmentOf(key).getError(key);
+		if(error != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return error;
+	}
+
+	/**
+	 * Store the error of a genome that was not in the cache, computed in evaluationNanos
+	 */
+	public void put(GenomeKey key, float error, long evaluationNanos) {
+		missNanos.addAndGet(evaluationNanos);
+		segmentOf(key).putError(key, error);
+	}
+
+	Segment segmentOf(GenomeKey key) {
+		int h = key.hash ^ (key.hash >>> 16);
+		return segments[(h & 0x7fffffff) % SEGMENTS];
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public float getHitRate() {
+		long lookups = hits.get() + misses.get();
+		return lookups == 0 ? 0 : (float) hits.get() / lookups;
+	}
+
+	/**
+	 * Evaluation time saved by the hits, estimated with the average evaluation time of the misses
+	 */
+	public long getTimeSavedMillis() {
+		long evaluated = misses.get();
+		return evaluated == 0 ? 0 : missNanos.get() / evaluated * hits.get() / 1000000;
+	}
+
+	public String toString() {
+		return "Fitness cache: size=" + size() + "/" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() +
+				", hit rate=" + getHitRate() * 100 + " %, evictions=" + evictions.get() +
+				", time saved (ms)=" + getTimeSavedMillis();
+	}
+
+	/**
+	 * Bits of the genome and of the end points, hash computed once
+	 */
+	public static class GenomeKey {
+		final int[] bits;
+		final int hash;
+
+		GenomeKey(int[] bits) {
+			this.bits = bits;
+			this.hash = Arrays.hashCode(bits);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof GenomeKey && hash == ((GenomeKey) other).hash &&
+					Arrays.equals(bits, ((GenomeKey) other).bits);
+		}
+	}
+
+	/**
+	 * LRU map of a part of the keys, only accessed under the lock of the segment
+	 */
+	class Segment {
+		private final LinkedHashMap<GenomeKey, Float> entries;
+
+		Segment(final int capacity) {
+			entries = new LinkedHashMap<GenomeKey, Float>(16, 0.75f, true) { // access order: LRU
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<GenomeKey, Float> eldest) {
+					if(size() > capacity) {
+						evictions.incrementAndGet();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		synchronized Float getError(GenomeKey key) {
+			return entries.get(key);
+		}
+
+		synchronized void putError(GenomeKey key, float error) {
+			entries.put(key, error);
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package org.pelizzari.mine;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.text.ParseException;
+
+import org.pelizzari.db.DBConnection;
+import org.pelizzari.db.SQLQuery;
+import org.pelizzari.db.ShipPositionCursor;
+import org.pelizzari.db.StatementCache;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.store.CellIndex;
+import org.pelizzari.store.PositionPartition;
+import org.pelizzari.store.PositionStore;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Add the days of a period to the cell index, reading the positions from wpos or from a PositionStore.
+ * Days already indexed are skipped, unless "force" is given.
+ * Usage: prog index_dir start_dt days [store_dir|DB] [force]
+ * @author andrea@pelizzari.org
+ *
+ */
+public class BuildCellIndex {
+
+	final static int FETCH_SIZE = 10000;
+	final static int ONE_DAY_IN_SEC = 24*3600;
+	
+	static void indexDayFromDB(CellIndex cellIndex, StatementCache statementCache, int epochDay) 
+			throws SQLException, IOException {
+		SQLQuery posQuery = new SQLQuery(
+				"SELECT mmsi, ts, lat, lon FROM wpos WHERE ts >= ? and ts < ?",
+				epochDay*ONE_DAY_IN_SEC, (epochDay+1)*ONE_DAY_IN_SEC);
+		CellIndex.DayBuilder builder = new CellIndex.DayBuilder();
+		try (ShipPositionCursor cursor = new ShipPositionCursor(posQuery, statementCache, FETCH_SIZE, "ts", true)) {
+			while(cursor.hasNext()) {
+				ShipPosition pos = cursor.next();
+				builder.add(cursor.getMmsi(), pos.getPoint().lat, pos.getPoint().lon);
+			}
+			System.out.println("Day " + epochDay + ": " + cursor.getReadCount() + " positions");
+		}
+		cellIndex.writeDay(epochDay, builder);
+	}
+	
+	public static void main(String[] args) throws ParseException {
+		if(args.length < 3) {
+			System.err.println("Usage: prog index_dir start_dt days [store_dir|DB] [force]");
+			System.exit(-1);
+		}
+		CellIndex cellIndex = new CellIndex(new File(args[0]));
+		Timestamp startTs = new Timestamp(args[1] + " 00:00:00");
+		int days = Integer.parseInt(args[2]);
+		String source = args.length > 3 ? args[3] : "DB";
+		boolean force = args.length > 4 && args[4].equals("force");
+		
+		PositionStore store = null;
+		StatementCache statementCache = null;
+		if(source.equals("DB")) {
+			statementCache = new StatementCache(DBConnection.getCon());
+		} else {
+			store = new PositionStore(new File(source));
+		}
+		try {
+			int firstDay = PositionStore.getEpochDay(startTs.getTsMillisec()/1000);
+			for (int day = firstDay; day < firstDay + days; day++) {
+				if(!force && cellIndex.isIndexed(day)) {
+					System.out.println("Day " + day + " already indexed");
+					continue;
+				}
+				if(store != null) {
+					PositionPartition partition = store.getPartition(store.getDayFile(day));
+					if(partition == null) {
+						System.err.println("WARN: day not in store: " + store.getDayFile(day));
+						continue;
+					}
+					cellIndex.indexDay(day, partition);
+					System.out.println("Day " + day + ": " + partition.getPositionCount() + " positions");
+				} else {
+					indexDayFromDB(cellIndex, statementCache, day);
+				}
+			}
+		} catch (SQLException | IOException e) {
+			System.err.println("Cannot build cell index");
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		if(statementCache != null) {
+			statementCache.close();
+		}
+		System.out.println("Done");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,114 @@
+package org.pelizzari.mine;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.ParseException;
+
+import org.pelizzari.db.DBConnection;
+import org.pelizzari.db.SQLQuery;
+import org.pelizzari.db.ShipPositionCursor;
+import org.pelizzari.db.StatementCache;
+import org.pelizzari.gis.Box;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.store.PositionPartitionBuilder;
+import org.pelizzari.store.PositionStore;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Copy positions from the database into a local PositionStore: 
+ * the days of wpos in a period and, optionally, the tracks (with norm_ts) of a route.
+ * Usage: prog store_dir start_dt days [year_period dep_box arr_box]
+ * @author andrea@pelizzari.org
+ *
+ */
+public class ExportPositionStore {
+
+	final static int FETCH_SIZE = 10000;
+	final static int ONE_DAY_IN_SEC = 24*3600;
+	
+	static void exportDay(PositionStore store, StatementCache statementCache, int epochDay) 
+			throws SQLException, IOException {
+		SQLQuery posQuery = new SQLQuery(
+				"SELECT mmsi, ts, lat, lon FROM wpos WHERE ts >= ? and ts < ? order by mmsi asc, ts asc",
+				epochDay*ONE_DAY_IN_SEC, (epochDay+1)*ONE_DAY_IN_SEC);
+		PositionPartitionBuilder builder = new PositionPartitionBuilder(false);
+		try (ShipPositionCursor cursor = new ShipPositionCursor(posQuery, statementCache, FETCH_SIZE, "ts", true)) {
+			while(cursor.hasNext()) {
+				ShipPosition pos = cursor.next();
+				builder.add(cursor.getMmsi(), (int) (pos.getTs().getTsMillisec()/1000), 
+						pos.getPoint().lat, pos.getPoint().lon);
+			}
+		}
+		store.writeDay(epochDay, builder);
+		System.out.println(store.getDayFile(epochDay) + ": " + builder.getPositionCount() + " positions");
+	}
+	
+	/*
+	 * One route partition per insert_ts
+	 */
+	static void exportRoutes(PositionStore store, StatementCache statementCache, 
+							 String yearPeriod, Box depBox, Box arrBox) throws SQLException, IOException {
+		SQLQuery trackQuery = new SQLQuery(
+				"SELECT insert_ts, mmsi, ts, lat, lon, norm_ts FROM tracks " +
+				"WHERE period = ? and dep = ? and arr = ? order by insert_ts asc, mmsi asc, ts asc",
+				yearPeriod, depBox.getName(), arrBox.getName());
+		PreparedStatement stmt = trackQuery.prepare(statementCache);
+		PositionPartitionBuilder builder = null;
+		long insertTs = 0;
+		try (ResultSet rs = stmt.executeQuery()) {
+			while(rs.next()) {
+				long rowInsertTs = rs.getLong("insert_ts");
+				if(builder == null || rowInsertTs != insertTs) {
+					if(builder != null) {
+						writeRoute(store, builder, yearPeriod, depBox, arrBox, insertTs);
+					}
+					builder = new PositionPartitionBuilder(true);
+					insertTs = rowInsertTs;
+				}
+				builder.add(rs.getString("mmsi"), rs.getInt("ts"), rs.getFloat("lat"), rs.getFloat("lon"), 
+						rs.getInt("norm_ts"));
+			}
+		}
+		if(builder != null) {
+			writeRoute(store, builder, yearPeriod, depBox, arrBox, insertTs);
+		}
+	}
+	
+	static void writeRoute(PositionStore store, PositionPartitionBuilder builder, 
+						   String yearPeriod, Box depBox, Box arrBox, long insertTs) throws IOException {
+		File routeFile = store.getRouteFile(yearPeriod, depBox, arrBox, insertTs);
+		store.writePartition(routeFile, builder);
+		System.out.println(routeFile + ": " + builder.getPositionCount() + " positions");
+	}
+	
+	public static void main(String[] args) throws ParseException {
+		if(args.length != 3 && args.length != 6) {
+			System.err.println("Usage: prog store_dir start_dt days [year_period dep_box arr_box]");
+			System.exit(-1);
+		}
+		PositionStore store = new PositionStore(new File(args[0]));
+		Timestamp startTs = new Timestamp(args[1] + " 00:00:00");
+		int days = Integer.parseInt(args[2]);
+		
+		StatementCache statementCache = new StatementCache(DBConnection.getCon());
+		try {
+			int firstDay = PositionStore.getEpochDay(startTs.getTsMillisec()/1000);
+			for (int day = firstDay; day < firstDay + days; day++) {
+				exportDay(store, statementCache, day);
+			}
+			if(args.length == 6) {
+				exportRoutes(store, statementCache, args[3], Areas.getBox(args[4]), Areas.getBox(args[5]));
+			}
+		} catch (SQLException | IOException e) {
+			System.err.println("Cannot export positions");
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		statementCache.close();
+		System.out.println("Done");
+		System.exit(0);
+	}
+}
@@ -8,6 +8,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
@@ -26,13 +27,21 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.pelizzari.ai.DisplacementSequenceProblem;
+import org.pelizzari.db.DBConnection;
 import org.pelizzari.db.Miner;
+import org.pelizzari.db.QueryProfiler;
+import org.pelizzari.db.TrackWriter;
 import org.pelizzari.gis.Box;
 import org.pelizzari.gis.Map;
 import org.pelizzari.gis.Point;
 import org.pelizzari.kml.KMLGenerator;
+import org.pelizzari.ship.PositionDecimator;
 import org.pelizzari.ship.Ship;
 import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.ship.TrackSimplifier;
+import org.pelizzari.store.CellIndex;
+import org.pelizzari.store.PositionStore;
+import org.pelizzari.store.StoreMiner;
 import org.pelizzari.time.TimeInterval;
 import org.pelizzari.time.Timestamp;
 
@@ -53,6 +62,17 @@ public class MineVoyages {
 	static int MAX_SHIPS_TO_ANALYSE; // = 50;
 	static String YEAR_PERIOD; // = "WINTER";
 	static String[] EXCLUDE_MMSI_LIST; // = {};
+	static boolean BULK_MODE; // = false; fetch all the ship positions of a period with one query
+	static int PARALLELISM; // = 1; number of ships fetched at the same time (not in bulk mode)
+	static String DATA_STORAGE; // = "DB"; "STORE" to read from and save to a local PositionStore
+	static String STORE_DIR; // directory of the PositionStore
+	static String CELL_INDEX_DIR; // if set, directory of the CellIndex used to find the ships in the boxes
+	static boolean PROFILE_QUERIES; // = false; print the time, rows and bytes of each type of query
+	static int EXPLAIN_SLOWEST; // = 0; number of slowest queries whose plan is printed (profile_queries only)
+	static String DECIMATION_POLICY; // = "TIME_WINDOW"; how the position density is reduced, see PositionDecimator
+	static float DECIMATION_MIN_DISTANCE_IN_MILES; // = 1; MIN_DISTANCE and ADAPTIVE_SPEED policies only
+	static String SIMPLIFY_ALGORITHM; // = "DOUGLAS_PEUCKER"; or "VISVALINGAM_WHYATT", see TrackSimplifier
+	static float SIMPLIFY_MAX_DEVIATION_IN_MILES; // = 0; if > 0, tracks are simplified before being saved
 	
 	// GIB-Guadalupe SUMMER 2011-06-01 2 months
 	//static final String[] EXCLUDE_MMSI_LIST = {"247456000", "247601000", "247585000", "636090262", 
@@ -83,6 +103,17 @@ public class MineVoyages {
 			MAX_SHIPS_TO_ANALYSE = Integer.parseInt(prop.getProperty("max_ships_to_analyse"));
 			YEAR_PERIOD = prop.getProperty("year_period");
 			EXCLUDE_MMSI_LIST = prop.getProperty("exclude_mmsi_list").split(",");
+			BULK_MODE = Boolean.parseBoolean(prop.getProperty("bulk_mode", "false"));
+			PARALLELISM = Integer.parseInt(prop.getProperty("parallelism", "1"));
+			DATA_STORAGE = prop.getProperty("data_storage", "DB");
+			STORE_DIR = prop.getProperty("store_dir", OUTPUT_DIR+"store");
+			CELL_INDEX_DIR = prop.getProperty("cell_index_dir");
+			PROFILE_QUERIES = Boolean.parseBoolean(prop.getProperty("profile_queries", "false"));
+			EXPLAIN_SLOWEST = Integer.parseInt(prop.getProperty("explain_slowest", "0"));
+			DECIMATION_POLICY = prop.getProperty("decimation_policy", PositionDecimator.TIME_WINDOW);
+			DECIMATION_MIN_DISTANCE_IN_MILES = Float.parseFloat(prop.getProperty("decimation_min_distance_in_miles", "1"));
+			SIMPLIFY_ALGORITHM = prop.getProperty("simplify_algorithm", TrackSimplifier.DOUGLAS_PEUCKER);
+			SIMPLIFY_MAX_DEVIATION_IN_MILES = Float.parseFloat(prop.getProperty("simplify_max_deviation_in_miles", "0"));
 			DEP_BOX = getBox(prop, "dep_box");
 			ARR_BOX = getBox(prop, "arr_box");
 		} catch (IOException ex) {
@@ -144,7 +175,28 @@ public class MineVoyages {
 		
 		/// Let's mine
 		
-		Miner miner = new Miner();
+		if(PROFILE_QUERIES) {
+			QueryProfiler.setDefault(new QueryProfiler(EXPLAIN_SLOWEST));
+		}
+		PositionStore store = null;
+		Miner miner;
+		if(DATA_STORAGE.equals("STORE")) {
+			store = new PositionStore(new File(STORE_DIR));
+			miner = new StoreMiner(store);
+		} else {
+			if(System.getProperty("pelizzari.db.pool.size") == null) { // one connection per worker + main thread
+				System.setProperty("pelizzari.db.pool.size", Integer.toString(PARALLELISM + 1));
+			}
+			miner = new Miner();
+		}
+		miner.setBulkMode(BULK_MODE);
+		if(CELL_INDEX_DIR != null && !CELL_INDEX_DIR.isEmpty()) {
+			miner.setCellIndex(new CellIndex(new File(CELL_INDEX_DIR)));
+		}
+		miner.setParallelism(PARALLELISM);
+		// reduce position density while the tracks are read
+		System.out.println(">>> Reducing position density: "+DECIMATION_POLICY);
+		miner.setDecimator(new PositionDecimator(DECIMATION_POLICY, MAX_RATE_IN_SECONDS, DECIMATION_MIN_DISTANCE_IN_MILES));
 
 		List<ShipTrack> allTracks = new ArrayList<ShipTrack>();
 		
@@ -171,14 +223,15 @@ public class MineVoyages {
 			depInterval.shiftInterval(START_PERIOD_IN_DAYS);
 		}
 		
-		// reduce position density
-		System.out.println(">>> Reducing position density ");
 		for (ShipTrack track : allTracks) {
-			int nPosBefore = track.getPosList().size();
-			track.reducePositionDensity(MAX_RATE_IN_SECONDS);
-			int nPosAfter = track.getPosList().size();
-			System.out.println(track.getMmsi() + ", positions: " + nPosBefore + " > " + nPosAfter);		
+			System.out.println(track.getMmsi() + ", positions: " + track.getPosList().size());		
 		}		
+		if(SIMPLIFY_MAX_DEVIATION_IN_MILES > 0) {
+			System.out.println(">>> Simplifying tracks ");
+			TrackSimplifier simplifier = new TrackSimplifier(SIMPLIFY_ALGORITHM, SIMPLIFY_MAX_DEVIATION_IN_MILES);
+			simplifier.simplify(allTracks);
+			System.out.println(simplifier);
+		}
 		
 		// Make KML
 		kmlGenerator.addBox(DEP_BOX);
@@ -204,19 +257,45 @@ public class MineVoyages {
 		kmlGenerator.saveKMLFile(OUTPUT_KML_FILE);
 
 		
-		// Save track files and to DB
+		// Save track files
 		for (ShipTrack track : allTracks) {
 			String fileName = OUTPUT_DIR+"pos_"+track.getMmsi()+".csv";
 			System.out.println(">>> Saving to CSV: "+fileName);
 			FileWriter fw = new FileWriter(fileName);
 			track.saveTrack(fw);
 			fw.close();
-			//
-			// Normalize tracks (overwrite timestamps)!!!
-//			track.normalizeTimestampsAndComputeTrackSegments(
-//					new Timestamp(REFERENCE_START_DT), 
-//					REFERENCE_VOYAGE_DURATION_IN_SEC);
-			track.saveTrackToDB(DEP_BOX, ARR_BOX, YEAR_PERIOD, startDate.getTime()/1000);			
+		}
+		if(store != null) { // save to store, with normalized timestamps
+			store.writeRoute(allTracks, YEAR_PERIOD, DEP_BOX, ARR_BOX, startDate.getTime()/1000, 
+					new Timestamp(REFERENCE_START_DT), REFERENCE_VOYAGE_DURATION_IN_SEC);
+			System.out.println(">>> Saved to store: "+store.getRouteFile(YEAR_PERIOD, DEP_BOX, ARR_BOX, startDate.getTime()/1000));
+		} else { // save to DB, all tracks in one transaction
+			try (TrackWriter trackWriter = new TrackWriter(DBConnection.getCon(), 
+					DEP_BOX, ARR_BOX, YEAR_PERIOD, startDate.getTime()/1000)) {
+				for (ShipTrack track : allTracks) {
+					// Normalize tracks (overwrite timestamps)!!!
+//					track.normalizeTimestampsAndComputeTrackSegments(
+//							new Timestamp(REFERENCE_START_DT), 
+//							REFERENCE_VOYAGE_DURATION_IN_SEC);
+					trackWriter.addTrack(track);
+				}
+				trackWriter.commit();
+				System.out.println(">>> Written to DB " + trackWriter.getRowCount() + " lines" +
+						(trackWriter.isUsingCopy() ? " (COPY)" : " (batch)"));
+			} catch (SQLException e) {
+				System.err.println("Cannot write tracks to DB");
+				e.printStackTrace();
+			}
+		}
+		QueryProfiler profiler = QueryProfiler.getDefault();
+		if(profiler != null) {
+			profiler.printSummary(System.out);
+			try {
+				profiler.exportCSV(new File(OUTPUT_DIR+"query_profile.csv"));
+			} catch (IOException e) {
+				System.err.println("Cannot write query profile");
+				e.printStackTrace();
+			}
 		}
 		Date endDate = new Date();
 		long duration  = endDate.getTime() - startDate.getTime();
@@ -2,6 +2,7 @@ package org.pelizzari.mine;
 
 import java.awt.Color;
 import java.io.File;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
@@ -16,7 +17,11 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import org.pelizzari.db.DBConnection;
+import org.pelizzari.db.MergedTrackCache;
 import org.pelizzari.db.Miner;
+import org.pelizzari.db.QueryProfiler;
+import org.pelizzari.db.TrackNormalizer;
 import org.pelizzari.gis.Box;
 import org.pelizzari.gis.Map;
 import org.pelizzari.gis.Point;
@@ -53,6 +58,11 @@ public class NormalizeShipTracks {
 //	static final Box DEPARTURE_AREA = Areas.getBox("REDSEA"); 
 //	static final Box ARRIVAL_AREA = Areas.getBox("GOA");
 	static final long INSERT_TS = -1; //1444927757;	
+	static final boolean BULK_MODE = true; // read all the tracks with one query
+	// "SQL": one set-based UPDATE computed in the DB (falls back to "BATCH" if it fails)
+	// "BATCH": computed in Java, JDBC batch updates
+	// "POSITION": computed in Java, one UPDATE per position
+	static final String NORMALIZATION_MODE = "SQL";
 	
 	// max percentage of discrepancy from the average track length
 	static final float MAX_TRACK_LENGTH_DISCREPANCY = 0.1f;
@@ -63,6 +73,7 @@ public class NormalizeShipTracks {
 	public static void main(String[] args) throws ParseException {
 
 		Miner miner = new Miner();
+		miner.setBulkMode(BULK_MODE);
 	
 		List<ShipTrack> tracks = miner.getShipTracksFromTracksTable(
 				YEAR_PERIOD, DEPARTURE_AREA, ARRIVAL_AREA, INSERT_TS);
@@ -83,17 +94,52 @@ public class NormalizeShipTracks {
 			if(discrepancyFromAverage > MAX_TRACK_LENGTH_DISCREPANCY) {
 				System.out.println("MMSI "+track.getMmsi()+" high discrepancy="+discrepancyFromAverage);
 			}
-			int i=0;
-			for (ShipPosition pos : track.getPosList()) {
-				Timestamp normTs = track.computeNormalizedTime(
-						new Timestamp(REFERENCE_START_DT),
-						REFERENCE_VOYAGE_DURATION_IN_SEC,
-						i);
-				track.updateNormalizedShipPositionTimestampInDB(
-						DEPARTURE_AREA, ARRIVAL_AREA, YEAR_PERIOD, i, normTs);
-				i++;
+		}
+		Timestamp referenceStartTs = new Timestamp(REFERENCE_START_DT);
+		TrackNormalizer normalizer = new TrackNormalizer(DBConnection.getCon());
+		String mode = NORMALIZATION_MODE;
+		if(mode.equals("SQL")) {
+			try {
+				int updateCount = normalizer.normalizeInDB(YEAR_PERIOD, DEPARTURE_AREA, ARRIVAL_AREA, INSERT_TS,
+						referenceStartTs, REFERENCE_VOYAGE_DURATION_IN_SEC);
+				System.out.println("Normalized in DB: "+updateCount+" positions");
+			} catch (SQLException e) {
+				System.err.println("Cannot normalize tracks in DB, using batch updates");
+				e.printStackTrace();
+				mode = "BATCH";
+			}
+		}
+		if(mode.equals("BATCH")) {
+			try {
+				int updateCount = normalizer.normalizeWithBatch(tracks, YEAR_PERIOD, DEPARTURE_AREA, ARRIVAL_AREA, INSERT_TS,
+						referenceStartTs, REFERENCE_VOYAGE_DURATION_IN_SEC);
+				System.out.println("Normalized with batch updates: "+updateCount+" positions");
+			} catch (SQLException e) {
+				System.err.println("Cannot normalize tracks");
+				e.printStackTrace();
+				System.exit(-1);
 			}
-		}		
+		}
+		if(mode.equals("POSITION")) {
+			for (ShipTrack track : tracks) {
+				track.computeLengthInMiles();
+				int i=0;
+				for (ShipPosition pos : track.getPosList()) {
+					Timestamp normTs = track.computeNormalizedTime(
+							referenceStartTs,
+							REFERENCE_VOYAGE_DURATION_IN_SEC,
+							i);
+					track.updateNormalizedShipPositionTimestampInDB(
+							DEPARTURE_AREA, ARRIVAL_AREA, YEAR_PERIOD, i, normTs);
+					i++;
+				}
+			}
+			// once for the whole group, as TrackNormalizer
+			MergedTrackCache.invalidateDefault(YEAR_PERIOD, DEPARTURE_AREA.getName(), ARRIVAL_AREA.getName());
+		}
+		if(QueryProfiler.getDefault() != null) { // -Dpelizzari.profile=true
+			QueryProfiler.getDefault().printSummary(System.out);
+		}
 		System.out.println("Done");		
 	}
 
@@ -0,0 +1,110 @@
+package org.pelizzari.test;
+
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.DistanceFieldRaster;
+import org.pelizzari.ship.ShipPositionList;
+import org.pelizzari.ship.TrackBatch;
+import org.pelizzari.ship.TrackWorkspace;
+import org.pelizzari.ship.WeightedShipPositionList;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Fitness evaluation of a population one individual at a time (TrackWorkspace, as DisplacementSequenceProblem.evaluate())
+ * versus the whole population at once (TrackBatch), with the raw, compressed and raster
+ * training data. The errors must be the same.
+ * Usage: prog [n_positions individuals generations displacements]
+ */
+public class BenchmarkBatchEvaluation {
+
+	static void evaluateInBatch(float[][] genomes, TrackBatch batch, Point startPoint, long referenceStartTs,
+								ShipPositionList trainingList, DistanceFieldRaster raster, Point destination, float[] errors) {
+		int displacements = genomes[0].length / 2;
+		batch.setSize(genomes.length, displacements);
+		for (int k = 0; k < genomes.length; k++) {
+			for (int i = 0; i < displacements; i++) {
+				batch.setDisplacement(k, i, genomes[k][2*i], genomes[k][2*i + 1]);
+			}
+		}
+		batch.reconstruct(startPoint.lat, startPoint.lon);
+		batch.normalizeTimestamps(referenceStartTs, BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC);
+		if(raster != null) {
+			batch.computeSegmentStats(raster);
+		} else {
+			batch.computeSegmentStats(trainingList);
+		}
+		batch.computeErrors(destination, BenchmarkTrackWorkspace.DISTANCE_TO_DESTINATION_ERROR_FACTOR,
+				BenchmarkTrackWorkspace.DISTANCE_ERROR_FACTOR, BenchmarkTrackWorkspace.HEADING_ERROR_FACTOR, errors, 0);
+	}
+
+	static void evaluateOneByOne(float[][] genomes, TrackWorkspace workspace, Point startPoint, long referenceStartTs,
+								 ShipPositionList trainingList, DistanceFieldRaster raster, Point destination, float[] errors) {
+		if(raster == null) {
+			BenchmarkTrackWorkspace.evaluateInWorkspace(genomes, 0, genomes.length, workspace, startPoint, referenceStartTs,
+					trainingList, destination, errors);
+			return;
+		}
+		for (int k = 0; k < genomes.length; k++) {
+			workspace.setDisplacementCount(genomes[k].length / 2);
+			for (int i = 0; i < genomes[k].length / 2; i++) {
+				workspace.setDisplacement(i, genomes[k][2*i], genomes[k][2*i + 1]);
+			}
+			workspace.reconstruct(startPoint.lat, startPoint.lon);
+			workspace.normalizeTimestamps(referenceStartTs, BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC);
+			workspace.computeSegmentStats(raster);
+			errors[k] = workspace.getError(destination, BenchmarkTrackWorkspace.DISTANCE_TO_DESTINATION_ERROR_FACTOR,
+					BenchmarkTrackWorkspace.DISTANCE_ERROR_FACTOR, BenchmarkTrackWorkspace.HEADING_ERROR_FACTOR);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nPos = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int individuals = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int generations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int displacements = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		long startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+		Point startPoint = new Point(-34f, 18f);
+		Point destination = new Point(-21f, 55f);
+		float[][] genomes = BenchmarkTrackWorkspace.makeGenomes(individuals, displacements);
+
+		ColumnarShipPositionList rawList = BenchmarkTrackWorkspace.makeTrainingList(nPos, startTs);
+		rawList.isTimeOrdered();
+		WeightedShipPositionList compressedList = WeightedShipPositionList.compress(rawList, 0.05f, 3600);
+		DistanceFieldRaster raster = DistanceFieldRaster.ofPositions(rawList, DistanceFieldRaster.DEFAULT_CELL_SIZE_IN_DEGREES);
+		raster.compute();
+		String[] names = { "raw " + nPos, "compressed " + compressedList.size(), "raster" };
+		ShipPositionList[] lists = { rawList, compressedList, rawList };
+		DistanceFieldRaster[] rasters = { null, null, raster };
+
+		TrackWorkspace workspace = new TrackWorkspace();
+		TrackBatch batch = new TrackBatch();
+		for (int d = 0; d < names.length; d++) {
+			float[] oneByOneErrors = new float[individuals];
+			float[] batchErrors = new float[individuals];
+			for (int g = 0; g < 3; g++) { // warm up
+				evaluateOneByOne(genomes, workspace, startPoint, startTs, lists[d], rasters[d], destination, oneByOneErrors);
+				evaluateInBatch(genomes, batch, startPoint, startTs, lists[d], rasters[d], destination, batchErrors);
+			}
+			long start = System.nanoTime();
+			for (int g = 0; g < generations; g++) {
+				evaluateOneByOne(genomes, workspace, startPoint, startTs, lists[d], rasters[d], destination, oneByOneErrors);
+			}
+			long oneByOneNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int g = 0; g < generations; g++) {
+				evaluateInBatch(genomes, batch, startPoint, startTs, lists[d], rasters[d], destination, batchErrors);
+			}
+			long batchNanos = System.nanoTime() - start;
+			int different = 0;
+			for (int k = 0; k < individuals; k++) {
+				if(Float.floatToIntBits(oneByOneErrors[k]) != Float.floatToIntBits(batchErrors[k])) {
+					different++;
+				}
+			}
+			System.out.println(names[d] + ": us/evaluation one by one=" + (float) oneByOneNanos / 1000 / individuals / generations +
+					" batch=" + (float) batchNanos / 1000 / individuals / generations +
+					" speed-up=" + (float) oneByOneNanos / batchNanos +
+					(different == 0 ? " same errors" : " ERROR: " + different + " different errors"));
+		}
+	}
+}
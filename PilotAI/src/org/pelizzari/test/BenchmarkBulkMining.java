@@ -0,0 +1,50 @@
+package org.pelizzari.test;
+
+import java.util.List;
+
+import org.pelizzari.db.Miner;
+import org.pelizzari.gis.Box;
+import org.pelizzari.mine.Areas;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.time.TimeInterval;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Compare the per-ship and the bulk track extraction of the Miner on the same weekly window.
+ * Usage: prog [start_dt dep_box arr_box]
+ */
+public class BenchmarkBulkMining {
+
+	final static int START_PERIOD_IN_DAYS = 7;
+	final static int VOYAGE_DURATION_IN_DAYS = 15;
+	final static int MAX_SHIPS_TO_ANALYSE = 500;
+	final static int RUNS = 3;
+
+	public static void main(String[] args) throws Exception {
+		String startDt = args.length > 0 ? args[0] : "2011-01-01";
+		Box depBox = Areas.getBox(args.length > 1 ? args[1] : "CAPETOWN");
+		Box arrBox = Areas.getBox(args.length > 2 ? args[2] : "REUNION");
+
+		Miner miner = new Miner();
+		for (int run = 0; run < RUNS; run++) {
+			for (boolean bulk : new boolean[] {false, true}) {
+				miner.setBulkMode(bulk);
+				TimeInterval depInterval = new TimeInterval(new Timestamp(startDt + " 00:00:00"), START_PERIOD_IN_DAYS);
+				long start = System.nanoTime();
+				List<ShipTrack> tracks = miner.getShipTracksInIntervalAndBetweenBoxes(
+						depBox, arrBox, depInterval, VOYAGE_DURATION_IN_DAYS, null, null, MAX_SHIPS_TO_ANALYSE);
+				long elapsedMillis = (System.nanoTime() - start) / 1000000;
+				int nTracks = 0, nPos = 0;
+				if(tracks != null) {
+					nTracks = tracks.size();
+					for (ShipTrack track : tracks) {
+						nPos += track.getPosList().size();
+					}
+				}
+				System.out.println("Run " + run + (bulk ? " bulk    " : " per-ship") +
+						": tracks=" + nTracks + " positions=" + nPos + " time (ms)=" + elapsedMillis);
+			}
+		}
+		System.exit(0);
+	}
+}
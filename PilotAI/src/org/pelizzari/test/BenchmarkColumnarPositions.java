@@ -0,0 +1,100 @@
+package org.pelizzari.test;
+
+import java.util.Random;
+
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipPositionList;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.ship.TrackError;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Heap size and fitness evaluation time of a synthetic merged training set stored as
+ * a list of ShipPosition objects and as a ColumnarShipPositionList.
+ * The track errors must be the same.
+ * Usage: prog [n_positions evaluations]
+ */
+public class BenchmarkColumnarPositions {
+
+	final static int VOYAGE_DURATION_IN_SEC = 24*3600;
+	final static int TRACK_POSITIONS = 20;
+	final static int RUNS = 3;
+
+	static ShipPositionList makeTrainingList(int nPos, long startTs) {
+		Random random = new Random(1);
+		ShipPositionList list = new ShipPositionList();
+		for (int i = 0; i < nPos; i++) {
+			float progress = (float) i / nPos;
+			Point p = new Point(-34f + progress * 13f + (float) random.nextGaussian() * 0.2f,
+								18f + progress * 37f + (float) random.nextGaussian() * 0.2f);
+			long ts = startTs + (long) (progress * VOYAGE_DURATION_IN_SEC) * 1000;
+			list.addPosition(new ShipPosition(p, new Timestamp(ts)));
+		}
+		return list;
+	}
+
+	static ShipTrack makeTrack(long startTs) {
+		ShipTrack track = new ShipTrack();
+		for (int i = 0; i < TRACK_POSITIONS; i++) {
+			float progress = (float) i / (TRACK_POSITIONS - 1);
+			Point p = new Point(-34f + progress * 13f + (i % 2) * 0.3f, 18f + progress * 37f);
+			long ts = startTs + (long) (progress * VOYAGE_DURATION_IN_SEC) * 1000;
+			track.addPosition(new ShipPosition(p, new Timestamp(ts)));
+		}
+		track.computeTrackSegments();
+		track.computeLengthInMiles();
+		return track;
+	}
+
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	static float evaluate(String name, ShipTrack track, ShipPositionList trainingList, int evaluations) throws Exception {
+		float error = 0;
+		for (int run = 0; run < RUNS; run++) {
+			long start = System.nanoTime();
+			for (int e = 0; e < evaluations; e++) {
+				TrackError trackError = track.computeTrackError(trainingList, track.getLastPosition().getPoint(), 0.01f, 1f, 0.1f);
+				error = trackError.getError();
+			}
+			long elapsedNanos = System.nanoTime() - start;
+			System.out.println(name + " run " + run + ": evaluations=" + evaluations +
+					" time (ms)=" + elapsedNanos/1000000 +
+					" positions/sec=" + (long) ((double) trainingList.size() * evaluations / (elapsedNanos / 1e9)) +
+					" error=" + error);
+		}
+		return error;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nPos = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+		int evaluations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		long startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+
+		long heapBefore = usedHeap();
+		ShipPositionList objectList = makeTrainingList(nPos, startTs);
+		long objectHeap = usedHeap() - heapBefore;
+
+		heapBefore = usedHeap();
+		ColumnarShipPositionList columnarList = new ColumnarShipPositionList(objectList);
+		long columnarHeap = usedHeap() - heapBefore;
+
+		System.out.println("Positions: " + nPos);
+		System.out.println("Heap of List<ShipPosition> (MB): " + objectHeap/(1024*1024) +
+				" (" + objectHeap/nPos + " bytes/position)");
+		System.out.println("Heap of ColumnarShipPositionList (MB): " + columnarHeap/(1024*1024) +
+				" (" + columnarHeap/nPos + " bytes/position, arrays " + columnarList.getHeapBytes()/nPos + ")");
+
+		ShipTrack track = makeTrack(startTs);
+		float objectError = evaluate("objects ", track, objectList, evaluations);
+		float columnarError = evaluate("columnar", track, columnarList, evaluations);
+		System.out.println(objectError == columnarError ? "Same error" : "ERROR: different error");
+	}
+}
@@ -0,0 +1,151 @@
+package org.pelizzari.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.DistanceFieldRaster;
+import org.pelizzari.ship.TrackWorkspace;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Accuracy and speed of the distance error sampled in a DistanceFieldRaster versus the distance error
+ * computed from the training positions (TrackError.getDistanceError(), here with TrackWorkspace),
+ * for random individuals and growing training sets.
+ * Accuracy: raster distance versus the exact distance to the nearest position (must be within a cell diagonal),
+ * correlation and rank correlation of the distance errors, rank of the best individual of the raster,
+ * overlap of the best 10%.
+ * Usage: prog [n_positions,... individuals displacements cell_size]
+ */
+public class BenchmarkDistanceField {
+
+	static float[] distanceErrors(float[][] genomes, TrackWorkspace workspace, Point startPoint, long referenceStartTs,
+								  ColumnarShipPositionList trainingList, DistanceFieldRaster raster) {
+		float[] errors = new float[genomes.length];
+		for (int k = 0; k < genomes.length; k++) {
+			workspace.setDisplacementCount(genomes[k].length / 2);
+			for (int i = 0; i < genomes[k].length / 2; i++) {
+				workspace.setDisplacement(i, genomes[k][2*i], genomes[k][2*i + 1]);
+			}
+			workspace.reconstruct(startPoint.lat, startPoint.lon);
+			workspace.normalizeTimestamps(referenceStartTs, BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC);
+			if(raster != null) {
+				workspace.computeSegmentStats(raster);
+			} else {
+				workspace.computeSegmentStats(trainingList);
+			}
+			errors[k] = workspace.getDistanceError();
+		}
+		return errors;
+	}
+
+	static float pearson(float[] x, float[] y) {
+		double mx = 0, my = 0;
+		for (int i = 0; i < x.length; i++) {
+			mx += x[i];
+			my += y[i];
+		}
+		mx /= x.length;
+		my /= y.length;
+		double sxy = 0, sxx = 0, syy = 0;
+		for (int i = 0; i < x.length; i++) {
+			sxy += (x[i] - mx) * (y[i] - my);
+			sxx += (x[i] - mx) * (x[i] - mx);
+			syy += (y[i] - my) * (y[i] - my);
+		}
+		return (float) (sxy / Math.sqrt(sxx * syy));
+	}
+
+	static float[] ranks(final float[] x) {
+		Integer[] order = new Integer[x.length];
+		for (int i = 0; i < x.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new java.util.Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Float.compare(x[a], x[b]);
+			}
+		});
+		float[] ranks = new float[x.length];
+		for (int r = 0; r < x.length; r++) {
+			ranks[order[r]] = r;
+		}
+		return ranks;
+	}
+
+	/**
+	 * Max error of the raster distance versus the distance to the nearest position, on random points near the route
+	 */
+	static float maxDistanceError(DistanceFieldRaster raster, ColumnarShipPositionList trainingList, int points) {
+		Random random = new Random(3);
+		float maxError = 0;
+		for (int p = 0; p < points; p++) {
+			float progress = random.nextFloat();
+			float lat = -34f + progress * 13f + (float) random.nextGaussian();
+			float lon = 18f + progress * 37f + (float) random.nextGaussian();
+			float nearest = Float.MAX_VALUE;
+			for (int i = 0; i < trainingList.size(); i++) {
+				float y = trainingList.getLat(i) - lat;
+				float x = trainingList.getLon(i) - lon;
+				nearest = Math.min(nearest, x*x + y*y);
+			}
+			maxError = Math.max(maxError, Math.abs(raster.getDistance(lat, lon) - (float) Math.sqrt(nearest)));
+		}
+		return maxError;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length > 0 ? args[0] : "1000,10000,100000,1000000").split(",");
+		int individuals = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int displacements = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		float cellSize = args.length > 3 ? Float.parseFloat(args[3]) : DistanceFieldRaster.DEFAULT_CELL_SIZE_IN_DEGREES;
+		long startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+		Point startPoint = new Point(-34f, 18f);
+		float[][] genomes = BenchmarkTrackWorkspace.makeGenomes(individuals, displacements);
+		TrackWorkspace workspace = new TrackWorkspace();
+
+		for (String size : sizes) {
+			int nPos = Integer.parseInt(size.trim());
+			ColumnarShipPositionList trainingList = BenchmarkTrackWorkspace.makeTrainingList(nPos, startTs);
+			trainingList.isTimeOrdered();
+			DistanceFieldRaster raster = DistanceFieldRaster.ofPositions(trainingList, cellSize);
+			raster.compute();
+
+			// warm up
+			distanceErrors(genomes, workspace, startPoint, startTs, trainingList, null);
+			distanceErrors(genomes, workspace, startPoint, startTs, trainingList, raster);
+			long start = System.nanoTime();
+			float[] exactErrors = distanceErrors(genomes, workspace, startPoint, startTs, trainingList, null);
+			long exactNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			float[] rasterErrors = distanceErrors(genomes, workspace, startPoint, startTs, trainingList, raster);
+			long rasterNanos = System.nanoTime() - start;
+
+			float[] exactRanks = ranks(exactErrors);
+			float[] rasterRanks = ranks(rasterErrors);
+			int bestOfRaster = 0;
+			for (int k = 1; k < individuals; k++) {
+				if(rasterErrors[k] < rasterErrors[bestOfRaster]) {
+					bestOfRaster = k;
+				}
+			}
+			int top = Math.max(individuals / 10, 1);
+			int commonTop = 0;
+			for (int k = 0; k < individuals; k++) {
+				if(exactRanks[k] < top && rasterRanks[k] < top) {
+					commonTop++;
+				}
+			}
+			System.out.println("Training positions: " + nPos + ", " + raster);
+			System.out.println("  us/evaluation: positions=" + (float) exactNanos / 1000 / individuals +
+					" raster=" + (float) rasterNanos / 1000 / individuals +
+					", max raster distance error (deg)=" + maxDistanceError(raster, trainingList, Math.min(200, 20000000 / nPos)) +
+					" (cell diagonal=" + cellSize * (float) Math.sqrt(2) + ")");
+			System.out.println("  distance error: correlation=" + pearson(exactErrors, rasterErrors) +
+					" rank correlation=" + pearson(exactRanks, rasterRanks) +
+					", rank of the raster best=" + (int) exactRanks[bestOfRaster] +
+					", common best 10%=" + commonTop + "/" + top);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.pelizzari.test;
+
+import java.util.Random;
+
+import org.pelizzari.gis.GeoKernels;
+import org.pelizzari.gis.Point;
+
+/**
+ * Throughput and error of each GeoKernels mode, for consecutive pairs, distances to a point and
+ * distances to a segment. The error is relative to ELLIPSOIDAL, for distances of at least 1 mile.
+ * The positions are a random walk with steps of about step_in_degrees around the Cape Town - Reunion route.
+ * EQUIRECTANGULAR must give the same values as Point.distanceInMiles(), with and without the radian buffers.
+ * Usage: prog [n_positions step_in_degrees runs]
+ */
+public class BenchmarkGeoKernels {
+
+	final static String[] MODES = {GeoKernels.EQUIRECTANGULAR, GeoKernels.HAVERSINE, GeoKernels.ELLIPSOIDAL};
+	final static String[] KERNELS = {"pairs", "to point", "to segment"};
+
+	static void run(String kernel, String mode, float[] lat, float[] lon, int n, float[] out, 
+					float[] latRad, float[] lonRad) {
+		if(kernel.equals("pairs")) {
+			GeoKernels.consecutiveDistances(mode, lat, lon, n, out, latRad, lonRad);
+		} else if(kernel.equals("to point")) {
+			GeoKernels.distancesToPoint(mode, lat, lon, n, -21f, 55.5f, out, latRad, lonRad);
+		} else { // a segment of a GA track (about 100 miles) in the middle of the route
+			GeoKernels.distancesToSegment(mode, lat, lon, n, -27.5f, 36.5f, -26.5f, 38f, out, latRad, lonRad);
+		}
+	}
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		float step = args.length > 1 ? Float.parseFloat(args[1]) : 0.05f;
+		int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		Random random = new Random(1);
+		float[] lat = new float[n];
+		float[] lon = new float[n];
+		for (int i = 0; i < n; i++) {
+			float progress = (float) i / n;
+			lat[i] = -34f + progress * 13f + (float) random.nextGaussian() * step;
+			lon[i] = 18f + progress * 37f + (float) random.nextGaussian() * step;
+		}
+
+		// old scalar loop on Point objects
+		Point[] points = new Point[n];
+		for (int i = 0; i < n; i++) {
+			points[i] = new Point(lat[i], lon[i]);
+		}
+		float[] pointDistances = new float[n];
+		long bestNanos = Long.MAX_VALUE;
+		for (int run = 0; run < runs; run++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < n - 1; i++) {
+				pointDistances[i] = points[i].distanceInMiles(points[i + 1]);
+			}
+			bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+		}
+		System.out.println("Point.distanceInMiles pairs: " + (long) (n / (bestNanos / 1e9)) + " distances/sec");
+
+		for (String kernel : KERNELS) {
+			float[][] out = new float[MODES.length][n];
+			for (int m = 0; m < MODES.length; m++) {
+				bestNanos = Long.MAX_VALUE;
+				for (int run = 0; run < runs; run++) {
+					long start = System.nanoTime();
+					run(kernel, MODES[m], lat, lon, n, out[m], null, null);
+					bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+				}
+				System.out.print(kernel + " " + MODES[m] + ": " + (long) (n / (bestNanos / 1e9)) + " distances/sec");
+				// error relative to ELLIPSOIDAL (computed last)
+				if(m == MODES.length - 1) {
+					for (int e = 0; e < MODES.length - 1; e++) {
+						double sumError = 0, maxError = 0, maxErrorInMiles = 0;
+						int count = 0;
+						for (int i = 0; i < n - 1; i++) {
+							float reference = out[MODES.length - 1][i];
+							maxErrorInMiles = Math.max(maxErrorInMiles, Math.abs(out[e][i] - reference));
+							if(reference >= 1) {
+								double error = Math.abs(out[e][i] - reference) / reference;
+								sumError += error;
+								maxError = Math.max(maxError, error);
+								count++;
+							}
+						}
+						System.out.print("\n  " + MODES[e] + " relative error: mean " + (float) (sumError / Math.max(count, 1) * 100) +
+								"%, max " + (float) (maxError * 100) + "%, max error (miles) " + (float) maxErrorInMiles);
+					}
+				}
+				System.out.println();
+			}
+			// EQUIRECTANGULAR with the radians converted in a separate pass
+			float[] latRad = new float[n];
+			float[] lonRad = new float[n];
+			float[] bufferedOut = new float[n];
+			bestNanos = Long.MAX_VALUE;
+			for (int run = 0; run < runs; run++) {
+				long start = System.nanoTime();
+				run(kernel, GeoKernels.EQUIRECTANGULAR, lat, lon, n, bufferedOut, latRad, lonRad);
+				bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+			}
+			boolean sameWithBuffers = true;
+			for (int i = 0; i < n; i++) {
+				sameWithBuffers &= Float.floatToIntBits(out[0][i]) == Float.floatToIntBits(bufferedOut[i]);
+			}
+			System.out.println(kernel + " " + GeoKernels.EQUIRECTANGULAR + " with radian buffers: " + 
+					(long) (n / (bestNanos / 1e9)) + " distances/sec" + (sameWithBuffers ? "" : " ERROR: different values"));
+			if(kernel.equals("pairs")) {
+				boolean same = true;
+				for (int i = 0; i < n - 1; i++) {
+					same &= Float.floatToIntBits(out[0][i]) == Float.floatToIntBits(pointDistances[i]);
+				}
+				System.out.println(same ? "EQUIRECTANGULAR same as Point.distanceInMiles()" : "ERROR: EQUIRECTANGULAR differs from Point.distanceInMiles()");
+			}
+		}
+	}
+}
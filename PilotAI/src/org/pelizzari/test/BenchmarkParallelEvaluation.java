@@ -0,0 +1,106 @@
+package org.pelizzari.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.TrackWorkspace;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Scaling of the fitness evaluation of a population with 1 ... N threads, each thread evaluating a slice
+ * of the population as ec.simple.SimpleEvaluator (evalthreads = N), with ShipTrack and with TrackWorkspace.
+ * The errors must be the same as with one thread.
+ * Usage: prog [max_threads n_positions individuals generations displacements]
+ */
+public class BenchmarkParallelEvaluation {
+
+	static long evaluate(ExecutorService executor, final int threads, final boolean withTracks, final float[][] genomes,
+						 final ShipPosition startPosition, final Timestamp endTs, final Timestamp referenceStartTs,
+						 final ColumnarShipPositionList trainingList, final Point destination, final float[] errors,
+						 int generations) throws Exception {
+		final TrackWorkspace[] workspaces = new TrackWorkspace[threads];
+		for (int t = 0; t < threads; t++) {
+			workspaces[t] = new TrackWorkspace();
+		}
+		long start = System.nanoTime();
+		for (int g = 0; g < generations; g++) {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				final int from = genomes.length * t / threads;
+				final int to = genomes.length * (t + 1) / threads;
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						if(withTracks) {
+							BenchmarkTrackWorkspace.evaluateWithTracks(genomes, from, to, startPosition, endTs, referenceStartTs,
+									trainingList, destination, errors);
+						} else {
+							BenchmarkTrackWorkspace.evaluateInWorkspace(genomes, from, to, workspaces[thread], startPosition.getPoint(),
+									referenceStartTs.getTsMillisec(), trainingList, destination, errors);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int nPos = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int individuals = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int generations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		int displacements = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+		long startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+
+		ColumnarShipPositionList trainingList = BenchmarkTrackWorkspace.makeTrainingList(nPos, startTs);
+		trainingList.isTimeOrdered();
+		Point destination = new Point(-21f, 55f);
+		Timestamp referenceStartTs = new Timestamp(startTs);
+		ShipPosition startPosition = new ShipPosition(new Point(-34f, 18f), referenceStartTs);
+		Timestamp endTs = new Timestamp(startTs + BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC * 1000L);
+		float[][] genomes = BenchmarkTrackWorkspace.makeGenomes(individuals, displacements);
+		System.out.println("Cores: " + Runtime.getRuntime().availableProcessors() + ", population: " + individuals +
+				", generations: " + generations + ", training positions: " + nPos);
+
+		for (int path = 0; path < 2; path++) {
+			boolean withTracks = path == 0;
+			float[] referenceErrors = null;
+			long oneThreadNanos = 0;
+			for (int threads = 1; threads <= maxThreads; threads++) {
+				ExecutorService executor = Executors.newFixedThreadPool(threads);
+				float[] errors = new float[individuals];
+				// warm up
+				evaluate(executor, threads, withTracks, genomes, startPosition, endTs, referenceStartTs, trainingList, destination, errors, 1);
+				long nanos = evaluate(executor, threads, withTracks, genomes, startPosition, endTs, referenceStartTs,
+						trainingList, destination, errors, generations);
+				executor.shutdown();
+				if(threads == 1) {
+					referenceErrors = errors;
+					oneThreadNanos = nanos;
+				}
+				int different = 0;
+				for (int k = 0; k < individuals; k++) {
+					if(Float.floatToIntBits(errors[k]) != Float.floatToIntBits(referenceErrors[k])) {
+						different++;
+					}
+				}
+				System.out.println((withTracks ? "ShipTrack" : "TrackWorkspace") + " threads=" + threads +
+						" ms/generation=" + nanos / 1000000 / generations +
+						" speed-up=" + (float) oneThreadNanos / nanos +
+						(different == 0 ? " same errors" : " ERROR: " + different + " different errors"));
+			}
+		}
+	}
+}
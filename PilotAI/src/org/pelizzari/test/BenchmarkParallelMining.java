@@ -0,0 +1,57 @@
+package org.pelizzari.test;
+
+import java.util.List;
+
+import org.pelizzari.db.Miner;
+import org.pelizzari.gis.Box;
+import org.pelizzari.mine.Areas;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.time.TimeInterval;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Time the per-ship track extraction with 1 to N parallel connections on the same weekly window.
+ * Run with -Dpelizzari.db.pool.size=N+1 (one connection is kept by the main thread).
+ * Usage: prog [max_connections start_dt dep_box arr_box]
+ */
+public class BenchmarkParallelMining {
+
+	final static int START_PERIOD_IN_DAYS = 7;
+	final static int VOYAGE_DURATION_IN_DAYS = 15;
+	final static int MAX_SHIPS_TO_ANALYSE = 500;
+
+	public static void main(String[] args) throws Exception {
+		int maxConnections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		String startDt = args.length > 1 ? args[1] : "2011-01-01";
+		Box depBox = Areas.getBox(args.length > 2 ? args[2] : "CAPETOWN");
+		Box arrBox = Areas.getBox(args.length > 3 ? args[3] : "REUNION");
+		if(System.getProperty("pelizzari.db.pool.size") == null) {
+			System.setProperty("pelizzari.db.pool.size", Integer.toString(maxConnections + 1));
+		}
+
+		Miner miner = new Miner();
+		long serialMillis = -1;
+		for (int n = 1; n <= maxConnections; n++) {
+			miner.setParallelism(n);
+			TimeInterval depInterval = new TimeInterval(new Timestamp(startDt + " 00:00:00"), START_PERIOD_IN_DAYS);
+			long start = System.nanoTime();
+			List<ShipTrack> tracks = miner.getShipTracksInIntervalAndBetweenBoxes(
+					depBox, arrBox, depInterval, VOYAGE_DURATION_IN_DAYS, null, null, MAX_SHIPS_TO_ANALYSE);
+			long elapsedMillis = (System.nanoTime() - start) / 1000000;
+			if(n == 1) {
+				serialMillis = elapsedMillis;
+			}
+			int nTracks = 0, nPos = 0;
+			if(tracks != null) {
+				nTracks = tracks.size();
+				for (ShipTrack track : tracks) {
+					nPos += track.getPosList().size();
+				}
+			}
+			System.out.println("Connections=" + n + ": tracks=" + nTracks + " positions=" + nPos + 
+					" time (ms)=" + elapsedMillis + 
+					" speedup=" + String.format("%.2f", (double) serialMillis / Math.max(1, elapsedMillis)));
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,63 @@
+package org.pelizzari.test;
+
+import java.util.List;
+
+import org.pelizzari.db.Miner;
+import org.pelizzari.db.ShipPositionCursor;
+import org.pelizzari.gis.Box;
+import org.pelizzari.mine.Areas;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.time.TimeInterval;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Compare the heap used by a long wpos scan read as a list and read through a cursor.
+ * Usage: prog [start_dt days box fetch_size]
+ */
+public class BenchmarkPositionStreaming {
+
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	public static void main(String[] args) throws Exception {
+		String startDt = args.length > 0 ? args[0] : "2011-01-01";
+		int days = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+		Box box = Areas.getBox(args.length > 2 ? args[2] : "CAPETOWN");
+		int fetchSize = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+		TimeInterval interval = new TimeInterval(new Timestamp(startDt + " 00:00:00"), days);
+
+		Miner miner = new Miner();
+		miner.setFetchSize(fetchSize);
+
+		// cursor: sample the heap while streaming
+		System.gc();
+		long baseHeap = usedHeap();
+		long peakHeap = baseHeap;
+		long start = System.nanoTime();
+		int nPos = 0;
+		try (ShipPositionCursor cursor = miner.openShipPositionsInIntervalAndBox(interval, box, null, null, -1)) {
+			while(cursor.hasNext()) {
+				cursor.next();
+				nPos++;
+				if(nPos % fetchSize == 0) {
+					peakHeap = Math.max(peakHeap, usedHeap());
+				}
+			}
+		}
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		System.out.println("Cursor: positions=" + nPos + " time (ms)=" + elapsedMillis + 
+				" peak heap growth (MB)=" + (peakHeap - baseHeap) / (1024 * 1024));
+
+		// list
+		System.gc();
+		baseHeap = usedHeap();
+		start = System.nanoTime();
+		List<ShipPosition> posList = miner.getShipPositionsInIntervalAndBox(interval, box, null, null, -1);
+		elapsedMillis = (System.nanoTime() - start) / 1000000;
+		System.out.println("List:   positions=" + posList.size() + " time (ms)=" + elapsedMillis + 
+				" heap growth (MB)=" + (usedHeap() - baseHeap) / (1024 * 1024));
+		System.exit(0);
+	}
+}
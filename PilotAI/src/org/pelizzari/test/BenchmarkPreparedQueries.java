@@ -0,0 +1,83 @@
+package org.pelizzari.test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import org.pelizzari.db.DBConnection;
+import org.pelizzari.db.Miner;
+import org.pelizzari.gis.Box;
+import org.pelizzari.mine.Areas;
+import org.pelizzari.ship.Ship;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.time.TimeInterval;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Compare the old concatenated queries (filter on date(to_timestamp(ts))) with the
+ * prepared queries of the Miner (raw range on ts) on the same interval and box.
+ * Usage: prog [start_dt box]
+ */
+public class BenchmarkPreparedQueries {
+
+	final static int INTERVAL_IN_DAYS = 7;
+	final static int LIMIT_POSITIONS = 100000;
+	final static int RUNS = 5;
+
+	static String legacyConditions(TimeInterval interval, Box box) {
+		return "and date(to_timestamp(ts)) >= '" + interval.getStartTsISO() + "' " +
+				"and date(to_timestamp(ts)) <= '" + interval.getEndTsISO() + "' " +
+				"and lat >= " + box.getMinLat() + " and lat <= " + box.getMaxLat() + " " +
+				"and lon >= " + box.getMinLon() + " and lon <= " + box.getMaxLon() + " ";
+	}
+
+	static int countRows(Connection con, String sql) throws Exception {
+		int n = 0;
+		Statement stmt = con.createStatement();
+		try (ResultSet rs = stmt.executeQuery(sql)) {
+			while(rs.next()) {
+				n++;
+			}
+		}
+		stmt.close();
+		return n;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String startDt = args.length > 0 ? args[0] : "2011-01-01";
+		Box box = Areas.getBox(args.length > 1 ? args[1] : "CAPETOWN");
+		TimeInterval interval = new TimeInterval(new Timestamp(startDt + " 00:00:00"), INTERVAL_IN_DAYS);
+
+		Connection con = DBConnection.getCon();
+		Miner miner = new Miner();
+		String shipSQL = "SELECT distinct mmsi FROM wpos WHERE 1=1 " + legacyConditions(interval, box);
+		String posSQL = "SELECT ts, lat, lon FROM wpos WHERE 1=1 " + legacyConditions(interval, box) +
+				"order by ts asc limit " + LIMIT_POSITIONS;
+
+		for (int run = 0; run < RUNS; run++) {
+			long start = System.nanoTime();
+			int nShipsLegacy = countRows(con, shipSQL);
+			long shipsLegacyMillis = (System.nanoTime() - start) / 1000000;
+
+			start = System.nanoTime();
+			List<Ship> ships = miner.getShipsInIntervalAndBox(interval, box);
+			long shipsPreparedMillis = (System.nanoTime() - start) / 1000000;
+
+			start = System.nanoTime();
+			int nPosLegacy = countRows(con, posSQL);
+			long posLegacyMillis = (System.nanoTime() - start) / 1000000;
+
+			start = System.nanoTime();
+			List<ShipPosition> posList = miner.getShipPositionsInIntervalAndBox(interval, box, null, null, LIMIT_POSITIONS);
+			long posPreparedMillis = (System.nanoTime() - start) / 1000000;
+
+			System.out.println("Run " + run + 
+					": getShipsInIntervalAndBox legacy=" + shipsLegacyMillis + "ms (" + nShipsLegacy + 
+					") prepared=" + shipsPreparedMillis + "ms (" + ships.size() + ")" +
+					" | getShipPositionsInIntervalAndBox legacy=" + posLegacyMillis + "ms (" + nPosLegacy + 
+					") prepared=" + posPreparedMillis + "ms (" + posList.size() + ")");
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,67 @@
+package org.pelizzari.test;
+
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.PositionGridIndex;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.ship.TrackError;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Fitness evaluation time of each target selection of TrackError, on a synthetic
+ * training set (see BenchmarkColumnarPositions), without and with the spatial index.
+ * The errors must be the same.
+ * Usage: prog [n_positions evaluations cell_size_in_degrees]
+ */
+public class BenchmarkSpatialIndex {
+
+	final static String[] TARGET_SELECTIONS = {
+		TrackError.TARGET_IN_INTERVAL,
+		TrackError.TARGET_IN_INTERVAL_AND_ON_STRIPE,
+		TrackError.TARGET_ON_STRIPE,
+		TrackError.TARGET_IN_INTERVAL_AND_CORRIDOR
+	};
+
+	static float evaluate(ShipTrack track, ColumnarShipPositionList trainingList, int evaluations,
+						  String targetSelection) throws Exception {
+		float error = 0;
+		for (int e = 0; e < evaluations; e++) {
+			TrackError trackError = track.computeTrackError(trainingList, track.getLastPosition().getPoint(), 
+					0.01f, 1f, 0.1f, targetSelection);
+			error = trackError.getError();
+		}
+		return error;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nPos = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+		int evaluations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		float cellSize = args.length > 2 ? Float.parseFloat(args[2]) : PositionGridIndex.DEFAULT_CELL_SIZE_IN_DEGREES;
+		long startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+
+		ColumnarShipPositionList trainingList = new ColumnarShipPositionList(
+				BenchmarkColumnarPositions.makeTrainingList(nPos, startTs));
+		ShipTrack track = BenchmarkColumnarPositions.makeTrack(startTs);
+
+		for (String targetSelection : TARGET_SELECTIONS) {
+			float[] errors = new float[2];
+			for (int withIndex = 0; withIndex < 2; withIndex++) {
+				if(withIndex == 1) {
+					long start = System.nanoTime();
+					PositionGridIndex index = trainingList.buildSpatialIndex(cellSize);
+					System.out.println("Index built: cells=" + index.getCellCount() +
+							" time (ms)=" + (System.nanoTime() - start)/1000000);
+				}
+				evaluate(track, trainingList, 2, targetSelection); // warm up
+				long start = System.nanoTime();
+				errors[withIndex] = evaluate(track, trainingList, evaluations, targetSelection);
+				long elapsedMillis = (System.nanoTime() - start) / 1000000;
+				System.out.println(targetSelection + (withIndex == 1 ? " index" : " scan ") +
+						": evaluations=" + evaluations + " time (ms)=" + elapsedMillis + " error=" + errors[withIndex]);
+			}
+			trainingList.positionsChanged(); // drop the index
+			if(errors[0] != errors[1]) {
+				System.out.println("ERROR: different error");
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package org.pelizzari.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipPositionList;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.ship.TrackResampler;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * FIXED_RATE TrackResampler compared to the loop of getInterpolatedPosition() that ShipTrack.getInterpolatedTrack()
+ * ran before the resampler: the samples of resample(track), of the batch resample(tracks) and of getInterpolatedTrack()
+ * must have the same timestamps and the same float bits. Then the time of the three for several periods.
+ * Tracks have irregular time steps, equal timestamps and a long gap.
+ * Usage: prog [n_tracks positions_per_track runs]
+ */
+public class BenchmarkTrackResampler {
+
+	final static int[] PERIODS_IN_SEC = {10, 60, 600, 3600};
+
+	static List<ShipTrack> makeTracks(int nTracks, int nPos, long startTs) {
+		Random random = new Random(1);
+		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
+		for (int k = 0; k < nTracks; k++) {
+			ShipTrack track = new ShipTrack();
+			long ts = startTs;
+			for (int i = 0; i < nPos; i++) {
+				float progress = (float) i / (nPos - 1);
+				Point p = new Point(-34f + progress * 13f + (float) random.nextGaussian() * 0.01f,
+									18f + progress * 37f + (float) random.nextGaussian() * 0.01f);
+				track.addPosition(new ShipPosition(p, new Timestamp(ts)));
+				int step = random.nextInt(10);
+				ts += step == 0 ? 0 : (step == 9 && random.nextInt(100) == 0 ? 6 * 3600 : random.nextInt(120) + 1) * 1000L;
+			}
+			tracks.add(track);
+		}
+		return tracks;
+	}
+
+	/**
+	 * getInterpolatedTrack() before TrackResampler: first position, one interpolated position
+	 * every period (binary search for each one), last position
+	 */
+	static ColumnarShipPositionList interpolate(ShipTrack track, int periodInMillis) {
+		ColumnarShipPositionList samples = new ColumnarShipPositionList();
+		ShipPosition posFirst = track.getFirstPosition();
+		ShipPosition posLast = track.getLastPosition();
+		samples.addPosition(posFirst);
+		for (long t = posFirst.getTs().getTsMillisec() + periodInMillis; t < posLast.getTs().getTsMillisec(); t += periodInMillis) {
+			samples.addPosition(track.getInterpolatedPosition(t));
+		}
+		samples.addPosition(posLast);
+		return samples;
+	}
+
+	static boolean sameSamples(ShipPositionList expected, ShipPositionList actual) {
+		if (expected.size() != actual.size()) {
+			return false;
+		}
+		for (int i = 0; i < expected.size(); i++) {
+			if (expected.getTsMillisec(i) != actual.getTsMillisec(i) ||
+				Float.floatToIntBits(expected.getLat(i)) != Float.floatToIntBits(actual.getLat(i)) ||
+				Float.floatToIntBits(expected.getLon(i)) != Float.floatToIntBits(actual.getLon(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nTracks = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int nPos = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		long startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+		List<ShipTrack> tracks = makeTracks(nTracks, nPos, startTs);
+		System.out.println("Tracks: " + nTracks + " x " + nPos + " positions, " +
+				Runtime.getRuntime().availableProcessors() + " cores");
+
+		for (int periodInSec : PERIODS_IN_SEC) {
+			int periodInMillis = periodInSec * 1000;
+			TrackResampler resampler = TrackResampler.fixedRate(periodInMillis);
+			int nMismatches = 0;
+			long nSamples = 0;
+			List<ColumnarShipPositionList> batchSamples = resampler.resample(tracks);
+			for (int k = 0; k < nTracks; k++) {
+				ShipTrack track = tracks.get(k);
+				ColumnarShipPositionList expected = interpolate(track, periodInMillis);
+				nSamples += expected.size();
+				if (!sameSamples(expected, resampler.resample(track)) ||
+					!sameSamples(expected, batchSamples.get(k)) ||
+					!sameSamples(expected, track.getInterpolatedTrack(periodInMillis))) {
+					nMismatches++;
+				}
+			}
+
+			long interpolateMillis = Long.MAX_VALUE, resampleMillis = Long.MAX_VALUE, batchMillis = Long.MAX_VALUE;
+			for (int r = 0; r < runs; r++) {
+				long start = System.nanoTime();
+				for (ShipTrack track : tracks) {
+					interpolate(track, periodInMillis);
+				}
+				interpolateMillis = Math.min(interpolateMillis, (System.nanoTime() - start) / 1000000);
+				start = System.nanoTime();
+				for (ShipTrack track : tracks) {
+					resampler.resample(track);
+				}
+				resampleMillis = Math.min(resampleMillis, (System.nanoTime() - start) / 1000000);
+				start = System.nanoTime();
+				resampler.resample(tracks);
+				batchMillis = Math.min(batchMillis, (System.nanoTime() - start) / 1000000);
+			}
+			System.out.println("Period " + periodInSec + " s, samples " + nSamples +
+					": getInterpolatedPosition() loop (ms) " + interpolateMillis +
+					", resample() " + resampleMillis + ", batch resample() " + batchMillis +
+					", tracks with different samples: " + nMismatches);
+		}
+	}
+}
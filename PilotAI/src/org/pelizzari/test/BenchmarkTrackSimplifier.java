@@ -0,0 +1,171 @@
+package org.pelizzari.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.pelizzari.gis.GeoKernels;
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.ship.TrackError;
+import org.pelizzari.ship.TrackSimplifier;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Compression ratio of TrackSimplifier on synthetic AIS-like tracks of a route and the
+ * fitness evaluation speed-up on the merged training set, for several max deviations.
+ * Then the time on one long straight leg (without and with GPS noise), where almost all the positions are removed,
+ * and the max deviation of the removed positions, which must not exceed the limit.
+ * Usage: prog [n_tracks positions_per_track evaluations straight_leg_positions]
+ */
+public class BenchmarkTrackSimplifier {
+
+	final static float[] MAX_DEVIATIONS_IN_MILES = {0.1f, 0.5f, 1f, 2f};
+	final static String[] ALGORITHMS = {TrackSimplifier.DOUGLAS_PEUCKER, TrackSimplifier.VISVALINGAM_WHYATT};
+
+	static List<ShipTrack> makeTracks(int nTracks, int nPos, long startTs) {
+		Random random = new Random(1);
+		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
+		for (int k = 0; k < nTracks; k++) {
+			ShipTrack track = new ShipTrack();
+			float latOffset = (float) random.nextGaussian() * 0.3f;
+			float lonOffset = (float) random.nextGaussian() * 0.3f;
+			float latDrift = 0, lonDrift = 0; // slow wander of the course
+			for (int i = 0; i < nPos; i++) {
+				float progress = (float) i / (nPos - 1);
+				latDrift += (float) random.nextGaussian() * 0.002f;
+				lonDrift += (float) random.nextGaussian() * 0.002f;
+				Point p = new Point(-34f + progress * 13f + latOffset + latDrift + (float) random.nextGaussian() * 0.0005f,
+									18f + progress * 37f + lonOffset + lonDrift + (float) random.nextGaussian() * 0.0005f);
+				long ts = startTs + (long) (progress * BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC) * 1000;
+				track.addPosition(new ShipPosition(p, new Timestamp(ts)));
+			}
+			tracks.add(track);
+		}
+		return tracks;
+	}
+
+	static ShipTrack makeStraightLeg(int nPos, long startTs, float noise) {
+		Random random = new Random(2);
+		ShipTrack track = new ShipTrack();
+		for (int i = 0; i < nPos; i++) {
+			float progress = (float) i / (nPos - 1);
+			Point p = new Point(-34f + progress * 13f + (float) random.nextGaussian() * 0.0005f * noise,
+								18f + progress * 37f + (float) random.nextGaussian() * 0.0005f * noise);
+			long ts = startTs + (long) (progress * BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC) * 1000;
+			track.addPosition(new ShipPosition(p, new Timestamp(ts)));
+		}
+		return track;
+	}
+
+	/**
+	 * Max distance of the removed positions from the segment of the kept positions around them,
+	 * with the projection of TrackSimplifier (cos of the middle latitude of the segment)
+	 */
+	static float maxDeviationInMiles(ShipTrack track, int[] kept) {
+		float maxDeviation = 0;
+		for (int k = 0; k < kept.length - 1; k++) {
+			int a = kept[k], b = kept[k + 1];
+			float aLatRad = (float) Math.toRadians(track.getLat(a));
+			float aLonRad = (float) Math.toRadians(track.getLon(a));
+			float bLatRad = (float) Math.toRadians(track.getLat(b));
+			float cosLat = (float) Math.cos((aLatRad + bLatRad) / 2);
+			float bx = ((float) Math.toRadians(track.getLon(b)) - aLonRad) * cosLat;
+			float by = bLatRad - aLatRad;
+			float squaredLength = bx*bx + by*by;
+			for (int i = a + 1; i < b; i++) {
+				float px = ((float) Math.toRadians(track.getLon(i)) - aLonRad) * cosLat;
+				float py = (float) Math.toRadians(track.getLat(i)) - aLatRad;
+				maxDeviation = Math.max(maxDeviation, GeoKernels.equirectangularToSegmentInMiles(px, py, bx, by, squaredLength));
+			}
+		}
+		return maxDeviation;
+	}
+
+	static List<ShipTrack> copy(List<ShipTrack> tracks) {
+		List<ShipTrack> copies = new ArrayList<ShipTrack>();
+		for (ShipTrack track : tracks) {
+			ShipTrack copy = new ShipTrack();
+			copy.setPosList(new ArrayList<ShipPosition>(track.getPosList()));
+			copies.add(copy);
+		}
+		return copies;
+	}
+
+	static ColumnarShipPositionList merge(List<ShipTrack> tracks) {
+		ColumnarShipPositionList merged = new ColumnarShipPositionList();
+		for (ShipTrack track : tracks) {
+			for (int i = 0; i < track.size(); i++) {
+				merged.addPosition(track.getTsMillisec(i), track.getLat(i), track.getLon(i));
+			}
+		}
+		merged.sortByTime();
+		return merged;
+	}
+
+	/**
+	 * Time of one evaluation in microsec; the error is returned in error[0]
+	 */
+	static long evaluate(ShipTrack track, ColumnarShipPositionList trainingList, int evaluations, float[] error) throws Exception {
+		for (int e = 0; e < 2; e++) { // warm up
+			track.computeTrackError(trainingList, track.getLastPosition().getPoint(), 0.01f, 1f, 0.1f);
+		}
+		long start = System.nanoTime();
+		for (int e = 0; e < evaluations; e++) {
+			TrackError trackError = track.computeTrackError(trainingList, track.getLastPosition().getPoint(), 0.01f, 1f, 0.1f);
+			error[0] = trackError.getError();
+		}
+		return (System.nanoTime() - start) / 1000 / evaluations;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nTracks = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int nPos = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int evaluations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int straightLegPos = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+		long startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+
+		List<ShipTrack> tracks = makeTracks(nTracks, nPos, startTs);
+		ShipTrack track = BenchmarkColumnarPositions.makeTrack(startTs);
+		float[] error = new float[1];
+		long baseMicros = evaluate(track, merge(tracks), evaluations, error);
+		float baseError = error[0];
+		System.out.println("Tracks: " + nTracks + " x " + nPos + " positions, evaluation (us)=" + baseMicros + " error=" + baseError);
+
+		for (String algorithm : ALGORITHMS) {
+			for (float maxDeviation : MAX_DEVIATIONS_IN_MILES) {
+				TrackSimplifier simplifier = new TrackSimplifier(algorithm, maxDeviation);
+				List<ShipTrack> simplifiedTracks = copy(tracks);
+				long start = System.nanoTime();
+				simplifier.simplify(simplifiedTracks);
+				long wallMillis = (System.nanoTime() - start) / 1000000;
+				long micros = evaluate(track, merge(simplifiedTracks), evaluations, error);
+				System.out.println(simplifier + ", wall time (ms) " + wallMillis +
+						", evaluation (us)=" + micros + " speed-up=" + (float) baseMicros / Math.max(micros, 1) +
+						" error=" + error[0] + " (" + (error[0] - baseError) / baseError * 100 + "%)");
+			}
+		}
+
+		for (int noise = 0; noise <= 1; noise++) {
+			ShipTrack straightLeg = makeStraightLeg(straightLegPos, startTs, noise);
+			System.out.println("Straight leg: " + straightLegPos + " positions" + (noise == 0 ? ", no noise" : ", GPS noise"));
+			benchmarkStraightLeg(straightLeg);
+		}
+	}
+
+	static void benchmarkStraightLeg(ShipTrack straightLeg) {
+		for (String algorithm : ALGORITHMS) {
+			for (float maxDeviation : MAX_DEVIATIONS_IN_MILES) {
+				TrackSimplifier simplifier = new TrackSimplifier(algorithm, maxDeviation);
+				simplifier.getKeptIndexes(straightLeg); // warm up
+				simplifier = new TrackSimplifier(algorithm, maxDeviation);
+				int[] kept = simplifier.getKeptIndexes(straightLeg);
+				float deviation = maxDeviationInMiles(straightLeg, kept);
+				System.out.println(simplifier + ", max deviation " + deviation +
+						(deviation <= maxDeviation ? "" : " ERROR: above the limit"));
+			}
+		}
+	}
+}
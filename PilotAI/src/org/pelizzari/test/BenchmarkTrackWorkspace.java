@@ -0,0 +1,163 @@
+package org.pelizzari.test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.pelizzari.gis.Displacement;
+import org.pelizzari.gis.DisplacementSequence;
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipPositionList;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.ship.TrackWorkspace;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Allocation rate and GC time of the fitness evaluation of random individuals (sequences of displacements):
+ * ShipTrack reconstruction, time normalization, segments and TrackError, versus TrackWorkspace.
+ * The errors must be the same.
+ * Usage: prog [n_positions individuals generations displacements]
+ */
+public class BenchmarkTrackWorkspace {
+
+	final static float DISTANCE_TO_DESTINATION_ERROR_FACTOR = 0.01f;
+	final static float DISTANCE_ERROR_FACTOR = 1f;
+	final static float HEADING_ERROR_FACTOR = 0.1f;
+
+	static float[][] makeGenomes(int individuals, int displacements) {
+		Random random = new Random(2);
+		float[][] genomes = new float[individuals][2 * displacements];
+		for (float[] genome : genomes) {
+			for (int i = 0; i < displacements; i++) {
+				genome[2*i] = 13f / displacements + (float) random.nextGaussian() * 0.3f;
+				genome[2*i + 1] = 37f / displacements + (float) random.nextGaussian() * 0.3f;
+			}
+		}
+		return genomes;
+	}
+
+	static ColumnarShipPositionList makeTrainingList(int nPos, long startTs) {
+		ShipPositionList objectList = BenchmarkColumnarPositions.makeTrainingList(nPos, startTs);
+		ColumnarShipPositionList trainingList = new ColumnarShipPositionList();
+		for (int i = 0; i < objectList.size(); i++) {
+			trainingList.addPosition(objectList.getTsMillisec(i), objectList.getLat(i), objectList.getLon(i));
+		}
+		return trainingList;
+	}
+
+	static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(gc.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+
+	static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Errors of the individuals from ... to-1 (as DisplacementSequenceProblem with ShipTrack)
+	 */
+	static void evaluateWithTracks(float[][] genomes, int from, int to, ShipPosition startPosition, Timestamp endTs, Timestamp referenceStartTs,
+								   ShipPositionList trainingList, Point destination, float[] errors) throws Exception {
+		for (int k = from; k < to; k++) {
+			DisplacementSequence displSeq = new DisplacementSequence();
+			for (int i = 0; i < genomes[k].length / 2; i++) {
+				displSeq.add(new Displacement(genomes[k][2*i], genomes[k][2*i + 1]));
+			}
+			ShipPosition trackStartPosition = new ShipPosition(startPosition.getPoint(), startPosition.getTs());
+			ShipTrack track = ShipTrack.reconstructShipTrack(trackStartPosition, endTs, displSeq);
+			track.normalizeTimestampsAndComputeTrackSegments(referenceStartTs, BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC);
+			errors[k] = track.computeTrackError(trainingList, destination,
+					DISTANCE_TO_DESTINATION_ERROR_FACTOR, DISTANCE_ERROR_FACTOR, HEADING_ERROR_FACTOR).getError();
+		}
+	}
+
+	/**
+	 * Errors of the individuals from ... to-1 (as DisplacementSequenceProblem with TrackWorkspace)
+	 */
+	static void evaluateInWorkspace(float[][] genomes, int from, int to, TrackWorkspace workspace, Point startPoint, long referenceStartTs,
+									ShipPositionList trainingList, Point destination, float[] errors) {
+		for (int k = from; k < to; k++) {
+			workspace.setDisplacementCount(genomes[k].length / 2);
+			for (int i = 0; i < genomes[k].length / 2; i++) {
+				workspace.setDisplacement(i, genomes[k][2*i], genomes[k][2*i + 1]);
+			}
+			workspace.reconstruct(startPoint.lat, startPoint.lon);
+			workspace.normalizeTimestamps(referenceStartTs, BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC);
+			workspace.computeSegmentStats(trainingList);
+			errors[k] = workspace.getError(destination,
+					DISTANCE_TO_DESTINATION_ERROR_FACTOR, DISTANCE_ERROR_FACTOR, HEADING_ERROR_FACTOR);
+		}
+	}
+
+	static void report(String name, int evaluations, long nanos, long bytes, long gcCount, long gcMillis) {
+		System.out.println(name + ": evaluations=" + evaluations + " time (ms)=" + nanos / 1000000 +
+				" us/evaluation=" + (float) nanos / 1000 / evaluations +
+				" allocated MB=" + bytes / (1024 * 1024) + " bytes/evaluation=" + bytes / evaluations +
+				" GC count=" + gcCount + " GC time (ms)=" + gcMillis);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nPos = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int individuals = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int generations = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int displacements = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		long startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+
+		ColumnarShipPositionList trainingList = makeTrainingList(nPos, startTs);
+		Point startPoint = new Point(-34f, 18f);
+		Point destination = new Point(-21f, 55f);
+		Timestamp referenceStartTs = new Timestamp(startTs);
+		ShipPosition startPosition = new ShipPosition(startPoint, referenceStartTs);
+		Timestamp endTs = new Timestamp(startTs + BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC * 1000L);
+		float[][] genomes = makeGenomes(individuals, displacements);
+		float[] trackErrors = new float[individuals];
+		float[] workspaceErrors = new float[individuals];
+		TrackWorkspace workspace = new TrackWorkspace();
+
+		// warm up
+		for (int g = 0; g < 3; g++) {
+			evaluateWithTracks(genomes, 0, individuals, startPosition, endTs, referenceStartTs, trainingList, destination, trackErrors);
+			evaluateInWorkspace(genomes, 0, individuals, workspace, startPoint, startTs, trainingList, destination, workspaceErrors);
+		}
+
+		int evaluations = individuals * generations;
+		for (int path = 0; path < 2; path++) {
+			System.gc();
+			long gcCount = gcCount(), gcMillis = gcMillis(), bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int g = 0; g < generations; g++) {
+				if(path == 0) {
+					evaluateWithTracks(genomes, 0, individuals, startPosition, endTs, referenceStartTs, trainingList, destination, trackErrors);
+				} else {
+					evaluateInWorkspace(genomes, 0, individuals, workspace, startPoint, startTs, trainingList, destination, workspaceErrors);
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			report(path == 0 ? "ShipTrack" : "TrackWorkspace", evaluations, nanos,
+					allocatedBytes() - bytes, gcCount() - gcCount, gcMillis() - gcMillis);
+		}
+
+		int different = 0;
+		for (int k = 0; k < individuals; k++) {
+			if(Float.floatToIntBits(trackErrors[k]) != Float.floatToIntBits(workspaceErrors[k])) {
+				different++;
+			}
+		}
+		System.out.println(different == 0 ? "Same errors" : "ERROR: " + different + " different errors");
+	}
+}
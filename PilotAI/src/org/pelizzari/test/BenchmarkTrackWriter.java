@@ -0,0 +1,100 @@
+package org.pelizzari.test;
+
+import java.sql.Connection;
+import java.sql.Statement;
+
+import org.pelizzari.db.DBConnection;
+import org.pelizzari.db.TrackWriter;
+import org.pelizzari.gis.Box;
+import org.pelizzari.gis.Point;
+import org.pelizzari.mine.Areas;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Rows per second written into the tracks table by one INSERT per position (autocommit),
+ * by batch inserts and by COPY, with synthetic tracks. Rows are written with period
+ * BENCHMARK_PERIOD and deleted at the end.
+ * Usage: prog [n_tracks positions_per_track]
+ */
+public class BenchmarkTrackWriter {
+
+	final static String BENCHMARK_PERIOD = "BENCHMARK";
+	final static int LEGACY_MAX_ROWS = 5000; // one round trip per row, keep it short
+	
+	static ShipTrack makeTrack(int trackIndex, int nPos) throws Exception {
+		ShipTrack track = new ShipTrack();
+		track.setMmsi(Integer.toString(900000000 + trackIndex));
+		long startTs = new Timestamp("2011-01-01 00:00:00").getTsMillisec();
+		for (int i = 0; i < nPos; i++) {
+			Point p = new Point(-34f + i * 0.001f, 18f + trackIndex * 0.01f + i * 0.002f);
+			track.addPosition(new ShipPosition(p, new Timestamp(startTs + i * 600000L)));
+		}
+		return track;
+	}
+	
+	static void deleteBenchmarkRows(Connection con) throws Exception {
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate("DELETE FROM tracks WHERE period = '" + BENCHMARK_PERIOD + "'");
+		stmt.close();
+	}
+	
+	static void report(String name, int rows, long nanos) {
+		double sec = nanos / 1e9;
+		System.out.println(name + ": rows=" + rows + " time (ms)=" + (long)(sec * 1000) + 
+				" rows/sec=" + (long)(rows / Math.max(sec, 1e-9)));
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int nTracks = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		int nPos = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		Box depBox = Areas.getBox("CAPETOWN");
+		Box arrBox = Areas.getBox("REUNION");
+		long insertTs = System.currentTimeMillis() / 1000;
+		
+		ShipTrack[] tracks = new ShipTrack[nTracks];
+		for (int i = 0; i < nTracks; i++) {
+			tracks[i] = makeTrack(i, nPos);
+		}
+		Connection con = DBConnection.getCon();
+		deleteBenchmarkRows(con);
+
+		// legacy: one autocommitted INSERT per position
+		Statement stmt = con.createStatement();
+		int legacyRows = 0;
+		long start = System.nanoTime();
+		for (ShipTrack track : tracks) {
+			for (ShipPosition pos : track.getPosList()) {
+				if(legacyRows >= LEGACY_MAX_ROWS) {
+					break;
+				}
+				stmt.executeUpdate("INSERT INTO tracks (mmsi, source, period, dep, arr, insert_ts, ts, lat, lon) " +
+						"VALUES ('" + track.getMmsi() + "', null, '" + BENCHMARK_PERIOD + "', '" + 
+						depBox.getName() + "', '" + arrBox.getName() + "', " + insertTs + ", " +
+						pos.getTs().getTsMillisec()/1000 + "," + pos.getPoint().lat + "," + pos.getPoint().lon + ")");
+				legacyRows++;
+			}
+		}
+		report("Single INSERT", legacyRows, System.nanoTime() - start);
+		stmt.close();
+		deleteBenchmarkRows(con);
+		
+		for (boolean useCopy : new boolean[] {false, true}) {
+			start = System.nanoTime();
+			int rows;
+			boolean usedCopy;
+			try (TrackWriter writer = new TrackWriter(con, depBox, arrBox, BENCHMARK_PERIOD, insertTs, useCopy)) {
+				for (ShipTrack track : tracks) {
+					writer.addTrack(track);
+				}
+				writer.commit();
+				rows = writer.getRowCount();
+				usedCopy = writer.isUsingCopy();
+			}
+			report(usedCopy ? "COPY         " : "Batch INSERT ", rows, System.nanoTime() - start);
+			deleteBenchmarkRows(con);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,133 @@
+package org.pelizzari.test;
+
+import java.util.Random;
+
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipPositionList;
+import org.pelizzari.ship.TrackWorkspace;
+import org.pelizzari.ship.WeightedShipPositionList;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Compression of the training positions in weighted positions (WeightedShipPositionList.compress()):
+ * - with all weights 1 the errors must be the same as with the raw list (TrackError and TrackWorkspace);
+ * - for each tolerance: compressed size, evaluation time, rank correlation of the errors of random individuals,
+ *   and exact error (raw list) of the best individual found by the same (1+lambda) search with each list.
+ * Usage: prog [n_positions individuals displacements iterations]
+ */
+public class BenchmarkTrainingCompression {
+
+	final static float[][] TOLERANCES = { {0.02f, 1800}, {0.05f, 3600}, {0.1f, 6*3600}, {0.2f, 24*3600} }; // deg, sec
+	final static int LAMBDA = 20;
+
+	static Point startPoint = new Point(-34f, 18f);
+	static Point destination = new Point(-21f, 55f);
+	static long startTs;
+
+	static float[] evaluate(float[][] genomes, ShipPositionList trainingList, TrackWorkspace workspace) {
+		float[] errors = new float[genomes.length];
+		BenchmarkTrackWorkspace.evaluateInWorkspace(genomes, 0, genomes.length, workspace, startPoint, startTs,
+				trainingList, destination, errors);
+		return errors;
+	}
+
+	/**
+	 * (1+lambda) search from the first genome, the same random mutations for any list
+	 */
+	static float[] search(float[] parent, int iterations, ShipPositionList trainingList, TrackWorkspace workspace) {
+		Random random = new Random(4);
+		float[] best = parent.clone();
+		float bestError = evaluate(new float[][] { best }, trainingList, workspace)[0];
+		float[][] children = new float[LAMBDA][];
+		for (int it = 0; it < iterations; it++) {
+			for (int c = 0; c < LAMBDA; c++) {
+				children[c] = best.clone(); // one displacement changed
+				int i = random.nextInt(best.length / 2);
+				children[c][2*i] += (float) random.nextGaussian() * 0.2f;
+				children[c][2*i + 1] += (float) random.nextGaussian() * 0.2f;
+			}
+			float[] errors = evaluate(children, trainingList, workspace);
+			for (int c = 0; c < LAMBDA; c++) {
+				if(errors[c] < bestError) {
+					bestError = errors[c];
+					best = children[c];
+				}
+			}
+		}
+		return best;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nPos = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int individuals = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int displacements = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+		startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+		Timestamp referenceStartTs = new Timestamp(startTs);
+		ShipPosition startPosition = new ShipPosition(startPoint, referenceStartTs);
+		Timestamp endTs = new Timestamp(startTs + BenchmarkColumnarPositions.VOYAGE_DURATION_IN_SEC * 1000L);
+		ColumnarShipPositionList rawList = BenchmarkTrackWorkspace.makeTrainingList(nPos, startTs);
+		float[][] genomes = BenchmarkTrackWorkspace.makeGenomes(individuals, displacements);
+		TrackWorkspace workspace = new TrackWorkspace();
+
+		// weights 1: same errors
+		WeightedShipPositionList unitList = new WeightedShipPositionList(rawList);
+		float[] rawErrors = evaluate(genomes, rawList, workspace);
+		float[] unitErrors = evaluate(genomes, unitList, workspace);
+		int checked = Math.min(individuals, 50);
+		float[] rawTrackErrors = new float[checked];
+		float[] unitTrackErrors = new float[checked];
+		BenchmarkTrackWorkspace.evaluateWithTracks(genomes, 0, checked, startPosition, endTs, referenceStartTs,
+				rawList, destination, rawTrackErrors);
+		BenchmarkTrackWorkspace.evaluateWithTracks(genomes, 0, checked, startPosition, endTs, referenceStartTs,
+				unitList, destination, unitTrackErrors);
+		int different = 0;
+		for (int k = 0; k < individuals; k++) {
+			if(Float.floatToIntBits(rawErrors[k]) != Float.floatToIntBits(unitErrors[k]) ||
+			   (k < checked && Float.floatToIntBits(rawTrackErrors[k]) != Float.floatToIntBits(unitTrackErrors[k]))) {
+				different++;
+			}
+		}
+		System.out.println(different == 0 ? "Weights 1: same errors" : "ERROR: weights 1, " + different + " different errors");
+
+		// warm up and raw reference
+		for (int g = 0; g < 3; g++) {
+			evaluate(genomes, rawList, workspace);
+		}
+		long start = System.nanoTime();
+		evaluate(genomes, rawList, workspace);
+		long rawNanos = System.nanoTime() - start;
+		float[] rawRanks = BenchmarkDistanceField.ranks(rawErrors);
+		float[] rawBest = search(genomes[0], iterations, rawList, workspace);
+		float rawBestError = evaluate(new float[][] { rawBest }, rawList, workspace)[0];
+		System.out.println("Raw: positions=" + nPos + " us/evaluation=" + (float) rawNanos / 1000 / individuals +
+				" best error=" + rawBestError);
+
+		for (float[] tolerance : TOLERANCES) {
+			start = System.currentTimeMillis();
+			WeightedShipPositionList compressed = WeightedShipPositionList.compress(rawList, tolerance[0], (int) tolerance[1]);
+			long compressMillis = System.currentTimeMillis() - start;
+			for (int g = 0; g < 3; g++) {
+				evaluate(genomes, compressed, workspace);
+			}
+			start = System.nanoTime();
+			float[] errors = evaluate(genomes, compressed, workspace);
+			long nanos = System.nanoTime() - start;
+			float[] best = search(genomes[0], iterations, compressed, workspace);
+			float bestError = evaluate(new float[][] { best }, rawList, workspace)[0]; // exact
+			float maxDisplacementDiff = 0;
+			for (int i = 0; i < best.length; i++) {
+				maxDisplacementDiff = Math.max(maxDisplacementDiff, Math.abs(best[i] - rawBest[i]));
+			}
+			System.out.println("Cell " + tolerance[0] + " deg, bin " + (int) tolerance[1] + " s: positions=" + compressed.size() +
+					" (" + compressMillis + " ms)" +
+					" us/evaluation=" + (float) nanos / 1000 / individuals +
+					" speed-up=" + (float) rawNanos / nanos +
+					" rank correlation=" + BenchmarkDistanceField.pearson(rawRanks, BenchmarkDistanceField.ranks(errors)) +
+					" best error (raw)=" + bestError + " (" + (bestError / rawBestError - 1) * 100 + " %)" +
+					" max displacement diff (deg)=" + maxDisplacementDiff);
+		}
+	}
+}
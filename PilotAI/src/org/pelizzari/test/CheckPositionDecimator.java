@@ -0,0 +1,206 @@
+package org.pelizzari.test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.pelizzari.db.Miner;
+import org.pelizzari.gis.Box;
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.PositionDecimator;
+import org.pelizzari.ship.Ship;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Check that the tracks mined with a TIME_WINDOW PositionDecimator (Miner.makeShipTrackBetweenBoxes() offering
+ * the positions to the decimator while they are read) are the same as before the decimator:
+ * the full track truncated between the boxes, then reduced by the time window loop on countPositionsInInterval(),
+ * i.e. a position is kept if it is the only one in (ts-window, ts].
+ * Random tracks with equal timestamps, gaps around the window and ships coming back to the departure area.
+ * Also checks ShipTrack.reducePositionDensity(int) on the truncated track.
+ * Usage: prog [n_tracks time_window_in_sec]
+ */
+public class CheckPositionDecimator {
+
+	final static Box DEPARTURE_BOX = new Box(new Point(0f, 0f), 0.5f);
+	final static Box ARRIVAL_BOX = new Box(new Point(0f, 10f), 0.5f);
+
+	/**
+	 * Exposes the track extraction of the miner; no DB is used
+	 */
+	static class TrackMiner extends Miner {
+		ShipTrack makeTrack(Ship ship, List<ShipPosition> posList) {
+			return makeShipTrackBetweenBoxes(ship, posList.iterator(), DEPARTURE_BOX, ARRIVAL_BOX);
+		}
+	}
+
+	/**
+	 * Positions from before the departure area to beyond the arrival area; the ship may come back
+	 * to the departure area (more than once) before leaving for the arrival.
+	 * Time steps: 0 (equal timestamps), just below, at and just above the window, or longer.
+	 */
+	static List<ShipPosition> makePositions(Random random, long startTs, int timeWindowInSec) {
+		long[] stepsInSec = {0, 0, 1, timeWindowInSec / 2, timeWindowInSec - 1, timeWindowInSec,
+							 timeWindowInSec + 1, 3 * timeWindowInSec};
+		List<Float> lons = new ArrayList<Float>();
+		float lon = -2f + random.nextFloat();
+		int returns = random.nextInt(3);
+		for (int r = 0; r <= returns; r++) {
+			float turnLon = r < returns ? 1f + random.nextFloat() * 4f : 12f; // leave the departure area, then back
+			while (lon < turnLon) {
+				lons.add(lon);
+				lon += 0.1f + random.nextFloat() * 0.4f;
+			}
+			if (r < returns) {
+				float backLon = -0.4f + random.nextFloat() * 0.8f;
+				while (lon > backLon) {
+					lons.add(lon);
+					lon -= 0.1f + random.nextFloat() * 0.4f;
+				}
+			}
+		}
+		List<ShipPosition> posList = new ArrayList<ShipPosition>();
+		long ts = startTs;
+		for (float l : lons) {
+			ts += stepsInSec[random.nextInt(stepsInSec.length)] * 1000;
+			Point p = new Point((float) random.nextGaussian() * 0.1f, l);
+			posList.add(new ShipPosition(p, new Timestamp(ts)));
+		}
+		return posList;
+	}
+
+	/**
+	 * Truncation between the boxes before the decimator, on the full list
+	 */
+	static List<ShipPosition> truncateBetweenBoxes(List<ShipPosition> posList) {
+		boolean trackCrossedDepartureArea = false;
+		boolean trackCrossedArrivalArea = false;
+		List<ShipPosition> trackBetweenDepartureAndArrivalBoxes = new ArrayList<ShipPosition>();
+		Iterator<ShipPosition> posItr = posList.iterator();
+		boolean inDepartureArea = false;
+		boolean recordTrack = false;
+		while (posItr.hasNext()) {
+			ShipPosition pos = posItr.next();
+			boolean posInDepartureArea = DEPARTURE_BOX.isWithinBox(pos.getPoint());
+			if (posInDepartureArea) {
+				if (!trackCrossedDepartureArea) {
+					trackCrossedDepartureArea = true;
+					recordTrack = true;
+				} else if (!inDepartureArea) { // back to the departure area
+					trackBetweenDepartureAndArrivalBoxes.clear();
+				}
+			}
+			if (recordTrack) {
+				trackBetweenDepartureAndArrivalBoxes.add(pos);
+			}
+			if (ARRIVAL_BOX.isWithinBox(pos.getPoint())) {
+				trackCrossedArrivalArea = true;
+				break;
+			}
+			inDepartureArea = posInDepartureArea;
+		}
+		if (!trackCrossedDepartureArea || !trackCrossedArrivalArea ||
+			trackBetweenDepartureAndArrivalBoxes.size() < 3) { // Miner.MIN_SHIP_TRACK_SIZE
+			return null;
+		}
+		return trackBetweenDepartureAndArrivalBoxes;
+	}
+
+	/**
+	 * Time window loop before the decimator: keep a position if it is the only one in (ts-window, ts]
+	 */
+	static List<ShipPosition> reduceWithTimeWindowLoop(List<ShipPosition> posList, int timeWindowInSec) {
+		ShipTrack track = new ShipTrack();
+		track.setPosList(posList);
+		List<ShipPosition> reducedPosList = new ArrayList<ShipPosition>();
+		for (ShipPosition pos : posList) {
+			int posCounterInTimeWindow = track.countPositionsInInterval(
+					pos.getTs().getTsMillisec() - timeWindowInSec * 1000L,
+					pos.getTs().getTsMillisec());
+			if (posCounterInTimeWindow <= 1) {
+				reducedPosList.add(pos);
+			}
+		}
+		return reducedPosList;
+	}
+
+	static boolean samePositions(List<ShipPosition> expected, List<ShipPosition> actual) {
+		if (expected == null || actual == null) {
+			return expected == actual;
+		}
+		if (expected.size() != actual.size()) {
+			return false;
+		}
+		for (int i = 0; i < expected.size(); i++) {
+			if (expected.get(i) != actual.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nTracks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int timeWindowInSec = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+		long startTs = new Timestamp("2019-10-01 00:00:00").getTsMillisec();
+		Random random = new Random(1);
+		TrackMiner miner = new TrackMiner();
+		int nMismatches = 0, nReducedMismatches = 0;
+		int nTracksWithEqualTs = 0, nTracksWithReturn = 0, nNullTracks = 0;
+		long nPositions = 0, nKeptPositions = 0;
+		for (int k = 0; k < nTracks; k++) {
+			Ship ship = new Ship(Integer.toString(k));
+			List<ShipPosition> posList = makePositions(random, startTs, timeWindowInSec);
+			nPositions += posList.size();
+			boolean inDepartureArea = false, equalTs = false, comesBack = false;
+			int departures = 0;
+			for (int i = 0; i < posList.size(); i++) {
+				boolean posInDepartureArea = DEPARTURE_BOX.isWithinBox(posList.get(i).getPoint());
+				if (posInDepartureArea && !inDepartureArea && ++departures > 1) {
+					comesBack = true;
+				}
+				inDepartureArea = posInDepartureArea;
+				if (i > 0 && posList.get(i).getTs().getTsMillisec() == posList.get(i - 1).getTs().getTsMillisec()) {
+					equalTs = true;
+				}
+			}
+			nTracksWithEqualTs += equalTs ? 1 : 0;
+			nTracksWithReturn += comesBack ? 1 : 0;
+
+			List<ShipPosition> truncated = truncateBetweenBoxes(posList);
+			List<ShipPosition> expected = truncated == null ? null : reduceWithTimeWindowLoop(truncated, timeWindowInSec);
+
+			miner.setDecimator(new PositionDecimator(PositionDecimator.TIME_WINDOW, timeWindowInSec, 0));
+			ShipTrack minedTrack = miner.makeTrack(ship, posList);
+			List<ShipPosition> mined = minedTrack == null ? null : minedTrack.getPosList();
+			if (!samePositions(expected, mined)) {
+				nMismatches++;
+				System.out.println("MISMATCH: track " + k + ", expected " + expected + ", mined " + mined);
+			}
+			if (truncated == null) {
+				nNullTracks++;
+				continue;
+			}
+			nKeptPositions += expected.size();
+			ShipTrack reducedTrack = new ShipTrack();
+			reducedTrack.setPosList(new ArrayList<ShipPosition>(truncated));
+			reducedTrack.reducePositionDensity(timeWindowInSec);
+			if (!samePositions(expected, reducedTrack.getPosList())) {
+				nReducedMismatches++;
+				System.out.println("MISMATCH: track " + k + ", expected " + expected +
+						", reducePositionDensity() " + reducedTrack.getPosList());
+			}
+		}
+		System.out.println("Tracks: " + nTracks + ", with equal timestamps: " + nTracksWithEqualTs +
+				", back to the departure area: " + nTracksWithReturn + ", discarded: " + nNullTracks);
+		System.out.println("Positions: " + nPositions + ", kept: " + nKeptPositions + " (window " + timeWindowInSec + " s)");
+		System.out.println("Mismatches: makeShipTrackBetweenBoxes() " + nMismatches +
+				", reducePositionDensity() " + nReducedMismatches);
+		if (nMismatches + nReducedMismatches > 0) {
+			System.exit(1);
+		}
+	}
+}
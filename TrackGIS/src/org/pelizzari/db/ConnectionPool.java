@@ -0,0 +1,238 @@
+package org.pelizzari.db;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Bounded pool of JDBC connections.
+ * Connections returned by getConnection() go back to the pool when closed.
+ * Idle connections are checked before being handed out again and replaced if broken.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class ConnectionPool implements DataSource {
+
+	final static int VALIDATION_TIMEOUT_IN_SEC = 2;
+	final static int DEFAULT_WAIT_TIMEOUT_IN_SEC = 60;
+
+	String url;
+	Properties props;
+	int maxSize;
+	int waitTimeoutInSec = DEFAULT_WAIT_TIMEOUT_IN_SEC;
+	
+	LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+	List<Connection> all = new ArrayList<Connection>(); // physical connections opened by the pool
+	boolean closed = false;
+	PrintWriter logWriter = null;
+	
+	public ConnectionPool(String url, Properties props, int maxSize) {
+		if(maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1: "+maxSize);
+		}
+		this.url = url;
+		this.props = props;
+		this.maxSize = maxSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized int getOpenCount() {
+		return all.size();
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public void setWaitTimeoutInSec(int waitTimeoutInSec) {
+		this.waitTimeoutInSec = waitTimeoutInSec;
+	}
+
+	/**
+	 * Borrow a connection: reuse an idle one, open a new one if the pool is not full, 
+	 * otherwise wait until one is returned.
+	 */
+	public Connection getConnection() throws SQLException {
+		Connection physicalCon = idle.poll();
+		if(physicalCon == null) {
+			physicalCon = openIfNotFull();
+		}
+		if(physicalCon == null) {
+			try {
+				physicalCon = idle.poll(waitTimeoutInSec, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a connection");
+			}
+			if(physicalCon == null) {
+				throw new SQLException("No connection available after "+waitTimeoutInSec+" s, pool size: "+maxSize);
+			}
+		}
+		if(!isValid(physicalCon)) {
+			discard(physicalCon);
+			physicalCon = openIfNotFull();
+			if(physicalCon == null) {
+				throw new SQLException("Cannot replace broken connection");
+			}
+		}
+		return wrap(physicalCon);
+	}
+	
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException("Credentials are set when the pool is created");
+	}
+
+	synchronized Connection openIfNotFull() throws SQLException {
+		if(closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		if(all.size() >= maxSize) {
+			return null;
+		}
+		Connection physicalCon = DriverManager.getConnection(url, props);
+		all.add(physicalCon);
+		return physicalCon;
+	}
+	
+	boolean isValid(Connection physicalCon) {
+		try {
+			return physicalCon.isValid(VALIDATION_TIMEOUT_IN_SEC);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+	
+	synchronized void discard(Connection physicalCon) {
+		all.remove(physicalCon);
+		try {
+			physicalCon.close();
+		} catch (SQLException e) {
+			// already broken
+		}
+	}
+	
+	/*
+	 * Give back a physical connection in a clean state
+	 */
+	void release(Connection physicalCon) {
+		synchronized (this) {
+			if(closed) {
+				discard(physicalCon);
+				return;
+			}
+		}
+		try {
+			if(!physicalCon.getAutoCommit()) {
+				physicalCon.rollback();
+				physicalCon.setAutoCommit(true);
+			}
+			idle.offer(physicalCon);
+		} catch (SQLException e) {
+			System.err.println("Cannot reset connection, discarding it");
+			e.printStackTrace();
+			discard(physicalCon);
+		}
+	}
+	
+	Connection wrap(final Connection physicalCon) {
+		InvocationHandler handler = new InvocationHandler() {
+			boolean logicallyClosed = false;
+			
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if(name.equals("close")) {
+					if(!logicallyClosed) {
+						logicallyClosed = true;
+						release(physicalCon);
+					}
+					return null;
+				}
+				if(name.equals("isClosed")) {
+					return logicallyClosed || physicalCon.isClosed();
+				}
+				if(name.equals("equals")) {
+					return proxy == args[0];
+				}
+				if(name.equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				if(name.equals("toString")) {
+					return "Pooled " + physicalCon;
+				}
+				if(logicallyClosed) {
+					throw new SQLException("Connection has been returned to the pool");
+				}
+				try {
+					return method.invoke(physicalCon, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		};
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), 
+				new Class<?>[] {Connection.class}, handler);
+	}
+	
+	/**
+	 * Close all the connections. Borrowed connections are closed when they are returned.
+	 */
+	public void close() {
+		List<Connection> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayList<Connection>(idle);
+			idle.clear();
+		}
+		for (Connection physicalCon : toClose) {
+			discard(physicalCon);
+		}
+	}
+
+	public PrintWriter getLogWriter() throws SQLException {
+		return logWriter;
+	}
+
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		logWriter = out;
+	}
+
+	public void setLoginTimeout(int seconds) throws SQLException {
+		DriverManager.setLoginTimeout(seconds);
+	}
+
+	public int getLoginTimeout() throws SQLException {
+		return DriverManager.getLoginTimeout();
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if(iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		throw new SQLException("Not a wrapper for "+iface);
+	}
+
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+}
@@ -1,16 +1,24 @@
 package org.pelizzari.db;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Properties;
 
+import javax.sql.DataSource;
+
 public class DBConnection {
 
-	public static Connection con;
+	// number of connections of the pool, can be changed with -Dpelizzari.db.pool.size=N
+	final static String POOL_SIZE_PROPERTY = "pelizzari.db.pool.size";
+	final static int DEFAULT_POOL_SIZE = 4;
+	
+	static ConnectionPool pool;
+	
+	// connection used by the current thread, borrowed from the pool on first use and kept
+	static ThreadLocal<Connection> threadCon = new ThreadLocal<Connection>();
 
-	public static Connection getCon() {
-		if(con == null) {
+	public static synchronized DataSource getDataSource() {
+		if(pool == null) {
 			try {
 				Class.forName("org.postgresql.Driver");
 
@@ -19,18 +27,60 @@ public class DBConnection {
 				props.setProperty("user","postgres");
 				props.setProperty("password","postgres");
 				//props.setProperty("ssl","true");
-				con = DriverManager.getConnection(url, props);
 				
 				//// EMSA
 				//String url = "jdbc:mysql://tstatdata1.emsa.local:3306/ai";
-				//con = DriverManager.getConnection(url, "pelizan", "ais");
+				//props.setProperty("user","pelizan");
+				//props.setProperty("password","ais");
 				
-			} catch (SQLException | ClassNotFoundException e) {
+				int poolSize = Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+				pool = new ConnectionPool(url, props, poolSize);
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						shutdown();
+					}
+				});
+			} catch (ClassNotFoundException e) {
+				System.err.println("Cannot load DB driver");
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		return pool;
+	}
+	
+	/**
+	 * Number of connections of the pool, including the ones kept by the threads (see getCon())
+	 */
+	public static int getPoolSize() {
+		return ((ConnectionPool) getDataSource()).getMaxSize();
+	}
+	
+	/**
+	 * Connection of the current thread, borrowed from the pool on the first call.
+	 * The thread keeps it for its whole life, it is not given back to the pool: each thread that calls
+	 * getCon() takes one connection of the pool size (see Miner.setParallelism()). Threads that only do some DB work (e.g. the workers of Miner.setParallelism()) 
+	 * borrow from getDataSource() and close the connection instead.
+	 */
+	public static Connection getCon() {
+		Connection con = threadCon.get();
+		if(con == null) {
+			try {
+				con = getDataSource().getConnection();
+				threadCon.set(con);
+			} catch (SQLException e) {
 				System.err.println("Cannot make DB connection");
 				e.printStackTrace();
-				System.exit(-1);			}			
+				System.exit(-1);
+			}
 		}
 		return con;
 	}
+	
+	public static synchronized void shutdown() {
+		if(pool != null) {
+			pool.close();
+		}
+	}
 
 }
@@ -0,0 +1,274 @@
+package org.pelizzari.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.pelizzari.gis.Box;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.ShipPositionList;
+
+/**
+ * Read-through cache of the merged tracks of Miner, keyed by (period, dep box, arr box, insert_ts).
+ * Entries are kept in a small in-memory LRU and, if a directory is given, in files that survive
+ * the JVM. The writers of the tracks table (TrackWriter, TrackNormalizer) invalidate the entries 
+ * of their (period, dep, arr), in memory and on disk. If validation is on, each entry also keeps 
+ * a fingerprint of its rows (count, integer sums of the timestamps), checked with one aggregate 
+ * query before the entry is used.
+ * The default cache is configured with system properties:
+ * pelizzari.cache.size (entries in memory, default 8, 0 = no cache), 
+ * pelizzari.cache.dir (no files if not set), pelizzari.cache.validate (default false: a warm start 
+ * does not touch the db, and the tracks table must be changed only by the writers above, 
+ * or stale entries are used).
+ * @author andrea@pelizzari.org
+ *
+ */
+public class MergedTrackCache {
+
+	final static int MAGIC = 0x4d524731; // "MRG1"
+	final static String FILE_PREFIX = "merged-";
+	final static String FILE_EXT = ".bin";
+	final static String KEY_SEPARATOR = "-";
+	
+	static MergedTrackCache defaultCache = null;
+	static boolean defaultCacheInitialized = false;
+	
+	/*
+	 * Positions in columns, with the fingerprint of the rows they were read from
+	 */
+	static class CachedTrack {
+		String fingerprint;
+		int[] tsSec;
+		float[] lat;
+		float[] lon;
+	}
+	
+	final int maxEntries;
+	File dir;
+	boolean validating;
+	LinkedHashMap<String, CachedTrack> entries;
+	int hits = 0, misses = 0;
+	
+	/**
+	 * @param maxEntries entries kept in memory
+	 * @param dir directory of the cache files, null for memory only
+	 * @param validating if true, check the fingerprint of an entry before using it
+	 */
+	public MergedTrackCache(int maxEntries, File dir, boolean validating) {
+		this.maxEntries = maxEntries;
+		this.dir = dir;
+		this.validating = validating;
+		entries = new LinkedHashMap<String, CachedTrack>(16, 0.75f, true) { // access order: LRU
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, CachedTrack> eldest) {
+				return size() > MergedTrackCache.this.maxEntries;
+			}
+		};
+		if(dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			System.err.println("Cannot create cache directory: "+dir);
+			this.dir = null;
+		}
+	}
+	
+	/**
+	 * Cache shared by all the Miners of the JVM, null if disabled
+	 */
+	public static synchronized MergedTrackCache getDefault() {
+		if(!defaultCacheInitialized) {
+			defaultCacheInitialized = true;
+			int size = Integer.getInteger("pelizzari.cache.size", 8);
+			String dirName = System.getProperty("pelizzari.cache.dir");
+			boolean validate = Boolean.getBoolean("pelizzari.cache.validate");
+			if(size > 0) {
+				defaultCache = new MergedTrackCache(size, dirName == null ? null : new File(dirName), validate);
+			}
+		}
+		return defaultCache;
+	}
+	
+	/**
+	 * Drop the cached tracks of (period, dep, arr), any insert_ts, from the default cache.
+	 * The cache is created if needed, so that its files are deleted also by a JVM that never read it.
+	 */
+	public static void invalidateDefault(String yearPeriod, String depName, String arrName) {
+		MergedTrackCache cache = getDefault();
+		if(cache != null) {
+			cache.invalidate(yearPeriod, depName, arrName);
+		}
+	}
+	
+	public boolean isValidating() {
+		return validating;
+	}
+	
+	static String getGroupKey(String yearPeriod, String depName, String arrName) {
+		return yearPeriod + KEY_SEPARATOR + depName + KEY_SEPARATOR + arrName + KEY_SEPARATOR;
+	}
+	
+	static String getKey(String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		return getGroupKey(yearPeriod, depBox.getName(), arrBox.getName()) + insertTs;
+	}
+	
+	File getFile(String key) {
+		return new File(dir, FILE_PREFIX + key + FILE_EXT);
+	}
+	
+	/**
+	 * Cached merged track, or null if not cached (or stale, if fingerprint is not null).
+	 * A new list is returned at each call.
+	 */
+	public synchronized ShipPositionList get(String yearPeriod, Box depBox, Box arrBox, long insertTs, 
+											 String fingerprint) {
+		String key = getKey(yearPeriod, depBox, arrBox, insertTs);
+		CachedTrack entry = entries.get(key);
+		if(entry == null && dir != null) {
+			entry = readEntry(getFile(key));
+			if(entry != null) {
+				entries.put(key, entry);
+			}
+		}
+		if(entry != null && fingerprint != null && !fingerprint.equals(entry.fingerprint)) {
+			System.out.println("Cache: stale entry " + key);
+			remove(key);
+			entry = null;
+		}
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		System.out.println("Cache: read " + entry.tsSec.length + " positions of " + key);
+		ColumnarShipPositionList mergedTrack = new ColumnarShipPositionList(Math.max(entry.tsSec.length, 1));
+		for (int i = 0; i < entry.tsSec.length; i++) {
+			mergedTrack.addPosition((long) entry.tsSec[i]*1000, entry.lat[i], entry.lon[i]);
+		}
+		mergedTrack.sortByTime(); // only a check if put() was given a list in time order, as by Miner
+		return mergedTrack;
+	}
+	
+	public synchronized void put(String yearPeriod, Box depBox, Box arrBox, long insertTs, 
+								 String fingerprint, ShipPositionList mergedTrack) {
+		String key = getKey(yearPeriod, depBox, arrBox, insertTs);
+		int n = mergedTrack.size();
+		CachedTrack entry = new CachedTrack();
+		entry.fingerprint = fingerprint == null ? "" : fingerprint;
+		entry.tsSec = new int[n];
+		entry.lat = new float[n];
+		entry.lon = new float[n];
+		for (int i = 0; i < n; i++) {
+			entry.tsSec[i] = (int) (mergedTrack.getTsMillisec(i)/1000);
+			entry.lat[i] = mergedTrack.getLat(i);
+			entry.lon[i] = mergedTrack.getLon(i);
+		}
+		entries.put(key, entry);
+		if(dir != null) {
+			writeEntry(getFile(key), entry);
+		}
+	}
+	
+	/**
+	 * Drop the entries of (period, dep, arr), any insert_ts, in memory and on disk
+	 */
+	public synchronized void invalidate(String yearPeriod, String depName, String arrName) {
+		String groupKey = getGroupKey(yearPeriod, depName, arrName);
+		Iterator<String> keyItr = entries.keySet().iterator();
+		while(keyItr.hasNext()) {
+			if(isKeyOfGroup(keyItr.next(), groupKey)) {
+				keyItr.remove();
+			}
+		}
+		if(dir != null) {
+			String[] names = dir.list();
+			if(names == null) {
+				return;
+			}
+			for (String name : names) {
+				if(name.startsWith(FILE_PREFIX) && name.endsWith(FILE_EXT)) {
+					String key = name.substring(FILE_PREFIX.length(), name.length() - FILE_EXT.length());
+					if(isKeyOfGroup(key, groupKey) && !new File(dir, name).delete()) {
+						System.err.println("Cannot delete cache file: "+name);
+					}
+				}
+			}
+		}
+	}
+	
+	static boolean isKeyOfGroup(String key, String groupKey) {
+		return key.startsWith(groupKey) && key.substring(groupKey.length()).matches("-?\\d+");
+	}
+	
+	void remove(String key) {
+		entries.remove(key);
+		if(dir != null) {
+			getFile(key).delete();
+		}
+	}
+	
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+	
+	CachedTrack readEntry(File file) {
+		if(!file.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if(in.readInt() != MAGIC) {
+				throw new IOException("Not a cache file");
+			}
+			CachedTrack entry = new CachedTrack();
+			entry.fingerprint = in.readUTF();
+			int n = in.readInt();
+			entry.tsSec = new int[n];
+			entry.lat = new float[n];
+			entry.lon = new float[n];
+			for (int i = 0; i < n; i++) {
+				entry.tsSec[i] = in.readInt();
+				entry.lat[i] = in.readFloat();
+				entry.lon[i] = in.readFloat();
+			}
+			return entry;
+		} catch (IOException e) {
+			System.err.println("Cannot read cache file, ignoring it: "+file);
+			e.printStackTrace();
+			file.delete();
+			return null;
+		}
+	}
+	
+	void writeEntry(File file, CachedTrack entry) {
+		File tmpFile = new File(file.getPath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeUTF(entry.fingerprint);
+			out.writeInt(entry.tsSec.length);
+			for (int i = 0; i < entry.tsSec.length; i++) {
+				out.writeInt(entry.tsSec[i]);
+				out.writeFloat(entry.lat[i]);
+				out.writeFloat(entry.lon[i]);
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot write cache file: "+file);
+			e.printStackTrace();
+			tmpFile.delete();
+			return;
+		}
+		if((file.exists() && !file.delete()) || !tmpFile.renameTo(file)) {
+			System.err.println("Cannot write cache file: "+file);
+			tmpFile.delete();
+		}
+	}
+}
@@ -2,84 +2,229 @@ package org.pelizzari.db;
 
 import java.awt.Color;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
 
 import org.pelizzari.gis.Box;
 import org.pelizzari.gis.Map;
-import org.pelizzari.gis.Point;
 import org.pelizzari.ship.Ship;
+import org.pelizzari.ship.PositionDecimator;
 import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ColumnarShipPositionList;
 import org.pelizzari.ship.ShipPositionList;
 import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.store.CellIndex;
 import org.pelizzari.time.TimeInterval;
-import org.pelizzari.time.Timestamp;
 
 public class Miner {
 	
 	final static int MIN_SHIP_TRACK_SIZE = 3;
+	final static int DEFAULT_FETCH_SIZE = 10000; // rows transferred at a time by position cursors
 
-	Connection con;
+	Connection con; // if null, the connection of the thread is taken at the first query
+	// prepared statements of con, reused by all the queries with the same text
+	StatementCache statementCache;
+	
+	// merged tracks already read, null to always read them from the DB
+	MergedTrackCache mergedTrackCache = MergedTrackCache.getDefault();
+	
+	// if true, fetch the positions of all the candidate ships with a single query
+	// instead of one query per ship
+	boolean bulkMode = false;
+	
+	// number of ships whose positions are fetched at the same time, each on its own pooled connection
+	int parallelism = 1;
+	
+	int fetchSize = DEFAULT_FETCH_SIZE;
+	
+	// if not null, used to find the ships in a box during an interval
+	CellIndex cellIndex = null;
+	
+	// if not null, the tracks are decimated while they are truncated between the boxes
+	PositionDecimator decimator = null;
 	
 	public Miner() {
-		con = DBConnection.getCon();		
+		// connect only when needed (cached results do not need the DB)
+	}
+	
+	public Miner(Connection con) {
+		this.con = con;		
+	}
+	
+	StatementCache getStatementCache() {
+		if(statementCache == null) {
+			if(con == null) {
+				con = DBConnection.getCon();
+			}
+			statementCache = new StatementCache(con);
+		}
+		return statementCache;
+	}
+	
+	public MergedTrackCache getMergedTrackCache() {
+		return mergedTrackCache;
+	}
+
+	public void setMergedTrackCache(MergedTrackCache mergedTrackCache) {
+		this.mergedTrackCache = mergedTrackCache;
+	}
+	
+	public boolean isBulkMode() {
+		return bulkMode;
+	}
+
+	public void setBulkMode(boolean bulkMode) {
+		this.bulkMode = bulkMode;
+	}
+
+	public CellIndex getCellIndex() {
+		return cellIndex;
+	}
+
+	public void setCellIndex(CellIndex cellIndex) {
+		this.cellIndex = cellIndex;
+	}
+
+	public PositionDecimator getDecimator() {
+		return decimator;
+	}
+
+	/**
+	 * Decimate the tracks of getShipTracksInIntervalAndBetweenBoxes() and getShipTracksInIntervalAndCrossingBox()
+	 * while they are read: in the default mode (not bulk) only the kept positions are loaded in memory.
+	 * Same result as calling reducePositionDensity(decimator) on each track.
+	 * @param decimator null for no decimation
+	 */
+	public void setDecimator(PositionDecimator decimator) {
+		this.decimator = decimator;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Fetch the positions of up to parallelism ships at the same time (ignored in bulk mode).
+	 * The workers are limited to the size of the pool minus the connection of this miner: 
+	 * for parallelism workers, the pool should have at least parallelism+1 connections.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
 	}
 	
-	public static String convertIntoCommaSeparatedMMSIList(List<Ship> ships) {		
-		String mmsiList = "'-1'";
+	public static String[] convertIntoMMSIArray(List<Ship> ships) {		
+		String[] mmsiArray = new String[ships.size()];
+		int i = 0;
 		for (Ship ship : ships) {
-			mmsiList += ",'" + ship.getMmsi() + "'";
+			mmsiArray[i++] = ship.getMmsi();
 		}
-		
-		return mmsiList;
+		return mmsiArray;
 	}
 
 	public List<Ship> getShipsInIntervalAndBox(TimeInterval interval, Box box) {
 		return getShipsInIntervalAndBox(interval, box, null, null, -1);
 	}
 
+	/*
+	 * Bind coordinates with the same value the SQL literal of the float had 
+	 */
+	static double toSQLDouble(float f) {
+		return Double.parseDouble(Float.toString(f));
+	}
 	
-	String getGeoSQLCondition(Box box) {
-		final String GEO_COND =
-				"and lat >= "+box.getMinLat()+" "+
-				"and lat <= "+box.getMaxLat()+" "+
-				"and lon >= "+box.getMinLon()+" "+
-				"and lon <= "+box.getMaxLon()+" ";
-		return GEO_COND;
+	void addGeoSQLCondition(SQLQuery query, Box box) {
+		if(box == null) {
+			return;
+		}
+		query.append("and lat >= ? and lat <= ? and lon >= ? and lon <= ? ",
+				toSQLDouble(box.getMinLat()), 
+				toSQLDouble(box.getMaxLat()), 
+				toSQLDouble(box.getMinLon()), 
+				toSQLDouble(box.getMaxLon()));
 	}
 
-	String getBoxNamesSQLCondition(Box depBox, Box arrBox) {
-		final String BOX_NAME_COND = 
-				"and dep = '"+depBox.getName()+"' "+		
-				"and arr = '"+arrBox.getName()+"' ";		
-		return BOX_NAME_COND;
+	void addBoxNamesSQLCondition(SQLQuery query, Box depBox, Box arrBox) {
+		query.append("and dep = ? and arr = ? ", depBox.getName(), arrBox.getName());		
 	}
 	
-	String getPeriodSQLCondition(TimeInterval interval) {
-		// get start and end TS of the interval
-		String startISODatetime = interval.getStartTsISO();
-		String endISODatetime = interval.getEndTsISO();
-
-		final String PERIOD_COND = 
-				"and date(to_timestamp(ts)) >= '"+startISODatetime+"' "+
-				"and date(to_timestamp(ts)) <= '"+endISODatetime+"' ";
-		return PERIOD_COND;		
+	/*
+	 * Raw range on ts (whole days of the interval), so that the index on ts can be used
+	 */
+	void addPeriodSQLCondition(SQLQuery query, TimeInterval interval) {
+		query.append("and ts >= ? and ts < ? ",
+				(int) interval.getStartDayEpochSec(), 
+				(int) interval.getEndDayEpochSec());
 	}
 
 	/*
-	 * If include=true make "mmsi in (...)", "mmsi NOT in (...)" otherwise  
+	 * If include=true make "mmsi = ANY(...)", "NOT mmsi = ANY(...)" otherwise  
 	 */
-	String getMmsiSQLCondition(List<Ship> ships, boolean in) {
-		String notStr = in?"":"NOT";
-		final String INCLUDE_MMSI_COND =
-				(ships == null || ships.isEmpty()) ?
-				"" :
-				"and "+notStr+" mmsi in ("+convertIntoCommaSeparatedMMSIList(ships) +") ";	
-		return INCLUDE_MMSI_COND;
+	void addMmsiSQLCondition(SQLQuery query, List<Ship> ships, boolean in) {
+		if(ships == null || ships.isEmpty()) {
+			return;
+		}
+		String notStr = in?"":"NOT ";
+		query.append("and "+notStr+"mmsi = ANY(?) ", (Object) convertIntoMMSIArray(ships));
+	}
+	
+	void addInsertTsSQLCondition(SQLQuery query, long insertTs) {
+		if(insertTs == -1) {
+			return;
+		}
+		query.append("and insert_ts = ? ", (int) insertTs);
+	}
+
+	void addLimitSQL(SQLQuery query, int limit) {
+		if(limit <= 0) {
+			return;
+		}
+		query.append("limit ? ", limit);
+	}
+	
+	List<Ship> getShips(SQLQuery shipQuery) {
+		List<Ship> listOfShips = new ArrayList<Ship>();
+		try {
+			QueryProfiler.Run run = QueryProfiler.start(shipQuery);
+			PreparedStatement stmt = shipQuery.prepare(getStatementCache());
+			try (ResultSet rs = stmt.executeQuery()) {
+				while(rs.next()){
+					String mmsi = rs.getString("mmsi");
+					run.row(QueryProfiler.estimateRowBytes(0, 0, mmsi));
+					Ship ship = new Ship(mmsi);
+					listOfShips.add(ship);					
+				}
+			}
+			run.end();
+		} catch (SQLException e) {
+			System.err.println("Cannot get ships");
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		return listOfShips;
 	}
 	
 	/**
@@ -91,35 +236,17 @@ public class Miner {
 	 */
 	public List<Ship> getShipsWithTracks(String yearPeriod, Box depBox, Box arrBox, long insertTs) {
 
-		final String SHIP_QUERY = 
+		SQLQuery shipQuery = new SQLQuery(
 				"select distinct mmsi " +
 				"from tracks "+
-				"where period = '" + yearPeriod + "' " +
-				"and dep = '" + depBox.getName() + "' " +
-				"and arr = '" + arrBox.getName() +  "' " +
-				((insertTs == -1)?"":"and insert_ts = " + insertTs + " ") + 				
-				"order by mmsi asc";
-
-		String shipQuery = SHIP_QUERY;
+				"where period = ? ", yearPeriod);
+		shipQuery.setName("getShipsWithTracks");
+		addBoxNamesSQLCondition(shipQuery, depBox, arrBox);
+		addInsertTsSQLCondition(shipQuery, insertTs);
+		shipQuery.append("order by mmsi asc");
 		System.out.println(shipQuery);
 
-		List<Ship> listOfShips = new ArrayList<Ship>();
-
-		try {
-			Statement stmt = con.createStatement();
-			ResultSet rs = stmt.executeQuery(shipQuery);
-			while (rs.next()) {
-				String mmsi = rs.getString("mmsi");
-				Ship ship = new Ship(mmsi);
-				listOfShips.add(ship);
-			}
-		} catch (SQLException e) {
-			System.err.println("Cannot get ships");
-			e.printStackTrace();
-			System.exit(-1);
-		}
-
-		return listOfShips;
+		return getShips(shipQuery);
 	}
 	
 	/**
@@ -136,48 +263,89 @@ public class Miner {
 											   List<Ship> includeShips,
 											   List<Ship> excludeShips,
 											   int limitShips) {
-				
-		final String GEO_COND = getGeoSQLCondition(box);
-
-		final String PERIOD_COND = getPeriodSQLCondition(interval);
-
-		final String INCLUDE_MMSI_COND = getMmsiSQLCondition(includeShips, true);		
-
-		final String EXCLUDE_MMSI_COND = getMmsiSQLCondition(excludeShips, false);
-		
-		final String LIMIT_SHIPS = (limitShips > 0)?"limit "+limitShips+" ":"";		
-
-		final String SHIP_QUERY = 
+		if(cellIndex != null && box != null) {
+			List<Ship> ships = getShipsInIntervalAndBoxFromCellIndex(interval, box, includeShips, excludeShips, limitShips);
+			if(ships != null) {
+				return ships;
+			}
+		}
+		return getShipsInIntervalAndBoxFromDB(interval, box, includeShips, excludeShips, limitShips);
+	}
+	
+	List<Ship> getShipsInIntervalAndBoxFromDB(TimeInterval interval, 
+											  Box box, 
+											  List<Ship> includeShips,
+											  List<Ship> excludeShips,
+											  int limitShips) {
+		SQLQuery shipQuery = new SQLQuery(
 				"SELECT distinct mmsi "+
 				"FROM wpos "+
-			    "WHERE 1=1 "+
-				INCLUDE_MMSI_COND+
-				EXCLUDE_MMSI_COND+
-			    PERIOD_COND+
-			    GEO_COND+
-			    LIMIT_SHIPS;
-		
-		String shipQuery = SHIP_QUERY;
+			    "WHERE 1=1 ");
+		shipQuery.setName("getShipsInIntervalAndBox");
+		addMmsiSQLCondition(shipQuery, includeShips, true);
+		addMmsiSQLCondition(shipQuery, excludeShips, false);
+		addPeriodSQLCondition(shipQuery, interval);
+		addGeoSQLCondition(shipQuery, box);
+		addLimitSQL(shipQuery, limitShips);
 		System.out.println(shipQuery);
 		
-		List<Ship> listOfShips = new ArrayList<Ship>();
-
-		try {
-			Statement stmt = con.createStatement();
-			ResultSet rs = stmt.executeQuery(shipQuery);
-			ShipPosition pos = null;
-			while(rs.next()){
-				String mmsi = rs.getString("mmsi");
-				Ship ship = new Ship(mmsi);
-				listOfShips.add(ship);					
+		return getShips(shipQuery);
+	}
+	
+	/*
+	 * Ships from the cell index; those found only in cells (or days) partially covered 
+	 * by the box (or interval) are verified in the DB.
+	 * Return null if the interval is not fully indexed.
+	 */
+	List<Ship> getShipsInIntervalAndBoxFromCellIndex(TimeInterval interval, 
+													 Box box, 
+													 List<Ship> includeShips,
+													 List<Ship> excludeShips,
+													 int limitShips) {
+		CellIndex.Lookup lookup = cellIndex.lookup(interval, box);
+		if(lookup == null) {
+			System.out.println("WARN: interval not in cell index: "+interval);
+			return null;
+		}
+		TreeSet<String> found = new TreeSet<String>();
+		List<Ship> candidates = new ArrayList<Ship>();
+		Set<String> includeSet = getMmsiSet(includeShips);
+		Set<String> excludeSet = getMmsiSet(excludeShips);
+		for (String mmsi : lookup.ships) {
+			if((includeSet == null || includeSet.contains(mmsi)) && (excludeSet == null || !excludeSet.contains(mmsi))) {
+				found.add(mmsi);
 			}
-		} catch (SQLException e) {
-			System.err.println("Cannot get ships");
-			e.printStackTrace();
-			System.exit(-1);
 		}
-		
-		return listOfShips;
+		for (String mmsi : lookup.candidates) {
+			if((includeSet == null || includeSet.contains(mmsi)) && (excludeSet == null || !excludeSet.contains(mmsi))) {
+				candidates.add(new Ship(mmsi));
+			}
+		}
+		System.out.println("Cell index: "+found.size()+" ships, "+candidates.size()+" to verify");
+		if(!candidates.isEmpty() && (limitShips <= 0 || found.size() < limitShips)) {
+			for (Ship ship : getShipsInIntervalAndBoxFromDB(interval, box, candidates, null, -1)) {
+				found.add(ship.getMmsi());
+			}
+		}
+		List<Ship> ships = new ArrayList<Ship>();
+		for (String mmsi : found) {
+			if(limitShips > 0 && ships.size() >= limitShips) {
+				break;
+			}
+			ships.add(new Ship(mmsi));
+		}
+		return ships;
+	}
+	
+	public static Set<String> getMmsiSet(List<Ship> ships) {
+		if(ships == null || ships.isEmpty()) {
+			return null;
+		}
+		Set<String> mmsiSet = new HashSet<String>();
+		for (Ship ship : ships) {
+			mmsiSet.add(ship.getMmsi());
+		}
+		return mmsiSet;
 	}
 
 	/*
@@ -189,67 +357,169 @@ public class Miner {
 	}
 	
 	/*
-	 * Loads a merged track between 2 areas from the TRACKS table in the db
+	 * Loads a merged track between 2 areas from the TRACKS table in the db, ordered by norm_ts
 	 */
 	public ShipPositionList getMergedShipTracksInPeriodAndBetweenBoxes(
 			String yearPeriod, Box depBox, Box arrBox, long insertTs) {
-		Connection con = DBConnection.getCon();
-		int readCount = 0;				
-		final String FUSED_TRACK_SELECT = 
-				"select norm_ts, lat, lon " +
+		if(mergedTrackCache == null) {
+			return readMergedShipTracksInPeriodAndBetweenBoxes(yearPeriod, depBox, arrBox, insertTs);
+		}
+		String fingerprint = null;
+		if(mergedTrackCache.isValidating()) {
+			fingerprint = getTracksFingerprint(yearPeriod, depBox, arrBox, insertTs);
+		}
+		ShipPositionList mergedTrack = mergedTrackCache.get(yearPeriod, depBox, arrBox, insertTs, fingerprint);
+		if(mergedTrack == null) {
+			mergedTrack = readMergedShipTracksInPeriodAndBetweenBoxes(yearPeriod, depBox, arrBox, insertTs);
+			mergedTrackCache.put(yearPeriod, depBox, arrBox, insertTs, fingerprint, mergedTrack);
+		}
+		return mergedTrack;
+	}
+	
+	/*
+	 * Summary of the rows of a merged track: changes if rows are added, removed or renormalized.
+	 * Only exact integer aggregates: float sums depend on the order of a parallel aggregation.
+	 */
+	String getTracksFingerprint(String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		SQLQuery fingerprintQuery = new SQLQuery(
+				"select count(*) as n, coalesce(max(ts), 0) as max_ts, " +
+				"coalesce(sum(ts::bigint), 0) as sum_ts, " +
+				"coalesce(sum(norm_ts::bigint), 0) as sum_norm_ts " +
 				"from tracks " +
-				"where period = '" + yearPeriod + "' " +
-				"and dep = '" + depBox.getName() + "' " +
-				"and arr = '" + arrBox.getName() + "' " + 
-				((insertTs == -1)?"":"and insert_ts = " + insertTs + " ") + 
-				"order by ts asc";
-		System.out.println("Fused Track Query: " + FUSED_TRACK_SELECT);			
-		
-		ShipPositionList mergedTrack = new ShipPositionList();
+				"where period = ? ", yearPeriod);
+		fingerprintQuery.setName("getTracksFingerprint");
+		addBoxNamesSQLCondition(fingerprintQuery, depBox, arrBox);
+		addInsertTsSQLCondition(fingerprintQuery, insertTs);
+		String fingerprint = null;
 		try {
-			Statement stmt = con.createStatement();
-			ResultSet rs = stmt.executeQuery(FUSED_TRACK_SELECT);
-			ShipPosition pos = null;
-			while(rs.next()) {
-				float lat = rs.getFloat("lat");
-				float lon = rs.getFloat("lon");
-				int ts = rs.getInt("norm_ts"); // in sec
-				Point posPoint = new Point(lat, lon);				
-				pos = new ShipPosition(posPoint, new Timestamp((long)ts*1000));
-				mergedTrack.addPosition(pos);
-				readCount++;
+			QueryProfiler.Run run = QueryProfiler.start(fingerprintQuery);
+			PreparedStatement stmt = fingerprintQuery.prepare(getStatementCache());
+			try (ResultSet rs = stmt.executeQuery()) {
+				rs.next();
+				run.row(QueryProfiler.estimateRowBytes(0, 4));
+				fingerprint = rs.getLong("n") + ":" + rs.getLong("max_ts") + ":" + rs.getLong("sum_ts") + ":" + 
+						rs.getLong("sum_norm_ts");
 			}
-			System.out.println("Read " + readCount + " positions");			
+			run.end();
 		} catch (SQLException e) {
-			System.err.println("Cannot get track positions from TRACKS table");
+			System.err.println("Cannot get tracks fingerprint");
 			e.printStackTrace();
 			System.exit(-1);
 		}
+		return fingerprint;
+	}
+	
+	ShipPositionList readMergedShipTracksInPeriodAndBetweenBoxes(
+			String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		ColumnarShipPositionList mergedTrack = new ColumnarShipPositionList();
+		try (ShipPositionCursor cursor = openMergedShipTracksInPeriodAndBetweenBoxes(
+				yearPeriod, depBox, arrBox, insertTs)) {
+			while(cursor.nextRow()) {
+				mergedTrack.addPosition((long) cursor.getTs()*1000, cursor.getLat(), cursor.getLon());
+			}
+			System.out.println("Read " + cursor.getReadCount() + " positions");			
+		}
+		mergedTrack.trimToSize();
+		mergedTrack.sortByTime(); // by norm_ts, for the interval queries of TrackError
 		return mergedTrack;
 	}
 	
-	List<ShipPosition> getShipPositions(String posQuery) {
-		List<ShipPosition> posList = new ArrayList<ShipPosition>();
+	/**
+	 * Stream the positions of a merged track (timestamps are norm_ts) ordered by ts.
+	 * The cursor must be closed.
+	 */
+	public ShipPositionCursor openMergedShipTracksInPeriodAndBetweenBoxes(
+			String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		SQLQuery fusedTrackQuery = new SQLQuery(
+				"select norm_ts, lat, lon " +
+				"from tracks " +
+				"where period = ? ", yearPeriod);
+		fusedTrackQuery.setName("getMergedShipTracks");
+		addBoxNamesSQLCondition(fusedTrackQuery, depBox, arrBox);
+		addInsertTsSQLCondition(fusedTrackQuery, insertTs);
+		fusedTrackQuery.append("order by ts asc");
+		System.out.println("Fused Track Query: " + fusedTrackQuery);			
+		
+		return openShipPositions(fusedTrackQuery, "norm_ts", false);
+	}
+	
+	/*
+	 * Start streaming the positions selected by the query
+	 */
+	ShipPositionCursor openShipPositions(SQLQuery posQuery, String tsColumn, boolean withMmsi) {
+		ShipPositionCursor cursor = null;
 		try {
-			Statement stmt = con.createStatement();
-			ResultSet rs = stmt.executeQuery(posQuery);
-			ShipPosition pos = null;
-			while(rs.next()){
-				float lat = rs.getFloat("lat");
-				float lon = rs.getFloat("lon");
-				int ts = rs.getInt("ts");
-				Point posPoint = new Point(lat, lon);				
-				pos = new ShipPosition(posPoint, new Timestamp((long)ts*1000));
-				posList.add(pos);					
-			}
+			cursor = new ShipPositionCursor(posQuery, getStatementCache(), fetchSize, tsColumn, withMmsi);
 		} catch (SQLException e) {
 			System.err.println("Cannot get ship positions");
 			e.printStackTrace();
 			System.exit(-1);
 		}
+		return cursor;
+	}
+	
+	List<ShipPosition> getShipPositions(SQLQuery posQuery) {
+		List<ShipPosition> posList = new ArrayList<ShipPosition>();
+		try (ShipPositionCursor cursor = openShipPositions(posQuery, "ts", false)) {
+			while(cursor.hasNext()) {
+				posList.add(cursor.next());
+			}
+		}
 		return posList;
 	}
 	
+	/*
+	 * Read positions of several ships at once. The query must select mmsi, ts, lat, lon
+	 * ordered by (mmsi, ts): the stream is split into one position list per ship.
+	 */
+	LinkedHashMap<String, List<ShipPosition>> getShipPositionsByShip(SQLQuery posQuery) {
+		LinkedHashMap<String, List<ShipPosition>> posListByShip = new LinkedHashMap<String, List<ShipPosition>>();
+		try (ShipPositionCursor cursor = openShipPositions(posQuery, "ts", true)) {
+			String prevMmsi = null;
+			List<ShipPosition> posList = null;
+			while(cursor.hasNext()) {
+				ShipPosition pos = cursor.next();
+				String mmsi = cursor.getMmsi();
+				if(!mmsi.equals(prevMmsi)) { // first position of the next ship
+					posList = new ArrayList<ShipPosition>();
+					posListByShip.put(mmsi, posList);
+					prevMmsi = mmsi;
+				}
+				posList.add(pos);
+			}
+		}
+		return posListByShip;
+	}
+	
+	/**
+	 * Get the positions of all the given ships from the wpos table with a single query.
+	 * @param interval
+	 * @param box if null, do not filter by area
+	 * @param includeShips
+	 * @param excludeShips
+	 * @return positions ordered by timestamp for each ship, keyed by MMSI
+	 */
+	public LinkedHashMap<String, List<ShipPosition>> getShipPositionsInIntervalAndBoxByShip(
+				   TimeInterval interval,  
+				   Box box, 
+				   List<Ship> includeShips,
+				   List<Ship> excludeShips) {
+
+		SQLQuery posQuery = new SQLQuery(
+				"SELECT mmsi, ts, lat, lon "+
+				"FROM wpos "+
+			    "WHERE 1=1 ");
+		posQuery.setName("getShipPositionsInIntervalAndBoxByShip");
+		addMmsiSQLCondition(posQuery, includeShips, true);
+		addMmsiSQLCondition(posQuery, excludeShips, false);
+		addPeriodSQLCondition(posQuery, interval);
+		addGeoSQLCondition(posQuery, box);
+		posQuery.append("order by mmsi asc, ts asc ");
+		System.out.println(posQuery);
+		
+		return getShipPositionsByShip(posQuery);
+	}
+	
 	
 	/**
 	 * Get ship positions from the wpos table
@@ -266,33 +536,76 @@ public class Miner {
 				   List<Ship> includeShips,
 				   List<Ship> excludeShips,
 				   int limitPositions) {
+		return getShipPositionsInIntervalAndBox(interval, box, includeShips, excludeShips, limitPositions, null);
+	}
 
-		final String GEO_COND = (box == null)?" ":getGeoSQLCondition(box);
-		
-		final String PERIOD_COND = getPeriodSQLCondition(interval);
-		
-		final String INCLUDE_MMSI_COND = getMmsiSQLCondition(includeShips, true);		
-		
-		final String EXCLUDE_MMSI_COND = getMmsiSQLCondition(excludeShips, false);
-		
-		final String LIMIT_POS = (limitPositions > 0)?"limit "+limitPositions+" ":"";		
+	/**
+	 * Get ship positions from the wpos table, streamed through the decimator (if not null): 
+	 * only the kept positions are loaded in memory.
+	 * The positions are in time order, so with a decimator includeShips must have exactly one ship.
+	 */
+	public List<ShipPosition> getShipPositionsInIntervalAndBox(
+				   TimeInterval interval,  
+				   Box box, 
+				   List<Ship> includeShips,
+				   List<Ship> excludeShips,
+				   int limitPositions,
+				   PositionDecimator decimator) {
 
-		final String SHIP_POSITION_QUERY = 
-				"SELECT ts, date(to_timestamp(ts)) as ts_date, lat, lon "+
+		if(decimator != null && (includeShips == null || includeShips.size() != 1)) {
+			throw new IllegalArgumentException("A decimator needs the positions of one ship");
+		}
+		List<ShipPosition> posList = new ArrayList<ShipPosition>();
+		if(decimator != null) {
+			decimator.start(posList);
+		}
+		try (ShipPositionCursor cursor = openShipPositionsInIntervalAndBox(
+				interval, box, includeShips, excludeShips, limitPositions)) {
+			while(cursor.hasNext()) {
+				if(decimator != null) {
+					decimator.offer(cursor.next());
+				} else {
+					posList.add(cursor.next());
+				}
+			}
+		}
+		if(decimator != null) {
+			decimator.finish();
+		}
+		return posList;
+	}
+	
+	/**
+	 * Stream ship positions from the wpos table ordered by ts, fetchSize rows at a time.
+	 * The cursor must be closed.
+	 * @param interval
+	 * @param box
+	 * @param includeShips
+	 * @param excludeShips
+	 * @param limitPositions
+	 * @return
+	 */
+	public ShipPositionCursor openShipPositionsInIntervalAndBox(
+				   TimeInterval interval,  
+				   Box box, 
+				   List<Ship> includeShips,
+				   List<Ship> excludeShips,
+				   int limitPositions) {
+
+		SQLQuery posQuery = new SQLQuery(
+				"SELECT ts, lat, lon "+
 				"FROM wpos "+
-			    "WHERE 1=1 "+
-				INCLUDE_MMSI_COND+
-				EXCLUDE_MMSI_COND+
-				PERIOD_COND+
-				GEO_COND+
-				"order by ts asc "+
-				LIMIT_POS;
-		
-		String posQuery = SHIP_POSITION_QUERY;
+			    "WHERE 1=1 ");
+		posQuery.setName("getShipPositionsInIntervalAndBox");
+		addMmsiSQLCondition(posQuery, includeShips, true);
+		addMmsiSQLCondition(posQuery, excludeShips, false);
+		addPeriodSQLCondition(posQuery, interval);
+		addGeoSQLCondition(posQuery, box);
+		posQuery.append("order by ts asc ");
+		addLimitSQL(posQuery, limitPositions);
 		System.out.println(posQuery);
 		
-		List<ShipPosition> posList = getShipPositions(SHIP_POSITION_QUERY);
-		return posList;
+		return openShipPositions(posQuery, "ts", false);
 	}
 	
 	
@@ -301,6 +614,9 @@ public class Miner {
 			Box depBox,
 			Box arrBox,
 			long insertTs) {
+		if(bulkMode) {
+			return getShipTracksFromTracksTableInBulk(yearPeriod, depBox, arrBox, insertTs);
+		}
 		List<Ship> ships = getShipsWithTracks(yearPeriod, depBox, arrBox, insertTs);
 		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
 		for (Ship ship : ships) {
@@ -316,6 +632,36 @@ public class Miner {
 		return tracks;
 	}
 	
+	/*
+	 * Same as getShipTracksFromTracksTable, but all the tracks are read with one query
+	 * ordered by (mmsi, ts) and split on the client.
+	 */
+	List<ShipTrack> getShipTracksFromTracksTableInBulk(
+			String yearPeriod, 
+			Box depBox,
+			Box arrBox,
+			long insertTs) {
+		SQLQuery posQuery = new SQLQuery(
+				"SELECT mmsi, ts, lat, lon "+
+				"FROM tracks "+
+			    "WHERE period = ? ", yearPeriod);
+		posQuery.setName("getShipTracksFromTracksTableInBulk");
+		addBoxNamesSQLCondition(posQuery, depBox, arrBox);
+		addInsertTsSQLCondition(posQuery, insertTs);
+		posQuery.append("order by mmsi asc, ts asc");
+		System.out.println(posQuery);
+
+		LinkedHashMap<String, List<ShipPosition>> posListByShip = getShipPositionsByShip(posQuery);
+		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
+		for (String mmsi : posListByShip.keySet()) {
+			ShipTrack track = new ShipTrack();
+			track.setMmsi(mmsi);
+			track.setPosList(posListByShip.get(mmsi));
+			tracks.add(track);
+		}		
+		return tracks;
+	}
+	
 	public List<ShipPosition> getShipPositionsFromTracksTable(
 			   Box depBox,
 			   Box arrBox,
@@ -324,32 +670,21 @@ public class Miner {
 			   int limitPositions,
 			   long insertTs) {
 	
-	final String INCLUDE_MMSI_COND = getMmsiSQLCondition(includeShips, true);		
-	
-	final String EXCLUDE_MMSI_COND = getMmsiSQLCondition(excludeShips, false);
-	
-	final String BOX_NAMES_COND = getBoxNamesSQLCondition(depBox, arrBox);
-	
-	final String INSERT_TS_COND = ((insertTs == -1)?"":"and insert_ts = " + insertTs + " ");
-	
-	final String LIMIT_POS = (limitPositions > 0)?"limit "+limitPositions+" ":"";
-
-	final String SHIP_POSITION_QUERY = 
-			"SELECT ts, date(to_timestamp(ts)) as ts_date, lat, lon "+
+	SQLQuery posQuery = new SQLQuery(
+			"SELECT ts, lat, lon "+
 			"FROM tracks "+
-		    "WHERE 1=1 "+
-			INCLUDE_MMSI_COND+
-			EXCLUDE_MMSI_COND+
-			BOX_NAMES_COND+
-			INSERT_TS_COND+
-			"order by ts asc "+ // this is important: it sorts all positions regardless of mmsi
-								// tracks must have been speed normalized!
-			LIMIT_POS;
-	
-	String posQuery = SHIP_POSITION_QUERY;
+		    "WHERE 1=1 ");
+	posQuery.setName("getShipPositionsFromTracksTable");
+	addMmsiSQLCondition(posQuery, includeShips, true);
+	addMmsiSQLCondition(posQuery, excludeShips, false);
+	addBoxNamesSQLCondition(posQuery, depBox, arrBox);
+	addInsertTsSQLCondition(posQuery, insertTs);
+	posQuery.append("order by ts asc "); // this is important: it sorts all positions regardless of mmsi
+										 // tracks must have been speed normalized!
+	addLimitSQL(posQuery, limitPositions);
 	System.out.println(posQuery);
 	
-	List<ShipPosition> posList = getShipPositions(SHIP_POSITION_QUERY);
+	List<ShipPosition> posList = getShipPositions(posQuery);
 	
 	return posList;
 }
@@ -363,16 +698,43 @@ public class Miner {
 														   TimeInterval interval,
 														   Box departureBox,
 														   Box arrivalBox) {
-		// get positions from DB
 		List<Ship> shipList = new ArrayList<Ship>();
 		shipList.add(ship);
-		List<ShipPosition> posList = getShipPositionsInIntervalAndBox(interval, null, shipList, null, -1);
-				
+		if(decimator == null) {
+			// get positions from DB
+			List<ShipPosition> posList = getShipPositionsInIntervalAndBox(interval, null, shipList, null, -1);
+			return makeShipTrackBetweenBoxes(ship, posList.iterator(), departureBox, arrivalBox);
+		}
+		// stream the positions from DB: only the ones kept by the decimator are in memory
+		try (ShipPositionCursor cursor = openShipPositionsInIntervalAndBox(interval, null, shipList, null, -1)) {
+			return makeShipTrackBetweenBoxes(ship, cursor, departureBox, arrivalBox);
+		}
+	}
+	
+	/**
+	 * Truncate the positions of a ship, in time order, to the part of the voyage from the departure area 
+	 * to the arrival area, and decimate them if a decimator is set.
+	 * Warning: if one of the boxes is null, return the full track
+	 */
+	protected ShipTrack makeShipTrackBetweenBoxes(Ship ship,
+												  Iterator<ShipPosition> posItr,
+												  Box departureBox,
+												  Box arrivalBox) {
 		ShipTrack track = new ShipTrack();
+		List<ShipPosition> trackBetweenDepartureAndArrivalBoxes = new ArrayList<ShipPosition>();
+		if(decimator != null) {
+			decimator.start(trackBetweenDepartureAndArrivalBoxes);
+		}
 		
 		// if boxes are null, return full track
 		if(departureBox == null || arrivalBox == null) {
-			track.setPosList(posList);
+			while(posItr.hasNext()) {
+				recordPosition(posItr.next(), trackBetweenDepartureAndArrivalBoxes);
+			}
+			if(decimator != null) {
+				decimator.finish();
+			}
+			track.setPosList(trackBetweenDepartureAndArrivalBoxes);
 			return track;
 		}
 
@@ -380,9 +742,8 @@ public class Miner {
 		// now check if the voyage crosses the departure and arrival areas and truncate it
 		boolean trackCrossedDepartureArea = false;
 		boolean trackCrossedArrivalArea = false;
-		List<ShipPosition> trackBetweenDepartureAndArrivalBoxes = new ArrayList<ShipPosition>();
+		int nRecordedPositions = 0; // before decimation
 		
-		Iterator<ShipPosition> posItr = posList.iterator();
 		boolean inDepartureArea = false;
 		boolean recordTrack = false;
 		while(posItr.hasNext()) {
@@ -395,11 +756,16 @@ public class Miner {
 				} else { // another pos in departure area
 					if(!inDepartureArea) { // the ship came back to the departure area, ignore previous positions
 						trackBetweenDepartureAndArrivalBoxes.clear();
+						nRecordedPositions = 0;
+						if(decimator != null) {
+							decimator.start(trackBetweenDepartureAndArrivalBoxes);
+						}
 					}
 				}
 			}
 			if(recordTrack) {
-				trackBetweenDepartureAndArrivalBoxes.add(pos);				
+				recordPosition(pos, trackBetweenDepartureAndArrivalBoxes);
+				nRecordedPositions++;
 			}
 			if(arrivalBox.isWithinBox(pos.getPoint())) {
 				trackCrossedArrivalArea = true;
@@ -407,6 +773,9 @@ public class Miner {
 			}
 			inDepartureArea = posInDepartureArea;
 		}
+		if(decimator != null) {
+			decimator.finish();
+		}
 
 		if(!trackCrossedDepartureArea) { // if false, ship does not cross the departure area, something is wrong!
 			System.err.println("WARN: "+ship+" does not cross departure "+arrivalBox);
@@ -418,8 +787,8 @@ public class Miner {
 			return null;
 		}
 
-		if(trackBetweenDepartureAndArrivalBoxes.size() < MIN_SHIP_TRACK_SIZE) { // discard if positions are too few
-			System.err.println("WARN: "+ship+" track is too short, positions: "+trackBetweenDepartureAndArrivalBoxes.size());
+		if(nRecordedPositions < MIN_SHIP_TRACK_SIZE) { // discard if positions are too few
+			System.err.println("WARN: "+ship+" track is too short, positions: "+nRecordedPositions);
 			return null;
 		}
 				
@@ -432,6 +801,14 @@ public class Miner {
 		return track;
 	}
 	
+	void recordPosition(ShipPosition pos, List<ShipPosition> trackPosList) {
+		if(decimator != null) {
+			decimator.offer(pos);
+		} else {
+			trackPosList.add(pos);
+		}
+	}
+	
 	
 	/**
 	 * Return the list of tracks of ships that go from a departure area to an arrival area in a given time interval.
@@ -486,6 +863,14 @@ public class Miner {
 			System.out.println("");
 		}			
 		
+		if(bulkMode) {
+			return getShipTracksInBulk(arrivingShips, analysisInterval, departureBox, arrivalBox);
+		}
+		if(parallelism > 1) {
+			return getShipTracksInParallel(arrivingShips, analysisInterval, departureBox, arrivalBox);
+		}
+		
+		
 		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
 		for (Ship ship : arrivingShips) {
 			ShipTrack track = getShipTrackInIntervalAndBetweenBoxes(ship, 
@@ -500,6 +885,117 @@ public class Miner {
 				
 		return tracks;						
 	}
+	
+	/*
+	 * Fetch the positions of all the ships with one query, then truncate each track
+	 * between the boxes. Tracks are returned in the same order as the ships.
+	 */
+	List<ShipTrack> getShipTracksInBulk(List<Ship> ships,
+										TimeInterval interval,
+										Box departureBox,
+										Box arrivalBox) {
+		LinkedHashMap<String, List<ShipPosition>> posListByShip = 
+				getShipPositionsInIntervalAndBoxByShip(interval, null, ships, null);
+		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
+		for (Ship ship : ships) {
+			List<ShipPosition> posList = posListByShip.get(ship.getMmsi());
+			if(posList == null) {
+				posList = new ArrayList<ShipPosition>();
+			}
+			ShipTrack track = makeShipTrackBetweenBoxes(ship, posList.iterator(), departureBox, arrivalBox);
+			if(track != null) {
+				track.setMmsi(ship.getMmsi());
+				tracks.add(track);
+			}
+		}
+		return tracks;
+	}
+
+	/*
+	 * Fetch the positions of each ship with parallelism workers. Each worker borrows one 
+	 * connection from the pool for its whole life and takes the next ship in the list 
+	 * when it is done. Tracks are returned in the same order as the ships.
+	 * There are no more workers than connections in the pool besides the one of this miner.
+	 * A worker waits for its connection if another thread holds it; if none comes (see 
+	 * ConnectionPool.setWaitTimeoutInSec()) the worker ends and the other workers take its ships. 
+	 * Ships left by all the workers are fetched by this miner.
+	 */
+	List<ShipTrack> getShipTracksInParallel(final List<Ship> ships,
+											final TimeInterval interval,
+											final Box departureBox,
+											final Box arrivalBox) {
+		final ShipTrack[] trackByShip = new ShipTrack[ships.size()];
+		final AtomicInteger nextShip = new AtomicInteger(0);
+		final DataSource dataSource = DBConnection.getDataSource();
+		getStatementCache(); // the connection of this miner is borrowed before the ones of the workers
+		int nWorkers = Math.min(Math.min(parallelism, ships.size()), DBConnection.getPoolSize() - 1);
+		if(nWorkers < parallelism && nWorkers < ships.size()) {
+			System.out.println("WARN: " + nWorkers + " workers instead of " + parallelism + 
+					", not enough connections in the pool");
+		}
+		if(nWorkers > 0) {
+			ExecutorService executor = Executors.newFixedThreadPool(nWorkers);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int w = 0; w < nWorkers; w++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						Connection workerCon;
+						try {
+							workerCon = dataSource.getConnection();
+						} catch (SQLException e) {
+							System.out.println("WARN: worker ended without connection: " + e.getMessage());
+							return null;
+						}
+						Miner workerMiner = new Miner(workerCon);
+						if(decimator != null) { // a decimator keeps the state of one track
+							workerMiner.setDecimator(decimator.copy());
+						}
+						try {
+							int i;
+							while((i = nextShip.getAndIncrement()) < ships.size()) {
+								Ship ship = ships.get(i);
+								trackByShip[i] = workerMiner.getShipTrackInIntervalAndBetweenBoxes(ship, 
+										interval, departureBox, arrivalBox);
+							}
+						} finally {
+							workerMiner.close();
+							workerCon.close();
+						}
+						return null;
+					}
+				}));
+			}
+			executor.shutdown();
+			try {
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				System.err.println("Cannot get ship tracks in parallel");
+				e.printStackTrace();
+				executor.shutdownNow();
+				System.exit(-1);
+			}
+		}
+		// ships not taken by any worker
+		int i;
+		while((i = nextShip.getAndIncrement()) < ships.size()) {
+			trackByShip[i] = getShipTrackInIntervalAndBetweenBoxes(ships.get(i), interval, departureBox, arrivalBox);
+		}
+		return collectTracks(ships, trackByShip);
+	}
+	
+	List<ShipTrack> collectTracks(List<Ship> ships, ShipTrack[] trackByShip) {
+		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
+		for (int i = 0; i < trackByShip.length; i++) {
+			ShipTrack track = trackByShip[i];
+			if(track != null) {
+				track.setMmsi(ships.get(i).getMmsi());
+				tracks.add(track);
+			}
+		}
+		return tracks;
+	}
 
 	/**
 	 * Return the list of tracks of ships that cross the box area in a given time interval.
@@ -527,6 +1023,14 @@ public class Miner {
 			return null;
 		}
 				
+		if(bulkMode) {
+			return getShipTracksInBulk(ships, interval, null, null);
+		}
+		if(parallelism > 1) {
+			return getShipTracksInParallel(ships, interval, null, null);
+		}
+		
+		
 		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
 		for (Ship ship : ships) {
 			ShipTrack track = getShipTrackInIntervalAndBetweenBoxes(ship, 
@@ -543,4 +1047,13 @@ public class Miner {
 	}
 	
 	
+	/**
+	 * Close the prepared statements of this miner. The connection is left open.
+	 */
+	public void close() {
+		if(statementCache != null) {
+			statementCache.close();
+		}
+	}
+	
 }
@@ -0,0 +1,252 @@
+package org.pelizzari.db;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects, for each type of query (see SQLQuery.setName()), the number of executions, 
+ * the execution time, the time to the first row, the rows fetched and an estimate of the bytes transferred
+ * (from the column types, see estimateRowBytes()). The execution time ends with end(): for a cursor
+ * (ShipPositionCursor) when it is closed, so it includes the time spent by the consumer on the rows.
+ * If explainSlowest > 0, the slowest queries are kept and their plan (EXPLAIN ANALYZE, so they are
+ * executed again) is printed with the summary.
+ * The default profiler is disabled unless set with setDefault() or -Dpelizzari.profile=true
+ * (and -Dpelizzari.profile.explain=N).
+ * @author andrea@pelizzari.org
+ *
+ */
+public class QueryProfiler {
+
+	static QueryProfiler defaultProfiler = null;
+	static boolean defaultProfilerInitialized = false;
+	
+	/**
+	 * Totals of a type of query
+	 */
+	public static class Stats {
+		String name;
+		int calls = 0;
+		long totalNanos = 0;
+		long maxNanos = 0;
+		long firstRowNanos = 0;
+		long rows = 0;
+		long bytes = 0;
+		
+		Stats(String name) {
+			this.name = name;
+		}
+	}
+	
+	/**
+	 * One execution of a query. If the profiler is null, nothing is recorded. 
+	 */
+	public static class Run {
+		QueryProfiler profiler;
+		SQLQuery query;
+		long startNanos;
+		long firstRowNanos = -1;
+		long rows = 0;
+		long bytes = 0;
+		long elapsedNanos;
+		boolean ended = false;
+		
+		Run(QueryProfiler profiler, SQLQuery query) {
+			this.profiler = profiler;
+			this.query = query;
+			startNanos = System.nanoTime();
+		}
+		
+		/**
+		 * A row of rowBytes bytes (estimate) has been fetched
+		 */
+		public void row(int rowBytes) {
+			if(profiler == null) {
+				return;
+			}
+			if(firstRowNanos < 0) {
+				firstRowNanos = System.nanoTime() - startNanos;
+			}
+			rows++;
+			bytes += rowBytes;
+		}
+		
+		/**
+		 * For updates: rows changed
+		 */
+		public void rows(long count) {
+			if(profiler == null) {
+				return;
+			}
+			rows += count;
+		}
+		
+		public void end() {
+			if(profiler == null || ended) {
+				return;
+			}
+			ended = true;
+			elapsedNanos = System.nanoTime() - startNanos;
+			profiler.record(this);
+		}
+	}
+	
+	int explainSlowest;
+	LinkedHashMap<String, Stats> statsByName = new LinkedHashMap<String, Stats>();
+	List<Run> slowestRuns = new ArrayList<Run>();
+	
+	public QueryProfiler(int explainSlowest) {
+		this.explainSlowest = explainSlowest;
+	}
+	
+	public static synchronized QueryProfiler getDefault() {
+		if(!defaultProfilerInitialized) {
+			defaultProfilerInitialized = true;
+			if(Boolean.getBoolean("pelizzari.profile")) {
+				defaultProfiler = new QueryProfiler(Integer.getInteger("pelizzari.profile.explain", 0));
+			}
+		}
+		return defaultProfiler;
+	}
+
+	/**
+	 * Set (or, if null, disable) the profiler used by all the queries
+	 */
+	public static synchronized void setDefault(QueryProfiler profiler) {
+		defaultProfilerInitialized = true;
+		defaultProfiler = profiler;
+	}
+	
+	/**
+	 * Start timing a query with the default profiler. Call end() on the returned run.
+	 */
+	public static Run start(SQLQuery query) {
+		return new Run(getDefault(), query);
+	}
+	
+	/**
+	 * Rough size of a row on the wire: 4 bytes per int, 8 per double, length of the strings
+	 */
+	public static int estimateRowBytes(int nInts, int nDoubles, String... strings) {
+		int rowBytes = nInts*4 + nDoubles*8;
+		for (String s : strings) {
+			if(s != null) {
+				rowBytes += s.length();
+			}
+		}
+		return rowBytes;
+	}
+	
+	synchronized void record(Run run) {
+		String name = run.query.getName();
+		Stats stats = statsByName.get(name);
+		if(stats == null) {
+			stats = new Stats(name);
+			statsByName.put(name, stats);
+		}
+		stats.calls++;
+		stats.totalNanos += run.elapsedNanos;
+		stats.maxNanos = Math.max(stats.maxNanos, run.elapsedNanos);
+		stats.firstRowNanos += Math.max(run.firstRowNanos, 0);
+		stats.rows += run.rows;
+		stats.bytes += run.bytes;
+		
+		if(explainSlowest > 0) {
+			slowestRuns.add(run);
+			Collections.sort(slowestRuns, new Comparator<Run>() {
+				public int compare(Run r1, Run r2) {
+					return Long.compare(r2.elapsedNanos, r1.elapsedNanos);
+				}
+			});
+			if(slowestRuns.size() > explainSlowest) {
+				slowestRuns.remove(slowestRuns.size() - 1);
+			}
+		}
+	}
+	
+	public synchronized List<Stats> getStats() {
+		return new ArrayList<Stats>(statsByName.values());
+	}
+	
+	static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+	
+	/**
+	 * Print the totals of each type of query and, if enabled, the plans of the slowest queries
+	 */
+	public synchronized void printSummary(PrintStream out) {
+		out.println(">>> Query profile");
+		out.println(String.format(Locale.ROOT, "%-40s %8s %12s %10s %10s %16s %12s %10s", 
+				"query", "calls", "total (ms)", "avg (ms)", "max (ms)", "avg 1st row (ms)", "rows", "est. MB"));
+		for (Stats stats : statsByName.values()) {
+			out.println(String.format(Locale.ROOT, "%-40s %8d %12s %10s %10s %16s %12d %10.1f", 
+					stats.name, stats.calls, millis(stats.totalNanos), millis(stats.totalNanos / stats.calls), 
+					millis(stats.maxNanos), millis(stats.firstRowNanos / stats.calls), 
+					stats.rows, stats.bytes / (1024.0 * 1024.0)));
+		}
+		out.println("(times of cursors include their consumer; MB estimated from the column types)");
+		if(!slowestRuns.isEmpty()) {
+			StatementCache statementCache = new StatementCache(DBConnection.getCon());
+			for (Run run : slowestRuns) {
+				out.println(">>> " + run.query.getName() + ", " + millis(run.elapsedNanos) + " ms: " + run.query);
+				for (String line : explain(statementCache, run.query)) {
+					out.println("    " + line);
+				}
+			}
+			statementCache.close();
+		}
+	}
+	
+	List<String> explain(StatementCache statementCache, SQLQuery query) {
+		List<String> plan = new ArrayList<String>();
+		SQLQuery explainQuery = new SQLQuery("EXPLAIN (ANALYZE, BUFFERS) ");
+		explainQuery.append(query.getSQL(), query.getParams().toArray());
+		boolean prevAutoCommit = true;
+		try {
+			prevAutoCommit = statementCache.getConnection().getAutoCommit();
+			statementCache.getConnection().setAutoCommit(false); // roll back updates executed by ANALYZE
+			PreparedStatement stmt = explainQuery.prepare(statementCache);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while(rs.next()) {
+					plan.add(rs.getString(1));
+				}
+			}
+		} catch (SQLException e) {
+			plan.add("Cannot explain query: " + e.getMessage());
+		} finally {
+			try {
+				statementCache.getConnection().rollback();
+				statementCache.getConnection().setAutoCommit(prevAutoCommit);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		return plan;
+	}
+	
+	/**
+	 * Write the totals as CSV, with the same values as printSummary()
+	 */
+	public synchronized void exportCSV(File file) throws IOException {
+		try (PrintWriter w = new PrintWriter(new FileWriter(file))) {
+			w.println("query,calls,total_ms,max_ms,avg_first_row_ms,rows,estimated_bytes");
+			for (Stats stats : statsByName.values()) {
+				w.println(stats.name + "," + stats.calls + "," + millis(stats.totalNanos) + "," + 
+						millis(stats.maxNanos) + "," + millis(stats.firstRowNanos / stats.calls) + "," + 
+						stats.rows + "," + stats.bytes);
+			}
+		}
+	}
+}
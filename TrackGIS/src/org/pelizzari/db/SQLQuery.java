@@ -0,0 +1,87 @@
+package org.pelizzari.db;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SQL text with positional parameters ("?"), built condition by condition.
+ * Values are bound when the statement is executed, so the same text (and server plan)
+ * is reused whatever the values are.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class SQLQuery {
+
+	StringBuilder sql = new StringBuilder();
+	List<Object> params = new ArrayList<Object>();
+	String name = "query"; // type of query, used by QueryProfiler
+
+	public SQLQuery(String sql, Object... values) {
+		append(sql, values);
+	}
+
+	/**
+	 * Append a piece of SQL and the values of its parameters, in order.
+	 * String arrays are bound as SQL arrays (e.g. "mmsi = ANY(?)").
+	 */
+	public SQLQuery append(String sqlPart, Object... values) {
+		sql.append(sqlPart);
+		for (Object value : values) {
+			params.add(value);
+		}
+		return this;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public SQLQuery setName(String name) {
+		this.name = name;
+		return this;
+	}
+
+	public String getSQL() {
+		return sql.toString();
+	}
+
+	public List<Object> getParams() {
+		return params;
+	}
+
+	/**
+	 * Get the prepared statement from the cache and bind the parameters.
+	 */
+	public PreparedStatement prepare(StatementCache statementCache) throws SQLException {
+		PreparedStatement stmt = statementCache.prepare(getSQL());
+		int i = 1;
+		for (Object value : params) {
+			if(value instanceof String[]) {
+				Array array = statementCache.getConnection().createArrayOf("varchar", (String[]) value);
+				stmt.setArray(i, array);
+			} else {
+				stmt.setObject(i, value);
+			}
+			i++;
+		}
+		return stmt;
+	}
+
+	public String toString() {
+		String s = getSQL();
+		if(!params.isEmpty()) {
+			s = s + " -- params: ";
+			for (Object value : params) {
+				if(value instanceof String[]) {
+					s = s + "[" + ((String[]) value).length + " values] ";
+				} else {
+					s = s + value + " ";
+				}
+			}
+		}
+		return s;
+	}
+}
@@ -0,0 +1,191 @@
+package org.pelizzari.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Streams the positions of a query (columns lat, lon and a timestamp in sec) without 
+ * loading them all in memory. The rows are fetched fetchSize at a time through a 
+ * server-side cursor, which needs autocommit off: the previous autocommit mode is 
+ * restored when the cursor is closed.
+ * Do not run the same query on the same connection before this cursor is closed. 
+ * @author andrea@pelizzari.org
+ *
+ */
+public class ShipPositionCursor implements Iterator<ShipPosition>, AutoCloseable {
+
+	Connection con;
+	boolean prevAutoCommit;
+	ResultSet rs;
+	String tsColumn;
+	boolean withMmsi;
+	QueryProfiler.Run run;
+	
+	boolean hasNextRow = false; // a row has been read by hasNext() and not returned yet
+	float nextLat, nextLon;
+	int nextTs;
+	String nextMmsi = null;
+	float lat, lon; // last position returned by next() or nextRow()
+	int ts; // in sec
+	String mmsi = null; // MMSI of the last position returned by next()
+	boolean closed = false;
+	int readCount = 0;
+	
+	/**
+	 * @param query
+	 * @param statementCache
+	 * @param fetchSize number of rows transferred at a time
+	 * @param tsColumn name of the timestamp column, e.g. "ts" or "norm_ts"
+	 * @param withMmsi if true, the query also selects mmsi, see getMmsi()
+	 * @throws SQLException
+	 */
+	public ShipPositionCursor(SQLQuery query, 
+							  StatementCache statementCache, 
+							  int fetchSize, 
+							  String tsColumn, 
+							  boolean withMmsi) throws SQLException {
+		this.con = statementCache.getConnection();
+		this.tsColumn = tsColumn;
+		this.withMmsi = withMmsi;
+		prevAutoCommit = con.getAutoCommit();
+		if(prevAutoCommit) {
+			con.setAutoCommit(false);
+		}
+		run = QueryProfiler.start(query);
+		try {
+			PreparedStatement stmt = query.prepare(statementCache);
+			stmt.setFetchSize(fetchSize);
+			rs = stmt.executeQuery();
+		} catch (SQLException e) {
+			restoreAutoCommit();
+			throw e;
+		}
+	}
+
+	public boolean hasNext() {
+		if(hasNextRow) {
+			return true;
+		}
+		if(closed) {
+			return false;
+		}
+		try {
+			if(!rs.next()) {
+				close();
+				return false;
+			}
+			nextLat = rs.getFloat("lat");
+			nextLon = rs.getFloat("lon");
+			nextTs = rs.getInt(tsColumn); // in sec
+			hasNextRow = true;
+			if(withMmsi) {
+				nextMmsi = rs.getString("mmsi");
+			}
+			run.row(QueryProfiler.estimateRowBytes(1, 2, nextMmsi));
+		} catch (SQLException e) {
+			System.err.println("Cannot read ship positions");
+			e.printStackTrace();
+			close();
+			System.exit(-1);
+		}
+		return true;
+	}
+
+	public ShipPosition next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		moveToNextRow();
+		return new ShipPosition(new Point(lat, lon), new Timestamp((long)ts*1000));
+	}
+
+	/**
+	 * Move to the next row without creating a position: read it with getLat(), getLon() and getTs().
+	 * Return false at the end.
+	 */
+	public boolean nextRow() {
+		if(!hasNext()) {
+			return false;
+		}
+		moveToNextRow();
+		return true;
+	}
+	
+	void moveToNextRow() {
+		lat = nextLat;
+		lon = nextLon;
+		ts = nextTs;
+		mmsi = nextMmsi;
+		hasNextRow = false;
+		readCount++;
+	}
+
+	public float getLat() {
+		return lat;
+	}
+
+	public float getLon() {
+		return lon;
+	}
+
+	/**
+	 * Timestamp of the current row, in sec
+	 */
+	public int getTs() {
+		return ts;
+	}
+
+	/**
+	 * MMSI of the position last returned by next() or nextRow(), null if the query does not select it
+	 */
+	public String getMmsi() {
+		return mmsi;
+	}
+
+	public int getReadCount() {
+		return readCount;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Close the result set and end the read-only transaction of the cursor. 
+	 */
+	public void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		run.end();
+		try {
+			rs.close();
+		} catch (SQLException e) {
+			System.err.println("Cannot close ship position cursor");
+			e.printStackTrace();
+		}
+		restoreAutoCommit();
+	}
+	
+	void restoreAutoCommit() {
+		if(!prevAutoCommit) { // the caller owns the transaction
+			return;
+		}
+		try {
+			con.commit();
+			con.setAutoCommit(true);
+		} catch (SQLException e) {
+			System.err.println("Cannot restore autocommit");
+			e.printStackTrace();
+		}
+	}
+}
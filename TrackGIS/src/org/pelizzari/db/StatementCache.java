@@ -0,0 +1,51 @@
+package org.pelizzari.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+/**
+ * Prepared statements of a connection, keyed by their SQL text.
+ * Not thread-safe: use one cache per connection.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class StatementCache {
+
+	Connection con;
+	HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+	public StatementCache(Connection con) {
+		this.con = con;
+	}
+
+	public Connection getConnection() {
+		return con;
+	}
+
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if(stmt == null || stmt.isClosed()) {
+			stmt = con.prepareStatement(sql);
+			statements.put(sql, stmt);
+		}
+		return stmt;
+	}
+
+	public int size() {
+		return statements.size();
+	}
+
+	public void close() {
+		for (PreparedStatement stmt : statements.values()) {
+			try {
+				stmt.close();
+			} catch (SQLException e) {
+				System.err.println("Cannot close statement");
+				e.printStackTrace();
+			}
+		}
+		statements.clear();
+	}
+}
@@ -0,0 +1,161 @@
+package org.pelizzari.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.pelizzari.gis.Box;
+import org.pelizzari.gis.GeoKernels;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Writes the normalized timestamps (norm_ts) of all the tracks of a (period, dep, arr, insert_ts) group.
+ * normalizeInDB() computes them in the database with one statement (window functions over the 
+ * tracks of each ship); normalizeWithBatch() computes them in Java and sends JDBC batch updates.
+ * Both give the same values as ShipTrack.computeNormalizedTime(), since the distances are 
+ * computed with the same single precision operations, in the same order.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class TrackNormalizer {
+
+	final static int BATCH_SIZE = 1000;
+	
+	Connection con;
+	
+	public TrackNormalizer(Connection con) {
+		this.con = con;
+	}
+	
+	/*
+	 * Condition selecting the group of tracks
+	 */
+	static void addGroupSQLCondition(SQLQuery query, String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		query.append("period = ? and dep = ? and arr = ? ", yearPeriod, depBox.getName(), arrBox.getName());
+		if(insertTs != -1) {
+			query.append("and insert_ts = ? ", (int) insertTs);
+		}
+	}
+	
+	/**
+	 * Normalize all the tracks of the group with a single UPDATE.
+	 * Positions of a ship are ordered by ts; the sailed distance is the running sum of the
+	 * equirectangular distances (see Point.distanceInMiles) in real arithmetic.
+	 * @return number of updated positions
+	 */
+	public int normalizeInDB(String yearPeriod, Box depBox, Box arrBox, long insertTs,
+							 Timestamp referenceStartTS, int referenceVoyageDurationInSec) throws SQLException {
+		SQLQuery update = new SQLQuery(
+				"WITH rad AS (" +
+				" SELECT ctid AS row_id, mmsi, ts," +
+				" radians(lat::real)::real AS lat_rad, radians(lon::real)::real AS lon_rad" +
+				" FROM tracks WHERE ");
+		addGroupSQLCondition(update, yearPeriod, depBox, arrBox, insertTs);
+		update.append(
+				"), prev AS (" +
+				" SELECT row_id, mmsi, ts, lat_rad, lon_rad," +
+				" lag(lat_rad) OVER w AS prev_lat_rad, lag(lon_rad) OVER w AS prev_lon_rad" +
+				" FROM rad WINDOW w AS (PARTITION BY mmsi ORDER BY ts, row_id)" +
+				"), xy AS (" +
+				" SELECT row_id, mmsi, ts," +
+				" (lon_rad - prev_lon_rad) * cos(((lat_rad + prev_lat_rad) / 2::real)::float8)::real AS x," +
+				" lat_rad - prev_lat_rad AS y" +
+				" FROM prev" +
+				"), dist AS (" +
+				" SELECT row_id, mmsi, ts," +
+				" coalesce(sqrt((x*x + y*y)::float8)::real * " + GeoKernels.EQUIRECTANGULAR_EARTH_RADIUS_IN_MILES + "::real, 0::real) AS d" +
+				" FROM xy" +
+				"), sailed AS (" +
+				" SELECT row_id, mmsi," +
+				" sum(d) OVER (PARTITION BY mmsi ORDER BY ts, row_id ROWS BETWEEN UNBOUNDED PRECEDING AND CURRENT ROW) AS sailed_miles" +
+				" FROM dist" +
+				"), total AS (" +
+				" SELECT row_id, sailed_miles, max(sailed_miles) OVER (PARTITION BY mmsi) AS track_miles" +
+				" FROM sailed" +
+				") " +
+				"UPDATE tracks SET norm_ts = ? + " +
+				" CASE WHEN total.track_miles = 0 THEN 0" + // 0/0 is NaN in Java, cast to 0
+				" ELSE trunc((CAST(? AS real) * (total.sailed_miles / total.track_miles))::float8)::int END " +
+				"FROM total WHERE tracks.ctid = total.row_id",
+				(int) (referenceStartTS.getTsMillisec()/1000),
+				(float) referenceVoyageDurationInSec);
+		update.setName("normalizeInDB");
+		System.out.println(update);
+		
+		StatementCache statementCache = new StatementCache(con);
+		try {
+			QueryProfiler.Run run = QueryProfiler.start(update);
+			PreparedStatement stmt = update.prepare(statementCache);
+			int updateCount = stmt.executeUpdate();
+			run.rows(updateCount);
+			run.end();
+			return updateCount;
+		} finally {
+			statementCache.close();
+			MergedTrackCache.invalidateDefault(yearPeriod, depBox.getName(), arrBox.getName());
+		}
+	}
+	
+	/**
+	 * Normalize the given tracks (read from the group) in Java and update them with JDBC batches,
+	 * in one transaction.
+	 * @return number of updated positions
+	 */
+	public int normalizeWithBatch(List<ShipTrack> tracks, String yearPeriod, Box depBox, Box arrBox, long insertTs,
+								  Timestamp referenceStartTS, int referenceVoyageDurationInSec) throws SQLException {
+		SQLQuery update = new SQLQuery("UPDATE tracks SET norm_ts = ? WHERE mmsi = ? and ts = ? and ");
+		addGroupSQLCondition(update, yearPeriod, depBox, arrBox, insertTs);
+		List<Object> groupParams = update.getParams(); // the first 3 parameters are bound per position
+		
+		boolean prevAutoCommit = con.getAutoCommit();
+		con.setAutoCommit(false);
+		int updateCount = 0;
+		try (PreparedStatement stmt = con.prepareStatement(update.getSQL())) {
+			int batchSize = 0;
+			for (ShipTrack track : tracks) {
+				Timestamp[] normTs = track.computeNormalizedTimes(referenceStartTS, referenceVoyageDurationInSec);
+				int i = 0;
+				for (ShipPosition pos : track.getPosList()) {
+					stmt.setInt(1, (int) (normTs[i].getTsMillisec()/1000));
+					stmt.setString(2, track.getMmsi());
+					stmt.setInt(3, (int) (pos.getTs().getTsMillisec()/1000));
+					int p = 4;
+					for (Object value : groupParams) {
+						stmt.setObject(p++, value);
+					}
+					stmt.addBatch();
+					batchSize++;
+					i++;
+					if(batchSize == BATCH_SIZE) {
+						updateCount += sum(stmt.executeBatch());
+						batchSize = 0;
+					}
+				}
+			}
+			if(batchSize > 0) {
+				updateCount += sum(stmt.executeBatch());
+			}
+			con.commit();
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.setAutoCommit(prevAutoCommit);
+			MergedTrackCache.invalidateDefault(yearPeriod, depBox.getName(), arrBox.getName());
+		}
+		return updateCount;
+	}
+	
+	static int sum(int[] counts) {
+		int total = 0;
+		for (int count : counts) {
+			if(count > 0) { // SUCCESS_NO_INFO is negative
+				total += count;
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,198 @@
+package org.pelizzari.db;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.pelizzari.gis.Box;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipTrack;
+
+/**
+ * Writes many tracks into the tracks table in a single transaction.
+ * Rows are sent with the PostgreSQL COPY protocol when the driver supports it,
+ * otherwise with JDBC batch inserts. Nothing is visible until commit(); 
+ * closing the writer without committing rolls everything back.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class TrackWriter implements AutoCloseable {
+
+	final static int FLUSH_ROWS = 50000; // rows buffered before being sent to the DB
+	
+	final static String COPY_SQL = 
+			"COPY tracks (mmsi, source, period, dep, arr, insert_ts, ts, lat, lon) FROM STDIN";
+	final static String INSERT_SQL = 
+			"INSERT INTO tracks (mmsi, source, period, dep, arr, insert_ts, ts, lat, lon) " +
+			"VALUES (?, null, ?, ?, ?, ?, ?, ?, ?)";
+	
+	Connection con;
+	boolean prevAutoCommit;
+	String yearPeriod;
+	String depName;
+	String arrName;
+	long insertTs;
+	
+	// COPY
+	Object copyManager = null; // org.postgresql.copy.CopyManager, through reflection
+	Method copyInMethod = null;
+	StringBuilder copyBuffer = new StringBuilder();
+	// batch
+	PreparedStatement insertStmt = null;
+	
+	int bufferedRows = 0;
+	int rowCount = 0;
+	boolean committed = false;
+	boolean closed = false;
+	
+	public TrackWriter(Connection con, Box depBox, Box arrBox, String yearPeriod, long insertTs) throws SQLException {
+		this(con, depBox, arrBox, yearPeriod, insertTs, true);
+	}
+
+	/**
+	 * @param useCopy if false, always use batch inserts
+	 */
+	public TrackWriter(Connection con, Box depBox, Box arrBox, String yearPeriod, long insertTs, 
+					   boolean useCopy) throws SQLException {
+		this.con = con;
+		this.depName = depBox.getName();
+		this.arrName = arrBox.getName();
+		this.yearPeriod = yearPeriod;
+		this.insertTs = insertTs;
+		if(useCopy) {
+			initCopy();
+		}
+		if(copyManager == null) {
+			insertStmt = con.prepareStatement(INSERT_SQL);
+		}
+		prevAutoCommit = con.getAutoCommit();
+		con.setAutoCommit(false);
+	}
+	
+	void initCopy() {
+		try {
+			Class<?> pgConClass = Class.forName("org.postgresql.PGConnection");
+			if(!con.isWrapperFor(pgConClass)) {
+				return;
+			}
+			Object pgCon = con.unwrap(pgConClass);
+			copyManager = pgConClass.getMethod("getCopyAPI").invoke(pgCon);
+			copyInMethod = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+		} catch (Exception e) { // not PostgreSQL or old driver: fall back to batch inserts
+			System.err.println("WARN: COPY not available, using batch inserts: "+e);
+			copyManager = null;
+			copyInMethod = null;
+		}
+	}
+	
+	public boolean isUsingCopy() {
+		return copyManager != null;
+	}
+	
+	public int getRowCount() {
+		return rowCount;
+	}
+	
+	/**
+	 * Queue all the positions of the track, sending them to the DB every FLUSH_ROWS rows.
+	 */
+	public void addTrack(ShipTrack track) throws SQLException {
+		String mmsi = track.getMmsi();
+		committed = false;
+		for (ShipPosition pos : track.getPosList()) {
+			long ts = pos.getTs().getTsMillisec()/1000;
+			float lat = pos.getPoint().lat;
+			float lon = pos.getPoint().lon;
+			if(isUsingCopy()) {
+				copyBuffer.append(escapeCopyText(mmsi)).append('\t')
+						  .append("\\N").append('\t') // source
+						  .append(escapeCopyText(yearPeriod)).append('\t')
+						  .append(escapeCopyText(depName)).append('\t')
+						  .append(escapeCopyText(arrName)).append('\t')
+						  .append(insertTs).append('\t')
+						  .append(ts).append('\t')
+						  .append(lat).append('\t')
+						  .append(lon).append('\n');
+			} else {
+				insertStmt.setString(1, mmsi);
+				insertStmt.setString(2, yearPeriod);
+				insertStmt.setString(3, depName);
+				insertStmt.setString(4, arrName);
+				insertStmt.setObject(5, insertTs, Types.INTEGER);
+				insertStmt.setObject(6, ts, Types.INTEGER);
+				insertStmt.setDouble(7, Miner.toSQLDouble(lat));
+				insertStmt.setDouble(8, Miner.toSQLDouble(lon));
+				insertStmt.addBatch();
+			}
+			bufferedRows++;
+			rowCount++;
+			if(bufferedRows >= FLUSH_ROWS) {
+				flush();
+			}
+		}
+	}
+	
+	/**
+	 * Send the queued rows (still inside the transaction).
+	 */
+	public void flush() throws SQLException {
+		if(bufferedRows == 0) {
+			return;
+		}
+		if(isUsingCopy()) {
+			try {
+				copyInMethod.invoke(copyManager, COPY_SQL, new StringReader(copyBuffer.toString()));
+			} catch (InvocationTargetException e) {
+				if(e.getCause() instanceof SQLException) {
+					throw (SQLException) e.getCause();
+				}
+				throw new SQLException("COPY failed", e.getCause());
+			} catch (IllegalAccessException e) {
+				throw new SQLException("COPY failed", e);
+			}
+			copyBuffer.setLength(0);
+		} else {
+			insertStmt.executeBatch();
+		}
+		bufferedRows = 0;
+	}
+	
+	/**
+	 * Send the remaining rows and commit the transaction.
+	 */
+	public void commit() throws SQLException {
+		flush();
+		con.commit();
+		committed = true;
+		MergedTrackCache.invalidateDefault(yearPeriod, depName, arrName);
+	}
+	
+	public void close() throws SQLException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if(!committed) {
+				con.rollback();
+			}
+			if(insertStmt != null) {
+				insertStmt.close();
+			}
+		} finally {
+			con.setAutoCommit(prevAutoCommit);
+		}
+	}
+
+	static String escapeCopyText(String s) {
+		if(s == null) {
+			return "\\N";
+		}
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+}
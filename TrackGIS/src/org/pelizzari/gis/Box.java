@@ -76,8 +76,12 @@ public class Box {
 	}
 
 	public boolean isWithinBox(Point p) {
-		boolean inLat = (p.lat <= nw.lat) && (p.lat >= se.lat);
-		boolean inLon = (p.lon >= nw.lon) && (p.lon <= se.lon);		
+		return isWithinBox(p.lat, p.lon);
+	}
+	
+	public boolean isWithinBox(float lat, float lon) {
+		boolean inLat = (lat <= nw.lat) && (lat >= se.lat);
+		boolean inLon = (lon >= nw.lon) && (lon <= se.lon);		
 		return inLat && inLon;
 	}
 	
@@ -0,0 +1,301 @@
+package org.pelizzari.gis;
+
+/**
+ * Batch distance computations in miles over arrays of coordinates in degrees, with selectable accuracy:
+ * EQUIRECTANGULAR: the float formula of Point.distanceInMiles() (same values), cheapest;
+ * HAVERSINE: great circle on a sphere of radius MEAN_EARTH_RADIUS_IN_MILES, in double;
+ * ELLIPSOIDAL: geodesic on the WGS84 ellipsoid (Vincenty), in double, most accurate and slowest.
+ * Note that EQUIRECTANGULAR keeps the radius of Point.distanceInMiles() (3410 miles), about 1% shorter than the others.
+ * Each kernel is one loop over the arrays, without objects or temporary arrays, so it can be used on the arrays 
+ * of a ColumnarShipPositionList and called in a loop without garbage. With EQUIRECTANGULAR, the kernels given 
+ * two caller-owned buffers (latRad, lonRad, length at least n) convert the degrees in a separate pass: 
+ * pairs and distances to a point are about 1.7 times faster than with the conversion in the distance loop.
+ * TrackKinematics (the lengths of a ShipTrack) and TrackWorkspace compute their leg lengths with consecutiveDistances().
+ * See BenchmarkGeoKernels for the speed and the error of each mode.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class GeoKernels {
+
+	public final static String EQUIRECTANGULAR = "EQUIRECTANGULAR";
+	public final static String HAVERSINE = "HAVERSINE";
+	public final static String ELLIPSOIDAL = "ELLIPSOIDAL";
+
+	public final static float EQUIRECTANGULAR_EARTH_RADIUS_IN_MILES = 3410f; // Point.distanceInMiles() and the track kernels
+	public final static double MEAN_EARTH_RADIUS_IN_MILES = 3440.065;
+	final static double METERS_PER_MILE = 1852;
+	// WGS84
+	final static double WGS84_A = 6378137;
+	final static double WGS84_F = 1 / 298.257223563;
+	final static double WGS84_B = WGS84_A * (1 - WGS84_F);
+	final static int VINCENTY_MAX_ITERATIONS = 100;
+	final static double VINCENTY_PRECISION = 1e-12;
+
+	static void checkMode(String mode) {
+		if(!mode.equals(EQUIRECTANGULAR) && !mode.equals(HAVERSINE) && !mode.equals(ELLIPSOIDAL)) {
+			throw new IllegalArgumentException("Unknown distance mode: " + mode);
+		}
+	}
+
+	/**
+	 * Distance between two points
+	 */
+	public static float distanceInMiles(String mode, float lat1, float lon1, float lat2, float lon2) {
+		if(mode.equals(EQUIRECTANGULAR)) {
+			return equirectangularInMiles((float) Math.toRadians(lat1), (float) Math.toRadians(lon1),
+										  (float) Math.toRadians(lat2), (float) Math.toRadians(lon2));
+		} else if(mode.equals(HAVERSINE)) {
+			return (float) haversineInMiles(lat1, lon1, lat2, lon2);
+		}
+		checkMode(mode);
+		return (float) vincentyInMiles(lat1, lon1, lat2, lon2);
+	}
+
+	/**
+	 * out[i] = distance from position i to position i+1, for i in [0, n-1)
+	 */
+	public static void consecutiveDistances(String mode, float[] lat, float[] lon, int n, float[] out) {
+		consecutiveDistances(mode, lat, lon, n, out, null, null);
+	}
+
+	/**
+	 * As consecutiveDistances(), with the radian buffers of EQUIRECTANGULAR (null to convert in the loop)
+	 */
+	public static void consecutiveDistances(String mode, float[] lat, float[] lon, int n, float[] out,
+											float[] latRad, float[] lonRad) {
+		if(mode.equals(EQUIRECTANGULAR)) {
+			if(latRad != null) {
+				toRadians(lat, n, latRad);
+				toRadians(lon, n, lonRad);
+				for (int i = 0; i < n - 1; i++) {
+					out[i] = equirectangularInMiles(latRad[i], lonRad[i], latRad[i + 1], lonRad[i + 1]);
+				}
+				return;
+			}
+			float prevLatRad = n > 0 ? (float) Math.toRadians(lat[0]) : 0;
+			float prevLonRad = n > 0 ? (float) Math.toRadians(lon[0]) : 0;
+			for (int i = 0; i < n - 1; i++) { // each position converted once, kept for the next distance
+				float nextLatRad = (float) Math.toRadians(lat[i + 1]);
+				float nextLonRad = (float) Math.toRadians(lon[i + 1]);
+				out[i] = equirectangularInMiles(prevLatRad, prevLonRad, nextLatRad, nextLonRad);
+				prevLatRad = nextLatRad;
+				prevLonRad = nextLonRad;
+			}
+		} else if(mode.equals(HAVERSINE)) {
+			for (int i = 0; i < n - 1; i++) {
+				out[i] = (float) haversineInMiles(lat[i], lon[i], lat[i + 1], lon[i + 1]);
+			}
+		} else {
+			checkMode(mode);
+			for (int i = 0; i < n - 1; i++) {
+				out[i] = (float) vincentyInMiles(lat[i], lon[i], lat[i + 1], lon[i + 1]);
+			}
+		}
+	}
+
+	/**
+	 * out[i] = distance from position i to the point (pLat, pLon), for i in [0, n)
+	 */
+	public static void distancesToPoint(String mode, float[] lat, float[] lon, int n, float pLat, float pLon, float[] out) {
+		distancesToPoint(mode, lat, lon, n, pLat, pLon, out, null, null);
+	}
+
+	/**
+	 * As distancesToPoint(), with the radian buffers of EQUIRECTANGULAR (null to convert in the loop)
+	 */
+	public static void distancesToPoint(String mode, float[] lat, float[] lon, int n, float pLat, float pLon, float[] out,
+										float[] latRad, float[] lonRad) {
+		if(mode.equals(EQUIRECTANGULAR)) {
+			float pLatRad = (float) Math.toRadians(pLat);
+			float pLonRad = (float) Math.toRadians(pLon);
+			if(latRad != null) {
+				toRadians(lat, n, latRad);
+				toRadians(lon, n, lonRad);
+				for (int i = 0; i < n; i++) {
+					out[i] = equirectangularInMiles(latRad[i], lonRad[i], pLatRad, pLonRad);
+				}
+				return;
+			}
+			for (int i = 0; i < n; i++) {
+				out[i] = equirectangularInMiles((float) Math.toRadians(lat[i]), (float) Math.toRadians(lon[i]), pLatRad, pLonRad);
+			}
+		} else if(mode.equals(HAVERSINE)) {
+			for (int i = 0; i < n; i++) {
+				out[i] = (float) haversineInMiles(lat[i], lon[i], pLat, pLon);
+			}
+		} else {
+			checkMode(mode);
+			for (int i = 0; i < n; i++) {
+				out[i] = (float) vincentyInMiles(lat[i], lon[i], pLat, pLon);
+			}
+		}
+	}
+
+	/**
+	 * out[i] = distance from position i to the segment (a, b), i.e. to the closest point of the segment, for i in [0, n).
+	 * EQUIRECTANGULAR: on the plane centered in a (cos of the mean latitude of the segment);
+	 * HAVERSINE: cross-track distance to the great circle arc;
+	 * ELLIPSOIDAL: geodesic distance to the closest point of the great circle arc.
+	 */
+	public static void distancesToSegment(String mode, float[] lat, float[] lon, int n,
+										  float aLat, float aLon, float bLat, float bLon, float[] out) {
+		distancesToSegment(mode, lat, lon, n, aLat, aLon, bLat, bLon, out, null, null);
+	}
+
+	/**
+	 * As distancesToSegment(), with the radian buffers of EQUIRECTANGULAR (null to convert in the loop)
+	 */
+	public static void distancesToSegment(String mode, float[] lat, float[] lon, int n,
+										  float aLat, float aLon, float bLat, float bLon, float[] out,
+										  float[] latRad, float[] lonRad) {
+		if(mode.equals(EQUIRECTANGULAR)) {
+			float aLatRad = (float) Math.toRadians(aLat);
+			float aLonRad = (float) Math.toRadians(aLon);
+			float bLatRad = (float) Math.toRadians(bLat);
+			float cosLat = (float) Math.cos((aLatRad + bLatRad)/2);
+			float bx = ((float) Math.toRadians(bLon) - aLonRad) * cosLat;
+			float by = bLatRad - aLatRad;
+			float squaredLength = bx*bx + by*by;
+			if(latRad != null) {
+				toRadians(lat, n, latRad);
+				toRadians(lon, n, lonRad);
+				for (int i = 0; i < n; i++) {
+					out[i] = equirectangularToSegmentInMiles((lonRad[i] - aLonRad) * cosLat, latRad[i] - aLatRad,
+							bx, by, squaredLength);
+				}
+				return;
+			}
+			for (int i = 0; i < n; i++) {
+				out[i] = equirectangularToSegmentInMiles(((float) Math.toRadians(lon[i]) - aLonRad) * cosLat,
+						(float) Math.toRadians(lat[i]) - aLatRad, bx, by, squaredLength);
+			}
+			return;
+		}
+		checkMode(mode);
+		boolean ellipsoidal = mode.equals(ELLIPSOIDAL);
+		double aLatRad = Math.toRadians(aLat), aLonRad = Math.toRadians(aLon);
+		double abAngle = haversineAngle(aLat, aLon, bLat, bLon);
+		double abBearing = bearing(aLat, aLon, bLat, bLon);
+		for (int i = 0; i < n; i++) {
+			double apAngle = haversineAngle(aLat, aLon, lat[i], lon[i]);
+			double bearingDifference = bearing(aLat, aLon, lat[i], lon[i]) - abBearing;
+			double crossTrackAngle = Math.asin(Math.sin(apAngle) * Math.sin(bearingDifference));
+			double alongTrackAngle = Math.acos(clamp(Math.cos(apAngle) / Math.cos(crossTrackAngle))) *
+					Math.signum(Math.cos(bearingDifference));
+			if(alongTrackAngle <= 0 || abAngle == 0) { // closest to a
+				out[i] = ellipsoidal ? (float) vincentyInMiles(lat[i], lon[i], aLat, aLon) : (float) (apAngle * MEAN_EARTH_RADIUS_IN_MILES);
+			} else if(alongTrackAngle >= abAngle) { // closest to b
+				out[i] = ellipsoidal ? (float) vincentyInMiles(lat[i], lon[i], bLat, bLon) :
+									   (float) (haversineAngle(lat[i], lon[i], bLat, bLon) * MEAN_EARTH_RADIUS_IN_MILES);
+			} else if(!ellipsoidal) {
+				out[i] = (float) (Math.abs(crossTrackAngle) * MEAN_EARTH_RADIUS_IN_MILES);
+			} else { // closest point of the arc, at alongTrackAngle from a
+				double cLatRad = Math.asin(Math.sin(aLatRad) * Math.cos(alongTrackAngle) +
+						Math.cos(aLatRad) * Math.sin(alongTrackAngle) * Math.cos(abBearing));
+				double cLonRad = aLonRad + Math.atan2(Math.sin(abBearing) * Math.sin(alongTrackAngle) * Math.cos(aLatRad),
+						Math.cos(alongTrackAngle) - Math.sin(aLatRad) * Math.sin(cLatRad));
+				out[i] = (float) vincentyInMiles(lat[i], lon[i], Math.toDegrees(cLatRad), Math.toDegrees(cLonRad));
+			}
+		}
+	}
+
+	/**
+	 * Converted in a separate pass: the distance loops are faster on radians
+	 */
+	static void toRadians(float[] degrees, int n, float[] radians) {
+		for (int i = 0; i < n; i++) {
+			radians[i] = (float) Math.toRadians(degrees[i]);
+		}
+	}
+
+	/**
+	 * Distance in miles on the local equirectangular projection (cos of the mean latitude), on radians:
+	 * the one formula of Point.distanceInMiles(), the track lengths and the kernels
+	 */
+	public static float equirectangularInMiles(float latRad1, float lonRad1, float latRad2, float lonRad2) {
+		float y = latRad2 - latRad1;
+		float x = (lonRad2 - lonRad1) * (float) Math.cos((latRad2 + latRad1)/2);
+		return (float) Math.sqrt(x*x + y*y) * EQUIRECTANGULAR_EARTH_RADIUS_IN_MILES;
+	}
+
+	/**
+	 * Distance of p to the segment (0, b), on the plane centered in a (coordinates in radians, x scaled by cos(lat))
+	 */
+	public static float equirectangularToSegmentInMiles(float px, float py, float bx, float by, float squaredLength) {
+		float t = squaredLength == 0 ? 0 : (px*bx + py*by) / squaredLength;
+		t = t < 0 ? 0 : (t > 1 ? 1 : t);
+		float dx = px - t*bx;
+		float dy = py - t*by;
+		return (float) Math.sqrt(dx*dx + dy*dy) * EQUIRECTANGULAR_EARTH_RADIUS_IN_MILES;
+	}
+
+	static double clamp(double cos) {
+		return cos > 1 ? 1 : (cos < -1 ? -1 : cos);
+	}
+
+	/**
+	 * Central angle in radians between two points
+	 */
+	static double haversineAngle(double lat1, double lon1, double lat2, double lon2) {
+		double latRad1 = Math.toRadians(lat1), latRad2 = Math.toRadians(lat2);
+		double sinDLat = Math.sin((latRad2 - latRad1) / 2);
+		double sinDLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+		double h = sinDLat*sinDLat + Math.cos(latRad1) * Math.cos(latRad2) * sinDLon*sinDLon;
+		return 2 * Math.asin(Math.sqrt(Math.min(1, h)));
+	}
+
+	static double haversineInMiles(double lat1, double lon1, double lat2, double lon2) {
+		return haversineAngle(lat1, lon1, lat2, lon2) * MEAN_EARTH_RADIUS_IN_MILES;
+	}
+
+	/**
+	 * Initial bearing in radians from point 1 to point 2 (on the sphere)
+	 */
+	static double bearing(double lat1, double lon1, double lat2, double lon2) {
+		double latRad1 = Math.toRadians(lat1), latRad2 = Math.toRadians(lat2);
+		double dLon = Math.toRadians(lon2 - lon1);
+		return Math.atan2(Math.sin(dLon) * Math.cos(latRad2),
+				Math.cos(latRad1) * Math.sin(latRad2) - Math.sin(latRad1) * Math.cos(latRad2) * Math.cos(dLon));
+	}
+
+	/**
+	 * Vincenty inverse formula on WGS84; haversine if it does not converge (nearly antipodal points)
+	 */
+	static double vincentyInMiles(double lat1, double lon1, double lat2, double lon2) {
+		double l = Math.toRadians(lon2 - lon1);
+		double u1 = Math.atan((1 - WGS84_F) * Math.tan(Math.toRadians(lat1)));
+		double u2 = Math.atan((1 - WGS84_F) * Math.tan(Math.toRadians(lat2)));
+		double sinU1 = Math.sin(u1), cosU1 = Math.cos(u1);
+		double sinU2 = Math.sin(u2), cosU2 = Math.cos(u2);
+		double lambda = l, prevLambda;
+		double sinSigma, cosSigma, sigma, cosSqAlpha, cos2SigmaM;
+		int iterations = 0;
+		do {
+			double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+			double t1 = cosU2 * sinLambda;
+			double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+			sinSigma = Math.sqrt(t1*t1 + t2*t2);
+			if(sinSigma == 0) {
+				return 0; // same point
+			}
+			cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+			sigma = Math.atan2(sinSigma, cosSigma);
+			double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+			cosSqAlpha = 1 - sinAlpha*sinAlpha;
+			cos2SigmaM = cosSqAlpha == 0 ? 0 : cosSigma - 2 * sinU1 * sinU2 / cosSqAlpha; // 0 on the equator
+			double c = WGS84_F / 16 * cosSqAlpha * (4 + WGS84_F * (4 - 3 * cosSqAlpha));
+			prevLambda = lambda;
+			lambda = l + (1 - c) * WGS84_F * sinAlpha *
+					(sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM*cos2SigmaM)));
+		} while(Math.abs(lambda - prevLambda) > VINCENTY_PRECISION && ++iterations < VINCENTY_MAX_ITERATIONS);
+		if(iterations >= VINCENTY_MAX_ITERATIONS) {
+			return haversineInMiles(lat1, lon1, lat2, lon2);
+		}
+		double uSq = cosSqAlpha * (WGS84_A*WGS84_A - WGS84_B*WGS84_B) / (WGS84_B*WGS84_B);
+		double a = 1 + uSq / 16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+		double b = uSq / 1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+		double deltaSigma = b * sinSigma * (cos2SigmaM + b / 4 * (cosSigma * (-1 + 2 * cos2SigmaM*cos2SigmaM) -
+				b / 6 * cos2SigmaM * (-3 + 4 * sinSigma*sinSigma) * (-3 + 4 * cos2SigmaM*cos2SigmaM)));
+		return WGS84_B * a * (sigma - deltaSigma) / METERS_PER_MILE;
+	}
+}
@@ -7,15 +7,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.imageio.ImageIO;
 
-import org.pelizzari.ship.ShipPosition;
 import org.pelizzari.ship.ShipPositionList;
 import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.time.Timestamp;
 
 import eu.jacquet80.minigeo.MapWindow;
 import eu.jacquet80.minigeo.POI;
@@ -75,25 +74,23 @@ public class Map extends MapWindow {
 								  String lastPositionLabel,
 								  boolean showSegments) {
 		final int N_LABELS = 4;
-		int nPos = posList.getPosList().size();
+		int nPos = posList.size();
 		int skipNPos = nPos <= N_LABELS ? 1 : nPos / N_LABELS;
 		Point cur, prec = null;
-		int i = 0;
 		try {
-			Iterator<ShipPosition> posItr = posList.getPosList().iterator();
-			while (posItr.hasNext()) {
-				ShipPosition pos = posItr.next();
-				double lat = pos.getPoint().lat;
-				double lon = pos.getPoint().lon;
+			// primitive accessors: no position objects (nor copies of a columnar list)
+			for (int i = 0; i < nPos; i++) {
+				double lat = posList.getLat(i);
+				double lon = posList.getLon(i);
 				// System.out.println("ts " + ts + " lat " + lat + " lon "+
 				// lon);
 				cur = new Point(lat, lon);
 				//String label = ""+pos.getIndex();				
 				String label = "";
 				if(i % skipNPos == 0) {
-					label = ""+pos.getTs(); //.getTsMillisec();
+					label = ""+new Timestamp(posList.getTsMillisec(i));
 				}
-				if(lastPositionLabel != null && !posItr.hasNext()) {
+				if(lastPositionLabel != null && i == nPos - 1) {
 					label = lastPositionLabel;
 				}
 				POI posPoi = new POI(cur, label);
@@ -102,7 +99,6 @@ public class Map extends MapWindow {
 					addSegment(new Segment(prec, cur, color));
 				}
 				prec = cur;
-				i++;
 			}
 			// System.out.println("Read " + readCount + " lines; ignored " +
 			// errCount);
@@ -12,19 +12,39 @@ public class Point {
 	
 	public float distanceInMiles(Point p) {
 		// see http://www.movable-type.co.uk/scripts/latlong.html
-		float y = p.latRad - latRad;
-		float x = (p.lonRad - lonRad) * (float) Math.cos((p.latRad + latRad)/2);
-		return (float) Math.sqrt(x*x + y*y) * 3410f; // * Earth radius in miles
+		return GeoKernels.equirectangularInMiles(latRad, lonRad, p.latRad, p.lonRad);
+	}
+
+	/**
+	 * Same as new Point(lat1, lon1).distanceInMiles(new Point(lat2, lon2)), without the objects
+	 */
+	public static float distanceInMiles(float lat1, float lon1, float lat2, float lon2) {
+		return GeoKernels.equirectangularInMiles((float) Math.toRadians(lat1), (float) Math.toRadians(lon1),
+												 (float) Math.toRadians(lat2), (float) Math.toRadians(lon2));
 	}
 
 	public float squaredDistance(Point p) {
+		return squaredDistance(lat, lon, p);
+	}
+
+	public float distance(Point p) {
+		return (float) Math.sqrt(squaredDistance(p));
+	}
+
+	/**
+	 * Same as new Point(lat, lon).squaredDistance(p), without the object
+	 */
+	public static float squaredDistance(float lat, float lon, Point p) {
 		float y = p.lat - lat;
 		float x = p.lon - lon;
 		return x*x + y*y;
 	}
 
-	public float distance(Point p) {
-		return (float) Math.sqrt(squaredDistance(p));
+	/**
+	 * Same as new Point(lat, lon).distance(p), without the object
+	 */
+	public static float distance(float lat, float lon, Point p) {
+		return (float) Math.sqrt(squaredDistance(lat, lon, p));
 	}
 
 	/**
@@ -34,10 +54,24 @@ public class Point {
 	 * @return
 	 */
 	public float approxSquaredDistanceToSegment(Point p1, Point p2) {
-		float x1 = p1.lon;
-		float x2 = p2.lon;
-		float y1 = p1.lat;
-		float y2 = p2.lat;
+		return approxSquaredDistanceToSegment(lat, lon, p1, p2);
+	}
+
+	/**
+	 * Same as new Point(lat, lon).approxSquaredDistanceToSegment(p1, p2), without the object
+	 */
+	public static float approxSquaredDistanceToSegment(float lat, float lon, Point p1, Point p2) {
+		return approxSquaredDistanceToSegment(lat, lon, p1.lat, p1.lon, p2.lat, p2.lon);
+	}
+
+	/**
+	 * Same as approxSquaredDistanceToSegment(lat, lon, p1, p2), segment given as (lat1, lon1) - (lat2, lon2)
+	 */
+	public static float approxSquaredDistanceToSegment(float lat, float lon, float lat1, float lon1, float lat2, float lon2) {
+		float x1 = lon1;
+		float x2 = lon2;
+		float y1 = lat1;
+		float y2 = lat2;
 		float dx = (x2-x1);
 		float dy = (y2-y1);		
 		float num = dy*lon-dx*lat+x2*y1-y2*x1;
@@ -75,6 +109,29 @@ public class Point {
 	}
 
 
+	/**
+	 * Same as new Point(lat, lon).computeIntersectionOfPerpendicular(p1, p2).isOnSegment(p1, p2),
+	 * i.e. the point is on the stripe perpendicular to the segment, without creating the 2 points
+	 */
+	public static boolean isOnPerpendicularStripe(float lat, float lon, Point p1, Point p2) {
+		float x1 = p1.lon;
+		float x2 = p2.lon;
+		float y1 = p1.lat;
+		float y2 = p2.lat;
+		float dx = (x2-x1);
+		float dy = (y2-y1);		
+		float k = ((y2-y1) * (lon-x1) - (x2-x1) * (lat-y1)) / (dy*dy + dx*dx);
+		float x4 = lon - k * dy;
+		float y4 = lat + k * dx;
+		float dotProduct = (x4 - p1.lon) * (p2.lon - p1.lon) + (y4 - p1.lat) * (p2.lat - p1.lat);
+		if(dotProduct < 0) { return false; }
+
+		float squaredSegmentLength = p1.squaredDistance(p2);
+		if(dotProduct > squaredSegmentLength) { return false; }
+		
+		return true;
+	}
+
 	/**
 	 * Return if the point is located ON the segment or not.
 	 * http://stackoverflow.com/questions/328107/how-can-you-determine-a-point-is-between-two-other-points-on-a-line-segment
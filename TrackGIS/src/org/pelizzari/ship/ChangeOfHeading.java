@@ -10,7 +10,18 @@ public class ChangeOfHeading {
 	float changeOfHeading; // in degrees +/-180
 
 	public ChangeOfHeading(Heading head1, Heading head2) {
-		float coh = head2.heading - head1.heading;
+		changeOfHeading = computeChangeOfHeading(head1.heading, head2.heading);
+	}
+
+	ChangeOfHeading(float changeOfHeading) {
+		this.changeOfHeading = changeOfHeading;
+	}
+
+	/**
+	 * Change from heading1 to heading2, in degrees +/-180
+	 */
+	static float computeChangeOfHeading(float heading1, float heading2) {
+		float coh = heading2 - heading1;
 		if(coh > 180) {
 			coh = coh - 360f;
 		} else {
@@ -18,7 +29,7 @@ public class ChangeOfHeading {
 				coh = coh + 360f;
 			}
 		}
-		changeOfHeading = coh;		
+		return coh;
 	}
 
 	public String toString() {
@@ -1,9 +1,73 @@
 package org.pelizzari.ship;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.AbstractList;
+import java.util.Arrays;
 
-public class ChangeOfHeadingSequence extends ArrayList<ChangeOfHeading> {
+/**
+ * Sequence of changes of heading, stored as floats: the ChangeOfHeading objects are created only by get().
+ * ShipTrack.computeChangeOfHeadingSequence() returns a view over the changes of its TrackKinematics.
+ */
+public class ChangeOfHeadingSequence extends AbstractList<ChangeOfHeading> {
+	
+	float[] changesOfHeading;
+	int size;
+	
+	public ChangeOfHeadingSequence() {
+		changesOfHeading = new float[10];
+	}
+	
+	ChangeOfHeadingSequence(float[] changesOfHeading) {
+		this.changesOfHeading = changesOfHeading;
+		this.size = changesOfHeading.length;
+	}
+	
+	public ChangeOfHeading get(int index) {
+		return new ChangeOfHeading(getChangeOfHeading(index));
+	}
+	
+	/**
+	 * Change of heading in degrees, without creating the object
+	 */
+	public float getChangeOfHeading(int index) {
+		if(index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return changesOfHeading[index];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean add(ChangeOfHeading coh) {
+		if(size == changesOfHeading.length) {
+			changesOfHeading = Arrays.copyOf(changesOfHeading, Math.max(size * 2, 10));
+		}
+		changesOfHeading[size++] = coh.changeOfHeading;
+		modCount++;
+		return true;
+	}
+	
+	/**
+	 * Sum of the absolute changes of heading, in sequence order
+	 */
+	public float sumAbsChangeOfHeading() {
+		float sum = 0;
+		for (int i = 0; i < size; i++) {
+			sum += Math.abs(changesOfHeading[i]);
+		}
+		return sum;
+	}
+	
+	public int countOverLimit(float thresholdAngle) {
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if(Math.abs(changesOfHeading[i]) > thresholdAngle) {
+				count++;
+			}
+		}
+		return count;
+	}
 	
 	public String toString() {
 		String s = "Changes of Heading: ";
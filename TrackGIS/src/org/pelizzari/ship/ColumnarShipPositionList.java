@@ -0,0 +1,172 @@
+package org.pelizzari.ship;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.pelizzari.gis.Point;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Ship position list stored in 3 arrays (lat, lon, ts) instead of one ShipPosition
+ * (with its Point and Timestamp) per position: 16 bytes per position and sequential scans.
+ * Use the primitive accessors (size(), getLat(), getLon(), getTsMillisec(), cursor()) in loops:
+ * getPosition() and the read-only getPosList() create new objects at each call.
+ * The arrays cannot be changed from outside, so the time order is always known.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class ColumnarShipPositionList extends ShipPositionList {
+
+	final static int DEFAULT_CAPACITY = 1024;
+
+	float[] lat;
+	float[] lon;
+	long[] ts; // in millisec
+	int size = 0;
+
+	public ColumnarShipPositionList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ColumnarShipPositionList(int capacity) {
+		posList = null; // not used
+		lat = new float[capacity];
+		lon = new float[capacity];
+		ts = new long[capacity];
+	}
+
+	/**
+	 * Copy the positions of a list
+	 */
+	public ColumnarShipPositionList(ShipPositionList positions) {
+		this(Math.max(positions.size(), 1));
+		for (int i = 0; i < positions.size(); i++) {
+			addPosition(positions.getTsMillisec(i), positions.getLat(i), positions.getLon(i));
+		}
+	}
+
+	public void addPosition(long tsMillisec, float posLat, float posLon) {
+		if(timeOrder == ORDER_ASCENDING && size > 0 && tsMillisec < ts[size - 1]) {
+			timeOrder = ORDER_NONE;
+		}
+		spatialIndex = null;
+		if(size == ts.length) {
+			int capacity = Math.max(size * 2, DEFAULT_CAPACITY);
+			lat = Arrays.copyOf(lat, capacity);
+			lon = Arrays.copyOf(lon, capacity);
+			ts = Arrays.copyOf(ts, capacity);
+		}
+		lat[size] = posLat;
+		lon[size] = posLon;
+		ts[size] = tsMillisec;
+		size++;
+	}
+
+	public void addPosition(ShipPosition pos) {
+		addPosition(pos.ts.getTsMillisec(), pos.point.lat, pos.point.lon);
+	}
+
+	/**
+	 * Sort the positions by timestamp; positions with the same timestamp keep their order
+	 */
+	public void sortByTime() {
+		if(isTimeOrdered()) {
+			return;
+		}
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() { // stable
+			public int compare(Integer i1, Integer i2) {
+				return Long.compare(ts[i1], ts[i2]);
+			}
+		});
+		reorder(order);
+		timeOrder = ORDER_ASCENDING;
+		spatialIndex = null;
+	}
+
+	/**
+	 * Move the position order[i] to i, for each column
+	 */
+	void reorder(Integer[] order) {
+		float[] sortedLat = new float[size];
+		float[] sortedLon = new float[size];
+		long[] sortedTs = new long[size];
+		for (int i = 0; i < size; i++) {
+			sortedLat[i] = lat[order[i]];
+			sortedLon[i] = lon[order[i]];
+			sortedTs[i] = ts[order[i]];
+		}
+		lat = sortedLat;
+		lon = sortedLon;
+		ts = sortedTs;
+	}
+
+	/**
+	 * Release the unused capacity
+	 */
+	public void trimToSize() {
+		lat = Arrays.copyOf(lat, size);
+		lon = Arrays.copyOf(lon, size);
+		ts = Arrays.copyOf(ts, size);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public float getLat(int index) {
+		checkIndex(index);
+		return lat[index];
+	}
+
+	public float getLon(int index) {
+		checkIndex(index);
+		return lon[index];
+	}
+
+	public long getTsMillisec(int index) {
+		checkIndex(index);
+		return ts[index];
+	}
+
+	/**
+	 * A new position object, a copy: changing it does not change the list (use setPosList())
+	 */
+	public ShipPosition getPosition(int index) {
+		checkIndex(index);
+		return new ShipPosition(new Point(lat[index], lon[index]), new Timestamp(ts[index]));
+	}
+
+	/**
+	 * Read-only view of the positions, each get() creates a new position object (see getPosition())
+	 */
+	public List<ShipPosition> getPosList() {
+		return getPosListInRange(0, size);
+	}
+
+	public void setPosList(List<ShipPosition> positions) {
+		size = 0;
+		timeOrder = ORDER_ASCENDING;
+		spatialIndex = null;
+		for (ShipPosition pos : positions) {
+			addPosition(pos);
+		}
+	}
+
+	/**
+	 * Approximate heap size of the arrays in bytes
+	 */
+	public long getHeapBytes() {
+		return (long) ts.length * 8 + (long) lat.length * 4 + (long) lon.length * 4;
+	}
+
+	void checkIndex(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package org.pelizzari.ship;
+
+/**
+ * Raster of the distance (in degrees, as Point.distance()) from each cell to the nearest training position
+ * or training path, computed once with an exact euclidean distance transform (Felzenszwalb-Huttenlocher)
+ * and held in a float array. A track is scored by sampling the raster along its segments:
+ * the cost does not depend on the number of training positions.
+ * The sources are snapped to the cell centers and the distances interpolated, so they are exact within a cell diagonal.
+ * Usage: create, addPositions() and/or addPath(), compute(), then getDistance() or
+ * getAvgSquaredDistanceAlongSegment(). Read-only (thread safe) after compute().
+ * @author andrea@pelizzari.org
+ *
+ */
+public class DistanceFieldRaster {
+
+	public final static float DEFAULT_CELL_SIZE_IN_DEGREES = 0.05f;
+	final static int MARGIN_IN_CELLS = 10; // around the box of the positions
+	final static int MAX_CELLS = 50000000;
+	final static float NO_SOURCE = Float.POSITIVE_INFINITY;
+
+	float minLat, minLon;
+	float cellSize;
+	int rows, cols; // rows along lat, columns along lon
+	float[] grid; // row major; before compute(): 0 for the source cells, NO_SOURCE otherwise
+	boolean computed = false;
+	int sourceCount = 0;
+	long computeMillis = 0;
+
+	public DistanceFieldRaster(float minLat, float minLon, float maxLat, float maxLon, float cellSizeInDegrees) {
+		if(cellSizeInDegrees <= 0 || maxLat < minLat || maxLon < minLon) {
+			throw new IllegalArgumentException("Wrong raster: " + minLat + "," + minLon + " - " + maxLat + "," + maxLon +
+					", cell size " + cellSizeInDegrees);
+		}
+		this.minLat = minLat;
+		this.minLon = minLon;
+		this.cellSize = cellSizeInDegrees;
+		rows = (int) Math.ceil((maxLat - minLat) / cellSize) + 1;
+		cols = (int) Math.ceil((maxLon - minLon) / cellSize) + 1;
+		if((long) rows * cols > MAX_CELLS) {
+			throw new IllegalArgumentException("Too many cells: " + rows + " x " + cols + ", increase the cell size");
+		}
+		grid = new float[rows * cols];
+		java.util.Arrays.fill(grid, NO_SOURCE);
+	}
+
+	/**
+	 * Raster covering the positions with a margin, the positions as sources
+	 */
+	public static DistanceFieldRaster ofPositions(ShipPositionList positions, float cellSizeInDegrees) {
+		if(positions.size() == 0) {
+			throw new IllegalArgumentException("No positions for the distance raster");
+		}
+		float minLat = Float.MAX_VALUE, minLon = Float.MAX_VALUE, maxLat = -Float.MAX_VALUE, maxLon = -Float.MAX_VALUE;
+		for (int i = 0; i < positions.size(); i++) {
+			minLat = Math.min(minLat, positions.getLat(i));
+			maxLat = Math.max(maxLat, positions.getLat(i));
+			minLon = Math.min(minLon, positions.getLon(i));
+			maxLon = Math.max(maxLon, positions.getLon(i));
+		}
+		float margin = MARGIN_IN_CELLS * cellSizeInDegrees;
+		DistanceFieldRaster raster = new DistanceFieldRaster(minLat - margin, minLon - margin,
+				maxLat + margin, maxLon + margin, cellSizeInDegrees);
+		raster.addPositions(positions);
+		return raster;
+	}
+
+	public void addPosition(float lat, float lon) {
+		int row = Math.round((lat - minLat) / cellSize);
+		int col = Math.round((lon - minLon) / cellSize);
+		if(row < 0 || row >= rows || col < 0 || col >= cols) {
+			return; // out of the raster
+		}
+		if(computed) {
+			throw new IllegalStateException("Distance raster already computed");
+		}
+		if(grid[row * cols + col] != 0) {
+			grid[row * cols + col] = 0;
+			sourceCount++;
+		}
+	}
+
+	public void addPositions(ShipPositionList positions) {
+		for (int i = 0; i < positions.size(); i++) {
+			addPosition(positions.getLat(i), positions.getLon(i));
+		}
+	}
+
+	/**
+	 * The segments between consecutive positions of a track as sources (sampled every half cell)
+	 */
+	public void addPath(ShipPositionList track) {
+		for (int i = 0; i < track.size(); i++) {
+			float lat2 = track.getLat(i), lon2 = track.getLon(i);
+			if(i == 0) {
+				addPosition(lat2, lon2);
+				continue;
+			}
+			float lat1 = track.getLat(i - 1), lon1 = track.getLon(i - 1);
+			float length = (float) Math.sqrt((lat2 - lat1) * (lat2 - lat1) + (lon2 - lon1) * (lon2 - lon1));
+			int steps = (int) Math.ceil(length / (cellSize / 2));
+			for (int k = 1; k <= steps; k++) {
+				float r = (float) k / steps;
+				addPosition(lat1 + (lat2 - lat1) * r, lon1 + (lon2 - lon1) * r);
+			}
+		}
+	}
+
+	/**
+	 * Distance transform: squared distances in cells along the columns, then along the rows
+	 */
+	public void compute() {
+		if(sourceCount == 0) {
+			throw new IllegalStateException("No source position in the distance raster");
+		}
+		long start = System.currentTimeMillis();
+		int n = Math.max(rows, cols);
+		double[] f = new double[n];
+		double[] d = new double[n];
+		int[] v = new int[n];
+		double[] z = new double[n + 1];
+		for (int col = 0; col < cols; col++) {
+			for (int row = 0; row < rows; row++) {
+				f[row] = grid[row * cols + col] == 0 ? 0 : 1e20;
+			}
+			distanceTransform(f, rows, d, v, z);
+			for (int row = 0; row < rows; row++) {
+				grid[row * cols + col] = (float) Math.min(d[row], 1e20);
+			}
+		}
+		for (int row = 0; row < rows; row++) {
+			int offset = row * cols;
+			for (int col = 0; col < cols; col++) {
+				f[col] = grid[offset + col];
+			}
+			distanceTransform(f, cols, d, v, z);
+			for (int col = 0; col < cols; col++) {
+				grid[offset + col] = (float) Math.sqrt(d[col]) * cellSize; // in degrees
+			}
+		}
+		computed = true;
+		computeMillis = System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * 1D squared distance transform of f (lower envelope of the parabolas rooted at each index)
+	 */
+	static void distanceTransform(double[] f, int n, double[] d, int[] v, double[] z) {
+		int k = 0;
+		v[0] = 0;
+		z[0] = Double.NEGATIVE_INFINITY;
+		z[1] = Double.POSITIVE_INFINITY;
+		for (int q = 1; q < n; q++) {
+			double s = ((f[q] + (double) q*q) - (f[v[k]] + (double) v[k]*v[k])) / (2.0*q - 2.0*v[k]);
+			while(s <= z[k]) {
+				k--;
+				s = ((f[q] + (double) q*q) - (f[v[k]] + (double) v[k]*v[k])) / (2.0*q - 2.0*v[k]);
+			}
+			k++;
+			v[k] = q;
+			z[k] = s;
+			z[k + 1] = Double.POSITIVE_INFINITY;
+		}
+		k = 0;
+		for (int q = 0; q < n; q++) {
+			while(z[k + 1] < q) {
+				k++;
+			}
+			d[q] = (double) (q - v[k]) * (q - v[k]) + f[v[k]];
+		}
+	}
+
+	/**
+	 * Distance in degrees from the point to the nearest source, interpolated between the 4 cells around it.
+	 * Out of the raster: distance at the nearest border plus the distance to the border.
+	 */
+	public float getDistance(float lat, float lon) {
+		if(!computed) {
+			throw new IllegalStateException("Distance raster not computed");
+		}
+		float y = (lat - minLat) / cellSize;
+		float x = (lon - minLon) / cellSize;
+		float outside = 0;
+		if(y < 0 || y > rows - 1 || x < 0 || x > cols - 1) {
+			float clampedY = Math.max(0, Math.min(y, rows - 1));
+			float clampedX = Math.max(0, Math.min(x, cols - 1));
+			outside = (float) Math.sqrt((y - clampedY) * (y - clampedY) + (x - clampedX) * (x - clampedX)) * cellSize;
+			y = clampedY;
+			x = clampedX;
+		}
+		int row = Math.min((int) y, rows - 2 < 0 ? 0 : rows - 2);
+		int col = Math.min((int) x, cols - 2 < 0 ? 0 : cols - 2);
+		float ry = rows == 1 ? 0 : y - row;
+		float rx = cols == 1 ? 0 : x - col;
+		int row2 = Math.min(row + 1, rows - 1);
+		int col2 = Math.min(col + 1, cols - 1);
+		float d1 = grid[row * cols + col] * (1 - rx) + grid[row * cols + col2] * rx;
+		float d2 = grid[row2 * cols + col] * (1 - rx) + grid[row2 * cols + col2] * rx;
+		return d1 * (1 - ry) + d2 * ry + outside;
+	}
+
+	/**
+	 * Average of the squared distances (degrees^2) sampled along the segment, at least every cell
+	 */
+	public float getAvgSquaredDistanceAlongSegment(float lat1, float lon1, float lat2, float lon2) {
+		float length = (float) Math.sqrt((lat2 - lat1) * (lat2 - lat1) + (lon2 - lon1) * (lon2 - lon1));
+		int steps = Math.max((int) Math.ceil(length / cellSize), 1);
+		float sum = 0;
+		for (int k = 0; k <= steps; k++) {
+			float r = (float) k / steps;
+			float distance = getDistance(lat1 + (lat2 - lat1) * r, lon1 + (lon2 - lon1) * r);
+			sum += distance * distance;
+		}
+		return sum / (steps + 1);
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	public int getSourceCount() {
+		return sourceCount;
+	}
+
+	public long getComputeMillis() {
+		return computeMillis;
+	}
+
+	public String toString() {
+		return "Distance raster: " + rows + " x " + cols + " cells of " + cellSize + " deg from " + minLat + "," + minLon +
+				", " + sourceCount + " source cells, computed in " + computeMillis + " ms";
+	}
+}
@@ -14,26 +14,43 @@ public class Heading {
 
 	float heading; // in degrees (0-359)
 
+	private Heading() {
+	}
+
 	public Heading(float heading) throws Exception {
 		setHeading(heading);
 	}
 
 	public Heading(Displacement displ) {
-		float lonDiff = displ.deltaLon;
-		float latDiff = displ.deltaLat;
+		this.heading = computeHeading(displ.deltaLat, displ.deltaLon);
+	}
+
+	/**
+	 * Heading without the range check (the value comes from computeHeading())
+	 */
+	static Heading valueOf(float heading) {
+		Heading head = new Heading();
+		head.heading = heading;
+		return head;
+	}
+
+	/**
+	 * Heading in degrees of the displacement latDiff, lonDiff (in degrees)
+	 */
+	static float computeHeading(float latDiff, float lonDiff) {
 		if (Math.abs(lonDiff) < HEADING_PRECISION
 				&& Math.abs(latDiff) < HEADING_PRECISION) {
-			this.heading = 0;
+			return 0;
 		} else if (Math.abs(lonDiff) < HEADING_PRECISION) {
-			this.heading = latDiff > 0 ? 0 : 180;
+			return latDiff > 0 ? 0 : 180;
 		} else if (Math.abs(latDiff) < HEADING_PRECISION) {
-			this.heading = lonDiff > 0 ? 90 : 270;
+			return lonDiff > 0 ? 90 : 270;
 		} else {
 			if (lonDiff > 0) {
-				this.heading = 90f - (float) Math.toDegrees(Math.atan(latDiff
+				return 90f - (float) Math.toDegrees(Math.atan(latDiff
 						/ lonDiff));
 			} else {
-				this.heading = 270f + (float) Math.toDegrees(Math.atan(latDiff
+				return 270f + (float) Math.toDegrees(Math.atan(latDiff
 						/ -lonDiff));
 			}
 		}
@@ -1,19 +1,59 @@
 package org.pelizzari.ship;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import org.pelizzari.gis.Displacement;
 import org.pelizzari.gis.DisplacementSequence;
 
-public class HeadingSequence extends ArrayList<Heading> {
+/**
+ * Sequence of headings, stored as floats: the Heading objects are created only by get().
+ * ShipTrack.computeHeadingSequence() returns a view over the headings of its TrackKinematics.
+ */
+public class HeadingSequence extends AbstractList<Heading> {
+	
+	float[] headings;
+	int size;
 	
 	public HeadingSequence(DisplacementSequence displSeq) {
 		super();
+		headings = new float[displSeq.size()];
 		for (Displacement displacement : displSeq) {
-			Heading head = new Heading(displacement);
-			this.add(head);
+			headings[size++] = Heading.computeHeading(displacement.deltaLat, displacement.deltaLon);
+		}
+	}
+	
+	HeadingSequence(float[] headings) {
+		this.headings = headings;
+		this.size = headings.length;
+	}
+	
+	public Heading get(int index) {
+		return Heading.valueOf(getHeading(index));
+	}
+	
+	/**
+	 * Heading in degrees, without creating the object
+	 */
+	public float getHeading(int index) {
+		if(index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return headings[index];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean add(Heading head) {
+		if(size == headings.length) {
+			headings = Arrays.copyOf(headings, Math.max(size * 2, 10));
 		}
+		headings[size++] = head.heading;
+		modCount++;
+		return true;
 	}
 	
 	public String toString() {
@@ -0,0 +1,139 @@
+package org.pelizzari.ship;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reduction of the positions of a ship, in one pass: positions are offered one at a time
+ * in time order and the kept ones are added to the output list, so the full track does not have to be in memory.
+ * Policies:
+ * TIME_WINDOW: keep a position if no other position is in the time window (ts-window, ts]; same result
+ * as the reducePositionDensity() of a ShipTrack, i.e. only the positions after a gap of at least the window are kept.
+ * MIN_DISTANCE: keep a position if it is at least minDistanceInMiles from the last kept one.
+ * ADAPTIVE_SPEED: keep a position if it is at least minDistanceInMiles from the last kept one or
+ * if the window has elapsed since it, i.e. the faster the ship, the more positions (one per window when still).
+ * With MIN_DISTANCE and ADAPTIVE_SPEED the first and the last position are always kept.
+ * Usage: start(output), offer(pos)..., finish(); or decimate(positions).
+ * @author andrea@pelizzari.org
+ *
+ */
+public class PositionDecimator {
+
+	public final static String TIME_WINDOW = "TIME_WINDOW";
+	public final static String MIN_DISTANCE = "MIN_DISTANCE";
+	public final static String ADAPTIVE_SPEED = "ADAPTIVE_SPEED";
+
+	String policy;
+	long timeWindowInMillis;
+	float minDistanceInMiles;
+
+	List<ShipPosition> output;
+	ShipPosition prevPos; // last offered position
+	ShipPosition pendingPos; // TIME_WINDOW: kept if the next position has a different ts
+	ShipPosition lastKeptPos;
+	int offeredCount;
+
+	/**
+	 * @param policy TIME_WINDOW, MIN_DISTANCE or ADAPTIVE_SPEED
+	 * @param timeWindowInSeconds used by TIME_WINDOW and ADAPTIVE_SPEED
+	 * @param minDistanceInMiles used by MIN_DISTANCE and ADAPTIVE_SPEED
+	 */
+	public PositionDecimator(String policy, int timeWindowInSeconds, float minDistanceInMiles) {
+		if(!policy.equals(TIME_WINDOW) && !policy.equals(MIN_DISTANCE) && !policy.equals(ADAPTIVE_SPEED)) {
+			throw new IllegalArgumentException("Unknown decimation policy: " + policy);
+		}
+		this.policy = policy;
+		this.timeWindowInMillis = timeWindowInSeconds * 1000L;
+		this.minDistanceInMiles = minDistanceInMiles;
+	}
+
+	public String getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * New decimator with the same policy and parameters, e.g. for another thread
+	 */
+	public PositionDecimator copy() {
+		PositionDecimator decimator = new PositionDecimator(policy, 0, minDistanceInMiles);
+		decimator.timeWindowInMillis = timeWindowInMillis;
+		return decimator;
+	}
+
+	/**
+	 * Start a new track: the kept positions are added to output
+	 */
+	public void start(List<ShipPosition> output) {
+		this.output = output;
+		prevPos = null;
+		pendingPos = null;
+		lastKeptPos = null;
+		offeredCount = 0;
+	}
+
+	/**
+	 * Offer the next position of the track; positions must be in time order
+	 */
+	public void offer(ShipPosition pos) {
+		long ts = pos.ts.getTsMillisec();
+		if(prevPos != null && ts < prevPos.ts.getTsMillisec()) {
+			throw new IllegalArgumentException("Position not in time order: " + pos + " after " + prevPos);
+		}
+		offeredCount++;
+		if(policy.equals(TIME_WINDOW)) {
+			if(timeWindowInMillis <= 0) { // empty window
+				output.add(pos);
+			} else {
+				if(pendingPos != null && ts != pendingPos.ts.getTsMillisec()) {
+					output.add(pendingPos);
+				}
+				pendingPos = null;
+				if(prevPos == null || ts - prevPos.ts.getTsMillisec() >= timeWindowInMillis) {
+					pendingPos = pos;
+				}
+			}
+		} else {
+			if(lastKeptPos == null ||
+			   lastKeptPos.point.distanceInMiles(pos.point) >= minDistanceInMiles ||
+			   (policy.equals(ADAPTIVE_SPEED) && ts - lastKeptPos.ts.getTsMillisec() >= timeWindowInMillis)) {
+				output.add(pos);
+				lastKeptPos = pos;
+			}
+		}
+		prevPos = pos;
+	}
+
+	/**
+	 * End of the track
+	 */
+	public void finish() {
+		if(pendingPos != null) {
+			output.add(pendingPos);
+			pendingPos = null;
+		}
+		if(lastKeptPos != null && lastKeptPos != prevPos) { // keep the last position
+			output.add(prevPos);
+			lastKeptPos = prevPos;
+		}
+	}
+
+	/**
+	 * Number of positions offered since start()
+	 */
+	public int getOfferedCount() {
+		return offeredCount;
+	}
+
+	/**
+	 * Kept positions of a list in time order
+	 */
+	public List<ShipPosition> decimate(List<ShipPosition> positions) {
+		List<ShipPosition> reducedPosList = new ArrayList<ShipPosition>();
+		start(reducedPosList);
+		for (ShipPosition pos : positions) {
+			offer(pos);
+		}
+		finish();
+		return reducedPosList;
+	}
+}
@@ -0,0 +1,251 @@
+package org.pelizzari.ship;
+
+import java.util.Arrays;
+
+import org.pelizzari.gis.Box;
+import org.pelizzari.gis.Point;
+import org.pelizzari.time.TimeInterval;
+
+/**
+ * Uniform lat/lon grid over the positions of a ShipPositionList, built once.
+ * Box, stripe and corridor queries visit only the cells that can contain matching positions
+ * and apply the same exact tests as ShipPositionList to their positions.
+ * The positions of cell c are positionIndexes[cellStart[c]] ... positionIndexes[cellStart[c+1]-1],
+ * in ascending order; cell c = latCell * nLon + lonCell.
+ * The list must not change after the index is built (ShipPositionList drops its index when it does).
+ * @author andrea@pelizzari.org
+ *
+ */
+public class PositionGridIndex {
+
+	public final static float DEFAULT_CELL_SIZE_IN_DEGREES = 0.25f;
+	final static int MAX_CELLS = 1 << 22; // cells are made bigger if needed
+	final static float CELL_TEST_MARGIN = 1e-5f; // relative margin of the cell tests, against rounding
+
+	ShipPositionList positions;
+	float minLat, minLon;
+	float maxAbsCoord; // max absolute lat or lon of the grid
+	float cellSize; // in degrees
+	int nLat, nLon;
+	int[] cellStart;
+	int[] positionIndexes;
+
+	public PositionGridIndex(ShipPositionList positions) {
+		this(positions, DEFAULT_CELL_SIZE_IN_DEGREES);
+	}
+
+	public PositionGridIndex(ShipPositionList positions, float cellSizeInDegrees) {
+		this.positions = positions;
+		int n = positions.size();
+		minLat = Float.MAX_VALUE;
+		minLon = Float.MAX_VALUE;
+		float maxLat = -Float.MAX_VALUE, maxLon = -Float.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			float lat = positions.getLat(i);
+			float lon = positions.getLon(i);
+			minLat = Math.min(minLat, lat);
+			maxLat = Math.max(maxLat, lat);
+			minLon = Math.min(minLon, lon);
+			maxLon = Math.max(maxLon, lon);
+		}
+		if(n == 0) {
+			minLat = minLon = maxLat = maxLon = 0;
+		}
+		maxAbsCoord = Math.max(Math.max(Math.abs(minLat), Math.abs(maxLat)), Math.max(Math.abs(minLon), Math.abs(maxLon)));
+		cellSize = cellSizeInDegrees;
+		nLat = (int) ((maxLat - minLat) / cellSize) + 1;
+		nLon = (int) ((maxLon - minLon) / cellSize) + 1;
+		while((long) nLat * nLon > MAX_CELLS) {
+			cellSize *= 2;
+			nLat = (int) ((maxLat - minLat) / cellSize) + 1;
+			nLon = (int) ((maxLon - minLon) / cellSize) + 1;
+		}
+		// count the positions of each cell, then place them
+		int[] cellOfPosition = new int[n];
+		cellStart = new int[nLat * nLon + 1];
+		for (int i = 0; i < n; i++) {
+			int cell = latCell(positions.getLat(i)) * nLon + lonCell(positions.getLon(i));
+			cellOfPosition[i] = cell;
+			cellStart[cell + 1]++;
+		}
+		for (int c = 0; c < nLat * nLon; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] next = Arrays.copyOf(cellStart, nLat * nLon);
+		positionIndexes = new int[n];
+		for (int i = 0; i < n; i++) {
+			positionIndexes[next[cellOfPosition[i]]++] = i;
+		}
+	}
+
+	int latCell(float lat) {
+		int c = (int) ((lat - minLat) / cellSize);
+		return c < 0 ? 0 : (c >= nLat ? nLat - 1 : c);
+	}
+
+	int lonCell(float lon) {
+		int c = (int) ((lon - minLon) / cellSize);
+		return c < 0 ? 0 : (c >= nLon ? nLon - 1 : c);
+	}
+
+	public int getCellCount() {
+		return nLat * nLon;
+	}
+
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * Number of positions in the cells that overlap the box (an upper bound of the positions in the box)
+	 */
+	public int countCandidatesInBox(Box box) {
+		int count = 0;
+		int lat1 = latCell(box.getMinLat()), lat2 = latCell(box.getMaxLat());
+		int lon1 = lonCell(box.getMinLon()), lon2 = lonCell(box.getMaxLon());
+		for (int la = lat1; la <= lat2; la++) {
+			count += cellStart[la * nLon + lon2 + 1] - cellStart[la * nLon + lon1];
+		}
+		return count;
+	}
+
+	/**
+	 * Indexes of the positions within the box and, if interval is not null, within the interval
+	 */
+	public int[] getIndexesInBox(Box box, TimeInterval interval) {
+		ShipPositionList.IndexList result = new ShipPositionList.IndexList(64);
+		int lat1 = latCell(box.getMinLat()), lat2 = latCell(box.getMaxLat());
+		int lon1 = lonCell(box.getMinLon()), lon2 = lonCell(box.getMaxLon());
+		for (int la = lat1; la <= lat2; la++) {
+			// cells of a row are contiguous
+			int end = cellStart[la * nLon + lon2 + 1];
+			for (int k = cellStart[la * nLon + lon1]; k < end; k++) {
+				int i = positionIndexes[k];
+				if((interval == null || interval.isWithinInterval(positions.getTsMillisec(i))) &&
+				   box.isWithinBox(positions.getLat(i), positions.getLon(i))) {
+					result.add(i);
+				}
+			}
+		}
+		return sorted(result.toArray());
+	}
+
+	/**
+	 * Indexes of the positions on the stripe perpendicular to the segment
+	 * (see ShipTrackSegment.isWithinPerpendicularStripe) and, if interval is not null, within the interval.
+	 * In each row of cells, only the cells that the stripe crosses are visited.
+	 */
+	public int[] getIndexesOnStripe(Point p1, Point p2, TimeInterval interval) {
+		ShipPositionList.IndexList result = new ShipPositionList.IndexList(64);
+		float dLat = p2.lat - p1.lat;
+		float dLon = p2.lon - p1.lon;
+		float squaredLength = dLat*dLat + dLon*dLon;
+		// projection on the segment direction: (q - p1).d, in [0, squaredLength] on the stripe
+		float offset = p1.lat*dLat + p1.lon*dLon;
+		float margin = CELL_TEST_MARGIN * (squaredLength + (Math.abs(dLat) + Math.abs(dLon)) * 2 * maxAbsCoord);
+		int[] lonRange = {0, nLon - 1};
+		for (int la = 0; la < nLat; la++) {
+			// a degenerate segment has no direction: all the cells are candidates
+			if(squaredLength > 0 && 
+			   !getLonCellsInBand(la, dLat, dLon, offset, -margin, squaredLength + margin, lonRange)) {
+				continue;
+			}
+			// cells of a row are contiguous
+			int end = cellStart[la * nLon + lonRange[1] + 1];
+			for (int k = cellStart[la * nLon + lonRange[0]]; k < end; k++) {
+				int i = positionIndexes[k];
+				if((interval == null || interval.isWithinInterval(positions.getTsMillisec(i))) &&
+				   Point.isOnPerpendicularStripe(positions.getLat(i), positions.getLon(i), p1, p2)) {
+					result.add(i);
+				}
+			}
+		}
+		return sorted(result.toArray());
+	}
+
+	/**
+	 * Indexes of the positions whose squared distance to the line (p1, p2) is <= maxSquaredDistance
+	 * (see Point.approxSquaredDistanceToSegment) and, if not null, within the box and the interval.
+	 * In each row of cells, only the cells that the corridor crosses are visited.
+	 */
+	public int[] getIndexesCloseToSegment(Point p1, Point p2, float maxSquaredDistance, Box box, TimeInterval interval) {
+		ShipPositionList.IndexList result = new ShipPositionList.IndexList(64);
+		float dLat = p2.lat - p1.lat;
+		float dLon = p2.lon - p1.lon;
+		float squaredLength = dLat*dLat + dLon*dLon;
+		// numerator of the distance: dLat*lon - dLon*lat + c, within +/- maxDistance*length on the corridor
+		float c = p2.lon*p1.lat - p2.lat*p1.lon;
+		float halfWidth = (float) Math.sqrt(maxSquaredDistance * squaredLength);
+		float margin = CELL_TEST_MARGIN * (halfWidth + Math.abs(c) + (Math.abs(dLat) + Math.abs(dLon)) * 2 * maxAbsCoord);
+		int lat1 = 0, lat2 = nLat - 1, lon1 = 0, lon2 = nLon - 1;
+		if(box != null) {
+			lat1 = latCell(box.getMinLat());
+			lat2 = latCell(box.getMaxLat());
+			lon1 = lonCell(box.getMinLon());
+			lon2 = lonCell(box.getMaxLon());
+		}
+		int[] lonRange = {lon1, lon2};
+		for (int la = lat1; la <= lat2; la++) {
+			// a degenerate segment has no direction: all the cells are candidates
+			if(squaredLength > 0 && 
+			   !getLonCellsInBand(la, -dLon, dLat, -c, -halfWidth - margin, halfWidth + margin, lonRange)) {
+				continue;
+			}
+			int first = Math.max(lonRange[0], lon1), last = Math.min(lonRange[1], lon2);
+			if(first > last) {
+				continue;
+			}
+			int end = cellStart[la * nLon + last + 1];
+			for (int k = cellStart[la * nLon + first]; k < end; k++) {
+				int i = positionIndexes[k];
+				float lat = positions.getLat(i);
+				float lon = positions.getLon(i);
+				if((interval == null || interval.isWithinInterval(positions.getTsMillisec(i))) &&
+				   (box == null || box.isWithinBox(lat, lon)) &&
+				   Point.approxSquaredDistanceToSegment(lat, lon, p1, p2) <= maxSquaredDistance) {
+					result.add(i);
+				}
+			}
+		}
+		return sorted(result.toArray());
+	}
+
+	/**
+	 * Cells lonRange[0] ... lonRange[1] of the row la where lower <= a*lat + b*lon - offset <= upper
+	 * holds somewhere (the band between two parallel lines); false if there is no such cell.
+	 * In double, so that a nearly horizontal band does not overflow.
+	 */
+	boolean getLonCellsInBand(int la, float a, float b, float offset, float lower, float upper, int[] lonRange) {
+		double rowLat1 = minLat + la * cellSize;
+		double rowLat2 = rowLat1 + cellSize;
+		double minOverRow = Math.min(a*rowLat1, a*rowLat2);
+		double maxOverRow = Math.max(a*rowLat1, a*rowLat2);
+		// b*lon within [low, high] for some lat of the row
+		double low = (double) lower + offset - maxOverRow;
+		double high = (double) upper + offset - minOverRow;
+		if(b == 0) {
+			lonRange[0] = 0;
+			lonRange[1] = nLon - 1;
+			return low <= 0 && high >= 0;
+		}
+		double bandLon1 = (b > 0 ? low : high) / b;
+		double bandLon2 = (b > 0 ? high : low) / b;
+		double firstCell = Math.floor((bandLon1 - minLon) / cellSize);
+		double lastCell = Math.floor((bandLon2 - minLon) / cellSize);
+		if(lastCell < 0 || firstCell > nLon - 1) {
+			return false;
+		}
+		lonRange[0] = (int) Math.max(firstCell, 0);
+		lonRange[1] = (int) Math.min(lastCell, nLon - 1);
+		return true;
+	}
+
+	/**
+	 * In the order of the list
+	 */
+	static int[] sorted(int[] indexes) {
+		Arrays.sort(indexes);
+		return indexes;
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.pelizzari.ship;
+
+/**
+ * The per-segment terms of the track error: coverage of the expected positions and avg/max squared distance
+ * of the target positions, added one at a time.
+ * Both ShipTrackSegment.computeStatsForFitness() and TrackWorkspace.computeSegmentStats() use it, so that
+ * the two evaluations of the fitness compute the same values (in the same float order).
+ * Reusable with reset(): no object is created per segment.
+ * @author andrea@pelizzari.org
+ *
+ */
+class SegmentErrorStats {
+
+	int count = 0; // target positions
+	float weight = 0; // raw positions, = count if not weighted
+	float sumSquaredDistance = 0;
+	float maxSquaredDistance = 0;
+
+	void reset() {
+		count = 0;
+		weight = 0;
+		sumSquaredDistance = 0;
+		maxSquaredDistance = 0;
+	}
+
+	/**
+	 * Squared distance of a target position to the segment, with its weight (1 if not weighted).
+	 * As TrackError.weightedAvg() and max(): start from the first value.
+	 */
+	void add(float squaredDistance, float w) {
+		if(count == 0) {
+			sumSquaredDistance = squaredDistance * w;
+			maxSquaredDistance = squaredDistance;
+		} else {
+			sumSquaredDistance += squaredDistance * w;
+			if(squaredDistance > maxSquaredDistance) {
+				maxSquaredDistance = squaredDistance;
+			}
+		}
+		count++;
+		weight += w;
+	}
+
+	float getAvgSquaredDistance() {
+		return count == 0 ? 0 : sumSquaredDistance / weight;
+	}
+
+	float getMaxSquaredDistance() {
+		return count == 0 ? 0 : maxSquaredDistance;
+	}
+
+	/**
+	 * Number of raw training positions a segment should cover, based on its length.
+	 * ASSUPTION: positions are spread uniformly along the voyage path
+	 */
+	static int expectedCoveredPositions(float segLengthInMiles, float trackLengthInMiles, float trainingWeight) {
+		return (int) (segLengthInMiles / trackLengthInMiles * trainingWeight);
+	}
+
+	/**
+	 * Covered raw positions compared to the expected number (0 if none is expected)
+	 */
+	static float coverageOfExpectedPositions(float coveredWeight, int expectedCoveredPositions) {
+		if(expectedCoveredPositions != 0) {
+			return coveredWeight / expectedCoveredPositions;
+		}
+		return 0;
+	}
+}
@@ -1,6 +1,10 @@
 package org.pelizzari.ship;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.pelizzari.gis.Box;
@@ -10,19 +14,39 @@ import org.pelizzari.time.Timestamp;
 
 /**
  * Set of ship position ordered by timestamp.
+ * The positions can be read as objects (getPosList(), getPosition()) or, without 
+ * creating objects, with the primitive accessors (size(), getLat(), getLon(), getTsMillisec(), cursor()).
+ * The time order is verified (see isTimeOrdered()): if it holds, the interval queries are two
+ * binary searches and getPosListInInterval() returns a read-only view of the range.
+ * The box, stripe and corridor queries use the spatial index, if built (see buildSpatialIndex()).
+ * getPosList() is a read-only view. If timestamps are changed in place, call positionsChanged().
+ * See also ColumnarShipPositionList.
  * @author andrea@pelizzari.org
  *
  */
 public class ShipPositionList {
 	
+	final static int ORDER_UNKNOWN = 0; // to be verified
+	final static int ORDER_ASCENDING = 1; // timestamps are non-decreasing
+	final static int ORDER_NONE = 2;
+	
 	// list of positions of this track
 	List<ShipPosition> posList = new ArrayList<ShipPosition>();
+	// time order of the positions
+	int timeOrder = ORDER_ASCENDING;
+	// optional, dropped when the positions change
+	PositionGridIndex spatialIndex = null;
 	
 	public ShipPositionList() {
 		
 	}
 	
 	public void addPosition(ShipPosition pos) {
+		if(timeOrder == ORDER_ASCENDING && !posList.isEmpty() &&
+		   pos.ts.getTsMillisec() < posList.get(posList.size() - 1).ts.getTsMillisec()) {
+			timeOrder = ORDER_NONE;
+		}
+		spatialIndex = null;
 		posList.add(pos);
 	}
 
@@ -34,18 +58,345 @@ public class ShipPositionList {
 	}
 
 	public ShipPosition getFirstPosition() {
-		return posList.get(0);
+		return getPosition(0);
 	}
 
 	public ShipPosition getLastPosition() {
-		return posList.get(posList.size() - 1);
+		return getPosition(size() - 1);
 	}
 
 	public ShipPosition getPosition(int index) {
 		return posList.get(index);
 	}
 
+	public int size() {
+		return posList.size();
+	}
+
+	public float getLat(int index) {
+		return posList.get(index).point.lat;
+	}
+
+	public float getLon(int index) {
+		return posList.get(index).point.lon;
+	}
+
+	public long getTsMillisec(int index) {
+		return posList.get(index).ts.getTsMillisec();
+	}
+
+	/**
+	 * Number of raw positions represented by the position (always 1 here, see WeightedShipPositionList)
+	 */
+	public float getWeight(int index) {
+		return 1f;
+	}
+
+	/**
+	 * Sum of the weights of the positions: the number of raw positions
+	 */
+	public float getTotalWeight() {
+		return size();
+	}
+
+	public boolean isWeighted() {
+		return false;
+	}
+
+	/**
+	 * Iterate over the positions with the primitive accessors, e.g.
+	 * for (Cursor c = list.cursor(); c.next();) { c.getLat() ... }
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	public class Cursor {
+		int index = -1;
+
+		public boolean next() {
+			index++;
+			return index < size();
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public float getLat() {
+			return ShipPositionList.this.getLat(index);
+		}
+
+		public float getLon() {
+			return ShipPositionList.this.getLon(index);
+		}
+
+		public long getTsMillisec() {
+			return ShipPositionList.this.getTsMillisec(index);
+		}
+
+		public ShipPosition getPosition() {
+			return ShipPositionList.this.getPosition(index);
+		}
+	}
+
+	/**
+	 * True if the timestamps are in non-decreasing order. Verified with a scan the first time
+	 * after positionsChanged(), then kept up to date by addPosition().
+	 */
+	public boolean isTimeOrdered() {
+		if(timeOrder == ORDER_UNKNOWN) {
+			// set once at the end: other threads reading the list see UNKNOWN or the result
+			int order = ORDER_ASCENDING;
+			for (int i = 1; i < size(); i++) {
+				if(getTsMillisec(i) < getTsMillisec(i-1)) {
+					order = ORDER_NONE;
+					break;
+				}
+			}
+			timeOrder = order;
+		}
+		return timeOrder == ORDER_ASCENDING;
+	}
+
+	/**
+	 * The positions (or their timestamps) have been changed: verify the time order again when needed
+	 */
+	public void positionsChanged() {
+		timeOrder = ORDER_UNKNOWN;
+		spatialIndex = null;
+	}
+
+	/**
+	 * Build the spatial index used by the box, stripe and corridor queries.
+	 * Build it after the list is complete: it is dropped when positions are added or changed.
+	 */
+	public PositionGridIndex buildSpatialIndex() {
+		return buildSpatialIndex(PositionGridIndex.DEFAULT_CELL_SIZE_IN_DEGREES);
+	}
+
+	public PositionGridIndex buildSpatialIndex(float cellSizeInDegrees) {
+		spatialIndex = new PositionGridIndex(this, cellSizeInDegrees);
+		return spatialIndex;
+	}
+
+	/**
+	 * The spatial index, null if not built
+	 */
+	public PositionGridIndex getSpatialIndex() {
+		return spatialIndex;
+	}
+
+	/**
+	 * Sort the positions by timestamp; positions with the same timestamp keep their order
+	 */
+	public void sortByTime() {
+		if(isTimeOrdered()) {
+			return;
+		}
+		Collections.sort(posList, new Comparator<ShipPosition>() {
+			public int compare(ShipPosition pos1, ShipPosition pos2) {
+				return Long.compare(pos1.ts.getTsMillisec(), pos2.ts.getTsMillisec());
+			}
+		});
+		timeOrder = ORDER_ASCENDING;
+		spatialIndex = null;
+	}
+
+	/**
+	 * Index of the first position with timestamp >= tsMillisec, size() if none.
+	 * The list must be time ordered.
+	 */
+	public int indexOfFirstAtOrAfter(long tsMillisec) {
+		return binarySearch(tsMillisec, false);
+	}
+
+	/**
+	 * Index of the first position with timestamp > tsMillisec, size() if none.
+	 * The list must be time ordered.
+	 */
+	public int indexOfFirstAfter(long tsMillisec) {
+		return binarySearch(tsMillisec, true);
+	}
+
+	int binarySearch(long tsMillisec, boolean after) {
+		int low = 0;
+		int high = size(); // first index known to be past tsMillisec
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			long midTs = getTsMillisec(mid);
+			if(midTs < tsMillisec || (after && midTs == tsMillisec)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Indexes [from, to) to be scanned for the positions within the interval (the interval ends included):
+	 * exactly those positions if the list is time ordered, all positions otherwise.
+	 */
+	int[] getScanRange(TimeInterval interval) {
+		if(!isTimeOrdered()) {
+			return new int[] {0, size()};
+		}
+		int from = indexOfFirstAtOrAfter(interval.getStartTs().getTsMillisec());
+		int to = Math.max(from, indexOfFirstAfter(interval.getEndTs().getTsMillisec()));
+		return new int[] {from, to};
+	}
+
+	/**
+	 * Number of positions with timestamp in (startTsInMillis, endTsInMillis]
+	 */
+	public int countPositionsInInterval(long startTsInMillis, long endTsInMillis) {
+		if(isTimeOrdered()) {
+			return Math.max(0, indexOfFirstAfter(endTsInMillis) - indexOfFirstAfter(startTsInMillis));
+		}
+		int posCounter = 0;
+		for (int i = 0; i < size(); i++) {
+			long ts = getTsMillisec(i);
+			if(ts > startTsInMillis && ts <= endTsInMillis) {
+				posCounter++;
+			}
+		}
+		return posCounter;
+	}
+
+	/**
+	 * Read-only view of the positions [from, to), nothing is copied
+	 */
+	public List<ShipPosition> getPosListInRange(final int from, final int to) {
+		if(from < 0 || to > size() || from > to) {
+			throw new IndexOutOfBoundsException("Range: " + from + "-" + to + ", size: " + size());
+		}
+		return new AbstractList<ShipPosition>() {
+			public ShipPosition get(int index) {
+				if(index < 0 || index >= to - from) {
+					throw new IndexOutOfBoundsException("Index: " + index + ", size: " + (to - from));
+				}
+				return getPosition(from + index);
+			}
+
+			public int size() {
+				return to - from;
+			}
+		};
+	}
+
+	/**
+	 * Indexes of the positions that have a timestamp within the interval
+	 */
+	public int[] getIndexesInInterval(TimeInterval interval) {
+		int[] range = getScanRange(interval);
+		int[] indexes = new int[range[1] - range[0]];
+		int count = 0;
+		for (int i = range[0]; i < range[1]; i++) {
+			if(interval.isWithinInterval(getTsMillisec(i))) {
+				indexes[count++] = i;
+			}
+		}
+		return count == indexes.length ? indexes : Arrays.copyOf(indexes, count);
+	}
+
 	
+	/**
+	 * The positions with the given indexes
+	 */
+	public List<ShipPosition> getPositions(int[] indexes) {
+		List<ShipPosition> positions = new ArrayList<ShipPosition>(indexes.length);
+		for (int index : indexes) {
+			positions.add(getPosition(index));
+		}
+		return positions;
+	}
+
+	/**
+	 * Indexes of the positions in the time interval of the segment and on the stripe perpendicular to it.
+	 * The time range is scanned if the list is time ordered, otherwise the spatial index is used if built.
+	 */
+	public int[] getIndexesInIntervalAndOnStripe(ShipTrackSegment segment) throws Exception {
+		TimeInterval interval = segment.getTimeInterval(); 
+		PositionGridIndex index = spatialIndex; // read once: may be dropped by another thread
+		if(index != null && !isTimeOrdered()) {
+			return index.getIndexesOnStripe(segment.p1.point, segment.p2.point, interval);
+		}
+		int[] range = getScanRange(interval);
+		IndexList indexes = new IndexList(range[1] - range[0]);
+		for (int i = range[0]; i < range[1]; i++) {
+			if(interval.isWithinInterval(getTsMillisec(i)) && 
+			   segment.isWithinPerpendicularStripe(getLat(i), getLon(i))) {
+				indexes.add(i);
+			}
+		}
+		return indexes.toArray();
+	}
+
+	/**
+	 * Indexes of the positions on the stripe perpendicular to the segment
+	 */
+	public int[] getIndexesOnStripe(ShipTrackSegment segment) {
+		PositionGridIndex index = spatialIndex;
+		if(index != null) {
+			return index.getIndexesOnStripe(segment.p1.point, segment.p2.point, null);
+		}
+		IndexList indexes = new IndexList(size());
+		for (int i = 0; i < size(); i++) {
+			if(segment.isWithinPerpendicularStripe(getLat(i), getLon(i))) {
+				indexes.add(i);
+			}
+		}
+		return indexes.toArray();
+	}
+
+	/**
+	 * Indexes of the positions in the interval and the box: the spatial index is used if built
+	 * and its candidates are fewer than the positions of the time range.
+	 */
+	public int[] getIndexesInIntervalAndBox(TimeInterval interval, Box box) {
+		int[] range = getScanRange(interval);
+		PositionGridIndex index = spatialIndex;
+		if(index != null && index.countCandidatesInBox(box) < range[1] - range[0]) {
+			return index.getIndexesInBox(box, interval);
+		}
+		IndexList indexes = new IndexList(range[1] - range[0]);
+		for (int i = range[0]; i < range[1]; i++) {
+			if(interval.isWithinInterval(getTsMillisec(i)) && box.isWithinBox(getLat(i), getLon(i))) {
+				indexes.add(i);
+			}
+		}
+		return indexes.toArray();
+	}
+
+	/**
+	 * Indexes of the positions in the interval and the box, with squared distance to the line (p1, p2) 
+	 * not greater than maxSquaredDistance. The spatial index is used as in getIndexesInIntervalAndBox().
+	 */
+	public int[] getIndexesInIntervalAndBoxAndCloseToSegment(TimeInterval interval,
+															 Box box,
+															 Point p1,
+															 Point p2,
+															 float maxSquaredDistance) {
+		int[] range = getScanRange(interval);
+		PositionGridIndex index = spatialIndex;
+		if(index != null && index.countCandidatesInBox(box) < range[1] - range[0]) {
+			return index.getIndexesCloseToSegment(p1, p2, maxSquaredDistance, box, interval);
+		}
+		IndexList indexes = new IndexList(range[1] - range[0]);
+		for (int i = range[0]; i < range[1]; i++) {
+			float lat = getLat(i);
+			float lon = getLon(i);
+			if(interval.isWithinInterval(getTsMillisec(i)) && box.isWithinBox(lat, lon)) {
+				float squaredDistance = Point.approxSquaredDistanceToSegment(lat, lon, p1, p2);
+				if(squaredDistance <= maxSquaredDistance) {
+					indexes.add(i);
+				}
+			}
+		}
+		return indexes.toArray();
+	}
+
 	/**
 	 * Select ship positions only if they are in the time interval of the segment and they are located
 	 * in the stripe perpendicular to the segment. 
@@ -54,15 +405,7 @@ public class ShipPositionList {
 	 * @throws Exception
 	 */
 	public List<ShipPosition> getPosListInIntervalAndOnStripe(ShipTrackSegment segment) throws Exception {
-		List<ShipPosition> filteredPosList = new ArrayList<ShipPosition>();
-		TimeInterval interval = segment.getTimeInterval(); 
-		for (ShipPosition pos : posList) {
-			if(interval.isWithinInterval(pos.getTs()) && 
-			   segment.isWithinPerpendicularStripe(pos.point)) {
-				filteredPosList.add(pos);
-			}
-		}
-		return filteredPosList;
+		return getPositions(getIndexesInIntervalAndOnStripe(segment));
 	}	
 			
 	/**
@@ -73,23 +416,19 @@ public class ShipPositionList {
 	 * @throws Exception
 	 */
 	public List<ShipPosition> getPosListOnStripe(ShipTrackSegment segment) throws Exception {
-		List<ShipPosition> filteredPosList = new ArrayList<ShipPosition>();
-		for (ShipPosition pos : posList) {
-			if(segment.isWithinPerpendicularStripe(pos.point)) {
-				filteredPosList.add(pos);
-			}
-		}
-		return filteredPosList;
+		return getPositions(getIndexesOnStripe(segment));
 	}	
 	
+	/**
+	 * Positions with a timestamp within the interval: a read-only view if the list is time ordered,
+	 * otherwise a new list.
+	 */
 	public List<ShipPosition> getPosListInInterval(TimeInterval interval) {
-		List<ShipPosition> filteredPosList = new ArrayList<ShipPosition>();
-		for (ShipPosition pos : posList) {
-			if(interval.isWithinInterval(pos.getTs())) {
-				filteredPosList.add(pos);
-			}
+		if(isTimeOrdered()) {
+			int[] range = getScanRange(interval);
+			return getPosListInRange(range[0], range[1]);
 		}
-		return filteredPosList;
+		return getPositions(getIndexesInInterval(interval));
 	}	
 		
 	
@@ -97,13 +436,7 @@ public class ShipPositionList {
 	 * Return the list of positions that have a timestamp within the interval and are within the box, 
 	 */
 	public List<ShipPosition> getPosListInIntervalAndBox(TimeInterval interval, Box box) {
-		List<ShipPosition> filteredPosList = new ArrayList<ShipPosition>();
-		for (ShipPosition pos : posList) {
-			if(interval.isWithinInterval(pos.getTs()) && box.isWithinBox(pos.point)) {
-				filteredPosList.add(pos);
-			}
-		}
-		return filteredPosList;
+		return getPositions(getIndexesInIntervalAndBox(interval, box));
 	}
 
 
@@ -112,24 +445,42 @@ public class ShipPositionList {
 																	Point p1,
 																	Point p2,
 																	float maxSquaredDistance) {
-		List<ShipPosition> filteredPosList = new ArrayList<ShipPosition>();
-		for (ShipPosition pos : posList) {
-			if(interval.isWithinInterval(pos.getTs()) && box.isWithinBox(pos.point)) {
-				float squaredDistance = pos.point.approxSquaredDistanceToSegment(p1, p2);
-				if(squaredDistance <= maxSquaredDistance) {
-					filteredPosList.add(pos);
-				}
+		return getPositions(getIndexesInIntervalAndBoxAndCloseToSegment(interval, box, p1, p2, maxSquaredDistance));
+	}	
+	
+	/**
+	 * Growing array of position indexes
+	 */
+	static class IndexList {
+		int[] indexes;
+		int count = 0;
+
+		IndexList(int capacity) {
+			indexes = new int[Math.max(capacity, 1)];
+		}
+
+		void add(int index) {
+			if(count == indexes.length) {
+				indexes = Arrays.copyOf(indexes, count * 2);
 			}
+			indexes[count++] = index;
 		}
-		return filteredPosList;
-	}	
+
+		int[] toArray() {
+			return count == indexes.length ? indexes : Arrays.copyOf(indexes, count);
+		}
+	}
 	
+	/**
+	 * Read-only view of the positions: to change them use addPosition() or setPosList()
+	 */
 	public List<ShipPosition> getPosList() {
-		return posList;
+		return Collections.unmodifiableList(posList);
 	}
 
 	public void setPosList(List<ShipPosition> posList) {
 		this.posList = posList;
+		positionsChanged();
 	}
 	
 	
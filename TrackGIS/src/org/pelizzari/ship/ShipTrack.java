@@ -1,6 +1,7 @@
 package org.pelizzari.ship;
 
 import org.pelizzari.db.DBConnection;
+import org.pelizzari.db.TrackWriter;
 import org.pelizzari.gis.Box;
 import org.pelizzari.gis.Displacement;
 import org.pelizzari.gis.DisplacementSequence;
@@ -42,12 +43,58 @@ public class ShipTrack extends ShipPositionList {
 	String mmsi = null;
 	// track length in miles
 	float trackLengthInMiles = 0;
+	// displacements, headings, lengths and speeds in one pass; built when needed, dropped when the positions change
+	TrackKinematics kinematics = null;
 	
 	public ShipTrack() {
 		super();
 		// nothing
 	}
 
+	public void addPosition(ShipPosition pos) {
+		super.addPosition(pos);
+		dropKinematics();
+	}
+
+	public void positionsChanged() {
+		super.positionsChanged();
+		dropKinematics();
+	}
+
+	public void sortByTime() {
+		super.sortByTime();
+		dropKinematics();
+	}
+
+	void dropKinematics() {
+		kinematics = null;
+		displacementSeq = null;
+		headingSeq = null;
+		changeOfHeadingSeq = null;
+	}
+
+	/**
+	 * Only the timestamps have changed: keep the displacements, headings and lengths, recompute the speeds when needed
+	 */
+	void timestampsChanged() {
+		super.positionsChanged();
+		if(kinematics != null) {
+			kinematics.speedsValid = false;
+		}
+	}
+
+	/**
+	 * Kinematics of the track, computed in one pass over the positions
+	 */
+	public TrackKinematics getKinematics() {
+		if(kinematics == null) {
+			kinematics = new TrackKinematics(this);
+		} else if(!kinematics.speedsValid) {
+			kinematics.computeSpeeds(this);
+		}
+		return kinematics;
+	}
+
 
 	/*
 	 * Loads a track from an input CSV file: see pattern SHIP_POSITION
@@ -106,30 +153,16 @@ public class ShipTrack extends ShipPositionList {
 		}
 	}
 
+	/**
+	 * Insert this track into the tracks table in one transaction. 
+	 * To save many tracks, use one TrackWriter for all of them.
+	 */
 	public void saveTrackToDB(Box depBox, Box arrBox, String yearPeriod, long insertTs) {
 		Connection con = DBConnection.getCon();
-		int writeCount = 0;
-		//int errCount = 0;
-
-		final String TRACK_INSERT =
-				"INSERT INTO tracks (mmsi, source, period, dep, arr, insert_ts, ts, lat, lon) " +
-						"VALUES (" +
-						"'" + getMmsi() + "', " +
-						"null, " + // source
-						"'" + yearPeriod + "', " +
-						"'" + depBox.getName() + "', " +
-						"'" + arrBox.getName() + "', " +
-						insertTs + ", ";
-		
-		try {
-			for (ShipPosition pos : getPosList()) {
-				String values = pos.getTs().getTsMillisec()/1000 + "," + pos.point.lat + "," + pos.point.lon;
-				String insert = TRACK_INSERT + values + ")";
-				Statement stmt = con.createStatement();
-				stmt.executeUpdate(insert);	
-				writeCount++;
-			}
-			System.out.println("Written to DB " + writeCount + " lines");
+		try (TrackWriter writer = new TrackWriter(con, depBox, arrBox, yearPeriod, insertTs)) {
+			writer.addTrack(this);
+			writer.commit();
+			System.out.println("Written to DB " + writer.getRowCount() + " lines");
 		} catch (SQLException e) {
 			System.err.println("Cannot write track to DB");
 			e.printStackTrace();
@@ -137,6 +170,11 @@ public class ShipTrack extends ShipPositionList {
 	}	
 	
 	
+	/**
+	 * Set norm_ts of one position in the tracks table.
+	 * The caller invalidates the merged tracks of (period, dep, arr) once after the last update,
+	 * see MergedTrackCache.invalidateDefault().
+	 */
 	public void updateNormalizedShipPositionTimestampInDB(
 			Box depBox, Box arrBox, String yearPeriod, int posIndex, Timestamp normTS) {
 		Connection con = DBConnection.getCon();
@@ -148,7 +186,7 @@ public class ShipTrack extends ShipPositionList {
 				"AND period = '" + yearPeriod+ "' " +
 				"AND dep = '" + depBox.getName() + "' " +
 				"AND arr = '" + arrBox.getName() + "' " +
-				"AND ts = " + getPosList().get(posIndex).getTs().getTsMillisec()/1000 + " ";		
+				"AND ts = " + getPosition(posIndex).getTs().getTsMillisec()/1000 + " ";		
 		try {
 			Statement stmt = con.createStatement();
 			updateCount = stmt.executeUpdate(SHIP_POSITION_UPDATE);	
@@ -162,11 +200,14 @@ public class ShipTrack extends ShipPositionList {
 	}	
 	
 	/**
-	 * Remove from track any duplicated positions within the given time window.
-	 * As a result, the MAX rate will be 1 position every timeWindowInSeconds. 
-	 * @param timeWindowInSeconds
+	 * Keep only the positions with no other position in the previous time window, see PositionDecimator.TIME_WINDOW.
+	 * One pass if the track is in time order.
 	 */
 	public void reducePositionDensity(int timeWindowInSeconds) {
+		if(isTimeOrdered()) {
+			reducePositionDensity(new PositionDecimator(PositionDecimator.TIME_WINDOW, timeWindowInSeconds, 0));
+			return;
+		}
 		List<ShipPosition> reducedPosList = new ArrayList<ShipPosition>();		
 		for(ShipPosition pos : posList) {
 			int posCounterInTimeWindow = countPositionsInInterval(
@@ -177,26 +218,19 @@ public class ShipTrack extends ShipPositionList {
 			}
 		}
 		posList = reducedPosList;	
+		positionsChanged();
 	}
-	
-	
+
 	/**
-	 * Return the number of positions within the given time interval (unix epoch in millisec).
-	 * @param startTsInMillis
-	 * @param endTsInMillis
-	 * @return
+	 * Keep the positions selected by the decimator; the track is sorted by time first, if needed
 	 */
-	public int countPositionsInInterval(long startTsInMillis, long endTsInMillis) {
-		int posCounter = 0;
-		for(ShipPosition pos : posList) {
-			if(pos.getTs().getTsMillisec() > startTsInMillis && 
-			   pos.getTs().getTsMillisec() <= endTsInMillis) {
-				posCounter++;
-			}
-		}
-		return posCounter;
+	public void reducePositionDensity(PositionDecimator decimator) {
+		sortByTime();
+		posList = decimator.decimate(posList);
+		positionsChanged();
 	}
 	
+	
 	public void removeAlignedPositions() {
 		List<ShipPosition> reducedPosList = new ArrayList<ShipPosition>();
 		ShipPosition p1 = null;
@@ -261,35 +295,15 @@ public class ShipTrack extends ShipPositionList {
 
 	
 	public HeadingSequence computeHeadingSequence() {
-		if(headingSeq != null) {
-			return headingSeq;
-		}
-		if(displacementSeq == null) {
-			computeDisplacements();
+		if(headingSeq == null) {
+			headingSeq = new HeadingSequence(getKinematics().heading); // view, no objects per heading
 		}
-		headingSeq = new HeadingSequence(displacementSeq);		
 		return headingSeq;
 	}
 
 	public ChangeOfHeadingSequence computeChangeOfHeadingSequence() {
-		if(changeOfHeadingSeq != null) {
-			return changeOfHeadingSeq;
-		}
-		if(headingSeq == null) {
-			computeHeadingSequence();
-		}
-		changeOfHeadingSeq = new ChangeOfHeadingSequence();
-		Heading head1 = null;
-		Heading head2 = null;
-		for (Heading heading : headingSeq) {
-			if (head1 == null) {
-				head1 = heading;
-				continue;
-			}
-			head2 = heading;
-			ChangeOfHeading coh = new ChangeOfHeading(head1, head2);
-			changeOfHeadingSeq.add(coh);
-			head1 = head2;
+		if(changeOfHeadingSeq == null) {
+			changeOfHeadingSeq = new ChangeOfHeadingSequence(getKinematics().changeOfHeading); // view
 		}
 		return changeOfHeadingSeq;
 	}
@@ -298,32 +312,19 @@ public class ShipTrack extends ShipPositionList {
 		if(displacementSeq != null) {
 			return displacementSeq;
 		}
+		TrackKinematics kin = getKinematics();
 		DisplacementSequence displSeq = new DisplacementSequence();
-		ShipPosition p1 = null;
-		ShipPosition p2 = null;
-		Iterator<ShipPosition> posItr = posList.iterator();
-		while (posItr.hasNext()) {
-			ShipPosition pos = posItr.next();
-			if (p1 == null) {
-				p1 = pos;
-				continue;
-			}
-			p2 = pos;
-			Displacement displ = null;
-			try {
-				displ = p1.computeDisplacement(p2);
-				if (displ == null)
-					throw new Exception("Displacement is null");
-				displSeq.add(displ);
-			} catch (Exception e) {
-				System.err.println("Error in computeDisplacements: " + e);
-			}
-			p1 = p2;
+		for (int i = 0; i < kin.deltaLat.length; i++) {
+			displSeq.add(new Displacement(kin.deltaLat[i], kin.deltaLon[i]));
 		}
 		displacementSeq = displSeq;
 		return displSeq;
 	}
 
+	/**
+	 * Track with the first position, one position every timePeriod (in millisec) and the last position.
+	 * One pass with TrackResampler if the track is time ordered.
+	 */
 	public ShipTrack getInterpolatedTrack(int timePeriod) {
 		ShipPosition posFirst = getFirstPosition();
 		// int trackSize = posList.size();
@@ -331,6 +332,16 @@ public class ShipTrack extends ShipPositionList {
 		long maxTs = posLast.ts.getTsMillisec();
 		ShipTrack interpolatedTrack = new ShipTrack();
 		interpolatedTrack.addPosition(posFirst);
+		if(isTimeOrdered() && timePeriod > 0) {
+			ColumnarShipPositionList samples = TrackResampler.fixedRate(timePeriod).resample(this);
+			for (int i = 1; i < samples.size() - 1; i++) {
+				ShipPosition pos = samples.getPosition(i);
+				pos.setIndex(pos.ts.getTsMillisec());
+				interpolatedTrack.addPosition(pos);
+			}
+			interpolatedTrack.addPosition(posLast);
+			return interpolatedTrack;
+		}
 		for (long t = posFirst.ts.getTsMillisec() + timePeriod; t < maxTs; t += timePeriod) {
 			ShipPosition pos = getInterpolatedPosition(t);
 			interpolatedTrack.addPosition(pos);
@@ -351,6 +362,12 @@ public class ShipTrack extends ShipPositionList {
 		ShipPosition posBefore = posFirst;
 		ShipPosition posAfter = posList.get(1);
 		int i = 2;
+		if(isTimeOrdered()) { // first position at or after ts, from index 1
+			i = Math.max(1, indexOfFirstAtOrAfter(ts));
+			posBefore = posList.get(i - 1);
+			posAfter = posList.get(i);
+			i++;
+		}
 		while (ts > posAfter.ts.getTsMillisec()) {
 			posBefore = posAfter;
 			posAfter = posList.get(i);
@@ -424,21 +441,16 @@ public class ShipTrack extends ShipPositionList {
 		}
 		// set the timestamps: use the cumulative distance from the start to compute the elapsed time 
 		float totalLengthInMiles = reconstructedTrack.computeLengthInMiles();
+		float[] cumulativeMiles = reconstructedTrack.getCumulativeMiles();
 		long startTsInMillisec = startPosition.getTs().getTsMillisec();
 		long totalDurationInMillisec = endTs.getTsMillisec() - startTsInMillisec;
-		ShipPosition prevPos = null;
-		float cumulativeDistanceInMiles = 0;
-		for(ShipPosition pos1 : reconstructedTrack.getPosList()) {
-			if (prevPos != null) {
-				float distanceInMiles = prevPos.getPoint().distanceInMiles(pos1.getPoint());
-				cumulativeDistanceInMiles += distanceInMiles;
-				long relativeDurationInMillisec = (long) (totalDurationInMillisec * cumulativeDistanceInMiles / totalLengthInMiles);
-				pos1.setTs(startTsInMillisec + relativeDurationInMillisec);
-			}
-			prevPos = pos1;
+		for (int i = 1; i < cumulativeMiles.length; i++) {
+			long relativeDurationInMillisec = (long) (totalDurationInMillisec * cumulativeMiles[i] / totalLengthInMiles);
+			reconstructedTrack.posList.get(i).setTs(startTsInMillisec + relativeDurationInMillisec);
 		}
 		// force last position to have the same timestamp as the last position of the target track
 		reconstructedTrack.getLastPosition().setTs(endTs.getTsMillisec());
+		reconstructedTrack.timestampsChanged();
 		return reconstructedTrack;
 	}	
 	
@@ -474,12 +486,45 @@ public class ShipTrack extends ShipPositionList {
 	public Timestamp computeNormalizedTime(Timestamp referenceStartTS,
 										   int referenceVoyageDurationInSec,
 			   							   int posIndex) {
-		float sailedDistanceInMiles = computeLengthInMiles(posIndex);
+		float sailedDistanceInMiles = computeLengthInMiles(posIndex); // O(1) after the first call
+		return computeNormalizedTime(referenceStartTS, referenceVoyageDurationInSec, 
+				sailedDistanceInMiles, trackLengthInMiles);
+	}
+	
+	static Timestamp computeNormalizedTime(Timestamp referenceStartTS,
+										   int referenceVoyageDurationInSec,
+										   float sailedDistanceInMiles,
+										   float trackLengthInMiles) {
+		long normalizedTsInMillisec = computeNormalizedTsMillisec(referenceStartTS.getTsMillisec(), 
+				referenceVoyageDurationInSec, sailedDistanceInMiles, trackLengthInMiles);
+		Timestamp normTs = new Timestamp(normalizedTsInMillisec);
+		return normTs;
+	}
+	
+	static long computeNormalizedTsMillisec(long referenceStartTsInMillisec,
+											int referenceVoyageDurationInSec,
+											float sailedDistanceInMiles,
+											float trackLengthInMiles) {
 		// relative distance, between 0 and 1
 		float relativeDistanceFactor = sailedDistanceInMiles/trackLengthInMiles;
 		int normalizedRelativeDurationInSec = (int) (referenceVoyageDurationInSec * relativeDistanceFactor);
-		long normalizedTsInMillisec = referenceStartTS.getTsMillisec()+normalizedRelativeDurationInSec*1000;
-		Timestamp normTs = new Timestamp(normalizedTsInMillisec);
+		return referenceStartTsInMillisec+normalizedRelativeDurationInSec*1000;
+	}
+	
+	/**
+	 * Normalized timestamps of all the positions, computed in one pass.
+	 * Same values as computeNormalizedTime() after computeLengthInMiles().
+	 */
+	public Timestamp[] computeNormalizedTimes(Timestamp referenceStartTS,
+										   	  int referenceVoyageDurationInSec) {
+		int n = posList.size();
+		float[] sailedDistanceInMiles = getCumulativeMiles();
+		computeLengthInMiles();
+		Timestamp[] normTs = new Timestamp[n];
+		for (int i = 0; i < n; i++) {
+			normTs[i] = computeNormalizedTime(referenceStartTS, referenceVoyageDurationInSec, 
+					sailedDistanceInMiles[i], trackLengthInMiles);
+		}
 		return normTs;
 	}
 	
@@ -517,23 +562,58 @@ public class ShipTrack extends ShipPositionList {
 	 * @return
 	 */
 	public float computeLengthInMiles(int posIndex) {
-		float lengthInMiles = 0;
 		if(posIndex == 0) {
 			return 0;
 		}
-		ShipPosition prevPos = null;
-		int i = 0;
-		for (ShipPosition pos : posList) {
-			if (prevPos != null) {
-				lengthInMiles += prevPos.point.distanceInMiles(pos.point); // in nm
-			}
-			if(i == posIndex) {
-				break;
+		float[] cumulativeMiles = getCumulativeMiles();
+		if(posIndex < 0 || posIndex >= cumulativeMiles.length) { // full length
+			return cumulativeMiles.length == 0 ? 0 : cumulativeMiles[cumulativeMiles.length - 1];
+		}
+		return cumulativeMiles[posIndex];
+	}
+
+	/**
+	 * Length in miles from the first position to each position, summed in track order
+	 */
+	float[] getCumulativeMiles() {
+		if(kinematics == null) {
+			kinematics = new TrackKinematics(this);
+		}
+		return kinematics.cumulativeMiles;
+	}
+
+	/**
+	 * Position at the given distance in miles along the track from the first position,
+	 * interpolated between the two positions around it (binary search on the cumulative distances).
+	 * The first/last position if the distance is out of the track.
+	 */
+	public ShipPosition getPositionAtDistance(float distanceInMiles) {
+		float[] cumulativeMiles = getCumulativeMiles();
+		int n = cumulativeMiles.length;
+		if(distanceInMiles <= 0 || n == 1) {
+			return getFirstPosition();
+		}
+		if(distanceInMiles >= cumulativeMiles[n - 1]) {
+			return getLastPosition();
+		}
+		// first position at or after the distance
+		int low = 1, high = n - 1;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(cumulativeMiles[mid] < distanceInMiles) {
+				low = mid + 1;
+			} else {
+				high = mid;
 			}
-			prevPos = pos;
-			i++;
 		}
-		return lengthInMiles;
+		ShipPosition posBefore = posList.get(low - 1);
+		ShipPosition posAfter = posList.get(low);
+		float r = (distanceInMiles - cumulativeMiles[low - 1]) / (cumulativeMiles[low] - cumulativeMiles[low - 1]);
+		float lat = posBefore.point.lat + (posAfter.point.lat - posBefore.point.lat) * r;
+		float lon = posBefore.point.lon + (posAfter.point.lon - posBefore.point.lon) * r;
+		long tsBefore = posBefore.ts.getTsMillisec();
+		long ts = tsBefore + Math.round((double) r * (posAfter.ts.getTsMillisec() - tsBefore));
+		return new ShipPosition(new Point(lat, lon), new Timestamp(ts));
 	}
 
 	/**
@@ -541,7 +621,7 @@ public class ShipTrack extends ShipPositionList {
 	 * @return
 	 */
 	public float computeLengthInMiles() {
-		trackLengthInMiles = computeLengthInMiles(posList.size()-1);
+		trackLengthInMiles = computeLengthInMiles(posList.size()-1); // O(1) if the positions have not changed
 		return trackLengthInMiles;		
 	}
 	
@@ -563,12 +643,28 @@ public class ShipTrack extends ShipPositionList {
 			  float distanceToDestinationErrorFactor,
 			  float distanceErrorFactor,
 			  float headingErrorFactor) throws Exception {
+		return computeTrackError(trainingPosList, destinationPoint, 
+				distanceToDestinationErrorFactor, distanceErrorFactor, headingErrorFactor, 
+				TrackError.TARGET_IN_INTERVAL);
+	}
+	
+	/**
+	 * @param targetSelection see TrackError.isTargetSelection()
+	 */
+	public TrackError computeTrackError(
+			  ShipPositionList trainingPosList,
+			  Point destinationPoint,
+			  float distanceToDestinationErrorFactor,
+			  float distanceErrorFactor,
+			  float headingErrorFactor,
+			  String targetSelection) throws Exception {
 		TrackError trackError = new TrackError(
 				this, 
 				destinationPoint,
 				distanceToDestinationErrorFactor,
 				distanceErrorFactor,
-				headingErrorFactor
+				headingErrorFactor,
+				targetSelection
 				); 
 		trackError.computeSegmentStats(trainingPosList);
 		trackError.computeStatsForFitness();
@@ -576,34 +672,15 @@ public class ShipTrack extends ShipPositionList {
 	}
 	
 	public int countChangeOfHeadingOverLimit(float thresholdAngle) {
-		int cohOverLimitCount = 0;
-		if(changeOfHeadingSeq == null) {
-			computeChangeOfHeadingSequence();
-		}
-		for (ChangeOfHeading coh : changeOfHeadingSeq) {
-			if(Math.abs(coh.changeOfHeading) > thresholdAngle) {
-				cohOverLimitCount++;
-			}
-		}
-		return cohOverLimitCount;
+		return getChangeOfHeadingSeq().countOverLimit(thresholdAngle);
 	}
 
 	public float sumChangeOfHeading() {
-		if(changeOfHeadingSeq == null) {
-			computeChangeOfHeadingSequence();
-		}
-		float sumChangeOfHeading = 0;
-		for (ChangeOfHeading coh : changeOfHeadingSeq) {
-			sumChangeOfHeading += Math.abs(coh.changeOfHeading);
-		}
-		return sumChangeOfHeading;
+		return getChangeOfHeadingSeq().sumAbsChangeOfHeading();
 	}	
 	
 	public ChangeOfHeadingSequence getChangeOfHeadingSeq() {
-		if(changeOfHeadingSeq == null) {
-			computeChangeOfHeadingSequence();
-		}
-		return changeOfHeadingSeq;
+		return computeChangeOfHeadingSequence();
 	}
 
 	public void setChangeOfHeadingSeq(ChangeOfHeadingSequence changeOfHeadingSeq) {
@@ -615,15 +692,18 @@ public class ShipTrack extends ShipPositionList {
 	 */
 	public void normalizeTimestamps(Timestamp referenceStartTS,
 			   						int referenceVoyageDurationInSec) {
+		float[] cumulativeMiles = getCumulativeMiles();
 		int i = 0;
 		for (ShipPosition pos : posList) {
 			Timestamp normTs = computeNormalizedTime(
 					referenceStartTS,
 					referenceVoyageDurationInSec,
-					i);
+					cumulativeMiles[i],
+					trackLengthInMiles);
 			pos.setTs(normTs);
 			i++;
 		}
+		timestampsChanged();
 	}
 	
 	/*
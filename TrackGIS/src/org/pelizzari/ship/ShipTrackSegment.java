@@ -18,10 +18,15 @@ public class ShipTrackSegment {
 	
 	List<ShipPosition> spaceTargetPosList = new ArrayList<ShipPosition>();
 	List<ShipPosition> targetPosList = new ArrayList<ShipPosition>();
+	// target positions given as indexes of a list (see setTargetPositions), targetPosList is then built on demand
+	ShipPositionList targetPositions;
+	int[] targetIndexes;
 	
 	float[] squaredPerpendicularDistanceOfTargetPositionArray;
 	float[] segmentEndsDistanceToTargetPositionArray;
+	float[] weightOfTargetPositionArray; // null if the target positions are not weighted (all 1)
 	int numberOfCoveredTargetPositions = 0; // number of target positions covered to the segment 
+	float coveredTargetWeight = 0; // sum of the weights of the covered target positions (raw positions)
 	float avgSquaredPerpendicularDistanceToTargetPositions = 0f;
 	float minSquaredPerpendicularDistanceToTargetPositions = 0f;
 	float maxSquaredPerpendicularDistanceToTargetPositions = 0f;
@@ -70,6 +75,11 @@ public class ShipTrackSegment {
 		}
 		squaredPerpendicularDistanceOfTargetPositionArray = new float[numberOfCoveredTargetPositions];
 		segmentEndsDistanceToTargetPositionArray = new float[numberOfCoveredTargetPositions];
+		weightOfTargetPositionArray = null;
+		if(targetIndexes != null) {
+			computeDistancesToTargetIndexes();
+			return;
+		}
 		int i = 0;
 		ShipPosition lastTargetPos = null;
 		for (ShipPosition targetPos : targetPosList) {
@@ -85,26 +95,58 @@ public class ShipTrackSegment {
 		squaredDistanceOfSegmentEndToLastTargetPosition = p2.point.distance(lastTargetPos.point);
 	}
 	
+	/*
+	 * Same as computeDistancesToTargetPositions(), reading the target positions from the arrays of the list
+	 */
+	void computeDistancesToTargetIndexes() {
+		if(targetPositions.isWeighted()) {
+			weightOfTargetPositionArray = new float[numberOfCoveredTargetPositions];
+			for (int i = 0; i < numberOfCoveredTargetPositions; i++) {
+				weightOfTargetPositionArray[i] = targetPositions.getWeight(targetIndexes[i]);
+			}
+		}
+		for (int i = 0; i < numberOfCoveredTargetPositions; i++) {
+			int index = targetIndexes[i];
+			float lat = targetPositions.getLat(index);
+			float lon = targetPositions.getLon(index);
+			squaredPerpendicularDistanceOfTargetPositionArray[i] = 
+					Point.approxSquaredDistanceToSegment(lat, lon, p1.point, p2.point);
+			segmentEndsDistanceToTargetPositionArray[i] =					
+					Point.distance(lat, lon, p1.point) + Point.distance(lat, lon, p2.point);
+		}
+		int lastIndex = targetIndexes[numberOfCoveredTargetPositions-1];
+		squaredDistanceOfSegmentEndToLastTargetPosition = 
+				Point.distance(targetPositions.getLat(lastIndex), targetPositions.getLon(lastIndex), p2.point);
+	}
+	
 	/*
 	 * Compute some stats that can be used for fitness evaluation.
 	 * Beware: distance to target positions MUST be called before
 	 */
 	public void computeStatsForFitness() {
 		// coverage of positions compared to the expected number
-		if(expectedCoveredPositions != 0) {
-			coverageOfExpectedPositions = (float) numberOfCoveredTargetPositions / expectedCoveredPositions;
-		} else {
-			coverageOfExpectedPositions = 0;
-		}		
-		differenceFromExpectedPositions = Math.abs(numberOfCoveredTargetPositions - expectedCoveredPositions);
+		coverageOfExpectedPositions = SegmentErrorStats.coverageOfExpectedPositions(
+				coveredTargetWeight, expectedCoveredPositions);
+		differenceFromExpectedPositions = Math.abs((int) coveredTargetWeight - expectedCoveredPositions);
 		if(numberOfCoveredTargetPositions == 0) {
 			return;
 		}
 		// mean, min, and max distance
+		// (avg and max squared distance as TrackWorkspace, see SegmentErrorStats)
+		SegmentErrorStats errorStats = new SegmentErrorStats();
+		for (int i = 0; i < numberOfCoveredTargetPositions; i++) {
+			float w = weightOfTargetPositionArray != null ? weightOfTargetPositionArray[i] : 1f;
+			errorStats.add(squaredPerpendicularDistanceOfTargetPositionArray[i], w);
+		}
 		minSquaredPerpendicularDistanceToTargetPositions = TrackError.min(squaredPerpendicularDistanceOfTargetPositionArray);
-		maxSquaredPerpendicularDistanceToTargetPositions = TrackError.max(squaredPerpendicularDistanceOfTargetPositionArray);
-		avgSquaredPerpendicularDistanceToTargetPositions = TrackError.avg(squaredPerpendicularDistanceOfTargetPositionArray);
-		avgSegmentEndsDistanceToTargetPositions = TrackError.avg(segmentEndsDistanceToTargetPositionArray);
+		maxSquaredPerpendicularDistanceToTargetPositions = errorStats.getMaxSquaredDistance();
+		avgSquaredPerpendicularDistanceToTargetPositions = errorStats.getAvgSquaredDistance();
+		if(weightOfTargetPositionArray != null) {
+			avgSegmentEndsDistanceToTargetPositions = TrackError.weightedAvg(
+					segmentEndsDistanceToTargetPositionArray, weightOfTargetPositionArray);
+		} else {
+			avgSegmentEndsDistanceToTargetPositions = TrackError.avg(segmentEndsDistanceToTargetPositionArray);
+		}
 
 //		minSquaredPerpendicularDistanceToTargetPositions = Float.MAX_VALUE;
 //		maxSquaredPerpendicularDistanceToTargetPositions = 0;
@@ -128,11 +170,13 @@ public class ShipTrackSegment {
 //		avgSegmentEndsDistanceToTargetPositions = sumSegmentEndsDistance/numberOfCoveredTargetPositions;
 		// variance
 		float sumVariance = 0;
-		for (float sqrDist : squaredPerpendicularDistanceOfTargetPositionArray) {
+		for (int i = 0; i < numberOfCoveredTargetPositions; i++) {
+			float sqrDist = squaredPerpendicularDistanceOfTargetPositionArray[i];
+			float w = weightOfTargetPositionArray != null ? weightOfTargetPositionArray[i] : 1f;
 			sumVariance += (avgSquaredPerpendicularDistanceToTargetPositions - sqrDist) * 
-					(avgSquaredPerpendicularDistanceToTargetPositions - sqrDist); 
+					(avgSquaredPerpendicularDistanceToTargetPositions - sqrDist) * w; 
 		}
-		varSquaredPerpendicularDistanceToTargetPositions = sumVariance/numberOfCoveredTargetPositions;
+		varSquaredPerpendicularDistanceToTargetPositions = sumVariance/coveredTargetWeight;
 	}
 
 	/**
@@ -154,10 +198,11 @@ public class ShipTrackSegment {
 	 * @return
 	 */
 	public boolean isWithinPerpendicularStripe(Point p) {
-		boolean isWithin = false;
-		Point intersectionPoint = p.computeIntersectionOfPerpendicular(p1.point, p2.point);
-		isWithin = intersectionPoint.isOnSegment(p1.point, p2.point);
-		return isWithin;
+		return isWithinPerpendicularStripe(p.lat, p.lon);
+	}
+
+	public boolean isWithinPerpendicularStripe(float lat, float lon) {
+		return Point.isOnPerpendicularStripe(lat, lon, p1.point, p2.point);
 	}
 	
 	/**
@@ -186,6 +231,12 @@ public class ShipTrackSegment {
 		
 	
 	public List<ShipPosition> getTargetPosList() {
+		if(targetPosList == null) { // given as indexes
+			targetPosList = new ArrayList<ShipPosition>(targetIndexes.length);
+			for (int index : targetIndexes) {
+				targetPosList.add(targetPositions.getPosition(index));
+			}
+		}
 		return targetPosList;
 	}
 
@@ -195,7 +246,30 @@ public class ShipTrackSegment {
 	 */
 	public void setTargetPosList(List<ShipPosition> targetPosList) {
 		this.targetPosList = targetPosList;
+		targetPositions = null;
+		targetIndexes = null;
 		numberOfCoveredTargetPositions = targetPosList.size();
+		coveredTargetWeight = numberOfCoveredTargetPositions;
+	}
+
+	/**
+	 * Add all target positions covered by this segment at once, as indexes of a list:
+	 * no position object is needed to compute the distances.
+	 * @param positions
+	 * @param indexes
+	 */
+	public void setTargetPositions(ShipPositionList positions, int[] indexes) {
+		targetPosList = null;
+		targetPositions = positions;
+		targetIndexes = indexes;
+		numberOfCoveredTargetPositions = indexes.length;
+		coveredTargetWeight = numberOfCoveredTargetPositions;
+		if(positions.isWeighted()) {
+			coveredTargetWeight = 0;
+			for (int index : indexes) {
+				coveredTargetWeight += positions.getWeight(index);
+			}
+		}
 	}
 
 	/**
@@ -203,8 +277,12 @@ public class ShipTrackSegment {
 	 * @param targetPosList
 	 */
 	public void addTargetPos(ShipPosition targetPos) {
+		getTargetPosList();
+		targetPositions = null;
+		targetIndexes = null;
 		targetPosList.add(targetPos);
 		numberOfCoveredTargetPositions = targetPosList.size();
+		coveredTargetWeight = numberOfCoveredTargetPositions;
 	}
 	
 	public ShipPosition getP1() {
@@ -231,6 +309,13 @@ public class ShipTrackSegment {
 		return numberOfCoveredTargetPositions;
 	}
 
+	/**
+	 * Number of raw positions covered: the sum of the weights of the target positions
+	 */
+	public float getCoveredTargetWeight() {
+		return coveredTargetWeight;
+	}
+
 	public float getAvgSquaredPerpendicularDistanceToTargetPositions() {
 		return avgSquaredPerpendicularDistanceToTargetPositions;
 	}
@@ -279,6 +364,7 @@ public class ShipTrackSegment {
 	public String toString() {
 		String s = "Segment: ";
 		s = s + p1 + " --- " + p2 +", l = "+ length + " deg, d = " + durationInSeconds + " s" + "\n";
+		List<ShipPosition> targetPosList = getTargetPosList();
 		if(targetPosList != null && targetPosList.size() > 0) {
 //			int i = 0;
 //			for (ShipPosition targetPos : targetPosList) {
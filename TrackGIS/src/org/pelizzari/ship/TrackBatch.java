@@ -0,0 +1,260 @@
+package org.pelizzari.ship;
+
+import java.util.Arrays;
+
+import org.pelizzari.gis.GeoKernels;
+import org.pelizzari.gis.Point;
+
+/**
+ * TrackWorkspace for a slice of a population: the tracks (start point + displacements, all of the same length)
+ * of the individuals in reusable structure-of-arrays buffers, value i of track k at i*trackCount + k, so that
+ * each step is a loop over the tracks on contiguous arrays. Same errors as TrackWorkspace, track by track.
+ * The distance error reads the arrays of a ColumnarShipPositionList (a copy is made once for other lists).
+ * Usage: setSize(), setDisplacement() for each track and displacement, reconstruct(), normalizeTimestamps(),
+ * computeSegmentStats(), computeErrors().
+ * Not thread safe: use one batch per thread.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class TrackBatch {
+
+	int trackCount = 0;
+	int displacementCount = 0; // positions = displacements + 1
+	float[] deltaLat = new float[0]; // displacements
+	float[] deltaLon = new float[0];
+
+	// positions
+	float[] lat = new float[0];
+	float[] lon = new float[0];
+	float[] latRad = new float[0];
+	float[] lonRad = new float[0];
+	long[] ts = new long[0]; // normalized
+	float[] cumulativeMiles = new float[0];
+
+	// segments (position i to i+1)
+	float[] segLengthInMiles = new float[0];
+	float[] segCoverageOfExpectedPositions = new float[0];
+	float[] segAvgSquaredDistance = new float[0];
+
+	// tracks
+	float[] trackLengthInMiles = new float[0];
+	float[] sumChangeOfHeading = new float[0];
+	float[] heading = new float[0]; // of the last segment
+	float[] distanceError = new float[0];
+	float[] minCoverage = new float[0];
+
+	// training positions as arrays
+	ShipPositionList trainingSource = null;
+	ColumnarShipPositionList trainingColumns = null;
+	float[] tLat, tLon, tWeight; // tWeight null if not weighted
+	long[] tTs;
+	SegmentErrorStats errorStats = new SegmentErrorStats(); // of the current segment, set by scanInterval()
+
+	/**
+	 * Number of tracks and of displacements (at least one) of each track; the buffers grow if needed
+	 */
+	public void setSize(int tracks, int displacements) {
+		if(displacements < 1) {
+			throw new IllegalArgumentException("Tracks without displacements");
+		}
+		int positions = tracks * (displacements + 1);
+		if(positions > lat.length) {
+			lat = new float[positions];
+			lon = new float[positions];
+			latRad = new float[positions];
+			lonRad = new float[positions];
+			ts = new long[positions];
+			cumulativeMiles = new float[positions];
+		}
+		int segments = tracks * displacements;
+		if(segments > deltaLat.length) {
+			deltaLat = new float[segments];
+			deltaLon = new float[segments];
+			segLengthInMiles = new float[segments];
+			segCoverageOfExpectedPositions = new float[segments];
+			segAvgSquaredDistance = new float[segments];
+		}
+		if(tracks > trackLengthInMiles.length) {
+			trackLengthInMiles = new float[tracks];
+			sumChangeOfHeading = new float[tracks];
+			heading = new float[tracks];
+			distanceError = new float[tracks];
+			minCoverage = new float[tracks];
+		}
+		trackCount = tracks;
+		displacementCount = displacements;
+	}
+
+	public void setDisplacement(int track, int index, float deltaLat, float deltaLon) {
+		this.deltaLat[index * trackCount + track] = deltaLat;
+		this.deltaLon[index * trackCount + track] = deltaLon;
+	}
+
+	/**
+	 * As TrackWorkspace.reconstruct(), for all the tracks
+	 */
+	public void reconstruct(float startLat, float startLon) {
+		int n = trackCount;
+		Arrays.fill(lat, 0, n, startLat);
+		Arrays.fill(lon, 0, n, startLon);
+		Arrays.fill(latRad, 0, n, (float) Math.toRadians(startLat));
+		Arrays.fill(lonRad, 0, n, (float) Math.toRadians(startLon));
+		Arrays.fill(cumulativeMiles, 0, n, 0f);
+		Arrays.fill(trackLengthInMiles, 0, n, 0f);
+		Arrays.fill(sumChangeOfHeading, 0, n, 0f);
+		for (int i = 0; i < displacementCount; i++) {
+			int p = i * n, q = (i + 1) * n;
+			for (int k = 0; k < n; k++) {
+				lat[q + k] = lat[p + k] + deltaLat[p + k];
+				lon[q + k] = lon[p + k] + deltaLon[p + k];
+				latRad[q + k] = (float) Math.toRadians(lat[q + k]);
+				lonRad[q + k] = (float) Math.toRadians(lon[q + k]);
+				segLengthInMiles[p + k] = GeoKernels.equirectangularInMiles(latRad[p + k], lonRad[p + k], latRad[q + k], lonRad[q + k]);
+				trackLengthInMiles[k] += segLengthInMiles[p + k];
+				cumulativeMiles[q + k] = trackLengthInMiles[k];
+			}
+			for (int k = 0; k < n; k++) {
+				float segHeading = Heading.computeHeading(lat[q + k] - lat[p + k], lon[q + k] - lon[p + k]);
+				if(i > 0) {
+					sumChangeOfHeading[k] += Math.abs(ChangeOfHeading.computeChangeOfHeading(heading[k], segHeading));
+				}
+				heading[k] = segHeading;
+			}
+		}
+	}
+
+	/**
+	 * As TrackWorkspace.normalizeTimestamps(), for all the tracks
+	 */
+	public void normalizeTimestamps(long referenceStartTsInMillisec, int referenceVoyageDurationInSec) {
+		int n = trackCount;
+		for (int i = 0; i <= displacementCount; i++) {
+			int p = i * n;
+			for (int k = 0; k < n; k++) {
+				ts[p + k] = ShipTrack.computeNormalizedTsMillisec(referenceStartTsInMillisec, referenceVoyageDurationInSec,
+						cumulativeMiles[p + k], trackLengthInMiles[k]);
+			}
+		}
+	}
+
+	ColumnarShipPositionList columnsOf(ShipPositionList trainingPosList) {
+		if(trainingPosList instanceof ColumnarShipPositionList) {
+			return (ColumnarShipPositionList) trainingPosList;
+		}
+		if(trainingPosList != trainingSource) {
+			trainingColumns = new ColumnarShipPositionList(trainingPosList);
+			trainingColumns.isTimeOrdered();
+			trainingSource = trainingPosList;
+		}
+		return trainingColumns;
+	}
+
+	/**
+	 * As TrackWorkspace.computeSegmentStats(trainingPosList), for all the tracks
+	 */
+	public void computeSegmentStats(ShipPositionList trainingPosList) {
+		ColumnarShipPositionList columns = columnsOf(trainingPosList);
+		boolean timeOrdered = columns.isTimeOrdered();
+		int trainingSize = columns.size;
+		float trainingWeight = trainingPosList.getTotalWeight();
+		tLat = columns.lat;
+		tLon = columns.lon;
+		tTs = columns.ts;
+		tWeight = columns instanceof WeightedShipPositionList ? ((WeightedShipPositionList) columns).weight : null;
+		int n = trackCount;
+		for (int s = 0; s < displacementCount; s++) {
+			int p = s * n, q = (s + 1) * n;
+			for (int k = 0; k < n; k++) {
+				long startTs = ts[p + k], endTs = ts[q + k];
+				int from = 0, to = trainingSize;
+				if(timeOrdered) {
+					from = columns.indexOfFirstAtOrAfter(startTs);
+					to = Math.max(from, columns.indexOfFirstAfter(endTs));
+				}
+				scanInterval(from, to, startTs, endTs, lat[p + k], lon[p + k], lat[q + k], lon[q + k]);
+				int expectedCoveredPositions = SegmentErrorStats.expectedCoveredPositions(
+						segLengthInMiles[p + k], trackLengthInMiles[k], trainingWeight);
+				segCoverageOfExpectedPositions[p + k] = SegmentErrorStats.coverageOfExpectedPositions(
+						errorStats.weight, expectedCoveredPositions);
+				segAvgSquaredDistance[p + k] = errorStats.getAvgSquaredDistance();
+			}
+		}
+	}
+
+	/**
+	 * Squared distances to the segment of the training positions from ... to-1 in the interval,
+	 * added to errorStats (the kernel of computeSegmentStats(), on the arrays of the training positions)
+	 */
+	void scanInterval(int from, int to, long startTs, long endTs, float lat1, float lon1, float lat2, float lon2) {
+		errorStats.reset();
+		for (int i = from; i < to; i++) {
+			if(tTs[i] < startTs || tTs[i] > endTs) {
+				continue;
+			}
+			float squaredDistance = Point.approxSquaredDistanceToSegment(tLat[i], tLon[i], lat1, lon1, lat2, lon2);
+			errorStats.add(squaredDistance, tWeight == null ? 1f : tWeight[i]);
+		}
+	}
+
+	/**
+	 * As TrackWorkspace.computeSegmentStats(raster), for all the tracks
+	 */
+	public void computeSegmentStats(DistanceFieldRaster raster) {
+		int n = trackCount;
+		for (int s = 0; s < displacementCount; s++) {
+			int p = s * n, q = (s + 1) * n;
+			for (int k = 0; k < n; k++) {
+				segCoverageOfExpectedPositions[p + k] = 1;
+				segAvgSquaredDistance[p + k] = raster.getAvgSquaredDistanceAlongSegment(lat[p + k], lon[p + k], lat[q + k], lon[q + k]);
+			}
+		}
+	}
+
+	/**
+	 * As TrackWorkspace.getError(), the error of track k in errors[offset + k]
+	 */
+	public void computeErrors(Point destinationPoint,
+							  float distanceToDestinationErrorFactor,
+							  float distanceErrorFactor,
+							  float headingErrorFactor,
+							  float[] errors, int offset) {
+		int n = trackCount;
+		// as TrackError.max() and min() over the segments of each track
+		System.arraycopy(segAvgSquaredDistance, 0, distanceError, 0, n);
+		System.arraycopy(segCoverageOfExpectedPositions, 0, minCoverage, 0, n);
+		for (int s = 1; s < displacementCount; s++) {
+			int p = s * n;
+			for (int k = 0; k < n; k++) {
+				if(segAvgSquaredDistance[p + k] > distanceError[k]) {
+					distanceError[k] = segAvgSquaredDistance[p + k];
+				}
+				if(segCoverageOfExpectedPositions[p + k] < minCoverage[k]) {
+					minCoverage[k] = segCoverageOfExpectedPositions[p + k];
+				}
+			}
+		}
+		int last = displacementCount * n;
+		for (int k = 0; k < n; k++) {
+			float destinationError = Point.distanceInMiles(lat[last + k], lon[last + k], destinationPoint.lat, destinationPoint.lon);
+			float avgChangeOfHeading = sumChangeOfHeading[k] / displacementCount;
+			errors[offset + k] = TrackError.computeError(destinationError, distanceError[k], avgChangeOfHeading,
+					1f - minCoverage[k], distanceToDestinationErrorFactor, distanceErrorFactor, headingErrorFactor);
+		}
+	}
+
+	public int getTrackCount() {
+		return trackCount;
+	}
+
+	public float getLat(int track, int index) {
+		return lat[index * trackCount + track];
+	}
+
+	public float getLon(int track, int index) {
+		return lon[index * trackCount + track];
+	}
+
+	public long getTsMillisec(int track, int index) {
+		return ts[index * trackCount + track];
+	}
+}
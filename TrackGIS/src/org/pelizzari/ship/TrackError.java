@@ -23,24 +23,32 @@ import org.pelizzari.time.Timestamp;
  */
 public class TrackError {
 	
-//	final static float NEIGHBORHOOD_SEGMENT_SQUARED_DISTANCE = 0.001f; // position is not too far if < threshold
+	final static float NEIGHBORHOOD_SEGMENT_SQUARED_DISTANCE = 0.001f; // position is not too far if < threshold
 //	final static float NEIGHBORHOOD_SEGMENT_END = 1; // number of positions to be checked to control segment length	
 	final static float NEIGHBORHOOD_SEGMENT_FRAME = 0.1f;
 	
 	final static float ELLIPSE_MAJOR_AXIS_FACTOR = 1.2f; // Neighbourhood ellipse major axis = segment * factor
+	
+	// selection of the target positions of each segment
+	public final static String TARGET_IN_INTERVAL = "INTERVAL"; // in the time interval of the segment
+	public final static String TARGET_IN_INTERVAL_AND_ON_STRIPE = "INTERVAL_AND_STRIPE"; // ... and on its perpendicular stripe 
+	public final static String TARGET_ON_STRIPE = "STRIPE"; // on the perpendicular stripe, any time
+	public final static String TARGET_IN_INTERVAL_AND_CORRIDOR = "INTERVAL_AND_CORRIDOR"; // in the interval, segment box and corridor 
 														  	
 	//final static float MAX_CHANGE_OF_HEADING_ANGLE = 40f; // max angle for a change of heading not to be over the limit
 	//final static float BAD_TRACK_SEGMENT_FITNESS = 10f; // artificially high distance for segment that does not follow the target path
 //	final static float BAD_TRACK_FITNESS = 10E4f; // artificially high distance for segment that does not follow the target path
 //	final static float MIN_POSITION_COVERAGE_THRESHOLD = 0.99f; // percentage of target positions that are covered by the track
 		
-	static float DISTANCE_TO_DESTINATION_ERROR_FACTOR = 0.01f; // multiply distance of positions to segment
-	static float DISTANCE_ERROR_FACTOR = 1f; // multiply distance of positions to segment
-	static float HEADING_ERROR_FACTOR = 0.1f; // multiply by the number of  changes of heading over the limit 
-	static float SEGMENT_COVERAGE_ERROR_FACTOR = 0f; //  multiply by the min coverage of the segments
+	final static float SEGMENT_COVERAGE_ERROR_FACTOR = 0f; //  multiply by the min coverage of the segments
 	//final static float TOTAL_COVERAGE_ERROR_FACTOR = 10f; // multiply by the number of  changes of heading over the limit 
 	
 	// the track to which the error refers to 
+	// per track error, so that tracks can be evaluated in parallel
+	float distanceToDestinationErrorFactor = 0.01f; // multiply distance of positions to segment
+	float distanceErrorFactor = 1f; // multiply distance of positions to segment
+	float headingErrorFactor = 0.1f; // multiply by the number of  changes of heading over the limit 
+	String targetSelection = TARGET_IN_INTERVAL; // target positions of each segment, see isTargetSelection()
 	ShipTrack baseTrack;
 	// the target positions used to compute the fitness 
 	ShipPositionList trainingPosList;
@@ -83,9 +91,25 @@ public class TrackError {
 					  float headingErrorFactor) {
 		baseTrack = track;
 		this.destinationPoint = destinationPoint;
-		DISTANCE_TO_DESTINATION_ERROR_FACTOR = distanceToDestinationErrorFactor;
-		DISTANCE_ERROR_FACTOR = distanceErrorFactor;
-		HEADING_ERROR_FACTOR = headingErrorFactor;
+		this.distanceToDestinationErrorFactor = distanceToDestinationErrorFactor;
+		this.distanceErrorFactor = distanceErrorFactor;
+		this.headingErrorFactor = headingErrorFactor;
+	}
+	
+	/**
+	 * @param targetSelection see isTargetSelection()
+	 */
+	public TrackError(ShipTrack track,
+					  Point destinationPoint,
+					  float distanceToDestinationErrorFactor,
+					  float distanceErrorFactor,
+					  float headingErrorFactor,
+					  String targetSelection) {
+		this(track, destinationPoint, distanceToDestinationErrorFactor, distanceErrorFactor, headingErrorFactor);
+		if(!isTargetSelection(targetSelection)) {
+			throw new IllegalArgumentException("Unknown target selection: " + targetSelection);
+		}
+		this.targetSelection = targetSelection;
 	}
 	
 
@@ -103,6 +127,21 @@ public class TrackError {
 //			}
 //	}
 
+	/**
+	 * True for TARGET_IN_INTERVAL (default), TARGET_IN_INTERVAL_AND_ON_STRIPE, TARGET_ON_STRIPE, 
+	 * TARGET_IN_INTERVAL_AND_CORRIDOR
+	 */
+	public static boolean isTargetSelection(String targetSelection) {
+		return targetSelection.equals(TARGET_IN_INTERVAL) || 
+			   targetSelection.equals(TARGET_IN_INTERVAL_AND_ON_STRIPE) ||
+			   targetSelection.equals(TARGET_ON_STRIPE) ||
+			   targetSelection.equals(TARGET_IN_INTERVAL_AND_CORRIDOR);
+	}
+
+	public String getTargetSelection() {
+		return targetSelection;
+	}
+	
 	public static Box makeSegmentBox(ShipTrackSegment segment) {
 		Box box = new Box(segment.center, segment.length*(1+NEIGHBORHOOD_SEGMENT_FRAME)/2);
 		return box;
@@ -129,6 +168,7 @@ public class TrackError {
 //			}			
 //		}
 				
+		float trackLengthInMiles = baseTrack.computeLengthInMiles(); // from the cumulative distances of the track
 		for (ShipTrackSegment seg : baseTrack.getSegList()) {			
 			// bounding box of the 2 positions of the GA track (including a frame)
 			//Box box = makeSegmentBox(seg);
@@ -136,33 +176,34 @@ public class TrackError {
 			// filter position of target track and compute total squared distance to segment
 			//List<ShipPosition> targetPosList = targetTrack.getPosListInIntervalAndBox(interval, box);
 			
-			// use this if you want to get only position that correspond to the temporal interval of the segment
-			List<ShipPosition> targetPosList = trainingPosList.getPosListInInterval(seg.getTimeInterval());
-
-			// use this if you want to get only position that correspond to the temporal interval of the segment
-			// and are located on the perpendicular stripe
-			//List<ShipPosition> targetPosList = trainingPosList.getPosListInIntervalAndOnStripe(seg);
-
-			// use this if you want to get only position that are located on the perpendicular stripe
-			//List<ShipPosition> targetPosList = trainingPosList.getPosListOnStripe(seg);
+			// target positions, as indexes: no position object is created
+			// (see isTargetSelection(); the spatial modes are faster with trainingPosList.buildSpatialIndex())
+			int[] targetIndexes;
+			if(targetSelection.equals(TARGET_IN_INTERVAL_AND_ON_STRIPE)) {
+				targetIndexes = trainingPosList.getIndexesInIntervalAndOnStripe(seg);
+			} else if(targetSelection.equals(TARGET_ON_STRIPE)) {
+				targetIndexes = trainingPosList.getIndexesOnStripe(seg);
+			} else if(targetSelection.equals(TARGET_IN_INTERVAL_AND_CORRIDOR)) {
+				// use only positions within a "corridor" of width NEIGHBORHOOD_SEGMENT_SQUARED_DISTANCE  
+				targetIndexes = trainingPosList.getIndexesInIntervalAndBoxAndCloseToSegment(
+						seg.getTimeInterval(),
+						makeSegmentBox(seg),
+						seg.p1.point, seg.p2.point, 
+						NEIGHBORHOOD_SEGMENT_SQUARED_DISTANCE);
+			} else {
+				targetIndexes = trainingPosList.getIndexesInInterval(seg.getTimeInterval());
+			}
 
 			// use this if you want to get only position that are located in the circle
 			// which radius is th segment
 			//List<ShipPosition> targetPosList = trainingPosList.getPosListOnStripe(seg);
-
-			// use this if you want to get only positions within a "corridor" of width NEIGHBORHOOD_SEGMENT_SQUARED_DISTANCE  
-//			List<ShipPosition> targetPosList = 
-//					trainingPosList.getPosListInIntervalAndBoxAndCloseToSegment(
-//							seg.getTimeInterval(),
-//							box,
-//							seg.p1.point, seg.p2.point, 
-//							NEIGHBORHOOD_SEGMENT_SQUARED_DISTANCE);
 			
-			seg.setTargetPosList(targetPosList);
+			seg.setTargetPositions(trainingPosList, targetIndexes);
 			
 			// estimate the number of positions covered by this segment based on its length
-			// ASSUPTION: positions are spread uniformly along the voyage path
-			int expectedCoveredPositions = (int) (seg.lengthInMiles / baseTrack.trackLengthInMiles * trainingPosList.getPosList().size());			
+			// (raw positions: the weights of a compressed list, see WeightedShipPositionList)
+			int expectedCoveredPositions = SegmentErrorStats.expectedCoveredPositions(
+					seg.lengthInMiles, trackLengthInMiles, trainingPosList.getTotalWeight());
 			seg.setExpectedCoveredPositions(expectedCoveredPositions);
 			
 			seg.computeDistancesToTargetPositions();
@@ -175,7 +216,7 @@ public class TrackError {
 	 */
 	public void computeStatsForFitness() {
 		noCoverageSegmentCounter = 0;
-		int coveredTargetPositionCount = 0;
+		float coveredTargetPositionCount = 0; // raw positions (sum of the weights)
 		float sumSegVariance = 0, 
 			  sumSegAvgSquaredPerpendicularDistance = 0,
 			  sumSegAvgSegmentEndsDistance = 0,
@@ -188,8 +229,8 @@ public class TrackError {
 		float[] avgSegmentEndsDistanceBySegment = new float[nOfSegments];
 		int i = 0;
 		for (ShipTrackSegment seg : baseTrack.getSegList()) {
-			int segTargetPosCounter = seg.getNumberOfCoveredTargetPositions();
-			coveredTargetPositionsBySegment[i] = segTargetPosCounter;
+			float segTargetPosCounter = seg.getCoveredTargetWeight();
+			coveredTargetPositionsBySegment[i] = (int) segTargetPosCounter;
 			coverageOfExpectedPositionsBySegment[i] = seg.getCoverageOfExpectedPositions();
 			avgPerpendicularDistanceBySegment[i] = seg.getAvgSquaredPerpendicularDistanceToTargetPositions();
 			maxPerpendicularDistanceBySegment[i] = seg.getMaxSquaredPerpendicularDistanceToTargetPositions();
@@ -206,7 +247,7 @@ public class TrackError {
 			i++;
 		}
 		targetPositionCoverage = 
-				(float) coveredTargetPositionCount / trainingPosList.getPosList().size();
+				coveredTargetPositionCount / trainingPosList.getTotalWeight();
 		
 		avgTargetPositionCoverageBySegment = avg(coverageOfExpectedPositionsBySegment); 
 //				sumSegCoverageOfExpectedPositions / nOfSegments;
@@ -325,13 +366,27 @@ public class TrackError {
 	
 	
 	public float getError() {
+		return computeError(getDestinationError(), getDistanceError(), getAvgChangeOfHeading(), getSegmentCoverageError(),
+				distanceToDestinationErrorFactor, distanceErrorFactor, headingErrorFactor);
+	}
+	
+	/**
+	 * The error from its terms, also used by TrackWorkspace.getError()
+	 */
+	static float computeError(float destinationError, 
+							  float distanceError, 
+							  float avgChangeOfHeading, 
+							  float segmentCoverageError,
+							  float distanceToDestinationErrorFactor,
+							  float distanceErrorFactor,
+							  float headingErrorFactor) {
 		float error =
-			getDestinationError()*DISTANCE_TO_DESTINATION_ERROR_FACTOR +
-			getDistanceError()*DISTANCE_ERROR_FACTOR + 
-			getAvgChangeOfHeading()*HEADING_ERROR_FACTOR +
+			destinationError*distanceToDestinationErrorFactor +
+			distanceError*distanceErrorFactor + 
+			avgChangeOfHeading*headingErrorFactor +
 			//trackError.avgTotalSegmentError() +
 			//trackError.getAvgSquaredDistanceAllSegments() +
-			getSegmentCoverageError()*SEGMENT_COVERAGE_ERROR_FACTOR +
+			segmentCoverageError*SEGMENT_COVERAGE_ERROR_FACTOR +
 			//getTotalCoverageError() +
 			//getVarianceError() +
 			0f;
@@ -401,9 +456,9 @@ public class TrackError {
 				getAvgChangeOfHeading() + "," +
 				getVarianceError() + "," +
 				getSegmentCoverageError() + "," +
-				DISTANCE_ERROR_FACTOR + "," +
-				DISTANCE_TO_DESTINATION_ERROR_FACTOR + "," +
-				HEADING_ERROR_FACTOR + "," +
+				distanceErrorFactor + "," +
+				distanceToDestinationErrorFactor + "," +
+				headingErrorFactor + "," +
 				0 + "," +
 				0 + "," +
 				FITNESS + ")";
@@ -437,11 +492,11 @@ public class TrackError {
 		s = s + "minimum coverage of expected pos = " + minCoverageOfExpectedPositionsBySegment + "\n"; 
 		s = s + "---\n"; 				
 		s = s + "destinationError = " + getDestinationError() + 
-				" (* "+ DISTANCE_TO_DESTINATION_ERROR_FACTOR + "=" + getDestinationError()*DISTANCE_TO_DESTINATION_ERROR_FACTOR +")\n"; 						
+				" (* "+ distanceToDestinationErrorFactor + "=" + getDestinationError()*distanceToDestinationErrorFactor +")\n"; 						
 		s = s + "distanceError = " + getDistanceError() +
-				" (* "+ DISTANCE_ERROR_FACTOR + "=" + getDistanceError()*DISTANCE_ERROR_FACTOR +")\n"; 
+				" (* "+ distanceErrorFactor + "=" + getDistanceError()*distanceErrorFactor +")\n"; 
 		s = s + "avgChangeOfHeading = " + getAvgChangeOfHeading() +
-				" (* "+ HEADING_ERROR_FACTOR + "=" + getAvgChangeOfHeading()*HEADING_ERROR_FACTOR +")\n";		
+				" (* "+ headingErrorFactor + "=" + getAvgChangeOfHeading()*headingErrorFactor +")\n";		
 		s = s + "segmentCoverageError = " + getSegmentCoverageError() + 
 				" (* "+ SEGMENT_COVERAGE_ERROR_FACTOR + "=" + getSegmentCoverageError()*SEGMENT_COVERAGE_ERROR_FACTOR +")\n";	
 		s = s + "ERROR for fitness = " + getError() + "\n"; 
@@ -480,8 +535,15 @@ public class TrackError {
 	}
 	
 	public static float min(float[] array){  
+		return min(array, array.length);
+	}
+	
+	/**
+	 * Min of the first n values
+	 */
+	public static float min(float[] array, int n){  
 	     float minValue = array[0];  
-	     for(int i=1;i<array.length;i++){  
+	     for(int i=1;i<n;i++){  
 	     if(array[i] < minValue){  
 	    	 	minValue = array[i];  
 	        }  
@@ -490,8 +552,15 @@ public class TrackError {
 	}  
 	
 	public static float max(float[] array){  
+		return max(array, array.length);
+	}
+	
+	/**
+	 * Max of the first n values
+	 */
+	public static float max(float[] array, int n){  
 	     float maxValue = array[0];  
-	     for(int i=1;i<array.length;i++){  
+	     for(int i=1;i<n;i++){  
 	     if(array[i] > maxValue){  
 	    	 	maxValue = array[i];  
 	        }  
@@ -506,4 +575,17 @@ public class TrackError {
 		}  
 	    return sum/array.length;  
 	} 	
+
+	/**
+	 * Same as avg() if all the weights are 1
+	 */
+	public static float weightedAvg(float[] array, float[] weights){  
+		float sum = array[0] * weights[0];  
+		float sumWeights = weights[0];  
+		for(int i=1;i<array.length;i++){  
+		   sum += array[i] * weights[i];  
+		   sumWeights += weights[i];  
+		}  
+	    return sum/sumWeights;  
+	} 	
 }
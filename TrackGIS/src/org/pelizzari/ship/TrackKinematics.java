@@ -0,0 +1,115 @@
+package org.pelizzari.ship;
+
+import org.pelizzari.gis.GeoKernels;
+
+/**
+ * Kinematics of a track computed in one pass over the positions, in primitive arrays:
+ * for each leg (position i to i+1) the displacement, heading, length and speed,
+ * for each pair of consecutive legs the change of heading, and the cumulative length at each position.
+ * Same values as the Displacement, Heading and ChangeOfHeading objects and as Point.distanceInMiles() (GeoKernels.equirectangularInMiles()).
+ * HeadingSequence and ChangeOfHeadingSequence are views over these arrays (see ShipTrack).
+ * @author andrea@pelizzari.org
+ *
+ */
+public class TrackKinematics {
+
+	int positionCount;
+	float[] deltaLat; // legs
+	float[] deltaLon; // legs
+	float[] heading; // legs, in degrees (0-359)
+	float[] changeOfHeading; // legs - 1, in degrees +/-180
+	float[] legLengthInMiles; // legs
+	float[] cumulativeMiles; // positions, 0 at the first position
+	float[] speedInKnots; // legs
+	boolean speedsValid = false;
+
+	public TrackKinematics(ShipPositionList positions) {
+		positionCount = positions.size();
+		int legCount = Math.max(positionCount - 1, 0);
+		deltaLat = new float[legCount];
+		deltaLon = new float[legCount];
+		heading = new float[legCount];
+		changeOfHeading = new float[Math.max(legCount - 1, 0)];
+		legLengthInMiles = new float[legCount];
+		cumulativeMiles = new float[positionCount];
+		speedInKnots = new float[legCount];
+		if(positionCount == 0) {
+			return;
+		}
+		float[] lat, lon;
+		if(positions instanceof ColumnarShipPositionList) { // the arrays of the list, nothing is copied
+			lat = ((ColumnarShipPositionList) positions).lat;
+			lon = ((ColumnarShipPositionList) positions).lon;
+		} else {
+			lat = new float[positionCount];
+			lon = new float[positionCount];
+			for (int i = 0; i < positionCount; i++) {
+				lat[i] = positions.getLat(i);
+				lon[i] = positions.getLon(i);
+			}
+		}
+		GeoKernels.consecutiveDistances(GeoKernels.EQUIRECTANGULAR, lat, lon, positionCount, legLengthInMiles);
+		float lengthInMiles = 0;
+		for (int i = 0; i < legCount; i++) {
+			deltaLat[i] = lat[i + 1] - lat[i];
+			deltaLon[i] = lon[i + 1] - lon[i];
+			heading[i] = Heading.computeHeading(deltaLat[i], deltaLon[i]);
+			if(i > 0) {
+				changeOfHeading[i - 1] = ChangeOfHeading.computeChangeOfHeading(heading[i - 1], heading[i]);
+			}
+			lengthInMiles += legLengthInMiles[i];
+			cumulativeMiles[i + 1] = lengthInMiles;
+		}
+		computeSpeeds(positions);
+	}
+
+	/**
+	 * Recompute the speeds only, e.g. after the timestamps have been changed (the coordinates are the same)
+	 */
+	void computeSpeeds(ShipPositionList positions) {
+		for (int i = 0; i < speedInKnots.length; i++) {
+			float duration = (positions.getTsMillisec(i + 1) - positions.getTsMillisec(i)) / 3600000f; // in hours
+			speedInKnots[i] = legLengthInMiles[i] / duration;
+		}
+		speedsValid = true;
+	}
+
+	public int getLegCount() {
+		return legLengthInMiles.length;
+	}
+
+	public float[] getDeltaLat() {
+		return deltaLat;
+	}
+
+	public float[] getDeltaLon() {
+		return deltaLon;
+	}
+
+	public float[] getHeadings() {
+		return heading;
+	}
+
+	public float[] getChangesOfHeading() {
+		return changeOfHeading;
+	}
+
+	public float[] getLegLengthsInMiles() {
+		return legLengthInMiles;
+	}
+
+	public float[] getCumulativeMiles() {
+		return cumulativeMiles;
+	}
+
+	/**
+	 * Speed of each leg in knots (infinite if the two positions have the same timestamp)
+	 */
+	public float[] getSpeedsInKnots() {
+		return speedInKnots;
+	}
+
+	public float getLengthInMiles() {
+		return positionCount == 0 ? 0 : cumulativeMiles[positionCount - 1];
+	}
+}
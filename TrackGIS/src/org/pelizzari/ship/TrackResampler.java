@@ -0,0 +1,178 @@
+package org.pelizzari.ship;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.pelizzari.gis.Point;
+
+/**
+ * Resampling of a time ordered track in one pass: the input and the output timestamps advance together,
+ * and the samples are written in the arrays of a ColumnarShipPositionList (no objects per sample).
+ * Modes:
+ * FIXED_RATE: first position, one sample every period, last position (as ShipTrack.getInterpolatedTrack()).
+ * FIXED_DISTANCE: first position, one sample every distance in miles along the track, last position.
+ * ALIGNED: one sample at each timestamp of a time ordered reference list within the track.
+ * Create with fixedRate(), fixedDistance() or alignedTo().
+ * @author andrea@pelizzari.org
+ *
+ */
+public class TrackResampler {
+
+	public final static String FIXED_RATE = "FIXED_RATE";
+	public final static String FIXED_DISTANCE = "FIXED_DISTANCE";
+	public final static String ALIGNED = "ALIGNED";
+
+	final static int MAX_INITIAL_CAPACITY = 1 << 16; // samples; beyond it the arrays grow
+
+	static ForkJoinPool pool = new ForkJoinPool();
+
+	String mode;
+	long periodInMillis;
+	float distanceInMiles;
+	ShipPositionList reference;
+
+	TrackResampler(String mode) {
+		this.mode = mode;
+	}
+
+	public static TrackResampler fixedRate(long periodInMillis) {
+		if(periodInMillis <= 0) {
+			throw new IllegalArgumentException("Resampling period must be > 0: " + periodInMillis);
+		}
+		TrackResampler resampler = new TrackResampler(FIXED_RATE);
+		resampler.periodInMillis = periodInMillis;
+		return resampler;
+	}
+
+	public static TrackResampler fixedDistance(float distanceInMiles) {
+		if(distanceInMiles <= 0) {
+			throw new IllegalArgumentException("Resampling distance must be > 0: " + distanceInMiles);
+		}
+		TrackResampler resampler = new TrackResampler(FIXED_DISTANCE);
+		resampler.distanceInMiles = distanceInMiles;
+		return resampler;
+	}
+
+	public static TrackResampler alignedTo(ShipPositionList reference) {
+		if(!reference.isTimeOrdered()) {
+			throw new IllegalArgumentException("Reference positions not in time order");
+		}
+		TrackResampler resampler = new TrackResampler(ALIGNED);
+		resampler.reference = reference;
+		return resampler;
+	}
+
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * Samples of a time ordered track with at least one position
+	 */
+	public ColumnarShipPositionList resample(ShipPositionList track) {
+		if(!track.isTimeOrdered()) {
+			throw new IllegalArgumentException("Track positions not in time order");
+		}
+		int n = track.size();
+		long firstTs = track.getTsMillisec(0);
+		long lastTs = track.getTsMillisec(n - 1);
+		ColumnarShipPositionList samples;
+		if(mode.equals(FIXED_RATE)) {
+			samples = new ColumnarShipPositionList((int) Math.min((lastTs - firstTs) / periodInMillis + 2, MAX_INITIAL_CAPACITY));
+			samples.addPosition(firstTs, track.getLat(0), track.getLon(0));
+			Interpolator interpolator = new Interpolator(track, samples);
+			for (long t = firstTs + periodInMillis; t < lastTs; t += periodInMillis) {
+				interpolator.add(t);
+			}
+			samples.addPosition(lastTs, track.getLat(n - 1), track.getLon(n - 1));
+		} else if(mode.equals(ALIGNED)) {
+			int from = reference.indexOfFirstAtOrAfter(firstTs);
+			int to = reference.indexOfFirstAfter(lastTs);
+			samples = new ColumnarShipPositionList(Math.max(to - from, 1));
+			Interpolator interpolator = new Interpolator(track, samples);
+			for (int k = from; k < to; k++) {
+				interpolator.add(reference.getTsMillisec(k));
+			}
+		} else {
+			samples = new ColumnarShipPositionList();
+			samples.addPosition(firstTs, track.getLat(0), track.getLon(0));
+			float travelled = 0; // miles at the start of the segment (i-1, i)
+			float target = distanceInMiles; // miles of the next sample
+			for (int i = 1; i < n; i++) {
+				float lat1 = track.getLat(i - 1), lon1 = track.getLon(i - 1);
+				float lat2 = track.getLat(i), lon2 = track.getLon(i);
+				long ts1 = track.getTsMillisec(i - 1), ts2 = track.getTsMillisec(i);
+				float length = Point.distanceInMiles(lat1, lon1, lat2, lon2);
+				while(length > 0 && target < travelled + length) {
+					float r = (target - travelled) / length;
+					samples.addPosition(ts1 + Math.round((double) r * (ts2 - ts1)), lat1 + (lat2 - lat1) * r, lon1 + (lon2 - lon1) * r);
+					target += distanceInMiles;
+				}
+				travelled += length;
+			}
+			samples.addPosition(lastTs, track.getLat(n - 1), track.getLon(n - 1));
+		}
+		return samples;
+	}
+
+	/**
+	 * Samples of each track, resampled in parallel
+	 */
+	public List<ColumnarShipPositionList> resample(final List<? extends ShipPositionList> tracks) {
+		final ColumnarShipPositionList[] samples = new ColumnarShipPositionList[tracks.size()];
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			protected void compute() {
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				for (int i = 0; i < samples.length; i++) {
+					final int trackIndex = i;
+					tasks.add(new RecursiveAction() {
+						private static final long serialVersionUID = 1L;
+
+						protected void compute() {
+							samples[trackIndex] = resample(tracks.get(trackIndex));
+						}
+					});
+				}
+				invokeAll(tasks);
+			}
+		});
+		return Arrays.asList(samples);
+	}
+
+	/**
+	 * Linear interpolation at non-decreasing timestamps within the track, with the same arithmetic
+	 * as ShipTrack.getInterpolatedPosition(): the position after is the first one (from index 1) at or after ts.
+	 */
+	static class Interpolator {
+		ShipPositionList track;
+		ColumnarShipPositionList samples;
+		int after = 1;
+
+		Interpolator(ShipPositionList track, ColumnarShipPositionList samples) {
+			this.track = track;
+			this.samples = samples;
+		}
+
+		void add(long ts) {
+			if(track.size() == 1) {
+				samples.addPosition(ts, track.getLat(0), track.getLon(0));
+				return;
+			}
+			while(ts > track.getTsMillisec(after)) {
+				after++;
+			}
+			long tsBefore = track.getTsMillisec(after - 1);
+			long duration = track.getTsMillisec(after) - tsBefore; // 0 only if ts is the first timestamp, repeated
+			float r = duration == 0 ? 0 : (float) (ts - tsBefore) / (float) duration;
+			float latBefore = track.getLat(after - 1);
+			float lonBefore = track.getLon(after - 1);
+			samples.addPosition(ts, latBefore + (track.getLat(after) - latBefore) * r,
+									lonBefore + (track.getLon(after) - lonBefore) * r);
+		}
+	}
+}
@@ -0,0 +1,424 @@
+package org.pelizzari.ship;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pelizzari.gis.GeoKernels;
+
+/**
+ * Simplification of ship tracks with a guaranteed max deviation: every removed position is at most
+ * maxDeviationInMiles from the segment between the kept positions before and after it.
+ * Distances are computed on a local equirectangular projection, as in Point.distanceInMiles().
+ * Algorithms:
+ * DOUGLAS_PEUCKER: keep the farthest position from the segment if beyond the max deviation and split there;
+ * the two halves of long ranges are simplified in parallel (fork/join).
+ * VISVALINGAM_WHYATT: remove the position with the smallest triangle area first (min-heap),
+ * unless the removal would exceed the max deviation. The deviation of the removed positions is bounded
+ * incrementally for each kept segment; the positions of a segment are rescanned only if the bound is too high.
+ * Counts and time are accumulated over all the simplified tracks, see getCompressionRatio().
+ * @author andrea@pelizzari.org
+ *
+ */
+public class TrackSimplifier {
+
+	public final static String DOUGLAS_PEUCKER = "DOUGLAS_PEUCKER";
+	public final static String VISVALINGAM_WHYATT = "VISVALINGAM_WHYATT";
+
+	final static int FORK_THRESHOLD = 10000; // ranges of Douglas-Peucker split in parallel if longer
+	final static float BOUND_MARGIN = 0.999f; // Visvalingam-Whyatt: rescan if the bound is above this fraction of the max deviation
+
+	static ForkJoinPool pool = new ForkJoinPool();
+
+	String algorithm;
+	float maxDeviationInMiles;
+
+	AtomicLong inputCount = new AtomicLong();
+	AtomicLong outputCount = new AtomicLong();
+	AtomicLong elapsedNanos = new AtomicLong();
+
+	public TrackSimplifier(String algorithm, float maxDeviationInMiles) {
+		if(!algorithm.equals(DOUGLAS_PEUCKER) && !algorithm.equals(VISVALINGAM_WHYATT)) {
+			throw new IllegalArgumentException("Unknown simplification algorithm: " + algorithm);
+		}
+		this.algorithm = algorithm;
+		this.maxDeviationInMiles = maxDeviationInMiles;
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public float getMaxDeviationInMiles() {
+		return maxDeviationInMiles;
+	}
+
+	/**
+	 * Indexes of the kept positions, in ascending order; the first and the last position are always kept
+	 */
+	public int[] getKeptIndexes(ShipPositionList positions) {
+		long start = System.nanoTime();
+		Projection proj = new Projection(positions);
+		boolean[] keep = new boolean[proj.n];
+		if(proj.n > 0) {
+			keep[0] = true;
+			keep[proj.n - 1] = true;
+		}
+		if(algorithm.equals(DOUGLAS_PEUCKER)) {
+			DouglasPeuckerTask task = new DouglasPeuckerTask(proj, keep, 0, proj.n - 1);
+			if(ForkJoinTask.inForkJoinPool()) {
+				task.invoke();
+			} else {
+				pool.invoke(task);
+			}
+		} else {
+			visvalingamWhyatt(proj, keep);
+		}
+		int keptCount = 0;
+		for (int i = 0; i < proj.n; i++) {
+			if(keep[i]) {
+				keptCount++;
+			}
+		}
+		int[] indexes = new int[keptCount];
+		keptCount = 0;
+		for (int i = 0; i < proj.n; i++) {
+			if(keep[i]) {
+				indexes[keptCount++] = i;
+			}
+		}
+		inputCount.addAndGet(proj.n);
+		outputCount.addAndGet(keptCount);
+		elapsedNanos.addAndGet(System.nanoTime() - start);
+		return indexes;
+	}
+
+	/**
+	 * Simplify the track in place
+	 */
+	public void simplify(ShipTrack track) {
+		track.setPosList(track.getPositions(getKeptIndexes(track)));
+	}
+
+	/**
+	 * Simplify all the tracks (e.g. of a route) in place, in parallel
+	 */
+	public void simplify(final List<ShipTrack> tracks) {
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			protected void compute() {
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				for (final ShipTrack track : tracks) {
+					tasks.add(new RecursiveAction() {
+						private static final long serialVersionUID = 1L;
+
+						protected void compute() {
+							simplify(track);
+						}
+					});
+				}
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	public long getInputCount() {
+		return inputCount.get();
+	}
+
+	public long getOutputCount() {
+		return outputCount.get();
+	}
+
+	/**
+	 * Input positions / kept positions
+	 */
+	public float getCompressionRatio() {
+		return outputCount.get() == 0 ? 1 : (float) inputCount.get() / outputCount.get();
+	}
+
+	/**
+	 * Total simplification time (summed over the threads)
+	 */
+	public long getElapsedMillis() {
+		return elapsedNanos.get() / 1000000;
+	}
+
+	public String toString() {
+		return algorithm + "(" + maxDeviationInMiles + " nm): positions " + getInputCount() + " > " + getOutputCount() +
+				", ratio " + getCompressionRatio() + ", time (ms) " + getElapsedMillis();
+	}
+
+	/**
+	 * Positions in radians
+	 */
+	static class Projection {
+		int n;
+		float[] latRad;
+		float[] lonRad;
+
+		Projection(ShipPositionList positions) {
+			n = positions.size();
+			latRad = new float[n];
+			lonRad = new float[n];
+			for (int i = 0; i < n; i++) {
+				latRad[i] = (float) Math.toRadians(positions.getLat(i));
+				lonRad[i] = (float) Math.toRadians(positions.getLon(i));
+			}
+		}
+
+		/**
+		 * Distance in miles of position i from the segment (a, b), on the projection centered in a
+		 * (cos(lat) of the middle of the segment)
+		 */
+		float distanceToSegmentInMiles(int i, int a, int b, float cosLat) {
+			float bx = (lonRad[b] - lonRad[a]) * cosLat;
+			float by = latRad[b] - latRad[a];
+			float px = (lonRad[i] - lonRad[a]) * cosLat;
+			float py = latRad[i] - latRad[a];
+			return GeoKernels.equirectangularToSegmentInMiles(px, py, bx, by, bx*bx + by*by);
+		}
+
+		float cosLat(int a, int b) {
+			return (float) Math.cos((latRad[a] + latRad[b]) / 2);
+		}
+
+		/**
+		 * Max distance of the positions between a and b (excluded) from the segment (a, b)
+		 */
+		float maxDistanceToSegmentInMiles(int a, int b) {
+			float cosLat = cosLat(a, b);
+			float maxDistance = 0;
+			for (int i = a + 1; i < b; i++) {
+				maxDistance = Math.max(maxDistance, distanceToSegmentInMiles(i, a, b, cosLat));
+			}
+			return maxDistance;
+		}
+
+		/**
+		 * Area of the triangle (a, i, b) in square miles
+		 */
+		float areaInSquareMiles(int a, int i, int b) {
+			float cosLat = (float) Math.cos(latRad[i]);
+			float ax = (lonRad[a] - lonRad[i]) * cosLat;
+			float ay = latRad[a] - latRad[i];
+			float bx = (lonRad[b] - lonRad[i]) * cosLat;
+			float by = latRad[b] - latRad[i];
+			float radius = GeoKernels.EQUIRECTANGULAR_EARTH_RADIUS_IN_MILES;
+			return Math.abs(ax*by - ay*bx) / 2 * radius * radius;
+		}
+	}
+
+	class DouglasPeuckerTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		Projection proj;
+		boolean[] keep;
+		int first, last; // kept positions
+
+		DouglasPeuckerTask(Projection proj, boolean[] keep, int first, int last) {
+			this.proj = proj;
+			this.keep = keep;
+			this.first = first;
+			this.last = last;
+		}
+
+		protected void compute() {
+			// ranges to simplify, on a stack instead of recursion (tracks can be long)
+			int[] stack = new int[64];
+			int top = 0;
+			stack[top++] = first;
+			stack[top++] = last;
+			while(top > 0) {
+				int b = stack[--top];
+				int a = stack[--top];
+				if(b - a < 2) {
+					continue;
+				}
+				float cosLat = proj.cosLat(a, b);
+				float maxDistance = -1;
+				int farthest = -1;
+				for (int i = a + 1; i < b; i++) {
+					float distance = proj.distanceToSegmentInMiles(i, a, b, cosLat);
+					if(distance > maxDistance) {
+						maxDistance = distance;
+						farthest = i;
+					}
+				}
+				if(maxDistance <= maxDeviationInMiles) {
+					continue;
+				}
+				keep[farthest] = true;
+				if(b - a > FORK_THRESHOLD) {
+					invokeAll(new DouglasPeuckerTask(proj, keep, a, farthest),
+							  new DouglasPeuckerTask(proj, keep, farthest, b));
+					continue;
+				}
+				if(top + 4 > stack.length) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				stack[top++] = a;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = b;
+			}
+		}
+	}
+
+	/**
+	 * Remove the positions by increasing triangle area, if the deviation allows it.
+	 * The remaining positions are a linked list (prev, next); the candidates are in an indexed min-heap
+	 * keyed on the area, updated when a neighbour is removed.
+	 * deviation[a] bounds the distance of the removed positions between a and next[a] from the segment (a, next[a]),
+	 * on the projection with cosLat[a]. When i is removed, the positions of (a, i) and (i, b) are at most their bound,
+	 * scaled by the change of projection, plus the distance of i, from (a, b): if this is below the max deviation,
+	 * the removal is accepted without scanning the positions, otherwise they are scanned to get the exact deviation.
+	 */
+	void visvalingamWhyatt(Projection proj, boolean[] keep) {
+		int n = proj.n;
+		if(n < 3) {
+			return;
+		}
+		int[] prev = new int[n];
+		int[] next = new int[n];
+		for (int i = 0; i < n; i++) {
+			prev[i] = i - 1;
+			next[i] = i + 1;
+		}
+		float[] deviation = new float[n]; // no removed positions yet
+		float[] cosLat = new float[n];
+		MinHeap heap = new MinHeap(n);
+		for (int i = 1; i < n - 1; i++) {
+			heap.add(i, proj.areaInSquareMiles(i - 1, i, i + 1));
+		}
+		while(!heap.isEmpty()) {
+			int i = heap.poll();
+			int a = prev[i], b = next[i];
+			float abCosLat = proj.cosLat(a, b);
+			float bound = Math.max(scaledDeviation(deviation[a], cosLat[a], abCosLat), 
+								   scaledDeviation(deviation[i], cosLat[i], abCosLat)) +
+						  proj.distanceToSegmentInMiles(i, a, b, abCosLat);
+			if(bound > maxDeviationInMiles * BOUND_MARGIN) {
+				bound = proj.maxDistanceToSegmentInMiles(a, b);
+				if(bound > maxDeviationInMiles) {
+					keep[i] = true; // cannot be removed, it stays out of the heap
+					continue;
+				}
+			}
+			// remove i
+			deviation[a] = bound;
+			cosLat[a] = abCosLat;
+			next[a] = b;
+			prev[b] = a;
+			if(heap.contains(a)) {
+				heap.update(a, proj.areaInSquareMiles(prev[a], a, b));
+			}
+			if(heap.contains(b)) {
+				heap.update(b, proj.areaInSquareMiles(a, b, next[b]));
+			}
+		}
+	}
+
+	/**
+	 * Bound of a deviation measured with segmentCosLat, on the projection with cosLat
+	 */
+	static float scaledDeviation(float deviation, float segmentCosLat, float cosLat) {
+		return deviation == 0 ? 0 : deviation * Math.max(1, cosLat / segmentCosLat);
+	}
+
+	/**
+	 * Binary min-heap of the positions 0 ... n-1 with a float key, in arrays
+	 */
+	static class MinHeap {
+		int[] heap; // positions
+		int[] heapIndex; // index in heap of each position, -1 if not in the heap
+		float[] key;
+		int size = 0;
+
+		MinHeap(int n) {
+			heap = new int[n];
+			heapIndex = new int[n];
+			key = new float[n];
+			Arrays.fill(heapIndex, -1);
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		boolean contains(int pos) {
+			return heapIndex[pos] >= 0;
+		}
+
+		void add(int pos, float posKey) {
+			key[pos] = posKey;
+			heap[size] = pos;
+			heapIndex[pos] = size;
+			size++;
+			siftUp(size - 1);
+		}
+
+		int poll() {
+			int pos = heap[0];
+			size--;
+			if(size > 0) {
+				move(heap[size], 0);
+				siftDown(0);
+			}
+			heapIndex[pos] = -1;
+			return pos;
+		}
+
+		void update(int pos, float posKey) {
+			float oldKey = key[pos];
+			key[pos] = posKey;
+			if(posKey < oldKey) {
+				siftUp(heapIndex[pos]);
+			} else {
+				siftDown(heapIndex[pos]);
+			}
+		}
+
+		void move(int pos, int h) {
+			heap[h] = pos;
+			heapIndex[pos] = h;
+		}
+
+		void siftUp(int h) {
+			int pos = heap[h];
+			while(h > 0) {
+				int parent = (h - 1) / 2;
+				if(key[heap[parent]] <= key[pos]) {
+					break;
+				}
+				move(heap[parent], h);
+				h = parent;
+			}
+			move(pos, h);
+		}
+
+		void siftDown(int h) {
+			int pos = heap[h];
+			while(true) {
+				int child = 2*h + 1;
+				if(child >= size) {
+					break;
+				}
+				if(child + 1 < size && key[heap[child + 1]] < key[heap[child]]) {
+					child++;
+				}
+				if(key[heap[child]] >= key[pos]) {
+					break;
+				}
+				move(heap[child], h);
+				h = child;
+			}
+			move(pos, h);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package org.pelizzari.ship;
+
+import java.util.Arrays;
+
+import org.pelizzari.gis.GeoKernels;
+import org.pelizzari.gis.Point;
+
+/**
+ * Reusable primitive buffers to evaluate the error of a track made of a start point and a sequence of displacements.
+ * Same values as ShipTrack.reconstructShipTrack(), normalizeTimestampsAndComputeTrackSegments() and
+ * computeTrackError(...).getError() with TrackError.TARGET_IN_INTERVAL, but no object is created
+ * once the buffers are large enough for the longest track.
+ * Usage: setDisplacementCount(), setDisplacement() for each displacement, reconstruct(), normalizeTimestamps(),
+ * computeSegmentStats() (or its approximation with a DistanceFieldRaster), getError().
+ * Not thread safe: use one workspace per thread.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class TrackWorkspace {
+
+	int displacementCount = 0; // positions = displacements + 1
+	float[] deltaLat = new float[0]; // displacements
+	float[] deltaLon = new float[0];
+
+	// positions
+	float[] lat = new float[0];
+	float[] lon = new float[0];
+	float[] latRad = new float[0]; // radian buffers of GeoKernels.consecutiveDistances()
+	float[] lonRad = new float[0];
+	long[] ts = new long[0]; // normalized
+	float[] cumulativeMiles = new float[0];
+	float trackLengthInMiles = 0;
+	float sumChangeOfHeading = 0;
+
+	// segments (position i to i+1), as ShipTrackSegment after computeStatsForFitness()
+	float[] segLengthInMiles = new float[0];
+	int[] segCoveredPositions = new int[0];
+	float[] segCoverageOfExpectedPositions = new float[0];
+	float[] segAvgSquaredDistance = new float[0];
+	float[] segMaxSquaredDistance = new float[0];
+	SegmentErrorStats errorStats = new SegmentErrorStats(); // of the current segment
+
+	public TrackWorkspace() {
+	}
+
+	public TrackWorkspace(int capacity) {
+		setDisplacementCount(capacity);
+	}
+
+	/**
+	 * Number of displacements of the next track; the buffers grow if needed
+	 */
+	public void setDisplacementCount(int count) {
+		if(count > deltaLat.length) {
+			deltaLat = Arrays.copyOf(deltaLat, count);
+			deltaLon = Arrays.copyOf(deltaLon, count);
+			lat = new float[count + 1];
+			lon = new float[count + 1];
+			latRad = new float[count + 1];
+			lonRad = new float[count + 1];
+			ts = new long[count + 1];
+			cumulativeMiles = new float[count + 1];
+			segLengthInMiles = new float[count];
+			segCoveredPositions = new int[count];
+			segCoverageOfExpectedPositions = new float[count];
+			segAvgSquaredDistance = new float[count];
+			segMaxSquaredDistance = new float[count];
+		}
+		displacementCount = count;
+	}
+
+	public void setDisplacement(int index, float deltaLat, float deltaLon) {
+		this.deltaLat[index] = deltaLat;
+		this.deltaLon[index] = deltaLon;
+	}
+
+	public int getPositionCount() {
+		return displacementCount + 1;
+	}
+
+	/**
+	 * Positions from the start point and the displacements, with the cumulative length and the changes of heading.
+	 * The timestamps are set by normalizeTimestamps().
+	 */
+	public void reconstruct(float startLat, float startLon) {
+		lat[0] = startLat;
+		lon[0] = startLon;
+		for (int i = 0; i < displacementCount; i++) {
+			lat[i + 1] = lat[i] + deltaLat[i];
+			lon[i + 1] = lon[i] + deltaLon[i];
+		}
+		GeoKernels.consecutiveDistances(GeoKernels.EQUIRECTANGULAR, lat, lon, displacementCount + 1, segLengthInMiles,
+										latRad, lonRad);
+		cumulativeMiles[0] = 0;
+		float lengthInMiles = 0;
+		float prevHeading = 0;
+		sumChangeOfHeading = 0;
+		for (int i = 0; i < displacementCount; i++) {
+			lengthInMiles += segLengthInMiles[i];
+			cumulativeMiles[i + 1] = lengthInMiles;
+			// heading of the reconstructed positions, as ShipTrack.sumChangeOfHeading()
+			float heading = Heading.computeHeading(lat[i + 1] - lat[i], lon[i + 1] - lon[i]);
+			if(i > 0) {
+				sumChangeOfHeading += Math.abs(ChangeOfHeading.computeChangeOfHeading(prevHeading, heading));
+			}
+			prevHeading = heading;
+		}
+		trackLengthInMiles = lengthInMiles;
+	}
+
+	/**
+	 * As ShipTrack.normalizeTimestamps()
+	 */
+	public void normalizeTimestamps(long referenceStartTsInMillisec, int referenceVoyageDurationInSec) {
+		for (int i = 0; i <= displacementCount; i++) {
+			ts[i] = ShipTrack.computeNormalizedTsMillisec(referenceStartTsInMillisec, referenceVoyageDurationInSec,
+					cumulativeMiles[i], trackLengthInMiles);
+		}
+	}
+
+	/**
+	 * As TrackError.computeSegmentStats() with the training positions in the time interval of each segment,
+	 * weighted if the list is (see WeightedShipPositionList)
+	 */
+	public void computeSegmentStats(ShipPositionList trainingPosList) {
+		boolean timeOrdered = trainingPosList.isTimeOrdered();
+		int trainingSize = trainingPosList.size();
+		float trainingWeight = trainingPosList.getTotalWeight();
+		for (int s = 0; s < displacementCount; s++) {
+			long startTs = ts[s], endTs = ts[s + 1];
+			int from = 0, to = trainingSize;
+			if(timeOrdered) {
+				from = trainingPosList.indexOfFirstAtOrAfter(startTs);
+				to = Math.max(from, trainingPosList.indexOfFirstAfter(endTs));
+			}
+			float lat1 = lat[s], lon1 = lon[s], lat2 = lat[s + 1], lon2 = lon[s + 1];
+			errorStats.reset();
+			for (int i = from; i < to; i++) {
+				long posTs = trainingPosList.getTsMillisec(i);
+				if(posTs < startTs || posTs > endTs) {
+					continue;
+				}
+				float squaredDistance = Point.approxSquaredDistanceToSegment(
+						trainingPosList.getLat(i), trainingPosList.getLon(i), lat1, lon1, lat2, lon2);
+				errorStats.add(squaredDistance, trainingPosList.getWeight(i));
+			}
+			int expectedCoveredPositions = SegmentErrorStats.expectedCoveredPositions(
+					segLengthInMiles[s], trackLengthInMiles, trainingWeight);
+			segCoveredPositions[s] = errorStats.count;
+			segCoverageOfExpectedPositions[s] = SegmentErrorStats.coverageOfExpectedPositions(
+					errorStats.weight, expectedCoveredPositions);
+			segAvgSquaredDistance[s] = errorStats.getAvgSquaredDistance();
+			segMaxSquaredDistance[s] = errorStats.getMaxSquaredDistance();
+		}
+	}
+
+	/**
+	 * Approximation of computeSegmentStats(trainingPosList) in a time independent of the training size:
+	 * the avg squared distance of each segment is the avg squared distance from the segment to the training
+	 * positions sampled in the raster. The coverage is not measured (set to 1).
+	 */
+	public void computeSegmentStats(DistanceFieldRaster raster) {
+		for (int s = 0; s < displacementCount; s++) {
+			float avgSquaredDistance = raster.getAvgSquaredDistanceAlongSegment(lat[s], lon[s], lat[s + 1], lon[s + 1]);
+			segCoveredPositions[s] = 0;
+			segCoverageOfExpectedPositions[s] = 1;
+			segAvgSquaredDistance[s] = avgSquaredDistance;
+			segMaxSquaredDistance[s] = avgSquaredDistance;
+		}
+	}
+
+	/**
+	 * As TrackError.getDistanceError(): max of the avg squared distances of the segments
+	 */
+	public float getDistanceError() {
+		return TrackError.max(segAvgSquaredDistance, displacementCount);
+	}
+
+	/**
+	 * As TrackError.getError(), after computeSegmentStats()
+	 */
+	public float getError(Point destinationPoint,
+						  float distanceToDestinationErrorFactor,
+						  float distanceErrorFactor,
+						  float headingErrorFactor) {
+		int last = displacementCount;
+		float destinationError = Point.distanceInMiles(lat[last], lon[last], destinationPoint.lat, destinationPoint.lon);
+		float distanceError = getDistanceError();
+		float minCoverage = TrackError.min(segCoverageOfExpectedPositions, displacementCount);
+		float avgChangeOfHeading = sumChangeOfHeading / (getPositionCount()-1);
+		return TrackError.computeError(destinationError, distanceError, avgChangeOfHeading, 1f - minCoverage,
+				distanceToDestinationErrorFactor, distanceErrorFactor, headingErrorFactor);
+	}
+
+	public float getLat(int index) {
+		return lat[index];
+	}
+
+	public float getLon(int index) {
+		return lon[index];
+	}
+
+	public long getTsMillisec(int index) {
+		return ts[index];
+	}
+
+	public float getTrackLengthInMiles() {
+		return trackLengthInMiles;
+	}
+
+	public int getCoveredPositions(int segment) {
+		return segCoveredPositions[segment];
+	}
+
+	public float getAvgSquaredDistance(int segment) {
+		return segAvgSquaredDistance[segment];
+	}
+}
@@ -0,0 +1,171 @@
+package org.pelizzari.ship;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Columnar position list with a weight per position: the number of raw positions it represents.
+ * Made by compress(): the positions of the merged training tracks (normalized timestamps) falling in
+ * the same time bin and the same lat/lon cell are replaced by their weighted centroid, with their total weight.
+ * TrackError and TrackWorkspace weight the averages and the coverage with getWeight(), so that the errors
+ * approximate the errors with the raw positions; with all weights 1 they are the same.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class WeightedShipPositionList extends ColumnarShipPositionList {
+
+	float[] weight;
+	double totalWeight = 0;
+
+	public WeightedShipPositionList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public WeightedShipPositionList(int capacity) {
+		super(capacity);
+		weight = new float[capacity];
+	}
+
+	/**
+	 * Copy the positions of a list, with their weights
+	 */
+	public WeightedShipPositionList(ShipPositionList positions) {
+		this(Math.max(positions.size(), 1));
+		for (int i = 0; i < positions.size(); i++) {
+			addPosition(positions.getTsMillisec(i), positions.getLat(i), positions.getLon(i), positions.getWeight(i));
+		}
+	}
+
+	/**
+	 * Positions binned by time (bins of timeBinInSec from the first timestamp) and by space (cells of
+	 * cellSizeInDegrees from the min lat/lon): one position per bin, at the weighted centroid of the positions
+	 * and their weighted mean timestamp, with their total weight. The result is ordered by time.
+	 */
+	public static WeightedShipPositionList compress(ShipPositionList positions, float cellSizeInDegrees, int timeBinInSec) {
+		if(cellSizeInDegrees <= 0 || timeBinInSec <= 0) {
+			throw new IllegalArgumentException("Wrong compression tolerance: " + cellSizeInDegrees + " deg, " + timeBinInSec + " sec");
+		}
+		int size = positions.size();
+		if(size == 0) {
+			return new WeightedShipPositionList(1);
+		}
+		float minLat = Float.MAX_VALUE, minLon = Float.MAX_VALUE, maxLat = -Float.MAX_VALUE;
+		long minTs = Long.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			minLat = Math.min(minLat, positions.getLat(i));
+			maxLat = Math.max(maxLat, positions.getLat(i));
+			minLon = Math.min(minLon, positions.getLon(i));
+			minTs = Math.min(minTs, positions.getTsMillisec(i));
+		}
+		long latCells = (long) ((maxLat - minLat) / cellSizeInDegrees) + 1;
+		long lonCells = (long) (360f / cellSizeInDegrees) + 1; // longitudes may wrap around
+		long timeBinInMillisec = timeBinInSec * 1000L;
+
+		// sums of each bin, weighted; timestamps from minTs
+		Map<Long, Integer> bins = new HashMap<Long, Integer>();
+		int binCount = 0;
+		double[] sumLat = new double[DEFAULT_CAPACITY];
+		double[] sumLon = new double[DEFAULT_CAPACITY];
+		double[] sumTs = new double[DEFAULT_CAPACITY];
+		double[] sumWeight = new double[DEFAULT_CAPACITY];
+		for (int i = 0; i < size; i++) {
+			float lat = positions.getLat(i), lon = positions.getLon(i);
+			long ts = positions.getTsMillisec(i) - minTs;
+			double w = positions.getWeight(i);
+			long latCell = (long) ((lat - minLat) / cellSizeInDegrees);
+			long lonCell = (long) ((lon - minLon) / cellSizeInDegrees);
+			Long key = ((ts / timeBinInMillisec) * latCells + latCell) * lonCells + lonCell;
+			Integer bin = bins.get(key);
+			if(bin == null) {
+				bin = binCount++;
+				bins.put(key, bin);
+				if(bin == sumLat.length) {
+					sumLat = Arrays.copyOf(sumLat, bin * 2);
+					sumLon = Arrays.copyOf(sumLon, bin * 2);
+					sumTs = Arrays.copyOf(sumTs, bin * 2);
+					sumWeight = Arrays.copyOf(sumWeight, bin * 2);
+				}
+			}
+			sumLat[bin] += lat * w;
+			sumLon[bin] += lon * w;
+			sumTs[bin] += ts * w;
+			sumWeight[bin] += w;
+		}
+
+		final long[] binTs = new long[binCount];
+		Integer[] order = new Integer[binCount];
+		for (int b = 0; b < binCount; b++) {
+			binTs[b] = minTs + Math.round(sumTs[b] / sumWeight[b]);
+			order[b] = b;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer b1, Integer b2) {
+				return Long.compare(binTs[b1], binTs[b2]);
+			}
+		});
+		WeightedShipPositionList compressed = new WeightedShipPositionList(Math.max(binCount, 1));
+		for (int b : order) {
+			compressed.addPosition(binTs[b], (float) (sumLat[b] / sumWeight[b]), (float) (sumLon[b] / sumWeight[b]),
+					(float) sumWeight[b]);
+		}
+		return compressed;
+	}
+
+	public void addPosition(long tsMillisec, float posLat, float posLon) {
+		addPosition(tsMillisec, posLat, posLon, 1f);
+	}
+
+	public void addPosition(long tsMillisec, float posLat, float posLon, float posWeight) {
+		if(posWeight <= 0) {
+			throw new IllegalArgumentException("Position weight must be > 0: " + posWeight);
+		}
+		if(size == weight.length) {
+			weight = Arrays.copyOf(weight, Math.max(size * 2, DEFAULT_CAPACITY));
+		}
+		weight[size] = posWeight;
+		totalWeight += posWeight;
+		super.addPosition(tsMillisec, posLat, posLon);
+	}
+
+	void reorder(Integer[] order) {
+		super.reorder(order);
+		float[] sortedWeight = new float[size];
+		for (int i = 0; i < size; i++) {
+			sortedWeight[i] = weight[order[i]];
+		}
+		weight = sortedWeight;
+	}
+
+	public void trimToSize() {
+		super.trimToSize();
+		weight = Arrays.copyOf(weight, size);
+	}
+
+	public void setPosList(java.util.List<ShipPosition> positions) {
+		totalWeight = 0;
+		super.setPosList(positions);
+	}
+
+	public float getWeight(int index) {
+		checkIndex(index);
+		return weight[index];
+	}
+
+	public float getTotalWeight() {
+		return (float) totalWeight;
+	}
+
+	public boolean isWeighted() {
+		return true;
+	}
+
+	public long getHeapBytes() {
+		return super.getHeapBytes() + (long) weight.length * 4;
+	}
+
+	public String toString() {
+		return "Weighted position list: " + size + " positions representing " + getTotalWeight() + " positions";
+	}
+}
@@ -0,0 +1,247 @@
+package org.pelizzari.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.pelizzari.gis.Box;
+import org.pelizzari.time.TimeInterval;
+
+/**
+ * Index of the ships seen in each (grid cell, day): answers "which ships had a position 
+ * in this box during this interval" with a few lookups instead of a scan of the positions.
+ * There is one file per indexed (UTC) day, cells-yyyyMMdd.idx, so days can be added one at a time.
+ * Cells are CELL_SIZE_IN_DEG wide; ships found in cells only partially covered by the box 
+ * (or in days only partially covered by the interval) are returned as candidates, to be verified.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class CellIndex {
+
+	public final static float CELL_SIZE_IN_DEG = 1f;
+	final static int LAT_CELLS = (int) Math.ceil(180 / CELL_SIZE_IN_DEG);
+	final static int LON_CELLS = (int) Math.ceil(360 / CELL_SIZE_IN_DEG);
+	final static int ONE_DAY_IN_SEC = 24*3600;
+	final static int MAGIC = 0x43454c31; // "CEL1"
+	final static String DAY_PREFIX = "cells-";
+	final static String EXT = ".idx";
+	
+	/**
+	 * Ships found by a lookup
+	 */
+	public static class Lookup {
+		// ships with a position in the box during the interval
+		public TreeSet<String> ships = new TreeSet<String>();
+		// ships that may have a position in the box during the interval
+		public TreeSet<String> candidates = new TreeSet<String>();
+	}
+	
+	/*
+	 * Ships of one day: MMSI dictionary and, for each non empty cell, the sorted ids of the ships
+	 */
+	static class DayCells {
+		String[] mmsi;
+		HashMap<Integer, int[]> shipsByCell = new HashMap<Integer, int[]>();
+	}
+	
+	/**
+	 * Collects the positions of one day
+	 */
+	public static class DayBuilder {
+		TreeMap<Integer, TreeSet<String>> shipsByCell = new TreeMap<Integer, TreeSet<String>>();
+		
+		public void add(String mmsi, float lat, float lon) {
+			int cell = getCell(lat, lon);
+			TreeSet<String> ships = shipsByCell.get(cell);
+			if(ships == null) {
+				ships = new TreeSet<String>();
+				shipsByCell.put(cell, ships);
+			}
+			ships.add(mmsi);
+		}
+	}
+	
+	File dir;
+	HashMap<Integer, DayCells> days = new HashMap<Integer, DayCells>();
+	
+	public CellIndex(File dir) {
+		this.dir = dir;
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			System.err.println("Cannot create cell index directory: "+dir);
+		}
+	}
+	
+	static int getLatCell(float lat) {
+		return Math.min(LAT_CELLS - 1, Math.max(0, (int) Math.floor((lat + 90) / CELL_SIZE_IN_DEG)));
+	}
+
+	static int getLonCell(float lon) {
+		return Math.min(LON_CELLS - 1, Math.max(0, (int) Math.floor((lon + 180) / CELL_SIZE_IN_DEG)));
+	}
+	
+	static int getCell(float lat, float lon) {
+		return getLatCell(lat) * LON_CELLS + getLonCell(lon);
+	}
+	
+	public File getDayFile(int epochDay) {
+		SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return new File(dir, DAY_PREFIX + df.format(new java.util.Date((long) epochDay * ONE_DAY_IN_SEC * 1000)) + EXT);
+	}
+	
+	public boolean isIndexed(int epochDay) {
+		return getDayFile(epochDay).exists();
+	}
+	
+	/**
+	 * Write (or replace) the index of a day
+	 */
+	public void writeDay(int epochDay, DayBuilder builder) throws IOException {
+		TreeSet<String> allShips = new TreeSet<String>();
+		for (TreeSet<String> ships : builder.shipsByCell.values()) {
+			allShips.addAll(ships);
+		}
+		HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		for (String mmsi : allShips) {
+			ids.put(mmsi, ids.size()); // ids follow the MMSI order
+		}
+		File file = getDayFile(epochDay);
+		File tmpFile = new File(file.getPath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(allShips.size());
+			for (String mmsi : allShips) {
+				out.writeUTF(mmsi);
+			}
+			out.writeInt(builder.shipsByCell.size());
+			for (Integer cell : builder.shipsByCell.keySet()) {
+				TreeSet<String> ships = builder.shipsByCell.get(cell);
+				out.writeInt(cell);
+				out.writeInt(ships.size());
+				for (String mmsi : ships) {
+					out.writeInt(ids.get(mmsi));
+				}
+			}
+		}
+		if(file.exists() && !file.delete()) {
+			throw new IOException("Cannot replace "+file);
+		}
+		if(!tmpFile.renameTo(file)) {
+			throw new IOException("Cannot rename "+tmpFile+" to "+file);
+		}
+		synchronized (this) {
+			days.remove(epochDay);
+		}
+	}
+	
+	/**
+	 * Index a day of a PositionStore
+	 */
+	public void indexDay(int epochDay, PositionPartition partition) throws IOException {
+		DayBuilder builder = new DayBuilder();
+		for (int ship = 0; ship < partition.getShipCount(); ship++) {
+			String mmsi = partition.getMmsi(ship);
+			int end = partition.getFirst(ship) + partition.getCount(ship);
+			for (int i = partition.getFirst(ship); i < end; i++) {
+				builder.add(mmsi, partition.getLat(i), partition.getLon(i));
+			}
+		}
+		writeDay(epochDay, builder);
+	}
+	
+	synchronized DayCells getDay(int epochDay) {
+		DayCells dayCells = days.get(epochDay);
+		if(dayCells != null) {
+			return dayCells;
+		}
+		File file = getDayFile(epochDay);
+		if(!file.exists()) {
+			return null;
+		}
+		dayCells = new DayCells();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if(in.readInt() != MAGIC) {
+				throw new IOException("Not a cell index: "+file);
+			}
+			dayCells.mmsi = new String[in.readInt()];
+			for (int i = 0; i < dayCells.mmsi.length; i++) {
+				dayCells.mmsi[i] = in.readUTF();
+			}
+			int nCells = in.readInt();
+			for (int c = 0; c < nCells; c++) {
+				int cell = in.readInt();
+				int[] ships = new int[in.readInt()];
+				for (int i = 0; i < ships.length; i++) {
+					ships[i] = in.readInt();
+				}
+				dayCells.shipsByCell.put(cell, ships);
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot read cell index: "+file);
+			e.printStackTrace();
+			return null;
+		}
+		days.put(epochDay, dayCells);
+		return dayCells;
+	}
+	
+	/**
+	 * Ships seen in the box during the interval (whole days, as in Miner).
+	 * @return null if a day of the interval is not indexed
+	 */
+	public Lookup lookup(TimeInterval interval, Box box) {
+		long startSec = interval.getStartDayEpochSec();
+		long endSec = interval.getEndDayEpochSec();
+		int firstDay = PositionStore.getEpochDay(startSec);
+		int lastDay = PositionStore.getEpochDay(endSec - 1);
+		
+		// cells touched by the box, and whether they are fully inside it
+		List<Integer> cells = new ArrayList<Integer>();
+		List<Boolean> cellInBox = new ArrayList<Boolean>();
+		for (int latCell = getLatCell(box.getMinLat()); latCell <= getLatCell(box.getMaxLat()); latCell++) {
+			float cellMinLat = latCell * CELL_SIZE_IN_DEG - 90;
+			boolean latInBox = cellMinLat >= box.getMinLat() && cellMinLat + CELL_SIZE_IN_DEG <= box.getMaxLat();
+			for (int lonCell = getLonCell(box.getMinLon()); lonCell <= getLonCell(box.getMaxLon()); lonCell++) {
+				float cellMinLon = lonCell * CELL_SIZE_IN_DEG - 180;
+				boolean lonInBox = cellMinLon >= box.getMinLon() && cellMinLon + CELL_SIZE_IN_DEG <= box.getMaxLon();
+				cells.add(latCell * LON_CELLS + lonCell);
+				cellInBox.add(latInBox && lonInBox);
+			}
+		}
+		
+		Lookup lookup = new Lookup();
+		for (int day = firstDay; day <= lastDay; day++) {
+			DayCells dayCells = getDay(day);
+			if(dayCells == null) {
+				return null;
+			}
+			boolean dayInInterval = (long) day * ONE_DAY_IN_SEC >= startSec && 
+									(long) (day + 1) * ONE_DAY_IN_SEC <= endSec;
+			for (int c = 0; c < cells.size(); c++) {
+				int[] ships = dayCells.shipsByCell.get(cells.get(c));
+				if(ships == null) {
+					continue;
+				}
+				Set<String> found = dayInInterval && cellInBox.get(c) ? lookup.ships : lookup.candidates;
+				for (int id : ships) {
+					found.add(dayCells.mmsi[id]);
+				}
+			}
+		}
+		lookup.candidates.removeAll(lookup.ships);
+		return lookup;
+	}
+}
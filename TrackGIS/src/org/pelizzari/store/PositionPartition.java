@@ -0,0 +1,192 @@
+package org.pelizzari.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Read-only, memory-mapped file of ship positions (a day of wpos or a set of routes).
+ * Positions are stored by column (ts, lat, lon and optionally norm_ts), grouped by ship: 
+ * ships are sorted by MMSI, positions of a ship by ts.
+ * Each ship has an entry in the ship directory with its offset, number of positions and bounding box.
+ * <pre>
+ * header:    int MAGIC, int flags, int nShips, int nPos
+ * directory: nShips x (16 bytes MMSI, int first, int count, float minLat, maxLat, minLon, maxLon)
+ * columns:   int ts[nPos] (sec), float lat[nPos], float lon[nPos], [int normTs[nPos] (sec)]
+ * </pre>
+ * @author andrea@pelizzari.org
+ *
+ */
+public class PositionPartition {
+
+	final static int MAGIC = 0x50535431; // "PST1"
+	final static int FLAG_NORM_TS = 1;
+	final static int HEADER_SIZE = 16;
+	final static int MMSI_SIZE = 16;
+	final static int SHIP_ENTRY_SIZE = MMSI_SIZE + 6*4;
+	final static Charset MMSI_CHARSET = Charset.forName("US-ASCII");
+
+	File file;
+	int nShips;
+	int nPos;
+	boolean hasNormTs;
+	
+	String[] mmsi;
+	int[] first;
+	int[] count;
+	float[] minLat, maxLat, minLon, maxLon;
+	
+	IntBuffer ts;
+	FloatBuffer lat;
+	FloatBuffer lon;
+	IntBuffer normTs;
+	
+	public PositionPartition(File file) throws IOException {
+		this.file = file;
+		MappedByteBuffer buf;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+			 FileChannel channel = raf.getChannel()) {
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after close
+		}
+		if(buf.getInt(0) != MAGIC) {
+			throw new IOException("Not a position partition: "+file);
+		}
+		hasNormTs = (buf.getInt(4) & FLAG_NORM_TS) != 0;
+		nShips = buf.getInt(8);
+		nPos = buf.getInt(12);
+
+		// the directory is small: load it on the heap
+		mmsi = new String[nShips];
+		first = new int[nShips];
+		count = new int[nShips];
+		minLat = new float[nShips];
+		maxLat = new float[nShips];
+		minLon = new float[nShips];
+		maxLon = new float[nShips];
+		byte[] mmsiBytes = new byte[MMSI_SIZE];
+		for (int i = 0; i < nShips; i++) {
+			buf.position(HEADER_SIZE + i*SHIP_ENTRY_SIZE);
+			buf.get(mmsiBytes);
+			int len = 0;
+			while(len < MMSI_SIZE && mmsiBytes[len] != 0) {
+				len++;
+			}
+			mmsi[i] = new String(mmsiBytes, 0, len, MMSI_CHARSET);
+			first[i] = buf.getInt();
+			count[i] = buf.getInt();
+			minLat[i] = buf.getFloat();
+			maxLat[i] = buf.getFloat();
+			minLon[i] = buf.getFloat();
+			maxLon[i] = buf.getFloat();
+		}
+		
+		// columns are read in place
+		int columnStart = HEADER_SIZE + nShips*SHIP_ENTRY_SIZE;
+		ts = column(buf, columnStart, 0).asIntBuffer();
+		lat = column(buf, columnStart, 1).asFloatBuffer();
+		lon = column(buf, columnStart, 2).asFloatBuffer();
+		if(hasNormTs) {
+			normTs = column(buf, columnStart, 3).asIntBuffer();
+		}
+	}
+	
+	MappedByteBuffer column(MappedByteBuffer buf, int columnStart, int columnIndex) {
+		buf.limit(columnStart + (columnIndex+1)*nPos*4);
+		buf.position(columnStart + columnIndex*nPos*4);
+		MappedByteBuffer col = (MappedByteBuffer) buf.slice();
+		buf.clear();
+		return col;
+	}
+
+	public File getFile() {
+		return file;
+	}
+	
+	public int getShipCount() {
+		return nShips;
+	}
+
+	public int getPositionCount() {
+		return nPos;
+	}
+	
+	public boolean hasNormTs() {
+		return hasNormTs;
+	}
+	
+	public String getMmsi(int ship) {
+		return mmsi[ship];
+	}
+
+	public int getFirst(int ship) {
+		return first[ship];
+	}
+
+	public int getCount(int ship) {
+		return count[ship];
+	}
+	
+	/**
+	 * True if the bounding box of the ship positions intersects the given limits
+	 */
+	public boolean intersects(int ship, float boxMinLat, float boxMaxLat, float boxMinLon, float boxMaxLon) {
+		return !(maxLat[ship] < boxMinLat || minLat[ship] > boxMaxLat || 
+				 maxLon[ship] < boxMinLon || minLon[ship] > boxMaxLon);
+	}
+	
+	/**
+	 * Index of the ship in the directory, -1 if not present
+	 */
+	public int findShip(String shipMmsi) {
+		int lo = 0, hi = nShips - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = mmsi[mid].compareTo(shipMmsi);
+			if(cmp < 0) {
+				lo = mid + 1;
+			} else if(cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * First position of the ship with ts >= tsSec (positions of a ship are sorted by ts)
+	 */
+	public int lowerBound(int ship, int tsSec) {
+		int lo = first[ship], hi = first[ship] + count[ship];
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(ts.get(mid) < tsSec) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	public int getTs(int pos) {
+		return ts.get(pos);
+	}
+
+	public float getLat(int pos) {
+		return lat.get(pos);
+	}
+
+	public float getLon(int pos) {
+		return lon.get(pos);
+	}
+	
+	public int getNormTs(int pos) {
+		return normTs.get(pos);
+	}
+}
@@ -0,0 +1,136 @@
+package org.pelizzari.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects positions and writes them as a PositionPartition file.
+ * Positions must be added ordered by MMSI and, for the same ship, by ts. 
+ * @author andrea@pelizzari.org
+ *
+ */
+public class PositionPartitionBuilder {
+
+	final static int INITIAL_CAPACITY = 1024;
+	
+	boolean withNormTs;
+	
+	List<String> mmsiList = new ArrayList<String>();
+	List<int[]> shipRanges = new ArrayList<int[]>(); // first, count
+	List<float[]> shipBoxes = new ArrayList<float[]>(); // minLat, maxLat, minLon, maxLon
+	
+	int nPos = 0;
+	int[] ts = new int[INITIAL_CAPACITY];
+	float[] lat = new float[INITIAL_CAPACITY];
+	float[] lon = new float[INITIAL_CAPACITY];
+	int[] normTs;
+	
+	public PositionPartitionBuilder(boolean withNormTs) {
+		this.withNormTs = withNormTs;
+		if(withNormTs) {
+			normTs = new int[INITIAL_CAPACITY];
+		}
+	}
+	
+	public int getPositionCount() {
+		return nPos;
+	}
+	
+	public void add(String mmsi, int tsSec, float posLat, float posLon) {
+		add(mmsi, tsSec, posLat, posLon, 0);
+	}
+	
+	public void add(String mmsi, int tsSec, float posLat, float posLon, int normTsSec) {
+		if(mmsi.length() > PositionPartition.MMSI_SIZE) {
+			throw new IllegalArgumentException("MMSI too long: "+mmsi);
+		}
+		int nShips = mmsiList.size();
+		String lastMmsi = nShips == 0 ? null : mmsiList.get(nShips-1);
+		float[] box;
+		if(!mmsi.equals(lastMmsi)) { // next ship
+			if(lastMmsi != null && lastMmsi.compareTo(mmsi) > 0) {
+				throw new IllegalArgumentException("Positions not ordered by MMSI: "+lastMmsi+" > "+mmsi);
+			}
+			mmsiList.add(mmsi);
+			shipRanges.add(new int[] {nPos, 0});
+			box = new float[] {posLat, posLat, posLon, posLon};
+			shipBoxes.add(box);
+		} else {
+			if(ts[nPos-1] > tsSec) {
+				throw new IllegalArgumentException("Positions of "+mmsi+" not ordered by ts");
+			}
+			box = shipBoxes.get(nShips-1);
+			box[0] = Math.min(box[0], posLat);
+			box[1] = Math.max(box[1], posLat);
+			box[2] = Math.min(box[2], posLon);
+			box[3] = Math.max(box[3], posLon);
+		}
+		if(nPos == ts.length) {
+			int capacity = nPos*2;
+			ts = Arrays.copyOf(ts, capacity);
+			lat = Arrays.copyOf(lat, capacity);
+			lon = Arrays.copyOf(lon, capacity);
+			if(withNormTs) {
+				normTs = Arrays.copyOf(normTs, capacity);
+			}
+		}
+		ts[nPos] = tsSec;
+		lat[nPos] = posLat;
+		lon[nPos] = posLon;
+		if(withNormTs) {
+			normTs[nPos] = normTsSec;
+		}
+		nPos++;
+		shipRanges.get(shipRanges.size()-1)[1]++;
+	}
+	
+	/**
+	 * Write the partition to a temporary file, then rename it, so that readers never see a partial file
+	 */
+	public void write(File file) throws IOException {
+		File tmpFile = new File(file.getPath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+			out.writeInt(PositionPartition.MAGIC);
+			out.writeInt(withNormTs ? PositionPartition.FLAG_NORM_TS : 0);
+			out.writeInt(mmsiList.size());
+			out.writeInt(nPos);
+			for (int i = 0; i < mmsiList.size(); i++) {
+				byte[] mmsiBytes = Arrays.copyOf(
+						mmsiList.get(i).getBytes(PositionPartition.MMSI_CHARSET), PositionPartition.MMSI_SIZE);
+				out.write(mmsiBytes);
+				out.writeInt(shipRanges.get(i)[0]);
+				out.writeInt(shipRanges.get(i)[1]);
+				for (float f : shipBoxes.get(i)) {
+					out.writeFloat(f);
+				}
+			}
+			for (int i = 0; i < nPos; i++) {
+				out.writeInt(ts[i]);
+			}
+			for (int i = 0; i < nPos; i++) {
+				out.writeFloat(lat[i]);
+			}
+			for (int i = 0; i < nPos; i++) {
+				out.writeFloat(lon[i]);
+			}
+			if(withNormTs) {
+				for (int i = 0; i < nPos; i++) {
+					out.writeInt(normTs[i]);
+				}
+			}
+		}
+		if(file.exists() && !file.delete()) {
+			throw new IOException("Cannot replace "+file);
+		}
+		if(!tmpFile.renameTo(file)) {
+			throw new IOException("Cannot rename "+tmpFile+" to "+file);
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package org.pelizzari.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.pelizzari.db.Miner;
+import org.pelizzari.gis.Box;
+import org.pelizzari.gis.Point;
+import org.pelizzari.ship.Ship;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ColumnarShipPositionList;
+import org.pelizzari.ship.ShipPositionList;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.time.TimeInterval;
+import org.pelizzari.time.Timestamp;
+
+/**
+ * Local, file-based copy of the position data, answering the same questions as the Miner.
+ * The directory contains:
+ * <ul>
+ * <li>one partition per (UTC) day of wpos positions: wpos-yyyyMMdd.pos</li>
+ * <li>one partition per group of tracks (with norm_ts): route-PERIOD-DEP-ARR-INSERTTS.pos</li>
+ * </ul>
+ * Partitions are memory-mapped when first used and kept open.
+ * Intervals are turned into whole days as in Miner (see TimeInterval.getStartDayEpochSec()).
+ * @author andrea@pelizzari.org
+ *
+ */
+public class PositionStore {
+
+	final static int ONE_DAY_IN_SEC = 24*3600;
+	final static String DAY_PREFIX = "wpos-";
+	final static String ROUTE_PREFIX = "route-";
+	final static String EXT = ".pos";
+	
+	File dir;
+	HashMap<File, PositionPartition> partitions = new HashMap<File, PositionPartition>();
+	
+	public PositionStore(File dir) {
+		this.dir = dir;
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			System.err.println("Cannot create position store directory: "+dir);
+		}
+	}
+	
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Day since the Epoch (UTC) of a timestamp in sec
+	 */
+	public static int getEpochDay(long tsSec) {
+		long day = tsSec / ONE_DAY_IN_SEC;
+		if(tsSec < 0 && day * ONE_DAY_IN_SEC != tsSec) {
+			day--;
+		}
+		return (int) day;
+	}
+	
+	public File getDayFile(int epochDay) {
+		SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return new File(dir, DAY_PREFIX + df.format(new java.util.Date((long) epochDay * ONE_DAY_IN_SEC * 1000)) + EXT);
+	}
+	
+	public File getRouteFile(String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		return new File(dir, getRoutePrefix(yearPeriod, depBox, arrBox) + insertTs + EXT);
+	}
+	
+	String getRoutePrefix(String yearPeriod, Box depBox, Box arrBox) {
+		return ROUTE_PREFIX + yearPeriod + "-" + depBox.getName() + "-" + arrBox.getName() + "-";
+	}
+	
+	/**
+	 * Partition mapped from the file, null if the file does not exist
+	 */
+	public synchronized PositionPartition getPartition(File file) {
+		PositionPartition partition = partitions.get(file);
+		if(partition == null && file.exists()) {
+			try {
+				partition = new PositionPartition(file);
+				partitions.put(file, partition);
+			} catch (IOException e) {
+				System.err.println("Cannot read position partition: "+file);
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		return partition;
+	}
+	
+	/**
+	 * Write (or replace) a partition of the store.
+	 */
+	public void writePartition(File file, PositionPartitionBuilder builder) throws IOException {
+		synchronized (this) {
+			partitions.remove(file);
+		}
+		builder.write(file);
+	}
+	
+	public void writeDay(int epochDay, PositionPartitionBuilder builder) throws IOException {
+		writePartition(getDayFile(epochDay), builder);
+	}
+	
+	/**
+	 * Save a group of tracks with their normalized timestamps (same as NormalizeShipTracks).
+	 * The tracks must belong to different ships.
+	 */
+	public void writeRoute(List<ShipTrack> tracks, String yearPeriod, Box depBox, Box arrBox, long insertTs,
+						   Timestamp referenceStartTS, int referenceVoyageDurationInSec) throws IOException {
+		List<ShipTrack> sortedTracks = new ArrayList<ShipTrack>(tracks);
+		Collections.sort(sortedTracks, new Comparator<ShipTrack>() {
+			public int compare(ShipTrack t1, ShipTrack t2) {
+				return t1.getMmsi().compareTo(t2.getMmsi());
+			}
+		});
+		PositionPartitionBuilder builder = new PositionPartitionBuilder(true);
+		for (ShipTrack track : sortedTracks) {
+			Timestamp[] normTs = track.computeNormalizedTimes(referenceStartTS, referenceVoyageDurationInSec);
+			int i = 0;
+			for (ShipPosition pos : track.getPosList()) {
+				builder.add(track.getMmsi(), (int) (pos.getTs().getTsMillisec()/1000), 
+						pos.getPoint().lat, pos.getPoint().lon, (int) (normTs[i].getTsMillisec()/1000));
+				i++;
+			}
+		}
+		writePartition(getRouteFile(yearPeriod, depBox, arrBox, insertTs), builder);
+	}
+	
+	List<PositionPartition> getDayPartitions(TimeInterval interval) {
+		List<PositionPartition> dayPartitions = new ArrayList<PositionPartition>();
+		int firstDay = getEpochDay(interval.getStartDayEpochSec());
+		int lastDay = getEpochDay(interval.getEndDayEpochSec() - 1);
+		for (int day = firstDay; day <= lastDay; day++) {
+			PositionPartition partition = getPartition(getDayFile(day));
+			if(partition != null) {
+				dayPartitions.add(partition);
+			}
+		}
+		return dayPartitions;
+	}
+	
+	/*
+	 * Route partitions of the group, all insert_ts if insertTs = -1
+	 */
+	List<PositionPartition> getRoutePartitions(String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		List<PositionPartition> routePartitions = new ArrayList<PositionPartition>();
+		if(insertTs != -1) {
+			PositionPartition partition = getPartition(getRouteFile(yearPeriod, depBox, arrBox, insertTs));
+			if(partition != null) {
+				routePartitions.add(partition);
+			}
+			return routePartitions;
+		}
+		String prefix = getRoutePrefix(yearPeriod, depBox, arrBox);
+		String[] names = dir.list();
+		if(names == null) {
+			return routePartitions;
+		}
+		TreeSet<String> sortedNames = new TreeSet<String>();
+		for (String name : names) {
+			if(name.startsWith(prefix) && name.endsWith(EXT) && 
+					name.substring(prefix.length(), name.length() - EXT.length()).matches("-?\\d+")) {
+				sortedNames.add(name);
+			}
+		}
+		for (String name : sortedNames) {
+			routePartitions.add(getPartition(new File(dir, name)));
+		}
+		return routePartitions;
+	}
+	
+	/*
+	 * Route partitions from depBox to arrBox of any period, all insert_ts if insertTs = -1
+	 */
+	List<PositionPartition> getRoutePartitions(Box depBox, Box arrBox, long insertTs) {
+		List<PositionPartition> routePartitions = new ArrayList<PositionPartition>();
+		Pattern namePattern = Pattern.compile(Pattern.quote(ROUTE_PREFIX) + ".+" + 
+				Pattern.quote("-" + depBox.getName() + "-" + arrBox.getName() + "-") + 
+				(insertTs == -1 ? "-?\\d+" : Pattern.quote(Long.toString(insertTs))) + Pattern.quote(EXT));
+		String[] names = dir.list();
+		if(names == null) {
+			return routePartitions;
+		}
+		TreeSet<String> sortedNames = new TreeSet<String>();
+		for (String name : names) {
+			if(namePattern.matcher(name).matches()) {
+				sortedNames.add(name);
+			}
+		}
+		for (String name : sortedNames) {
+			routePartitions.add(getPartition(new File(dir, name)));
+		}
+		return routePartitions;
+	}
+	
+	static boolean isSelected(String mmsi, Set<String> includeSet, Set<String> excludeSet) {
+		return (includeSet == null || includeSet.contains(mmsi)) && 
+			   (excludeSet == null || !excludeSet.contains(mmsi));
+	}
+	
+	static boolean isWithinBox(Box box, float lat, float lon) {
+		return box == null || 
+			   (lat >= box.getMinLat() && lat <= box.getMaxLat() && lon >= box.getMinLon() && lon <= box.getMaxLon());
+	}
+	
+	static boolean intersects(PositionPartition partition, int ship, Box box) {
+		return box == null || 
+				partition.intersects(ship, box.getMinLat(), box.getMaxLat(), box.getMinLon(), box.getMaxLon());
+	}
+	
+	/**
+	 * Ships having at least one position in the box during the interval, ordered by MMSI.
+	 * @param box if null, any position
+	 * @param limitShips if <= 0, no limit
+	 */
+	public List<Ship> getShipsInIntervalAndBox(TimeInterval interval, 
+											   Box box, 
+											   List<Ship> includeShips,
+											   List<Ship> excludeShips,
+											   int limitShips) {
+		Set<String> includeSet = Miner.getMmsiSet(includeShips);
+		Set<String> excludeSet = Miner.getMmsiSet(excludeShips);
+		int startSec = (int) interval.getStartDayEpochSec();
+		int endSec = (int) interval.getEndDayEpochSec();
+		TreeSet<String> found = new TreeSet<String>();
+		for (PositionPartition partition : getDayPartitions(interval)) {
+			for (int ship = 0; ship < partition.getShipCount(); ship++) {
+				String mmsi = partition.getMmsi(ship);
+				if(found.contains(mmsi) || !isSelected(mmsi, includeSet, excludeSet) || 
+						!intersects(partition, ship, box)) {
+					continue;
+				}
+				int end = partition.getFirst(ship) + partition.getCount(ship);
+				for (int i = partition.lowerBound(ship, startSec); i < end && partition.getTs(i) < endSec; i++) {
+					if(isWithinBox(box, partition.getLat(i), partition.getLon(i))) {
+						found.add(mmsi);
+						break;
+					}
+				}
+			}
+		}
+		List<Ship> ships = new ArrayList<Ship>();
+		for (String mmsi : found) {
+			if(limitShips > 0 && ships.size() >= limitShips) {
+				break;
+			}
+			ships.add(new Ship(mmsi));
+		}
+		return ships;
+	}
+	
+	/**
+	 * Positions in the box during the interval, ordered by ts for each ship, keyed by MMSI (in MMSI order).
+	 * @param box if null, any position
+	 */
+	public LinkedHashMap<String, List<ShipPosition>> getShipPositionsInIntervalAndBoxByShip(
+			TimeInterval interval,  
+			Box box, 
+			List<Ship> includeShips,
+			List<Ship> excludeShips) {
+		Set<String> includeSet = Miner.getMmsiSet(includeShips);
+		Set<String> excludeSet = Miner.getMmsiSet(excludeShips);
+		int startSec = (int) interval.getStartDayEpochSec();
+		int endSec = (int) interval.getEndDayEpochSec();
+		TreeMap<String, List<ShipPosition>> posListByShip = new TreeMap<String, List<ShipPosition>>();
+		for (PositionPartition partition : getDayPartitions(interval)) { // days in order: ts stays ordered
+			if(includeSet != null && includeSet.size() < partition.getShipCount()) { // look up the few ships
+				for (String mmsi : includeSet) {
+					int ship = partition.findShip(mmsi);
+					if(ship >= 0 && isSelected(mmsi, null, excludeSet)) {
+						addPositions(partition, ship, startSec, endSec, box, posListByShip);
+					}
+				}
+			} else {
+				for (int ship = 0; ship < partition.getShipCount(); ship++) {
+					if(isSelected(partition.getMmsi(ship), includeSet, excludeSet)) {
+						addPositions(partition, ship, startSec, endSec, box, posListByShip);
+					}
+				}
+			}
+		}
+		return new LinkedHashMap<String, List<ShipPosition>>(posListByShip);
+	}
+	
+	void addPositions(PositionPartition partition, int ship, int startSec, int endSec, Box box,
+					  TreeMap<String, List<ShipPosition>> posListByShip) {
+		if(!intersects(partition, ship, box)) {
+			return;
+		}
+		List<ShipPosition> posList = null;
+		int end = partition.getFirst(ship) + partition.getCount(ship);
+		for (int i = partition.lowerBound(ship, startSec); i < end && partition.getTs(i) < endSec; i++) {
+			float lat = partition.getLat(i);
+			float lon = partition.getLon(i);
+			if(!isWithinBox(box, lat, lon)) {
+				continue;
+			}
+			if(posList == null) {
+				String mmsi = partition.getMmsi(ship);
+				posList = posListByShip.get(mmsi);
+				if(posList == null) {
+					posList = new ArrayList<ShipPosition>();
+					posListByShip.put(mmsi, posList);
+				}
+			}
+			posList.add(new ShipPosition(new Point(lat, lon), new Timestamp((long) partition.getTs(i)*1000)));
+		}
+	}
+	
+	/**
+	 * Positions in the box during the interval, of all the selected ships, ordered by ts.
+	 * @param limitPositions if <= 0, no limit
+	 */
+	public List<ShipPosition> getShipPositionsInIntervalAndBox(
+			TimeInterval interval,  
+			Box box, 
+			List<Ship> includeShips,
+			List<Ship> excludeShips,
+			int limitPositions) {
+		List<ShipPosition> posList = new ArrayList<ShipPosition>();
+		for (List<ShipPosition> shipPosList : 
+				getShipPositionsInIntervalAndBoxByShip(interval, box, includeShips, excludeShips).values()) {
+			posList.addAll(shipPosList);
+		}
+		sortByTs(posList);
+		if(limitPositions > 0 && posList.size() > limitPositions) {
+			posList = new ArrayList<ShipPosition>(posList.subList(0, limitPositions));
+		}
+		return posList;
+	}
+	
+	static void sortByTs(List<ShipPosition> posList) {
+		Collections.sort(posList, new Comparator<ShipPosition>() {
+			public int compare(ShipPosition p1, ShipPosition p2) {
+				long ts1 = p1.getTs().getTsMillisec();
+				long ts2 = p2.getTs().getTsMillisec();
+				return ts1 < ts2 ? -1 : (ts1 == ts2 ? 0 : 1);
+			}
+		});
+	}
+	
+	/**
+	 * Ships with a track in the group, ordered by MMSI
+	 */
+	public List<Ship> getShipsWithRoutes(String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		TreeSet<String> found = new TreeSet<String>();
+		for (PositionPartition partition : getRoutePartitions(yearPeriod, depBox, arrBox, insertTs)) {
+			for (int ship = 0; ship < partition.getShipCount(); ship++) {
+				found.add(partition.getMmsi(ship));
+			}
+		}
+		List<Ship> ships = new ArrayList<Ship>();
+		for (String mmsi : found) {
+			ships.add(new Ship(mmsi));
+		}
+		return ships;
+	}
+	
+	/**
+	 * Tracks of the group, with their original timestamps, ordered by MMSI
+	 */
+	public List<ShipTrack> getShipTracksFromRoutes(String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		TreeMap<String, List<ShipPosition>> posListByShip = new TreeMap<String, List<ShipPosition>>();
+		for (PositionPartition partition : getRoutePartitions(yearPeriod, depBox, arrBox, insertTs)) {
+			for (int ship = 0; ship < partition.getShipCount(); ship++) {
+				addPositions(partition, ship, Integer.MIN_VALUE, Integer.MAX_VALUE, null, posListByShip);
+			}
+		}
+		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
+		for (String mmsi : posListByShip.keySet()) {
+			List<ShipPosition> posList = posListByShip.get(mmsi);
+			sortByTs(posList); // a ship can be in more than one route partition
+			ShipTrack track = new ShipTrack();
+			track.setMmsi(mmsi);
+			track.setPosList(posList);
+			tracks.add(track);
+		}
+		return tracks;
+	}
+	
+	/**
+	 * Positions of the tracks from depBox to arrBox of any period, with their original timestamps, 
+	 * ordered by them, as Miner.getShipPositionsFromTracksTable.
+	 * @param limitPositions if <= 0, no limit
+	 * @param insertTs -1 for all
+	 */
+	public List<ShipPosition> getRoutePositions(Box depBox, 
+												Box arrBox, 
+												List<Ship> includeShips, 
+												List<Ship> excludeShips,
+												int limitPositions,
+												long insertTs) {
+		Set<String> includeSet = Miner.getMmsiSet(includeShips);
+		Set<String> excludeSet = Miner.getMmsiSet(excludeShips);
+		TreeMap<String, List<ShipPosition>> posListByShip = new TreeMap<String, List<ShipPosition>>();
+		for (PositionPartition partition : getRoutePartitions(depBox, arrBox, insertTs)) {
+			for (int ship = 0; ship < partition.getShipCount(); ship++) {
+				if(isSelected(partition.getMmsi(ship), includeSet, excludeSet)) {
+					addPositions(partition, ship, Integer.MIN_VALUE, Integer.MAX_VALUE, null, posListByShip);
+				}
+			}
+		}
+		List<ShipPosition> posList = new ArrayList<ShipPosition>();
+		for (List<ShipPosition> shipPosList : posListByShip.values()) {
+			posList.addAll(shipPosList);
+		}
+		sortByTs(posList);
+		if(limitPositions > 0 && posList.size() > limitPositions) {
+			posList = new ArrayList<ShipPosition>(posList.subList(0, limitPositions));
+		}
+		return posList;
+	}
+	
+	/**
+	 * All positions of the tracks of the group with the normalized timestamps, ordered by them
+	 * (ties in the order of the original ts), as Miner.getMergedShipTracksInPeriodAndBetweenBoxes.
+	 */
+	public ShipPositionList getMergedRoutes(String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		final List<long[]> keys = new ArrayList<long[]>(); // ts, partition, position
+		List<PositionPartition> routePartitions = getRoutePartitions(yearPeriod, depBox, arrBox, insertTs);
+		for (int p = 0; p < routePartitions.size(); p++) {
+			PositionPartition partition = routePartitions.get(p);
+			if(!partition.hasNormTs()) {
+				System.err.println("WARN: no normalized timestamps in "+partition.getFile());
+				continue;
+			}
+			for (int i = 0; i < partition.getPositionCount(); i++) {
+				keys.add(new long[] {partition.getTs(i), p, i});
+			}
+		}
+		Collections.sort(keys, new Comparator<long[]>() {
+			public int compare(long[] k1, long[] k2) {
+				return k1[0] < k2[0] ? -1 : (k1[0] == k2[0] ? 0 : 1);
+			}
+		});
+		ColumnarShipPositionList mergedTrack = new ColumnarShipPositionList(Math.max(keys.size(), 1));
+		for (long[] key : keys) {
+			PositionPartition partition = routePartitions.get((int) key[1]);
+			int i = (int) key[2];
+			mergedTrack.addPosition((long) partition.getNormTs(i)*1000, partition.getLat(i), partition.getLon(i));
+		}
+		System.out.println("Read " + keys.size() + " positions from store");
+		mergedTrack.sortByTime(); // by normalized timestamp, as Miner
+		return mergedTrack;
+	}
+}
@@ -0,0 +1,185 @@
+package org.pelizzari.store;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.pelizzari.db.Miner;
+import org.pelizzari.db.ShipPositionCursor;
+import org.pelizzari.gis.Box;
+import org.pelizzari.ship.PositionDecimator;
+import org.pelizzari.ship.Ship;
+import org.pelizzari.ship.ShipPosition;
+import org.pelizzari.ship.ShipPositionList;
+import org.pelizzari.ship.ShipTrack;
+import org.pelizzari.time.TimeInterval;
+
+/**
+ * Miner reading from a PositionStore instead of the database: wpos is replaced by the day partitions,
+ * the tracks table by the route partitions.
+ * Track extraction (getShipTracksInIntervalAndBetweenBoxes, ...) works as in Miner. 
+ * Cursors (open...) need the database: they throw UnsupportedOperationException. 
+ * Parallel mode is ignored.
+ * @author andrea@pelizzari.org
+ *
+ */
+public class StoreMiner extends Miner {
+
+	PositionStore store;
+	
+	public StoreMiner(PositionStore store) {
+		super((Connection) null);
+		this.store = store;
+	}
+
+	public PositionStore getStore() {
+		return store;
+	}
+	
+	/**
+	 * Ignored: scans of the store are not limited by round trips
+	 */
+	public void setParallelism(int parallelism) {
+		super.setParallelism(1);
+	}
+	
+	public List<Ship> getShipsInIntervalAndBox(TimeInterval interval, 
+											   Box box, 
+											   List<Ship> includeShips,
+											   List<Ship> excludeShips,
+											   int limitShips) {
+		return store.getShipsInIntervalAndBox(interval, box, includeShips, excludeShips, limitShips);
+	}
+	
+	public LinkedHashMap<String, List<ShipPosition>> getShipPositionsInIntervalAndBoxByShip(
+				   TimeInterval interval,  
+				   Box box, 
+				   List<Ship> includeShips,
+				   List<Ship> excludeShips) {
+		return store.getShipPositionsInIntervalAndBoxByShip(interval, box, includeShips, excludeShips);
+	}
+
+	public List<ShipPosition> getShipPositionsInIntervalAndBox(
+				   TimeInterval interval,  
+				   Box box, 
+				   List<Ship> includeShips,
+				   List<Ship> excludeShips,
+				   int limitPositions) {
+		return store.getShipPositionsInIntervalAndBox(interval, box, includeShips, excludeShips, limitPositions);
+	}
+
+	/**
+	 * As in Miner, the positions are read from the partitions and then decimated
+	 */
+	public List<ShipPosition> getShipPositionsInIntervalAndBox(
+				   TimeInterval interval,  
+				   Box box, 
+				   List<Ship> includeShips,
+				   List<Ship> excludeShips,
+				   int limitPositions,
+				   PositionDecimator decimator) {
+		if(decimator != null && (includeShips == null || includeShips.size() != 1)) {
+			throw new IllegalArgumentException("A decimator needs the positions of one ship");
+		}
+		List<ShipPosition> posList = getShipPositionsInIntervalAndBox(
+				interval, box, includeShips, excludeShips, limitPositions);
+		if(decimator != null) {
+			posList = decimator.decimate(posList);
+		}
+		return posList;
+	}
+	
+	/**
+	 * Not available: use getShipPositionsInIntervalAndBox()
+	 */
+	public ShipPositionCursor openShipPositionsInIntervalAndBox(
+				   TimeInterval interval,  
+				   Box box, 
+				   List<Ship> includeShips,
+				   List<Ship> excludeShips,
+				   int limitPositions) {
+		throw new UnsupportedOperationException("No position cursor on a position store, " +
+				"use getShipPositionsInIntervalAndBox()");
+	}
+	
+	/**
+	 * As in Miner, but the positions are read from the partitions instead of streamed by a cursor
+	 */
+	public ShipTrack getShipTrackInIntervalAndBetweenBoxes(Ship ship,
+														   TimeInterval interval,
+														   Box departureBox,
+														   Box arrivalBox) {
+		List<Ship> shipList = new ArrayList<Ship>();
+		shipList.add(ship);
+		List<ShipPosition> posList = getShipPositionsInIntervalAndBox(interval, null, shipList, null, -1);
+		return makeShipTrackBetweenBoxes(ship, posList.iterator(), departureBox, arrivalBox);
+	}
+	
+	public List<Ship> getShipsWithTracks(String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		return store.getShipsWithRoutes(yearPeriod, depBox, arrBox, insertTs);
+	}
+	
+	public List<ShipTrack> getShipTracksFromTracksTable(String yearPeriod, 
+														Box depBox,
+														Box arrBox,
+														long insertTs) {
+		return store.getShipTracksFromRoutes(yearPeriod, depBox, arrBox, insertTs);
+	}
+
+	public ShipPositionList getMergedShipTracksInPeriodAndBetweenBoxes(
+			String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		return store.getMergedRoutes(yearPeriod, depBox, arrBox, insertTs);
+	}
+	
+	/**
+	 * Not available: use getMergedShipTracksInPeriodAndBetweenBoxes()
+	 */
+	public ShipPositionCursor openMergedShipTracksInPeriodAndBetweenBoxes(
+			String yearPeriod, Box depBox, Box arrBox, long insertTs) {
+		throw new UnsupportedOperationException("No position cursor on a position store, " +
+				"use getMergedShipTracksInPeriodAndBetweenBoxes()");
+	}
+	
+	public List<ShipPosition> getShipPositionsFromTracksTable(
+			   Box depBox,
+			   Box arrBox,
+			   List<Ship> includeShips,
+			   List<Ship> excludeShips,
+			   int limitPositions,
+			   long insertTs) {
+		return store.getRoutePositions(depBox, arrBox, includeShips, excludeShips, limitPositions, insertTs);
+	}
+	
+	/**
+	 * As in Miner, the positions of all the ships are read with one scan of the partitions
+	 */
+	public List<ShipTrack> getShipTracksInIntervalAndCrossingBox(TimeInterval interval,
+																 Box box,
+																 int limitTracks) {
+		List<Ship> ships = getShipsInIntervalAndBox(interval, box, null, null, limitTracks);
+		if(ships.isEmpty()) {
+			System.out.println("WARN: no ships found");
+			return null;
+		}
+		LinkedHashMap<String, List<ShipPosition>> posListByShip = 
+				getShipPositionsInIntervalAndBoxByShip(interval, null, ships, null);
+		List<ShipTrack> tracks = new ArrayList<ShipTrack>();
+		for (Ship ship : ships) {
+			List<ShipPosition> posList = posListByShip.get(ship.getMmsi());
+			if(posList == null) {
+				posList = new ArrayList<ShipPosition>();
+			}
+			ShipTrack track = makeShipTrackBetweenBoxes(ship, posList.iterator(), null, null);
+			if(track != null) {
+				track.setMmsi(ship.getMmsi());
+				tracks.add(track);
+			}
+		}
+		return tracks;
+	}
+	
+	public void close() {
+		// nothing to close, partitions stay mapped
+	}
+}
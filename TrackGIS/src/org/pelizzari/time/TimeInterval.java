@@ -1,11 +1,16 @@
 package org.pelizzari.time;
 
+import java.util.Calendar;
 import java.util.Date;
+import java.util.TimeZone;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
 public class TimeInterval {
 	
+	// days of the interval: UTC midnights, as the days of the positions (PositionStore.getEpochDay())
+	final static TimeZone DAY_TIME_ZONE = TimeZone.getTimeZone("UTC");
+	
 	Timestamp startTs;
 	Timestamp endTs; // start and end
 	
@@ -45,7 +50,11 @@ public class TimeInterval {
 	}
 	
 	public boolean isWithinInterval(Timestamp ts) {
-		boolean within = (ts.ts <= endTs.ts) && (ts.ts >= startTs.ts);
+		return isWithinInterval(ts.ts);
+	}
+
+	public boolean isWithinInterval(long tsMillisec) {
+		boolean within = (tsMillisec <= endTs.ts) && (tsMillisec >= startTs.ts);
 		return within;
 	}
 
@@ -74,6 +83,39 @@ public class TimeInterval {
 		this.endTs = endTs;
 	}
 	
+	/**
+	 * Midnight (UTC) of the first day of the interval, in seconds since the Epoch.
+	 * Together with getEndDayEpochSec() it covers the same whole days as 
+	 * "date(ts) >= start date and date(ts) <= end date" with UTC dates, but it can be compared directly 
+	 * with raw timestamps. The date is the one of the interval as written (e.g. "2011-01-01 00:00:00"), 
+	 * so the days are the same whatever the time zone of the JVM or of the DB server.
+	 */
+	public long getStartDayEpochSec() {
+		return getMidnightInMillisec(startTs.ts, 0) / 1000;
+	}
+
+	/**
+	 * Midnight (UTC) of the day after the last day of the interval (excluded), in seconds since the Epoch.
+	 */
+	public long getEndDayEpochSec() {
+		return getMidnightInMillisec(endTs.ts, 1) / 1000;
+	}
+	
+	/**
+	 * UTC midnight of the calendar date of the timestamp (plus addDays). The date is taken in the default
+	 * time zone, the one Timestamp(String) parses in: the date of "2011-01-01 00:00:00" is 2011-01-01 
+	 * with any -Duser.timezone.
+	 */
+	static long getMidnightInMillisec(long tsMillisec, int addDays) {
+		Calendar parsedCal = Calendar.getInstance();
+		parsedCal.setTimeInMillis(tsMillisec);
+		Calendar cal = Calendar.getInstance(DAY_TIME_ZONE);
+		cal.clear();
+		cal.set(parsedCal.get(Calendar.YEAR), parsedCal.get(Calendar.MONTH), parsedCal.get(Calendar.DAY_OF_MONTH));
+		cal.add(Calendar.DAY_OF_MONTH, addDays);
+		return cal.getTimeInMillis();
+	}
+	
 	public String toString() {
 		return startTs + " - " + endTs;
 	}